@@ -0,0 +1,82 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.FormatUtils;
+import com.google.sps.servlets.FormatUtils.InvalidPriceException;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures formatting the receipt fields submitted by the upload and edit forms. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class FormatUtilsBenchmark {
+  private static final int INPUTS = 1024;
+
+  private String[] userInputs;
+  private String[][] categoryLists;
+  private String[] priceInputs;
+  private double[] prices;
+  private int nextInput;
+
+  @Setup
+  public void setUp() {
+    userInputs = ReceiptCorpus.userInputs(INPUTS);
+    categoryLists = ReceiptCorpus.categoryLists(INPUTS);
+    priceInputs = ReceiptCorpus.priceInputs(INPUTS);
+    prices = Arrays.stream(priceInputs).mapToDouble(Double::parseDouble).toArray();
+  }
+
+  @Benchmark
+  public String sanitize() {
+    return FormatUtils.sanitize(userInputs[nextInput()]);
+  }
+
+  @Benchmark
+  public ImmutableSet<String> sanitizeCategories() {
+    return FormatUtils.sanitizeCategories(Arrays.stream(categoryLists[nextInput()]));
+  }
+
+  @Benchmark
+  public double roundPriceString() throws InvalidPriceException {
+    return FormatUtils.roundPrice(priceInputs[nextInput()]);
+  }
+
+  @Benchmark
+  public double roundPriceDouble() throws InvalidPriceException {
+    return FormatUtils.roundPrice(prices[nextInput()]);
+  }
+
+  private int nextInput() {
+    int input = nextInput;
+    nextInput = (nextInput + 1) % INPUTS;
+    return input;
+  }
+}
@@ -0,0 +1,70 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.ImagePreprocessor;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures shrinking a receipt photo before text detection. The bytes saved and the average
+ * latency of each stage are printed after each trial.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ImagePreprocessingBenchmark {
+  @Param({"3", "12"}) private int megapixels;
+
+  private ByteString photo;
+  private ImagePreprocessor preprocessor;
+
+  @Setup
+  public void setUp() throws IOException {
+    photo = ByteString.copyFrom(ReceiptCorpus.receiptPhoto(megapixels));
+    preprocessor = new ImagePreprocessor();
+  }
+
+  @TearDown
+  public void printMetrics() {
+    long bytesSavedPerImage = preprocessor.getMetrics().getBytesSaved()
+        / Math.max(1, preprocessor.getMetrics().getProcessedImages());
+    System.out.println();
+    System.out.println("Original image: " + photo.size() + " bytes, saved per image: "
+        + bytesSavedPerImage + " bytes");
+    System.out.println(preprocessor.getMetrics());
+  }
+
+  @Benchmark
+  public ByteString preprocess() {
+    return preprocessor.preprocess(photo);
+  }
+}
@@ -0,0 +1,49 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.sps.data.QueryInformation;
+import java.text.ParseException;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures parsing the search parameters of a request into a QueryInformation. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class QueryInformationBenchmark {
+  private static final String TIME_ZONE_ID = "America/Los_Angeles";
+  private static final String CATEGORY = "  Groceries  \n";
+  private static final String DATE_RANGE = "May 1, 2020 - May 31, 2020";
+  private static final String STORE = " Trader   Joe's ";
+  private static final String MIN_PRICE = "5.00";
+  private static final String MAX_PRICE = " 125.50 ";
+
+  @Benchmark
+  public QueryInformation construct() throws ParseException {
+    return new QueryInformation(TIME_ZONE_ID, CATEGORY, DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+  }
+}
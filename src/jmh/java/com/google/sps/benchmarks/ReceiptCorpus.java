@@ -0,0 +1,294 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.apphosting.api.ApiProxy;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import javax.imageio.ImageIO;
+
+/**
+ * Generates receipt data for the benchmarks. The data is generated from a fixed seed so that every
+ * run measures the same inputs.
+ */
+public final class ReceiptCorpus {
+  private static final long SEED = 20200508L;
+
+  private static final ImmutableList<String> STORES = ImmutableList.of("TRADER JOE'S", "WALMART",
+      "Target", "SAFEWAY", "Whole Foods Market", "CVS/pharmacy", "Costco WHOLESALE",
+      "The Home Depot", "Starbucks Coffee", "Chipotle Mexican Grill", "Walgreens", "BEST BUY");
+  private static final ImmutableList<String> ITEMS = ImmutableList.of("ORG BANANAS", "MILK 2% GAL",
+      "EGGS LG 12CT", "SOURDOUGH LOAF", "Chkn Breast", "AVOCADO HASS", "Spinach 10oz",
+      "OLIVE OIL XV", "Paper Towels", "DISH SOAP", "AA BATTERIES 8PK", "Grande Latte",
+      "Burrito Bowl", "Chips & Guac", "Shampoo 12oz", "USB-C CABLE", "2x4 STUD 8FT",
+      "Wood Screws", "Greek Yogurt", "Cold Brew");
+  private static final ImmutableList<String> CATEGORIES = ImmutableList.of("Food", "Drink",
+      "Groceries", "Restaurants", "Home & Garden", "Health", "Beauty & Fitness", "Computers",
+      "Electronics", "Shopping", "Coffee & Tea", "Hardware");
+  // Artifacts that optical character recognition commonly leaves in receipt text.
+  private static final ImmutableList<String> OCR_NOISE = ImmutableList.of("*", "**", "|", "--",
+      "T0TAL", "5UBTOTAL", "l", "@", "$", "%", "SC", "F", "N", "#");
+
+  /** Number of lines in a generated receipt. */
+  public enum Size {
+    SMALL(10),
+    MEDIUM(60),
+    LARGE(500),
+    VERY_LARGE(5000);
+
+    private final int itemLines;
+
+    Size(int itemLines) {
+      this.itemLines = itemLines;
+    }
+  }
+
+  private ReceiptCorpus() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Returns raw receipt texts as they would be returned by the Cloud Vision API. */
+  public static String[] receiptTexts(Size size, int count) {
+    Random random = new Random(SEED);
+    String[] texts = new String[count];
+
+    for (int i = 0; i < count; i++) {
+      texts[i] = receiptText(size, random);
+    }
+
+    return texts;
+  }
+
+  private static String receiptText(Size size, Random random) {
+    StringBuilder text = new StringBuilder();
+    String store = pick(STORES, random);
+
+    text.append(store).append('\n');
+    text.append(100 + random.nextInt(9900)).append(" Main St\n");
+    text.append("Mountain View, CA 9404").append(random.nextInt(10)).append('\n');
+    text.append("(650) 555-").append(1000 + random.nextInt(9000)).append('\n');
+    text.append("STORE #").append(random.nextInt(1000)).append(" TERM ").append(random.nextInt(20));
+    text.append('\n');
+
+    double subtotal = 0;
+    for (int i = 0; i < size.itemLines; i++) {
+      double price = random.nextInt(10000) / 100.0;
+      subtotal += price;
+
+      text.append(pick(ITEMS, random)).append(' ');
+      if (random.nextInt(4) == 0) {
+        text.append(pick(OCR_NOISE, random)).append(' ');
+      }
+      text.append(random.nextBoolean() ? "$" : "").append(String.format("%.2f", price));
+      text.append(random.nextBoolean() ? " F" : " N").append('\n');
+    }
+
+    double tax = Math.round(subtotal * 9.25) / 100.0;
+    text.append("SUBTOTAL ").append(String.format("%.2f", subtotal)).append('\n');
+    text.append("TAX 9.25% ").append(String.format("%.2f", tax)).append('\n');
+    text.append(random.nextInt(3) == 0 ? "T0TAL $" : "TOTAL $");
+    text.append(String.format("%.2f", subtotal + tax)).append('\n');
+    text.append("VISA ************").append(1000 + random.nextInt(9000)).append('\n');
+
+    int month = 1 + random.nextInt(12);
+    int day = 1 + random.nextInt(28);
+    int year = 2015 + random.nextInt(6);
+    String separator = random.nextBoolean() ? "/" : "-";
+    String formattedYear =
+        random.nextBoolean() ? String.valueOf(year) : String.format("%02d", year % 100);
+    text.append(String.format("%02d", month)).append(separator).append(day).append(separator);
+    text.append(formattedYear).append(' ');
+    text.append(1 + random.nextInt(12)).append(':');
+    text.append(String.format("%02d", random.nextInt(60)));
+    text.append(random.nextBoolean() ? " AM" : " PM").append('\n');
+    text.append("THANK YOU FOR SHOPPING AT ").append(store).append("!\n");
+
+    return text.toString();
+  }
+
+  /**
+   * Returns a color JPEG photo with the given number of megapixels of a receipt lying on a dark
+   * table, in the 3:4 aspect ratio of phone cameras.
+   */
+  public static byte[] receiptPhoto(int megapixels) throws IOException {
+    Random random = new Random(SEED);
+    int width = (int) Math.sqrt(megapixels * 1e6 * 3 / 4);
+    int height = width * 4 / 3;
+
+    BufferedImage photo = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = photo.createGraphics();
+    graphics.setColor(new Color(74, 52, 38));
+    graphics.fillRect(0, 0, width, height);
+
+    // The receipt covers the middle of the photo.
+    int receiptX = width / 5;
+    int receiptY = height / 10;
+    int receiptWidth = width * 3 / 5;
+    int receiptHeight = height * 4 / 5;
+    graphics.setColor(new Color(246, 244, 236));
+    graphics.fillRect(receiptX, receiptY, receiptWidth, receiptHeight);
+
+    int lineHeight = Math.max(12, height / 80);
+    graphics.setColor(new Color(30, 30, 30));
+    graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, lineHeight * 3 / 4));
+    String[] lines = receiptText(Size.MEDIUM, random).split("\n");
+    for (int i = 0; i < lines.length && (i + 2) * lineHeight < receiptHeight; i++) {
+      graphics.drawString(lines[i], receiptX + lineHeight, receiptY + (i + 2) * lineHeight);
+    }
+    graphics.dispose();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(photo, "jpeg", output);
+    return output.toByteArray();
+  }
+
+  /** Returns user input with the inconsistent case and whitespace that sanitizing removes. */
+  public static String[] userInputs(int count) {
+    Random random = new Random(SEED);
+    String[] inputs = new String[count];
+
+    for (int i = 0; i < count; i++) {
+      String input = random.nextBoolean() ? pick(STORES, random) : pick(CATEGORIES, random);
+      String padding = random.nextBoolean() ? "  " : "\t";
+      inputs[i] = padding + input.replace(" ", random.nextBoolean() ? "   " : " \n ") + padding;
+    }
+
+    return inputs;
+  }
+
+  /** Returns lists of unsanitized categories, as they are submitted with a receipt. */
+  public static String[][] categoryLists(int count) {
+    Random random = new Random(SEED);
+    String[][] categoryLists = new String[count][];
+
+    for (int i = 0; i < count; i++) {
+      String[] categories = new String[1 + random.nextInt(5)];
+      for (int j = 0; j < categories.length; j++) {
+        categories[j] = " " + pick(CATEGORIES, random).toUpperCase() + "  ";
+      }
+      categoryLists[i] = categories;
+    }
+
+    return categoryLists;
+  }
+
+  /** Returns prices as they are submitted by the upload and edit forms. */
+  public static String[] priceInputs(int count) {
+    Random random = new Random(SEED);
+    String[] prices = new String[count];
+
+    for (int i = 0; i < count; i++) {
+      prices[i] = String.valueOf(random.nextInt(1000000) / 1000.0);
+    }
+
+    return prices;
+  }
+
+  /** Returns receipt entities with the properties used for spending analytics. */
+  public static ImmutableSet<Entity> receiptEntities(int count) {
+    // Entity keys are created in the application's namespace, so the thread needs an environment.
+    if (ApiProxy.getCurrentEnvironment() == null) {
+      ApiProxy.setEnvironmentForCurrentThread(new BenchmarkEnvironment());
+    }
+
+    Random random = new Random(SEED);
+    ImmutableSet.Builder<Entity> receipts = ImmutableSet.builder();
+
+    for (int i = 0; i < count; i++) {
+      Entity receipt = new Entity("Receipt", i + 1);
+      receipt.setProperty("store", pick(STORES, random).toLowerCase());
+      receipt.setProperty("price", random.nextInt(100000) / 100.0);
+
+      List<String> categories = new ArrayList<>();
+      for (int j = 0; j < 1 + random.nextInt(3); j++) {
+        categories.add(pick(CATEGORIES, random).toLowerCase());
+      }
+      receipt.setProperty("categories", categories);
+
+      receipts.add(receipt);
+    }
+
+    return receipts.build();
+  }
+
+  /** Minimal App Engine environment for creating entities outside of a request. */
+  private static class BenchmarkEnvironment implements ApiProxy.Environment {
+    @Override
+    public String getAppId() {
+      return "benchmarks";
+    }
+
+    @Override
+    public String getModuleId() {
+      return "default";
+    }
+
+    @Override
+    public String getVersionId() {
+      return "1";
+    }
+
+    @Override
+    public String getEmail() {
+      return null;
+    }
+
+    @Override
+    public boolean isLoggedIn() {
+      return false;
+    }
+
+    @Override
+    public boolean isAdmin() {
+      return false;
+    }
+
+    @Override
+    public String getAuthDomain() {
+      return null;
+    }
+
+    @Override
+    public String getRequestNamespace() {
+      return "";
+    }
+
+    @Override
+    public Map<String, Object> getAttributes() {
+      return new HashMap<>();
+    }
+
+    @Override
+    public long getRemainingMillis() {
+      return Long.MAX_VALUE;
+    }
+  }
+
+  private static <T> T pick(ImmutableList<T> values, Random random) {
+    return values.get(random.nextInt(values.size()));
+  }
+}
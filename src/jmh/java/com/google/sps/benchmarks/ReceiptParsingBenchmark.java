@@ -0,0 +1,59 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.ReceiptAnalysis;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures parsing the transaction date and total price from the raw text of a receipt. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class ReceiptParsingBenchmark {
+  private static final int RECEIPTS = 64;
+
+  @Param({"SMALL", "MEDIUM", "LARGE", "VERY_LARGE"}) private ReceiptCorpus.Size size;
+
+  private String[] receiptTexts;
+  private int nextReceipt;
+
+  @Setup
+  public void setUp() {
+    receiptTexts = ReceiptCorpus.receiptTexts(size, RECEIPTS);
+  }
+
+  @Benchmark
+  public AnalysisResults.Builder parseDateAndPrice() {
+    String rawText = receiptTexts[nextReceipt];
+    nextReceipt = (nextReceipt + 1) % RECEIPTS;
+
+    return ReceiptAnalysis.parseDateAndPrice(rawText);
+  }
+}
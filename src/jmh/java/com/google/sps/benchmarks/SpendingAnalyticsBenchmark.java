@@ -0,0 +1,90 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.benchmarks;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import com.google.sps.data.SpendingAnalytics;
+import com.google.sps.data.UserSpendingSummary;
+import com.google.sps.servlets.ShardedReceiptScan;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/** Measures aggregating a user's receipts into spending per store and category. */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Benchmark)
+public class SpendingAnalyticsBenchmark {
+  @Param({"10", "1000", "100000"}) private int receipts;
+
+  private ImmutableSet<Entity> allReceipts;
+  private List<List<Entity>> shards;
+  private Entity summaryEntity;
+
+  @Setup
+  public void setUp() {
+    allReceipts = ReceiptCorpus.receiptEntities(receipts);
+
+    // The receipts split into as many shards as the sharded scan uses for this many receipts.
+    shards = Lists.partition(
+        allReceipts.asList(), allReceipts.size() / ShardedReceiptScan.getShardCount(receipts) + 1);
+
+    UserSpendingSummary summary = new UserSpendingSummary();
+    allReceipts.forEach(summary::addReceipt);
+    summaryEntity = summary.toEntity(KeyFactory.createKey(UserSpendingSummary.KIND, "user"));
+  }
+
+  @Benchmark
+  public SpendingAnalytics aggregate() {
+    // Receipts are added to running totals in place, which are then converted to dollars.
+    UserSpendingSummary summary = new UserSpendingSummary();
+    allReceipts.forEach(summary::addReceipt);
+    return summary.toAnalytics();
+  }
+
+  @Benchmark
+  public ShardedReceiptScan.Totals summarizeShards() {
+    // Each shard is totaled with its time buckets and the totals are merged, as the scan does.
+    ShardedReceiptScan.Totals totals = new ShardedReceiptScan.Totals();
+    for (List<Entity> shard : shards) {
+      ShardedReceiptScan.Totals shardTotals = new ShardedReceiptScan.Totals();
+      shard.forEach(shardTotals::addReceipt);
+      totals.merge(shardTotals);
+    }
+    return totals;
+  }
+
+  @Benchmark
+  public SpendingAnalytics readSummary() {
+    // Reading analytics is a lookup of the stored summary, which is decoded from its entity.
+    return UserSpendingSummary.fromEntity(summaryEntity).toAnalytics();
+  }
+}
@@ -27,14 +27,17 @@ public class AnalysisResults {
   private final Optional<String> store;
   private final Optional<Long> transactionTimestamp;
   private final Optional<Double> price;
+  // True if a stage of the analysis failed or timed out, so some fields may be missing.
+  private final boolean partial;
 
   private AnalysisResults(Optional<String> rawText, Set<String> categories, Optional<String> store,
-      Optional<Long> transactionTimestamp, Optional<Double> price) {
+      Optional<Long> transactionTimestamp, Optional<Double> price, boolean partial) {
     this.rawText = rawText;
     this.categories = ImmutableSet.copyOf(categories);
     this.store = store;
     this.transactionTimestamp = transactionTimestamp;
     this.price = price;
+    this.partial = partial;
   }
 
   public Optional<String> getRawText() {
@@ -57,12 +60,17 @@ public class AnalysisResults {
     return price;
   }
 
+  public boolean isPartial() {
+    return partial;
+  }
+
   public static class Builder {
     private Optional<String> rawText = Optional.empty();
     private ImmutableSet<String> categories = ImmutableSet.of();
     private Optional<String> store = Optional.empty();
     private Optional<Long> transactionTimestamp = Optional.empty();
     private Optional<Double> price = Optional.empty();
+    private boolean partial = false;
 
     public Optional<String> getRawText() {
       return rawText;
@@ -78,6 +86,18 @@ public class AnalysisResults {
       return this;
     }
 
+    public Optional<Long> getTransactionTimestamp() {
+      return transactionTimestamp;
+    }
+
+    public Optional<Double> getPrice() {
+      return price;
+    }
+
+    public Optional<String> getStore() {
+      return store;
+    }
+
     public Builder setStore(String store) {
       this.store = Optional.of(store);
       return this;
@@ -93,8 +113,13 @@ public class AnalysisResults {
       return this;
     }
 
+    public Builder setPartial(boolean partial) {
+      this.partial = partial;
+      return this;
+    }
+
     public AnalysisResults build() {
-      return new AnalysisResults(rawText, categories, store, transactionTimestamp, price);
+      return new AnalysisResults(rawText, categories, store, transactionTimestamp, price, partial);
     }
   }
 }
@@ -0,0 +1,32 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+/** Wrapper class for information sent on a backfill servlet doPost response. */
+public class BackfillResponse {
+  private final int scannedReceipts;
+  private final int updatedReceipts;
+  // Cursor to send with the next request to continue the backfill.
+  private final String encodedCursor;
+  private final boolean done;
+
+  public BackfillResponse(
+      int scannedReceipts, int updatedReceipts, String encodedCursor, boolean done) {
+    this.scannedReceipts = scannedReceipts;
+    this.updatedReceipts = updatedReceipts;
+    this.encodedCursor = encodedCursor;
+    this.done = done;
+  }
+}
@@ -0,0 +1,71 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import java.text.DateFormat;
+import java.text.ParseException;
+import java.util.TimeZone;
+
+/**
+ * Class to hold the timestamps of a date range, from the start of its first day to the end of its
+ * last day in the user's time zone.
+ */
+public class DateRange {
+  /** Milliseconds equivalent to 11:59:59.999 PM. */
+  private static final long MILLISECONDS_TO_END_OF_DAY = (24L * 60L * 60L * 1000L) - 1L;
+
+  private final TimeZone timeZone;
+  private final long startTimestamp;
+  private final long endTimestamp;
+
+  /**
+   * Parses a date range formatted as "month day, year - month day, year", such as the ones sent by
+   * the date range picker.
+   */
+  public DateRange(String timeZoneId, String dateRange) throws ParseException {
+    this.timeZone = TimeZone.getTimeZone(timeZoneId);
+
+    String[] dates = dateRange.split("-");
+    this.startTimestamp = dateToMilliseconds(formatInput(dates[0]));
+    this.endTimestamp = dateToMilliseconds(formatInput(dates[1])) + MILLISECONDS_TO_END_OF_DAY;
+  }
+
+  /** Sets input to lowercase and replaces all extra whitespace before/after/between. */
+  private static String formatInput(String rawInput) {
+    return rawInput.toLowerCase().replaceAll("\\s+", " ").trim();
+  }
+
+  /** Converts a formatted date (month day, year) to milliseconds since epoch. */
+  private long dateToMilliseconds(String date) throws ParseException {
+    DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.LONG);
+    dateFormat.setTimeZone(timeZone);
+
+    return dateFormat.parse(date).getTime();
+  }
+
+  public TimeZone getTimeZone() {
+    return timeZone;
+  }
+
+  /** Returns the first millisecond of the range. */
+  public long getStartTimestamp() {
+    return startTimestamp;
+  }
+
+  /** Returns the last millisecond of the range, which is included in it. */
+  public long getEndTimestamp() {
+    return endTimestamp;
+  }
+}
@@ -14,28 +14,24 @@
 
 package com.google.sps.data;
 
+import com.google.appengine.api.datastore.Entity;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableSet;
-import java.text.DateFormat;
 import java.text.ParseException;
+import java.util.Collection;
 import java.util.TimeZone;
 
 /** Class to hold query information. */
 public class QueryInformation {
-  /** Milliseconds equivalent to 11:59:59.999 PM. */
-  private static final long MILLISECONDS_TO_END_OF_DAY = (24L * 60L * 60L * 1000L) - 1L;
-
-  private final TimeZone timeZone;
+  private final DateRange dateRange;
   private final ImmutableSet<String> category;
-  private final long startTimestamp;
-  private final long endTimestamp;
   private final String store;
   private final double minPrice;
   private final double maxPrice;
 
   public QueryInformation(String timeZoneId, String category, String dateRange, String store,
       String minPrice, String maxPrice) throws ParseException, NumberFormatException {
-    this.timeZone = TimeZone.getTimeZone(timeZoneId);
+    this.dateRange = new DateRange(timeZoneId, dateRange);
 
     String formattedCategory = formatInput(category);
 
@@ -45,30 +41,35 @@ public class QueryInformation {
       this.category = ImmutableSet.of(formattedCategory);
     }
 
-    String[] dates = dateRange.split("-");
-    this.startTimestamp = dateToMilliseconds(formatInput(dates[0]));
-    this.endTimestamp = dateToMilliseconds(formatInput(dates[1])) + MILLISECONDS_TO_END_OF_DAY;
-
     this.store = formatInput(store);
     this.minPrice = Double.parseDouble(formatInput(minPrice));
     this.maxPrice = Double.parseDouble(formatInput(maxPrice));
   }
 
+  /**
+   * Checks if the receipt is in the date range, has the category and store if they're set, and has
+   * a price in the price range.
+   */
+  public boolean matches(Entity receipt) {
+    Long timestamp = (Long) receipt.getProperty("timestamp");
+    Double price = (Double) receipt.getProperty("price");
+    Collection<String> categories = (Collection<String>) receipt.getProperty("categories");
+
+    return timestamp != null && timestamp >= getStartTimestamp()
+        && timestamp <= getEndTimestamp()
+        && (category.isEmpty()
+            || (categories != null && categories.stream().anyMatch(category::contains)))
+        && (Strings.isNullOrEmpty(store) || store.equals(receipt.getProperty("store")))
+        && price != null && price >= minPrice && price <= maxPrice;
+  }
+
   /** Sets input to lowercase and replaces all extra whitespace before/after/between. */
   private String formatInput(String rawInput) {
     return rawInput.toLowerCase().replaceAll("\\s+", " ").trim();
   }
 
-  /** Converts a formatted date (month day, year) to milliseconds since epoch. */
-  private long dateToMilliseconds(String date) throws ParseException {
-    DateFormat dateFormat = DateFormat.getDateInstance(DateFormat.LONG);
-    dateFormat.setTimeZone(timeZone);
-
-    return dateFormat.parse(date).getTime();
-  }
-
   public TimeZone getTimeZone() {
-    return timeZone;
+    return dateRange.getTimeZone();
   }
 
   public ImmutableSet<String> getCategory() {
@@ -76,11 +77,11 @@ public class QueryInformation {
   }
 
   public long getStartTimestamp() {
-    return startTimestamp;
+    return dateRange.getStartTimestamp();
   }
 
   public long getEndTimestamp() {
-    return endTimestamp;
+    return dateRange.getEndTimestamp();
   }
 
   public String getStore() {
@@ -0,0 +1,36 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.Entity;
+
+/**
+ * Analysis status of a receipt uploaded asynchronously, stored in the receipt's "status" property.
+ * Receipts uploaded synchronously are analyzed before they are stored and have no status.
+ */
+public enum ReceiptStatus {
+  /** The receipt was stored and is waiting for analysis. */
+  PENDING,
+  /** The fields extracted from the image were added to the receipt. */
+  ANALYZED,
+  /** The image couldn't be analyzed, so the fields must be entered by the user. */
+  FAILED;
+
+  /** Returns the status of the receipt, which is ANALYZED if the status property isn't set. */
+  public static ReceiptStatus of(Entity receipt) {
+    String status = (String) receipt.getProperty("status");
+    return status == null ? ANALYZED : valueOf(status);
+  }
+}
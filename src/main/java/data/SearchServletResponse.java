@@ -20,9 +20,15 @@ import com.google.common.collect.ImmutableList;
 public class SearchServletResponse {
   private final ImmutableList<Receipt> matchingReceipts;
   private final String encodedCursor;
+  // Number of receipts read to find the matching receipts, which shows how selective a query is.
+  private final int scannedReceipts;
+  private final int returnedReceipts;
 
-  public SearchServletResponse(ImmutableList<Receipt> matchingReceipts, String encodedCursor) {
+  public SearchServletResponse(
+      ImmutableList<Receipt> matchingReceipts, String encodedCursor, int scannedReceipts) {
     this.matchingReceipts = ImmutableList.copyOf(matchingReceipts);
     this.encodedCursor = encodedCursor;
+    this.scannedReceipts = scannedReceipts;
+    this.returnedReceipts = matchingReceipts.size();
   }
 }
\ No newline at end of file
@@ -14,65 +14,21 @@
 
 package com.google.sps.data;
 
-import com.google.appengine.api.datastore.Entity;
-import com.google.common.base.Strings;
-import com.google.common.collect.ImmutableSet;
-import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.stream.Collectors;
 
-/** Class that computes and stores user's spending analytics. */
+/**
+ * User's spending per store and category in dollars, as it's shown on the analytics page. It's
+ * created from a {@link UserSpendingSummary}, which totals the receipts.
+ */
 public class SpendingAnalytics {
   private final HashMap<String, Double> storeAnalytics;
   private final HashMap<String, Double> categoryAnalytics;
 
-  public SpendingAnalytics(ImmutableSet<Entity> allReceipts) {
-    storeAnalytics = new HashMap<>();
-    categoryAnalytics = new HashMap<>();
-
-    for (Entity receipt : allReceipts) {
-      updateStoreAnalytics(receipt);
-
-      updateCategoryAnalytics(receipt);
-    }
-  }
-
-  /** Updates storeAnalytics hashmap with store info from the passed in receipt. */
-  private void updateStoreAnalytics(Entity receipt) {
-    String store = (String) receipt.getProperty("store");
-    Double price = (Double) receipt.getProperty("price");
-
-    // Don't add to hashmap if either store or price are invalid.
-    if (Strings.isNullOrEmpty(store) || price == null) {
-      return;
-    }
-
-    // Either update the existing entry or add a new one if it doesn't exist.
-    if (storeAnalytics.containsKey(store)) {
-      storeAnalytics.put(store, storeAnalytics.get(store) + price);
-    } else {
-      storeAnalytics.put(store, price);
-    }
-  }
-
-  /** Updates categoryAnalytics hashmap with category info from the passed in receipt. */
-  private void updateCategoryAnalytics(Entity receipt) {
-    ArrayList<String> categories = (ArrayList) receipt.getProperty("categories");
-    Double price = (Double) receipt.getProperty("price");
-
-    // If categories or price are null, skip the receipt and continue.
-    if (categories == null || price == null) {
-      return;
-    }
-
-    for (String category : categories) {
-      // Either update the existing entry or add a new one if it doesn't exist.
-      if (categoryAnalytics.containsKey(category)) {
-        categoryAnalytics.put(category, categoryAnalytics.get(category) + price);
-      } else {
-        categoryAnalytics.put(category, price);
-      }
-    }
+  /** Creates analytics from spending that was already totaled per store and category. */
+  public SpendingAnalytics(
+      HashMap<String, Double> storeAnalytics, HashMap<String, Double> categoryAnalytics) {
+    this.storeAnalytics = storeAnalytics;
+    this.categoryAnalytics = categoryAnalytics;
   }
 
   public HashMap<String, Double> getStoreAnalytics() {
@@ -82,4 +38,4 @@ public class SpendingAnalytics {
   public HashMap<String, Double> getCategoryAnalytics() {
     return categoryAnalytics;
   }
-}
\ No newline at end of file
+}
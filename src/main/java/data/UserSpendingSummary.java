@@ -0,0 +1,252 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.data;
+
+import com.google.appengine.api.datastore.EmbeddedEntity;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.base.Strings;
+import com.google.common.collect.MapDifference;
+import com.google.common.collect.Maps;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Totals of a user's spending per store and category, which are kept up to date as receipts are
+ * added, edited, and deleted so that analytics don't need to read every receipt. Totals are kept
+ * in cents so that adding and removing receipts doesn't accumulate rounding errors, along with the
+ * number of receipts in each total so that a total is removed with its last receipt. Receipts are
+ * added to running totals in place, so summing every receipt of a user doesn't allocate a total
+ * per receipt.
+ */
+public class UserSpendingSummary {
+  public static final String KIND = "UserSpendingSummary";
+
+  private final Map<String, RunningTotal> storeTotals;
+  private final Map<String, RunningTotal> categoryTotals;
+
+  public UserSpendingSummary() {
+    storeTotals = new HashMap<>();
+    categoryTotals = new HashMap<>();
+  }
+
+  /** Creates a summary from an entity created by {@link #toEntity}. */
+  public static UserSpendingSummary fromEntity(Entity entity) {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    readTotals((EmbeddedEntity) entity.getProperty("storeTotals"), summary.storeTotals);
+    readTotals((EmbeddedEntity) entity.getProperty("categoryTotals"), summary.categoryTotals);
+    return summary;
+  }
+
+  /** Returns an entity with the given key that stores the totals of this summary. */
+  public Entity toEntity(Key key) {
+    Entity entity = new Entity(key);
+    entity.setUnindexedProperty("storeTotals", writeTotals(storeTotals));
+    entity.setUnindexedProperty("categoryTotals", writeTotals(categoryTotals));
+    return entity;
+  }
+
+  /** Adds the price of the receipt to the totals of its store and categories. */
+  public void addReceipt(Entity receipt) {
+    updateTotals(receipt, /* sign = */ 1);
+  }
+
+  /** Removes the price of the receipt from the totals of its store and categories. */
+  public void removeReceipt(Entity receipt) {
+    updateTotals(receipt, /* sign = */ -1);
+  }
+
+  /** Adds the totals of the other summary, such as one for a different time range. */
+  public void addSummary(UserSpendingSummary other) {
+    other.storeTotals.forEach(
+        (store, total) -> updateTotal(storeTotals, store, total.cents, total.receipts));
+    other.categoryTotals.forEach(
+        (category, total) -> updateTotal(categoryTotals, category, total.cents, total.receipts));
+  }
+
+  /** Checks if the summary doesn't have any totals, such as after its last receipt is removed. */
+  public boolean isEmpty() {
+    return storeTotals.isEmpty() && categoryTotals.isEmpty();
+  }
+
+  private void updateTotals(Entity receipt, int sign) {
+    Double price = (Double) receipt.getProperty("price");
+    long cents = price == null ? 0 : sign * toCents(price);
+
+    // Receipts without a price still count toward their store, so the store is suggested.
+    String store = (String) receipt.getProperty("store");
+    if (!Strings.isNullOrEmpty(store)) {
+      updateTotal(storeTotals, store, cents, sign);
+    }
+
+    if (price == null) {
+      return;
+    }
+
+    Collection<String> categories = (Collection<String>) receipt.getProperty("categories");
+    if (categories != null) {
+      for (String category : categories) {
+        updateTotal(categoryTotals, category, cents, sign);
+      }
+    }
+  }
+
+  private static void updateTotal(
+      Map<String, RunningTotal> totals, String key, long cents, long receipts) {
+    RunningTotal total = totals.computeIfAbsent(key, name -> new RunningTotal());
+    total.cents += cents;
+    total.receipts += receipts;
+
+    if (total.receipts <= 0) {
+      totals.remove(key);
+    }
+  }
+
+  /** Returns the number of receipts from each store, by store name. */
+  public Map<String, Long> getStoreReceiptCounts() {
+    Map<String, Long> counts = new HashMap<>();
+    storeTotals.forEach((store, total) -> counts.put(store, total.receipts));
+    return counts;
+  }
+
+  /** Returns the totals in dollars, as they're shown on the analytics page. */
+  public SpendingAnalytics toAnalytics() {
+    // Stores whose receipts have no price are only counted, and have no spending to show.
+    HashMap<String, Double> storeDollars = toDollars(storeTotals);
+    storeDollars.values().removeIf(dollars -> dollars == 0);
+    return new SpendingAnalytics(storeDollars, toDollars(categoryTotals));
+  }
+
+  /**
+   * Returns the store totals that differ from the other summary, such as one that was recomputed
+   * from every receipt.
+   */
+  public MapDifference<String, Total> diffStoreTotals(UserSpendingSummary other) {
+    return Maps.difference(toTotals(storeTotals), toTotals(other.storeTotals));
+  }
+
+  /** Returns the category totals that differ from the other summary. */
+  public MapDifference<String, Total> diffCategoryTotals(UserSpendingSummary other) {
+    return Maps.difference(toTotals(categoryTotals), toTotals(other.categoryTotals));
+  }
+
+  private static long toCents(double price) {
+    return Math.round(price * 100);
+  }
+
+  private static Map<String, Total> toTotals(Map<String, RunningTotal> totals) {
+    Map<String, Total> immutableTotals = new HashMap<>();
+    totals.forEach(
+        (key, total) -> immutableTotals.put(key, new Total(total.cents, total.receipts)));
+    return immutableTotals;
+  }
+
+  private static HashMap<String, Double> toDollars(Map<String, RunningTotal> totals) {
+    HashMap<String, Double> dollars = new HashMap<>();
+    totals.forEach((key, total) -> dollars.put(key, total.cents / 100.0));
+    return dollars;
+  }
+
+  /**
+   * Stores the totals as parallel lists of names, cents, and receipt counts. Names are entered by
+   * users, so they're stored as values rather than property names, which Datastore restricts.
+   */
+  private static EmbeddedEntity writeTotals(Map<String, RunningTotal> totals) {
+    List<String> names = new ArrayList<>(totals.size());
+    List<Long> cents = new ArrayList<>(totals.size());
+    List<Long> receipts = new ArrayList<>(totals.size());
+    totals.forEach((name, total) -> {
+      names.add(name);
+      cents.add(total.cents);
+      receipts.add(total.receipts);
+    });
+
+    EmbeddedEntity embeddedEntity = new EmbeddedEntity();
+    embeddedEntity.setUnindexedProperty("names", names);
+    embeddedEntity.setUnindexedProperty("cents", cents);
+    embeddedEntity.setUnindexedProperty("receipts", receipts);
+    return embeddedEntity;
+  }
+
+  private static void readTotals(
+      EmbeddedEntity embeddedEntity, Map<String, RunningTotal> totals) {
+    // Datastore reads empty lists back as null.
+    if (embeddedEntity == null || embeddedEntity.getProperty("names") == null) {
+      return;
+    }
+
+    List<String> names = (List<String>) embeddedEntity.getProperty("names");
+    List<Long> cents = (List<Long>) embeddedEntity.getProperty("cents");
+    List<Long> receipts = (List<Long>) embeddedEntity.getProperty("receipts");
+    for (int i = 0; i < names.size(); i++) {
+      totals.put(names.get(i), new RunningTotal(cents.get(i), receipts.get(i)));
+    }
+  }
+
+  /** Total that receipts are added to in place while the summary is computed. */
+  private static final class RunningTotal {
+    private long cents;
+    private long receipts;
+
+    private RunningTotal() {}
+
+    private RunningTotal(long cents, long receipts) {
+      this.cents = cents;
+      this.receipts = receipts;
+    }
+  }
+
+  /** Immutable total spending in cents and the number of receipts it's made up of. */
+  public static final class Total {
+    private final long cents;
+    private final long receipts;
+
+    public Total(long cents, long receipts) {
+      this.cents = cents;
+      this.receipts = receipts;
+    }
+
+    public long getCents() {
+      return cents;
+    }
+
+    public long getReceipts() {
+      return receipts;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Total)) {
+        return false;
+      }
+
+      Total otherTotal = (Total) other;
+      return cents == otherTotal.cents && receipts == otherTotal.receipts;
+    }
+
+    @Override
+    public int hashCode() {
+      return Long.hashCode(cents) * 31 + Long.hashCode(receipts);
+    }
+
+    @Override
+    public String toString() {
+      return String.format("$%d.%02d in %d receipts", cents / 100, Math.abs(cents % 100), receipts);
+    }
+  }
+}
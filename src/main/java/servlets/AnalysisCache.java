@@ -0,0 +1,225 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.RemovalCause;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.Hasher;
+import com.google.common.hash.Hashing;
+import com.google.protobuf.ByteString;
+import com.google.sps.data.AnalysisResults;
+import java.nio.ByteBuffer;
+import java.util.Collection;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+
+/**
+ * Cache of receipt analysis results keyed by a SHA-256 hash of the image bytes, so that uploading
+ * the same receipt image again doesn't repeat the Cloud Vision and Cloud Natural Language calls.
+ * Recently used results are kept in memory, bounded by their approximate size, and all results are
+ * stored in Datastore so that they survive instance restarts. Images that aren't found still share
+ * the categorization of similar receipts through the {@link CategorizationCache}.
+ */
+public class AnalysisCache {
+  // Default bound on the approximate size of the results kept in memory.
+  private static final long DEFAULT_MAX_MEMORY_BYTES = 16 * 1024 * 1024;
+  // Approximate memory used by a cached result apart from its strings.
+  private static final int ENTRY_OVERHEAD_BYTES = 256;
+  private static final String KIND = "AnalysisCacheEntry";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(AnalysisCache.class.getName());
+
+  private static AnalysisCache sharedInstance;
+
+  private final DatastoreService datastore;
+  private final CategorizationCache categorizationCache;
+  private final Cache<String, AnalysisResults> memoryCache;
+  private final AtomicLong memoryHits = new AtomicLong();
+  private final AtomicLong datastoreHits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+  private final AtomicLong evictions = new AtomicLong();
+
+  public AnalysisCache(DatastoreService datastore, long maxMemoryBytes) {
+    this(datastore, maxMemoryBytes, new CategorizationCache());
+  }
+
+  public AnalysisCache(DatastoreService datastore, long maxMemoryBytes,
+      CategorizationCache categorizationCache) {
+    this.datastore = datastore;
+    this.categorizationCache = categorizationCache;
+    this.memoryCache = CacheBuilder.newBuilder()
+                           .maximumWeight(maxMemoryBytes)
+                           .weigher(AnalysisCache::estimateSizeBytes)
+                           .removalListener(notification -> {
+                             if (notification.getCause() == RemovalCause.SIZE) {
+                               evictions.incrementAndGet();
+                             }
+                           })
+                           .build();
+  }
+
+  /** Returns the cache shared by all servlets in this instance. */
+  public static synchronized AnalysisCache getSharedInstance() {
+    if (sharedInstance == null) {
+      DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+      sharedInstance = new AnalysisCache(datastore, DEFAULT_MAX_MEMORY_BYTES);
+    }
+
+    return sharedInstance;
+  }
+
+  /** Returns the hex-encoded SHA-256 hash of the image bytes, which is used as the cache key. */
+  public static String hash(ByteString imageBytes) {
+    Hasher hasher = Hashing.sha256().newHasher();
+
+    // Hash the underlying buffers directly to avoid copying the image.
+    for (ByteBuffer buffer : imageBytes.asReadOnlyByteBufferList()) {
+      hasher.putBytes(buffer);
+    }
+
+    return hasher.hash().toString();
+  }
+
+  /**
+   * Returns the cached analysis results for the image with the given hash, checking memory first
+   * and then Datastore.
+   */
+  public Optional<AnalysisResults> get(String hash) {
+    AnalysisResults results = memoryCache.getIfPresent(hash);
+    if (results != null) {
+      memoryHits.incrementAndGet();
+      return Optional.of(results);
+    }
+
+    try {
+      Entity entity = datastore.get(KeyFactory.createKey(KIND, hash));
+      results = fromEntity(entity);
+    } catch (EntityNotFoundException e) {
+      misses.incrementAndGet();
+      return Optional.empty();
+    } catch (DatastoreFailureException e) {
+      logger.warning("Failed to read cached analysis results: " + e);
+      misses.incrementAndGet();
+      return Optional.empty();
+    }
+
+    datastoreHits.incrementAndGet();
+    memoryCache.put(hash, results);
+    return Optional.of(results);
+  }
+
+  /**
+   * Caches the analysis results for the image with the given hash. Partial results are not cached
+   * so that a later upload of the same image can retry the failed stages.
+   */
+  public void put(String hash, AnalysisResults results) {
+    if (results.isPartial()) {
+      return;
+    }
+
+    memoryCache.put(hash, results);
+
+    try {
+      datastore.put(toEntity(hash, results));
+    } catch (DatastoreFailureException e) {
+      logger.warning("Failed to store analysis results: " + e);
+    }
+  }
+
+  /** Returns the cache of categories for receipts with similar text from the same store. */
+  public CategorizationCache getCategorizationCache() {
+    return categorizationCache;
+  }
+
+  /** Returns the number of lookups answered from memory. */
+  public long getMemoryHits() {
+    return memoryHits.get();
+  }
+
+  /** Returns the number of lookups answered from Datastore. */
+  public long getDatastoreHits() {
+    return datastoreHits.get();
+  }
+
+  /** Returns the number of lookups that weren't found in either tier. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  /** Returns the number of results evicted from memory to stay within the size bound. */
+  public long getEvictions() {
+    return evictions.get();
+  }
+
+  private static Entity toEntity(String hash, AnalysisResults results) {
+    Entity entity = new Entity(KIND, hash);
+    results.getRawText().ifPresent(
+        rawText -> entity.setUnindexedProperty("rawText", new Text(rawText)));
+    entity.setUnindexedProperty("categories", results.getCategories().asList());
+    results.getStore().ifPresent(store -> entity.setUnindexedProperty("store", store));
+    results.getTransactionTimestamp().ifPresent(
+        timestamp -> entity.setUnindexedProperty("timestamp", timestamp));
+    results.getPrice().ifPresent(price -> entity.setUnindexedProperty("price", price));
+
+    return entity;
+  }
+
+  private static AnalysisResults fromEntity(Entity entity) {
+    AnalysisResults.Builder builder = new AnalysisResults.Builder();
+
+    if (entity.hasProperty("rawText")) {
+      builder.setRawText(((Text) entity.getProperty("rawText")).getValue());
+    }
+    // Datastore stores an empty list as null.
+    if (entity.getProperty("categories") != null) {
+      builder.setCategories(
+          ImmutableSet.copyOf((Collection<String>) entity.getProperty("categories")));
+    }
+    if (entity.hasProperty("store")) {
+      builder.setStore((String) entity.getProperty("store"));
+    }
+    if (entity.hasProperty("timestamp")) {
+      builder.setTransactionTimestamp((long) entity.getProperty("timestamp"));
+    }
+    if (entity.hasProperty("price")) {
+      builder.setPrice((double) entity.getProperty("price"));
+    }
+
+    return builder.build();
+  }
+
+  private static int estimateSizeBytes(String hash, AnalysisResults results) {
+    int size = ENTRY_OVERHEAD_BYTES + 2 * hash.length();
+    size += 2 * results.getRawText().map(String::length).orElse(0);
+    size += 2 * results.getStore().map(String::length).orElse(0);
+
+    for (String category : results.getCategories()) {
+      size += 2 * category.length();
+    }
+
+    return size;
+  }
+}
@@ -0,0 +1,141 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.common.base.Strings;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a POST handler that analyzes a receipt uploaded asynchronously. The upload servlet
+ * enqueues a push task for each pending receipt, so the analysis runs in its own request with the
+ * task deadline instead of holding the upload request. Only the task queue may call it, which App
+ * Engine marks with the X-AppEngine-QueueName header that it strips from external requests.
+ */
+@WebServlet(AnalyzeReceiptServlet.PATH)
+public class AnalyzeReceiptServlet extends HttpServlet {
+  public static final String PATH = "/tasks/analyze-receipt";
+
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+  private static final String NOT_FROM_QUEUE_MESSAGE = "Receipts are only analyzed by tasks.";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(AnalyzeReceiptServlet.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final Clock clock;
+  private final ReceiptAnalysisClients analysisClients;
+  private final AnalysisCache analysisCache;
+
+  public AnalyzeReceiptServlet() {
+    this(ReceiptRepositories.getSharedInstance(), Clock.systemDefaultZone(),
+        ReceiptAnalysisClients.getSharedInstance(), AnalysisCache.getSharedInstance());
+  }
+
+  public AnalyzeReceiptServlet(DatastoreService datastore, Clock clock,
+      ReceiptAnalysisClients analysisClients, AnalysisCache analysisCache) {
+    this(new DatastoreReceiptRepository(datastore), clock, analysisClients, analysisCache);
+  }
+
+  public AnalyzeReceiptServlet(ReceiptRepository receipts, Clock clock,
+      ReceiptAnalysisClients analysisClients, AnalysisCache analysisCache) {
+    this.receipts = receipts;
+    this.clock = clock;
+    this.analysisClients = analysisClients;
+    this.analysisCache = analysisCache;
+  }
+
+  /** Returns a task that analyzes the pending receipt with the given ID and image. */
+  public static TaskOptions createTask(long id, BlobKey blobKey) {
+    return TaskOptions.Builder.withUrl(PATH)
+        .param("id", Long.toString(id))
+        .param("blob-key", blobKey.getKeyString());
+  }
+
+  /**
+   * Analyzes the receipt's image and adds the extracted fields to it. A failed analysis marks the
+   * receipt FAILED and still responds with success, so the task isn't retried and the user can
+   * enter the fields manually.
+   */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (Strings.isNullOrEmpty(request.getHeader(QUEUE_NAME_HEADER))) {
+      logger.warning(NOT_FROM_QUEUE_MESSAGE);
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(NOT_FROM_QUEUE_MESSAGE);
+      return;
+    }
+
+    long id;
+    try {
+      id = Long.parseLong(request.getParameter("id"));
+    } catch (NumberFormatException exception) {
+      // A malformed task would fail the same way on every retry.
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(exception.toString());
+      return;
+    }
+
+    analyzePendingReceipt(id, new BlobKey(request.getParameter("blob-key")));
+  }
+
+  /**
+   * Analyzes the image of a pending receipt and adds the extracted fields to it. If the analysis
+   * fails, the receipt and its image are kept so that the user can enter the fields manually. The
+   * results are only written if the receipt is still pending once the analysis finishes, so that a
+   * receipt deleted or edited by the user in the meantime is left as it is.
+   */
+  private void analyzePendingReceipt(long id, BlobKey blobKey) {
+    if (!receipts.get(id).filter(AnalyzeReceiptServlet::isPending).isPresent()) {
+      // The receipt was deleted or edited before its analysis started.
+      return;
+    }
+
+    Optional<AnalysisResults> results;
+    try {
+      results =
+          Optional.of(ReceiptAnalysis.analyzeImageAt(blobKey, analysisClients, analysisCache));
+    } catch (IOException | RuntimeException e) {
+      logger.warning("Receipt analysis failed: " + e);
+      results = Optional.empty();
+    }
+
+    Optional<AnalysisResults> analysisResults = results;
+    receipts.update(id, AnalyzeReceiptServlet::isPending, receipt -> {
+      analysisResults.ifPresent(
+          result -> UploadReceiptServlet.addAnalysisResults(receipt, result, clock));
+      ReceiptStatus status =
+          analysisResults.isPresent() ? ReceiptStatus.ANALYZED : ReceiptStatus.FAILED;
+      receipt.setProperty("status", status.name());
+    });
+  }
+
+  private static boolean isPending(Entity receipt) {
+    return ReceiptStatus.of(receipt) == ReceiptStatus.PENDING;
+  }
+}
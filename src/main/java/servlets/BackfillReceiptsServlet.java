@@ -0,0 +1,133 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import com.google.sps.data.BackfillResponse;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a POST handler that adds derived properties, such as the price bucket, to receipts
+ * stored before those properties were written, and adds the text of receipts stored before the
+ * {@link ReceiptTextIndex} existed to the index. Image URLs stored unindexed, before image
+ * ownership was checked, are indexed so the {@link ImageOwnershipCache} finds them. Each request
+ * updates one batch of receipts and returns a cursor to continue from, so an admin repeats the
+ * request until it reports that every receipt was processed.
+ */
+@WebServlet("/backfill-receipts")
+public class BackfillReceiptsServlet extends HttpServlet {
+  private static final String USER_NOT_ADMIN_WARNING =
+      "User must be an admin to backfill receipts.";
+  private static final int RECEIPTS_PER_BATCH = 500;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(BackfillReceiptsServlet.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final UserService userService = UserServiceFactory.getUserService();
+
+  public BackfillReceiptsServlet() {
+    this(ReceiptRepositories.getSharedInstance());
+  }
+
+  public BackfillReceiptsServlet(DatastoreService datastore) {
+    this(new DatastoreReceiptRepository(datastore));
+  }
+
+  public BackfillReceiptsServlet(ReceiptRepository receipts) {
+    this.receipts = receipts;
+  }
+
+  /** Updates the batch of receipts after the cursor, or the first batch if there's no cursor. */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      logger.warning(USER_NOT_ADMIN_WARNING);
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(USER_NOT_ADMIN_WARNING);
+      return;
+    }
+
+    Optional<String> encodedCursor =
+        Optional.ofNullable(Strings.emptyToNull(request.getParameter("encodedCursor")));
+    SearchPageFetcher.Page batch;
+    try {
+      batch = receipts.scan(encodedCursor, RECEIPTS_PER_BATCH);
+    } catch (IllegalArgumentException exception) {
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(exception.toString());
+      return;
+    }
+
+    int updatedReceipts = 0;
+    try {
+      for (Entity receipt : batch.getEntities()) {
+        if (needsUpdate(receipt) && updateReceipt(receipt)) {
+          updatedReceipts++;
+        }
+      }
+    } catch (DatastoreFailureException exception) {
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      response.getWriter().println(exception.toString());
+      return;
+    }
+
+    int scannedReceipts = batch.getEntities().size();
+    boolean done = scannedReceipts < RECEIPTS_PER_BATCH;
+    BackfillResponse backfillResponse = new BackfillResponse(
+        scannedReceipts, updatedReceipts, batch.getEncodedCursor(), done);
+
+    response.setContentType("application/json;");
+    response.getWriter().println(new Gson().toJson(backfillResponse));
+  }
+
+  /** Checks if any derived property of the receipt is missing or out of date. */
+  private static boolean needsUpdate(Entity receipt) {
+    return PriceBuckets.isBucketStale(receipt) || ReceiptTextIndex.needsIndexing(receipt)
+        || ImageOwnershipCache.needsIndexing(receipt);
+  }
+
+  /** Sets the derived properties of the receipt to match the other properties. */
+  private static void setDerivedProperties(Entity receipt) {
+    PriceBuckets.setBucket(receipt);
+    ImageOwnershipCache.setImageUrlIndexed(receipt);
+  }
+
+  /**
+   * Updates the stored receipt through the repository, which re-reads it so that an edit made since
+   * the batch was read isn't overwritten, and adds its text to the text index along with it.
+   * @return true if the receipt was updated, or false if it was deleted or is already up to date.
+   */
+  private boolean updateReceipt(Entity receipt) {
+    return receipts
+        .update(receipt.getKey().getId(), BackfillReceiptsServlet::needsUpdate,
+            BackfillReceiptsServlet::setDerivedProperties)
+        .isPresent();
+  }
+}
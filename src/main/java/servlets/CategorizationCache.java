@@ -0,0 +1,207 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.hash.HashFunction;
+import com.google.common.hash.Hashing;
+import java.nio.charset.StandardCharsets;
+import java.time.Clock;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.Optional;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Cache of categories generated by the Cloud Natural Language API, keyed by store and a SimHash
+ * fingerprint of the receipt's raw text. Receipts from the same store share most of their text, so
+ * a receipt whose fingerprint differs from a cached one in at most a few bits reuses the cached
+ * categories instead of sending its text to the API again.
+ */
+public class CategorizationCache {
+  // Default maximum number of differing fingerprint bits for two texts to be considered similar.
+  private static final int DEFAULT_MAX_HAMMING_DISTANCE = 3;
+  private static final long DEFAULT_TTL_MILLIS = TimeUnit.DAYS.toMillis(7);
+  // Bounds the linear scan of a store's fingerprints on each lookup.
+  private static final int MAX_ENTRIES_PER_STORE = 64;
+  private static final int MAX_STORES = 1000;
+  // Number of consecutive tokens in each shingle of the normalized text.
+  private static final int SHINGLE_SIZE = 2;
+  private static final HashFunction shingleHash = Hashing.murmur3_128();
+
+  private final int maxHammingDistance;
+  private final long ttlMillis;
+  private final Clock clock;
+  private final Cache<String, Deque<Entry>> entriesByStore;
+  private final AtomicLong hits = new AtomicLong();
+  private final AtomicLong misses = new AtomicLong();
+
+  public CategorizationCache() {
+    this(DEFAULT_MAX_HAMMING_DISTANCE, DEFAULT_TTL_MILLIS, Clock.systemDefaultZone());
+  }
+
+  /**
+   * Creates a cache that reuses categories for texts whose fingerprints differ in at most
+   * maxHammingDistance of their 64 bits, for up to ttlMillis after the categories were generated.
+   */
+  public CategorizationCache(int maxHammingDistance, long ttlMillis, Clock clock) {
+    this.maxHammingDistance = maxHammingDistance;
+    this.ttlMillis = ttlMillis;
+    this.clock = clock;
+    this.entriesByStore = CacheBuilder.newBuilder()
+                              .maximumSize(MAX_STORES)
+                              .expireAfterAccess(ttlMillis, TimeUnit.MILLISECONDS)
+                              .build();
+  }
+
+  /**
+   * Returns the 64-bit SimHash of the raw text. Each shingle of consecutive normalized tokens votes
+   * on every bit of the fingerprint, so texts that share most of their shingles have fingerprints
+   * that differ in only a few bits.
+   */
+  public static long fingerprint(String rawText) {
+    String[] tokens = normalize(rawText);
+    int[] votes = new int[Long.SIZE];
+    int shingles = Math.max(1, tokens.length - SHINGLE_SIZE + 1);
+
+    for (int i = 0; i < shingles; i++) {
+      int end = Math.min(tokens.length, i + SHINGLE_SIZE);
+      String shingle = String.join(" ", Arrays.copyOfRange(tokens, i, end));
+      long hash = shingleHash.hashString(shingle, StandardCharsets.UTF_8).asLong();
+
+      for (int bit = 0; bit < Long.SIZE; bit++) {
+        votes[bit] += ((hash >>> bit) & 1) == 1 ? 1 : -1;
+      }
+    }
+
+    long fingerprint = 0;
+    for (int bit = 0; bit < Long.SIZE; bit++) {
+      if (votes[bit] > 0) {
+        fingerprint |= 1L << bit;
+      }
+    }
+
+    return fingerprint;
+  }
+
+  /**
+   * Splits the text into lowercase tokens of letters and digits. Runs of digits are replaced with a
+   * single "#" so that prices, dates, and quantities don't change the fingerprint.
+   */
+  private static String[] normalize(String rawText) {
+    String normalizedText = rawText.toLowerCase()
+                                .replaceAll("[^\\p{L}\\p{N}]+", " ")
+                                .replaceAll("\\p{N}+", "#")
+                                .trim();
+
+    return normalizedText.isEmpty() ? new String[0] : normalizedText.split(" ");
+  }
+
+  /**
+   * Returns the categories cached for the most similar text from the same store, if there is one
+   * within the similarity threshold that hasn't expired.
+   */
+  public Optional<ImmutableSet<String>> get(String store, long fingerprint) {
+    Deque<Entry> entries = entriesByStore.getIfPresent(normalizeStore(store));
+
+    if (entries != null) {
+      long now = clock.millis();
+      Entry closestEntry = null;
+      int closestDistance = Integer.MAX_VALUE;
+
+      synchronized (entries) {
+        Iterator<Entry> iterator = entries.iterator();
+
+        while (iterator.hasNext()) {
+          Entry entry = iterator.next();
+
+          if (now - entry.createdMillis > ttlMillis) {
+            iterator.remove();
+            continue;
+          }
+
+          int distance = Long.bitCount(entry.fingerprint ^ fingerprint);
+          if (distance <= maxHammingDistance && distance < closestDistance) {
+            closestEntry = entry;
+            closestDistance = distance;
+          }
+        }
+      }
+
+      if (closestEntry != null) {
+        hits.incrementAndGet();
+        return Optional.of(closestEntry.categories);
+      }
+    }
+
+    misses.incrementAndGet();
+    return Optional.empty();
+  }
+
+  /**
+   * Caches the categories generated for a text from the store. If the store already has the
+   * maximum number of entries, its oldest entry is dropped.
+   */
+  public void put(String store, long fingerprint, ImmutableSet<String> categories) {
+    Deque<Entry> entries;
+
+    try {
+      entries = entriesByStore.get(normalizeStore(store), ArrayDeque::new);
+    } catch (ExecutionException e) {
+      // Creating an empty deque can't throw a checked exception.
+      throw new IllegalStateException(e);
+    }
+
+    synchronized (entries) {
+      if (entries.size() >= MAX_ENTRIES_PER_STORE) {
+        entries.removeFirst();
+      }
+      entries.addLast(new Entry(fingerprint, categories, clock.millis()));
+    }
+  }
+
+  /** Returns the number of lookups that found categories for a similar text. */
+  public long getHits() {
+    return hits.get();
+  }
+
+  /** Returns the number of lookups that had to call the Cloud Natural Language API. */
+  public long getMisses() {
+    return misses.get();
+  }
+
+  private static String normalizeStore(String store) {
+    return store.trim().toLowerCase();
+  }
+
+  /** Categories generated for a text with the given fingerprint. */
+  private static class Entry {
+    private final long fingerprint;
+    private final ImmutableSet<String> categories;
+    private final long createdMillis;
+
+    private Entry(long fingerprint, ImmutableSet<String> categories, long createdMillis) {
+      this.fingerprint = fingerprint;
+      this.categories = categories;
+      this.createdMillis = createdMillis;
+    }
+  }
+}
@@ -0,0 +1,302 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultList;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.data.UserSpendingSummary;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * Receipt repository backed by Datastore. Writes go through {@link SpendingSummaries}, which keeps
+ * the user's summary, time buckets and text index up to date in the same transaction.
+ */
+public final class DatastoreReceiptRepository implements ReceiptRepository {
+  private static final int IMAGE_URLS_PER_BATCH = 1000;
+  private static final int STORES_PER_BATCH = 1000;
+  // Datastore runs a subquery for each value of an IN filter and allows at most 30 of them.
+  private static final int MAX_PRICE_BUCKETS_PER_QUERY = 30;
+
+  private final DatastoreService datastore;
+  private final SpendingSummaries spendingSummaries;
+  private final ReceiptTextIndex textIndex;
+
+  /** Creates a repository that scans receipts with the default asynchronous Datastore service. */
+  public DatastoreReceiptRepository(DatastoreService datastore) {
+    this(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+
+  public DatastoreReceiptRepository(
+      DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+    this.datastore = datastore;
+    this.spendingSummaries = new SpendingSummaries(datastore, asyncDatastore);
+    this.textIndex = new ReceiptTextIndex(datastore);
+  }
+
+  @Override
+  public Entity put(Entity receipt) {
+    // Datastore completes the receipt's key in place.
+    spendingSummaries.put(receipt);
+    return receipt;
+  }
+
+  @Override
+  public List<Entity> put(List<Entity> receipts) {
+    spendingSummaries.put(receipts);
+    return receipts;
+  }
+
+  @Override
+  public Optional<Entity> update(long id, Predicate<Entity> condition, Consumer<Entity> update) {
+    return spendingSummaries.update(getKey(id), condition, update);
+  }
+
+  @Override
+  public Optional<Entity> get(long id) {
+    try {
+      return Optional.of(datastore.get(getKey(id)));
+    } catch (EntityNotFoundException exception) {
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public Map<Long, Entity> get(Collection<Long> ids) {
+    List<Key> keys =
+        ids.stream().map(DatastoreReceiptRepository::getKey).collect(Collectors.toList());
+    Map<Long, Entity> receipts = new HashMap<>();
+    datastore.get(keys).forEach((key, receipt) -> receipts.put(key.getId(), receipt));
+    return receipts;
+  }
+
+  @Override
+  public void delete(long id) {
+    // Variants are deleted first, since they're created again if the receipt's delete fails.
+    get(id).flatMap(ImageVariants::getBlobKey)
+        .ifPresent(blobKey -> datastore.delete(ImageVariants.getKeys(blobKey)));
+    spendingSummaries.delete(getKey(id));
+  }
+
+  @Override
+  public SearchPageFetcher.Page query(String userId, Optional<String> encodedCursor, int pageSize) {
+    Query query = new Query("Receipt")
+                      .setFilter(new FilterPredicate("userId", FilterOperator.EQUAL, userId))
+                      .addSort("timestamp", SortDirection.DESCENDING)
+                      .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING);
+
+    return new SearchPageFetcher(pageSize, /* scanBudget = */ pageSize)
+        .fetch(datastore.prepare(query), encodedCursor, receipt -> true);
+  }
+
+  /**
+   * Queries the user's receipts in the date range, with the category and store if they're set. A
+   * query has only one inequality property, so the price range is filtered in memory. If the range
+   * spans few enough price buckets, the query is also filtered by bucket and only the boundary
+   * buckets need to be checked, but Datastore can't return cursors for it, so it's paged by the
+   * position of the last receipt instead.
+   */
+  @Override
+  public SearchPageFetcher.Page query(String userId, QueryInformation queryInformation,
+      Optional<String> encodedCursor, int pageSize, int scanBudget) {
+    Query query = new Query("Receipt")
+                      .addSort("timestamp", SortDirection.DESCENDING)
+                      .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING);
+    query.addFilter("userId", FilterOperator.EQUAL, userId);
+    query.addFilter(
+        "timestamp", FilterOperator.GREATER_THAN_OR_EQUAL, queryInformation.getStartTimestamp());
+    query.addFilter(
+        "timestamp", FilterOperator.LESS_THAN_OR_EQUAL, queryInformation.getEndTimestamp());
+
+    if (!queryInformation.getCategory().isEmpty()) {
+      query.addFilter("categories", FilterOperator.IN, queryInformation.getCategory());
+    }
+
+    if (!Strings.isNullOrEmpty(queryInformation.getStore())) {
+      query.addFilter("store", FilterOperator.EQUAL, queryInformation.getStore());
+    }
+
+    SearchPageFetcher pageFetcher = new SearchPageFetcher(pageSize, scanBudget);
+    if (canFilterByPriceBucket(queryInformation)) {
+      query.addFilter(PriceBuckets.PROPERTY_NAME, FilterOperator.IN,
+          PriceBuckets.getBuckets(queryInformation.getMinPrice(), queryInformation.getMaxPrice()));
+      return pageFetcher.fetchAfterPosition(datastore, query, encodedCursor,
+          PriceBuckets.createRefinementFilter(
+              queryInformation.getMinPrice(), queryInformation.getMaxPrice()));
+    }
+
+    return pageFetcher.fetch(datastore.prepare(query), encodedCursor, queryInformation::matches);
+  }
+
+  @Override
+  public long[] searchText(String userId, Set<String> words) {
+    return textIndex.search(userId, words);
+  }
+
+  @Override
+  public SearchPageFetcher.Page scan(Optional<String> encodedCursor, int batchSize) {
+    FetchOptions options = FetchOptions.Builder.withLimit(batchSize);
+    encodedCursor.map(Cursor::fromWebSafeString).ifPresent(options::startCursor);
+
+    QueryResultList<Entity> receipts =
+        datastore.prepare(new Query("Receipt")).asQueryResultList(options);
+    return new SearchPageFetcher.Page(ImmutableList.copyOf(receipts),
+        receipts.getCursor().toWebSafeString(), receipts.size());
+  }
+
+  @Override
+  public UserSpendingSummary getSummary(String userId) {
+    return spendingSummaries.get(userId);
+  }
+
+  @Override
+  public UserSpendingSummary getSummary(String userId, long startTimestamp, long endTimestamp) {
+    return spendingSummaries.get(userId, startTimestamp, endTimestamp);
+  }
+
+  @Override
+  public SortedMap<String, UserSpendingSummary> getSummarySeries(
+      String userId, TimeBuckets.Interval interval) {
+    return spendingSummaries.getSeries(userId, interval);
+  }
+
+  /**
+   * Reads the counts from the user's summary if it's stored, and otherwise counts the stores with
+   * a projection query over the indexed store property, which reads no receipts.
+   */
+  @Override
+  public Map<String, Long> getStoreReceiptCounts(String userId) {
+    Optional<UserSpendingSummary> summary = spendingSummaries.getStored(userId);
+    if (summary.isPresent()) {
+      return summary.get().getStoreReceiptCounts();
+    }
+
+    Query query =
+        new Query("Receipt")
+            .setFilter(new FilterPredicate("userId", FilterOperator.EQUAL, userId))
+            .addProjection(new PropertyProjection("store", String.class));
+
+    Map<String, Long> counts = new HashMap<>();
+    for (Entity receipt : datastore.prepare(query).asIterable(
+             FetchOptions.Builder.withChunkSize(STORES_PER_BATCH))) {
+      String store = (String) receipt.getProperty("store");
+      if (!Strings.isNullOrEmpty(store)) {
+        counts.merge(store, 1L, Long::sum);
+      }
+    }
+
+    return counts;
+  }
+
+  /** Reads the image URLs with a single projection query over the indexed imageUrl property. */
+  @Override
+  public ImmutableSet<String> getImageUrls(String userId) {
+    Query query =
+        new Query("Receipt")
+            .setFilter(new FilterPredicate("userId", FilterOperator.EQUAL, userId))
+            .addProjection(new PropertyProjection("imageUrl", String.class));
+
+    ImmutableSet.Builder<String> imageUrls = ImmutableSet.builder();
+    for (Entity receipt : datastore.prepare(query).asIterable(
+             FetchOptions.Builder.withChunkSize(IMAGE_URLS_PER_BATCH))) {
+      String imageUrl = (String) receipt.getProperty("imageUrl");
+      if (imageUrl != null) {
+        imageUrls.add(imageUrl);
+      }
+    }
+
+    return imageUrls.build();
+  }
+
+  /** Looks for a receipt with the image URL with a keys-only query instead of reading them all. */
+  @Override
+  public boolean hasImageUrl(String userId, String imageUrl) {
+    Query query =
+        new Query("Receipt")
+            .setFilter(CompositeFilterOperator.and(
+                new FilterPredicate("userId", FilterOperator.EQUAL, userId),
+                new FilterPredicate("imageUrl", FilterOperator.EQUAL, imageUrl)))
+            .setKeysOnly();
+
+    return !datastore.prepare(query).asList(FetchOptions.Builder.withLimit(1)).isEmpty();
+  }
+
+  @Override
+  public SpendingSummaries.ConsistencyReport checkSummary(String userId) {
+    return spendingSummaries.check(userId);
+  }
+
+  @Override
+  public UserSpendingSummary recomputeSummary(String userId) {
+    return spendingSummaries.recompute(userId);
+  }
+
+  @Override
+  public Optional<Entity> getImageVariant(Key key) {
+    try {
+      return Optional.of(datastore.get(key));
+    } catch (EntityNotFoundException exception) {
+      return Optional.empty();
+    }
+  }
+
+  @Override
+  public void putImageVariant(Entity variant) {
+    datastore.put(variant);
+  }
+
+  /**
+   * Checks if the price range spans few enough buckets to filter by them in Datastore. Otherwise,
+   * every receipt in the date range is read and filtered by price in memory.
+   */
+  private static boolean canFilterByPriceBucket(QueryInformation queryInformation) {
+    long minBucket = PriceBuckets.getBucket(queryInformation.getMinPrice());
+    long maxBucket = PriceBuckets.getBucket(queryInformation.getMaxPrice());
+    int categories = Math.max(1, queryInformation.getCategory().size());
+
+    return minBucket <= maxBucket
+        && (maxBucket - minBucket + 1) * categories <= MAX_PRICE_BUCKETS_PER_QUERY;
+  }
+
+  private static Key getKey(long id) {
+    return KeyFactory.createKey("Receipt", id);
+  }
+}
@@ -16,13 +16,11 @@ package com.google.sps.servlets;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Key;
-import com.google.appengine.api.datastore.KeyFactory;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import java.io.IOException;
 import java.lang.NumberFormatException;
+import java.util.ConcurrentModificationException;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -34,16 +32,19 @@ public class DeleteReceiptServlet extends HttpServlet {
   private static final String NO_AUTHENTICATION_MESSAGE =
       "No Authentication: User must be logged in to delete a receipt.";
 
-  private final DatastoreService datastore;
+  private final ReceiptRepository receipts;
   private final UserService userService;
 
   public DeleteReceiptServlet() {
-    datastore = DatastoreServiceFactory.getDatastoreService();
-    userService = UserServiceFactory.getUserService();
+    this(ReceiptRepositories.getSharedInstance());
   }
 
   public DeleteReceiptServlet(DatastoreService datastore) {
-    this.datastore = datastore;
+    this(new DatastoreReceiptRepository(datastore));
+  }
+
+  public DeleteReceiptServlet(ReceiptRepository receipts) {
+    this.receipts = receipts;
     userService = UserServiceFactory.getUserService();
   }
 
@@ -66,10 +67,9 @@ public class DeleteReceiptServlet extends HttpServlet {
       return;
     }
 
-    Key key = KeyFactory.createKey("Receipt", id);
     try {
-      datastore.delete(key);
-    } catch (DatastoreFailureException exception) {
+      receipts.delete(id);
+    } catch (DatastoreFailureException | ConcurrentModificationException exception) {
       response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       response.getWriter().println(
           "Datastore Error: Receipt unable to be deleted at this time, please try again.");
@@ -16,7 +16,6 @@ package com.google.sps.servlets;
 
 import com.google.appengine.api.datastore.DatastoreFailureException;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.Key;
@@ -25,11 +24,13 @@ import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
+import com.google.sps.data.ReceiptStatus;
 import com.google.sps.servlets.FormatUtils.InvalidDateException;
 import com.google.sps.servlets.FormatUtils.InvalidPriceException;
 import java.io.IOException;
 import java.time.Clock;
 import java.util.Arrays;
+import java.util.ConcurrentModificationException;
 import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
@@ -37,7 +38,8 @@ import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet with a POST handler that updates an existing receipt entity in Datastore.
+ * Servlet with a POST handler that updates an existing receipt entity in the {@link
+ * ReceiptRepository}.
  */
 @WebServlet("/edit-receipt")
 public class EditReceiptServlet extends HttpServlet {
@@ -47,17 +49,20 @@ public class EditReceiptServlet extends HttpServlet {
   // Logs to System.err by default.
   private static final Logger logger = Logger.getLogger(UploadReceiptServlet.class.getName());
 
-  private final DatastoreService datastore;
+  private final ReceiptRepository receipts;
   private final UserService userService = UserServiceFactory.getUserService();
   private final Clock clock;
 
   public EditReceiptServlet() {
-    this.datastore = DatastoreServiceFactory.getDatastoreService();
-    this.clock = Clock.systemDefaultZone();
+    this(ReceiptRepositories.getSharedInstance(), Clock.systemDefaultZone());
   }
 
   public EditReceiptServlet(DatastoreService datastore, Clock clock) {
-    this.datastore = datastore;
+    this(new DatastoreReceiptRepository(datastore), clock);
+  }
+
+  public EditReceiptServlet(ReceiptRepository receipts, Clock clock) {
+    this.receipts = receipts;
     this.clock = clock;
   }
 
@@ -87,8 +92,8 @@ public class EditReceiptServlet extends HttpServlet {
     }
 
     try {
-      datastore.put(receipt);
-    } catch (DatastoreFailureException datastoreException) {
+      receipt = receipts.put(receipt);
+    } catch (DatastoreFailureException | ConcurrentModificationException datastoreException) {
       logger.warning(datastoreException.toString());
       response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
       response.getWriter().println(datastoreException.toString());
@@ -108,7 +113,7 @@ public class EditReceiptServlet extends HttpServlet {
   private Entity createUpdatedReceipt(HttpServletRequest request, long id)
       throws EntityNotFoundException, InvalidPriceException, InvalidDateException {
     Key key = KeyFactory.createKey("Receipt", id);
-    Entity receipt = datastore.get(key);
+    Entity receipt = receipts.get(id).orElseThrow(() -> new EntityNotFoundException(key));
 
     String store = FormatUtils.sanitize(request.getParameter("store"));
     double price = FormatUtils.roundPrice(request.getParameter("price"));
@@ -117,8 +122,15 @@ public class EditReceiptServlet extends HttpServlet {
     receipt.setProperty("categories", FormatUtils.getCategories(request));
     receipt.setProperty("store", store);
     receipt.setProperty("price", price);
+    PriceBuckets.setBucket(receipt);
     receipt.setProperty("timestamp", timestamp);
 
+    // The user's fields replace those of a pending analysis, which won't overwrite them once the
+    // receipt is no longer pending.
+    if (ReceiptStatus.of(receipt) == ReceiptStatus.PENDING) {
+      receipt.setProperty("status", ReceiptStatus.ANALYZED.name());
+    }
+
     return receipt;
   }
 }
@@ -0,0 +1,187 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.ThreadManager;
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.common.base.Throwables;
+import com.google.common.io.ByteStreams;
+import com.google.protobuf.ByteString;
+import com.google.protobuf.UnsafeByteOperations;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.logging.Logger;
+
+/**
+ * Reads receipt images into ByteStrings while copying each byte only once. Blobs are fetched in
+ * fragments, several at a time, and the fragments are joined without copying them. Images at a
+ * URL are read into a single array when the response has a content length.
+ */
+public final class ImageBytesReader {
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ImageBytesReader.class.getName());
+
+  private final BlobstoreService blobstoreService;
+  private final BlobInfoFactory blobInfoFactory;
+  private final Executor executor;
+  private final int maxConcurrentFetches;
+
+  /**
+   * Creates a reader that fetches at most maxConcurrentFetches fragments of a blob at a time on
+   * the given executor. Blobstore calls need the App Engine environment of a request, so the
+   * executor's threads must have one, like those of {@link #requestThreadExecutor}.
+   */
+  public ImageBytesReader(BlobstoreService blobstoreService, BlobInfoFactory blobInfoFactory,
+      Executor executor, int maxConcurrentFetches) {
+    this.blobstoreService = blobstoreService;
+    this.blobInfoFactory = blobInfoFactory;
+    this.executor = executor;
+    this.maxConcurrentFetches = maxConcurrentFetches;
+  }
+
+  /**
+   * Returns an executor that runs each fetch on a new thread of the current request, which has the
+   * request's App Engine environment and ends with it. Fetches run on the calling thread if it
+   * can't create request threads, such as outside of a request.
+   */
+  public static Executor requestThreadExecutor() {
+    return fetch -> {
+      Thread thread = null;
+      try {
+        thread = ThreadManager.currentRequestThreadFactory().newThread(fetch);
+      } catch (RuntimeException e) {
+        logger.fine("Fetching blob fragments on the calling thread: " + e);
+      }
+
+      if (thread == null) {
+        fetch.run();
+      } else {
+        thread.start();
+      }
+    };
+  }
+
+  /**
+   * Reads the bytes at the URL. If the response has a content length, the bytes are read directly
+   * into an array of that size, which the returned ByteString wraps without copying.
+   */
+  public ByteString read(URL url) throws IOException {
+    URLConnection connection = url.openConnection();
+    long contentLength = connection.getContentLengthLong();
+
+    try (InputStream input = connection.getInputStream()) {
+      if (contentLength < 0 || contentLength > Integer.MAX_VALUE) {
+        return ByteString.readFrom(input);
+      }
+
+      byte[] bytes = new byte[(int) contentLength];
+      ByteStreams.readFully(input, bytes);
+
+      // The array isn't referenced anywhere else, so it can't be modified after wrapping it.
+      return UnsafeByteOperations.unsafeWrap(bytes);
+    }
+  }
+
+  /**
+   * Reads the bytes of the blob with the given key. The fragments are sized to the maximum fetch
+   * size and fetched concurrently, each into its own array, which the returned ByteString joins
+   * without copying.
+   */
+  public ByteString read(BlobKey blobKey) throws IOException {
+    BlobInfo blobInfo = blobInfoFactory.loadBlobInfo(blobKey);
+    if (blobInfo == null) {
+      throw new IOException("Blob " + blobKey.getKeyString() + " does not exist.");
+    }
+
+    long blobSize = blobInfo.getSize();
+    int fragmentCount =
+        (int) ((blobSize + BlobstoreService.MAX_BLOB_FETCH_SIZE - 1)
+            / BlobstoreService.MAX_BLOB_FETCH_SIZE);
+    ByteString[] fragments = new ByteString[fragmentCount];
+
+    if (fragmentCount <= 1) {
+      // Small images are fetched on the calling thread.
+      for (int i = 0; i < fragmentCount; i++) {
+        fragments[i] = fetchFragment(blobKey, blobSize, i);
+      }
+    } else {
+      fetchFragmentsConcurrently(blobKey, blobSize, fragments);
+    }
+
+    // Concatenates the fragments into a rope instead of copying them into a new array.
+    return ByteString.copyFrom(Arrays.asList(fragments));
+  }
+
+  /**
+   * Fetches the fragments in maxConcurrentFetches lanes, each of which fetches every
+   * maxConcurrentFetches-th fragment in turn, so that no more fetches than that are in flight.
+   */
+  private void fetchFragmentsConcurrently(BlobKey blobKey, long blobSize, ByteString[] fragments)
+      throws IOException {
+    int lanes = Math.min(maxConcurrentFetches, fragments.length);
+    CompletableFuture<?>[] fetches = new CompletableFuture<?>[lanes];
+
+    for (int lane = 0; lane < lanes; lane++) {
+      int firstFragment = lane;
+      fetches[lane] = CompletableFuture.runAsync(() -> {
+        try {
+          for (int i = firstFragment; i < fragments.length; i += lanes) {
+            fragments[i] = fetchFragment(blobKey, blobSize, i);
+          }
+        } catch (IOException e) {
+          throw new CompletionException(e);
+        }
+      }, executor);
+    }
+
+    try {
+      CompletableFuture.allOf(fetches).get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Reading blob " + blobKey.getKeyString() + " was interrupted.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  /** Fetches the fragment with the given index, which is smaller than the others if it's last. */
+  private ByteString fetchFragment(BlobKey blobKey, long blobSize, int index) throws IOException {
+    long start = (long) index * BlobstoreService.MAX_BLOB_FETCH_SIZE;
+    long end = Math.min(start + BlobstoreService.MAX_BLOB_FETCH_SIZE, blobSize);
+
+    // End index is inclusive, so subtract 1 to get the bytes up to the end of the fragment.
+    byte[] bytes = blobstoreService.fetchData(blobKey, start, end - 1);
+    if (bytes.length != end - start) {
+      throw new IOException("Expected " + (end - start) + " bytes of blob "
+          + blobKey.getKeyString() + " at " + start + " but fetched " + bytes.length + ".");
+    }
+
+    // Each fetch returns a new array, so it can be wrapped without copying.
+    return UnsafeByteOperations.unsafeWrap(bytes);
+  }
+}
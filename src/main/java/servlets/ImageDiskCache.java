@@ -0,0 +1,369 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.common.base.Throwables;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Cache of receipt images in local files, so that images that are viewed often are served without
+ * fetching them from Blobstore each time. Files are evicted in least recently used order to keep
+ * their total size within a bound. They are streamed to the response with {@link
+ * FileChannel#transferTo}, which copies through a small buffer because the response is a stream,
+ * so an image is never read into the heap as a whole.
+ *
+ * <p>On App Engine standard the temporary directory is held in the instance's memory, so the
+ * shared cache's size is set with the receipts.imageCacheMaxBytes system property, and a size of
+ * 0 turns it off. The directory can be moved with the receipts.imageCacheDirectory property.
+ *
+ * <p>Requests that miss on the same image at the same time share a single fetch from Blobstore.
+ */
+public class ImageDiskCache {
+  public static final String MAX_BYTES_PROPERTY = "receipts.imageCacheMaxBytes";
+  public static final String DIRECTORY_PROPERTY = "receipts.imageCacheDirectory";
+  // Default bound on the total size of the cached files, which is small since they count towards
+  // the memory of an App Engine standard instance.
+  private static final long DEFAULT_MAX_BYTES = 16 * 1024 * 1024;
+  private static final String DEFAULT_DIRECTORY_NAME = "receipt-image-cache";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ImageDiskCache.class.getName());
+
+  private static ImageDiskCache sharedInstance;
+
+  private final BlobstoreService blobstoreService;
+  private final BlobInfoFactory blobInfoFactory;
+  private final Path directory;
+  private final long maxBytes;
+  private final CacheMetrics metrics = new CacheMetrics();
+
+  // Cached files in access order, so the first is the least recently used. Guarded by this.
+  private final LinkedHashMap<BlobKey, CachedImage> images = new LinkedHashMap<>(16, 0.75f, true);
+  private long totalBytes;
+  private boolean directoryCreated;
+
+  // Fetches in progress, which requests that miss on the same image wait for.
+  private final Map<BlobKey, CompletableFuture<Optional<CachedImage>>> fetches =
+      new ConcurrentHashMap<>();
+
+  public ImageDiskCache(BlobstoreService blobstoreService, BlobInfoFactory blobInfoFactory,
+      Path directory, long maxBytes) {
+    this.blobstoreService = blobstoreService;
+    this.blobInfoFactory = blobInfoFactory;
+    this.directory = directory;
+    this.maxBytes = maxBytes;
+  }
+
+  /**
+   * Returns the cache shared by all servlets in this instance, with the size and directory set by
+   * the system properties, or in the temporary directory by default.
+   */
+  public static synchronized ImageDiskCache getSharedInstance() {
+    if (sharedInstance == null) {
+      Path directory = Paths.get(System.getProperty(DIRECTORY_PROPERTY,
+          Paths.get(System.getProperty("java.io.tmpdir"), DEFAULT_DIRECTORY_NAME).toString()));
+      long maxBytes = Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES);
+      sharedInstance = new ImageDiskCache(BlobstoreServiceFactory.getBlobstoreService(),
+          new BlobInfoFactory(), directory, maxBytes);
+      logger.info("Caching up to " + maxBytes + " bytes of images in " + directory + ".");
+    }
+
+    return sharedInstance;
+  }
+
+  /**
+   * Writes the blob, or the given range of it if the range isn't null, to the response from the
+   * cache, fetching the blob into the cache first if it isn't there. Returns false without writing
+   * anything if the blob can't be served from the cache, such as if it doesn't exist, is larger
+   * than the cache, or the range isn't satisfiable, so that the caller serves it from Blobstore.
+   */
+  public boolean serve(BlobKey blobKey, ByteRange range, HttpServletResponse response)
+      throws IOException {
+    if (maxBytes <= 0) {
+      // The cache is turned off.
+      return false;
+    }
+
+    Optional<CachedImage> image = get(blobKey);
+    if (!image.isPresent()) {
+      return false;
+    }
+
+    long size = image.get().size;
+    long start = 0;
+    long end = size - 1;
+    if (range != null) {
+      // A negative start is a suffix range of that many bytes from the end.
+      start = range.getStart() < 0 ? Math.max(0, size + range.getStart()) : range.getStart();
+      end = range.hasEnd() ? Math.min(range.getEnd(), size - 1) : size - 1;
+      if (start > end) {
+        return false;
+      }
+    }
+
+    FileChannel channel;
+    try {
+      channel = FileChannel.open(image.get().file, StandardOpenOption.READ);
+    } catch (NoSuchFileException e) {
+      // The file was evicted since it was looked up.
+      return false;
+    }
+
+    // An open file can still be read after it's evicted and deleted.
+    try (FileChannel fileChannel = channel) {
+      response.setContentType(image.get().contentType);
+      response.setContentLengthLong(end - start + 1);
+      if (range != null) {
+        response.setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+        response.setHeader("Content-Range", "bytes " + start + "-" + end + "/" + size);
+      }
+
+      WritableByteChannel output = Channels.newChannel(response.getOutputStream());
+      long position = start;
+      while (position <= end) {
+        position += fileChannel.transferTo(position, end - position + 1, output);
+      }
+    }
+
+    metrics.bytesServed.addAndGet(end - start + 1);
+    return true;
+  }
+
+  /** Returns the hit rate, bytes served, and evictions of the cache. */
+  public CacheMetrics getMetrics() {
+    return metrics;
+  }
+
+  /**
+   * Returns the cached image, fetching it if it isn't cached, or waiting for the fetch if another
+   * request already started it. Returns an empty optional if the image can't be cached.
+   */
+  private Optional<CachedImage> get(BlobKey blobKey) throws IOException {
+    synchronized (this) {
+      CachedImage image = images.get(blobKey);
+      if (image != null) {
+        metrics.hits.incrementAndGet();
+        return Optional.of(image);
+      }
+    }
+
+    CompletableFuture<Optional<CachedImage>> fetch = new CompletableFuture<>();
+    CompletableFuture<Optional<CachedImage>> existingFetch = fetches.putIfAbsent(blobKey, fetch);
+    if (existingFetch != null) {
+      metrics.coalescedMisses.incrementAndGet();
+      return await(existingFetch);
+    }
+
+    metrics.misses.incrementAndGet();
+    try {
+      fetch.complete(fetch(blobKey));
+    } catch (IOException | RuntimeException e) {
+      fetch.completeExceptionally(e);
+    } finally {
+      fetches.remove(blobKey, fetch);
+    }
+
+    return await(fetch);
+  }
+
+  /** Fetches the blob into a new file and adds it to the cache, evicting older files if needed. */
+  private Optional<CachedImage> fetch(BlobKey blobKey) throws IOException {
+    synchronized (this) {
+      // Another request may have finished fetching the image after this one missed.
+      CachedImage image = images.get(blobKey);
+      if (image != null) {
+        return Optional.of(image);
+      }
+    }
+
+    BlobInfo blobInfo = blobInfoFactory.loadBlobInfo(blobKey);
+    if (blobInfo == null || blobInfo.getSize() > maxBytes) {
+      return Optional.empty();
+    }
+
+    Path file = Files.createTempFile(getDirectory(), "image", ".blob");
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      for (long start = 0; start < blobInfo.getSize();
+           start += BlobstoreService.MAX_BLOB_FETCH_SIZE) {
+        long end = Math.min(start + BlobstoreService.MAX_BLOB_FETCH_SIZE, blobInfo.getSize());
+        // End index is inclusive, so subtract 1 to get the bytes up to the end of the fragment.
+        ByteBuffer bytes = ByteBuffer.wrap(blobstoreService.fetchData(blobKey, start, end - 1));
+        while (bytes.hasRemaining()) {
+          channel.write(bytes);
+        }
+      }
+    } catch (IOException | RuntimeException e) {
+      Files.deleteIfExists(file);
+      throw e;
+    }
+
+    CachedImage image = new CachedImage(file, blobInfo.getSize(), blobInfo.getContentType());
+    List<CachedImage> evictedImages = new ArrayList<>();
+    synchronized (this) {
+      images.put(blobKey, image);
+      totalBytes += image.size;
+
+      Iterator<CachedImage> leastRecentlyUsed = images.values().iterator();
+      while (totalBytes > maxBytes) {
+        CachedImage evictedImage = leastRecentlyUsed.next();
+        leastRecentlyUsed.remove();
+        totalBytes -= evictedImage.size;
+        evictedImages.add(evictedImage);
+      }
+    }
+
+    // Files are deleted outside the lock, since other requests don't need to wait for that.
+    for (CachedImage evictedImage : evictedImages) {
+      metrics.evictions.incrementAndGet();
+      metrics.evictedBytes.addAndGet(evictedImage.size);
+      try {
+        Files.deleteIfExists(evictedImage.file);
+      } catch (IOException e) {
+        logger.warning("Failed to delete evicted image: " + e);
+      }
+    }
+
+    return Optional.of(image);
+  }
+
+  /**
+   * Returns the directory of the cached files, creating it on first use. Files left in it by an
+   * earlier instance aren't in the cache, so they're deleted.
+   */
+  private synchronized Path getDirectory() throws IOException {
+    if (!directoryCreated) {
+      Files.createDirectories(directory);
+      try (DirectoryStream<Path> staleFiles = Files.newDirectoryStream(directory, "*.blob")) {
+        for (Path staleFile : staleFiles) {
+          Files.deleteIfExists(staleFile);
+        }
+      }
+      directoryCreated = true;
+    }
+
+    return directory;
+  }
+
+  private static Optional<CachedImage> await(CompletableFuture<Optional<CachedImage>> fetch)
+      throws IOException {
+    try {
+      return fetch.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Waiting for an image to be cached was interrupted.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  /** A cached file and the blob's size and content type. */
+  private static final class CachedImage {
+    private final Path file;
+    private final long size;
+    private final String contentType;
+
+    private CachedImage(Path file, long size, String contentType) {
+      this.file = file;
+      this.size = size;
+      this.contentType = contentType;
+    }
+  }
+
+  /** Hit and miss counts, bytes served, and evictions of the cache. */
+  public static class CacheMetrics {
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong coalescedMisses = new AtomicLong();
+    private final AtomicLong bytesServed = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+    private final AtomicLong evictedBytes = new AtomicLong();
+
+    /** Returns the number of requests for images that were already cached. */
+    public long getHits() {
+      return hits.get();
+    }
+
+    /** Returns the number of requests that fetched an image from Blobstore. */
+    public long getMisses() {
+      return misses.get();
+    }
+
+    /** Returns the number of requests that waited for another request's fetch of the image. */
+    public long getCoalescedMisses() {
+      return coalescedMisses.get();
+    }
+
+    /** Returns the fraction of requests for images that were already cached. */
+    public double getHitRate() {
+      long requests = hits.get() + misses.get() + coalescedMisses.get();
+      return requests == 0 ? 0 : (double) hits.get() / requests;
+    }
+
+    /** Returns the number of bytes written to responses from cached files. */
+    public long getBytesServed() {
+      return bytesServed.get();
+    }
+
+    /** Returns the number of files evicted to stay within the size bound. */
+    public long getEvictions() {
+      return evictions.get();
+    }
+
+    /** Returns the total size of the files evicted to stay within the size bound. */
+    public long getEvictedBytes() {
+      return evictedBytes.get();
+    }
+
+    @Override
+    public String toString() {
+      return String.format(
+          "%.1f%% hit rate (%d hits, %d misses, %d coalesced), %d bytes served, "
+              + "%d evictions of %d bytes",
+          getHitRate() * 100, getHits(), getMisses(), getCoalescedMisses(), getBytesServed(),
+          getEvictions(), getEvictedBytes());
+    }
+  }
+}
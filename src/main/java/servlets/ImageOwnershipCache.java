@@ -0,0 +1,126 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.collect.ImmutableSet;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of the blob keys of each user's receipt images, so that {@link ServeImageServlet} can check
+ * that an image belongs to the user without a query per image. A user's keys are read from the
+ * image URLs of their receipts in the {@link ReceiptRepository}, which Datastore reads with a
+ * single projection query over the (userId, imageUrl) index, and cached along with the user's
+ * receipt generation from {@link SearchCache}. Uploads and deletes change the generation, so the
+ * keys are read again on the next check after either. Since the generation is kept in Memcache and
+ * queries are eventually consistent, an image missing from the keys is looked up directly before
+ * it is reported as not owned.
+ */
+public class ImageOwnershipCache {
+  static final String IMAGE_URL_PREFIX = "/serve-image?blob-key=";
+  private static final int MAX_CACHED_USERS = 10000;
+  private static final long CACHE_TTL_MINUTES = 30;
+
+  private final ReceiptRepository receipts;
+  private final Cache<String, CachedBlobKeys> blobKeys =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_USERS)
+          .expireAfterAccess(CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+          .build();
+
+  public ImageOwnershipCache(DatastoreService datastore) {
+    this(new DatastoreReceiptRepository(datastore));
+  }
+
+  public ImageOwnershipCache(ReceiptRepository receipts) {
+    this.receipts = receipts;
+  }
+
+  /**
+   * Checks if any of the user's receipts has the image with the given blob key. Only reads the
+   * user's image URLs if their receipts changed since their keys were cached, or if the generation
+   * can't be read, in which case the keys aren't cached. An image that isn't among the keys is
+   * looked up on its own before the check fails.
+   */
+  public boolean isOwner(String userId, String blobKeyString) {
+    Optional<Long> generation = SearchCache.getGeneration(userId);
+    CachedBlobKeys cachedBlobKeys = blobKeys.getIfPresent(userId);
+    if (generation.isPresent() && cachedBlobKeys != null
+        && cachedBlobKeys.generation == generation.get()) {
+      return cachedBlobKeys.blobKeys.contains(blobKeyString)
+          || isOwnerUncached(userId, blobKeyString);
+    }
+
+    ImmutableSet<String> ownedBlobKeys = readBlobKeys(userId);
+    generation.ifPresent(
+        value -> blobKeys.put(userId, new CachedBlobKeys(value, ownedBlobKeys)));
+    return ownedBlobKeys.contains(blobKeyString) || isOwnerUncached(userId, blobKeyString);
+  }
+
+  /**
+   * Looks for a receipt of the user with the image, and drops the user's cached keys if one is
+   * found, since they are missing the image.
+   */
+  private boolean isOwnerUncached(String userId, String blobKeyString) {
+    if (!receipts.hasImageUrl(userId, IMAGE_URL_PREFIX + blobKeyString)) {
+      return false;
+    }
+
+    blobKeys.invalidate(userId);
+    return true;
+  }
+
+  /**
+   * Checks if the receipt's image URL was stored unindexed, as it was before ownership checks,
+   * so it needs to be indexed for the receipt's image to be found.
+   */
+  public static boolean needsIndexing(Entity receipt) {
+    return receipt.hasProperty("imageUrl") && receipt.isUnindexedProperty("imageUrl");
+  }
+
+  /** Indexes the receipt's image URL so that its image is found by ownership checks. */
+  public static void setImageUrlIndexed(Entity receipt) {
+    if (receipt.hasProperty("imageUrl")) {
+      receipt.setIndexedProperty("imageUrl", receipt.getProperty("imageUrl"));
+    }
+  }
+
+  /** Reads the blob keys of the user's receipt images from their image URLs. */
+  private ImmutableSet<String> readBlobKeys(String userId) {
+    ImmutableSet.Builder<String> ownedBlobKeys = ImmutableSet.builder();
+    for (String imageUrl : receipts.getImageUrls(userId)) {
+      if (imageUrl.startsWith(IMAGE_URL_PREFIX)) {
+        ownedBlobKeys.add(imageUrl.substring(IMAGE_URL_PREFIX.length()));
+      }
+    }
+
+    return ownedBlobKeys.build();
+  }
+
+  /** The blob keys of a user's images and the receipt generation they were read at. */
+  private static final class CachedBlobKeys {
+    private final long generation;
+    private final ImmutableSet<String> blobKeys;
+
+    private CachedBlobKeys(long generation, ImmutableSet<String> blobKeys) {
+      this.generation = generation;
+      this.blobKeys = blobKeys;
+    }
+  }
+}
@@ -0,0 +1,643 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.protobuf.ByteString;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.logging.Logger;
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Shrinks receipt photos before they are sent to the Cloud Vision API. The image is decoded,
+ * converted to grayscale, turned upright by its EXIF orientation, cropped to the bright area of
+ * the receipt paper, downsampled to at most a fixed number of pixels, and re-encoded as a JPEG.
+ * Text detection doesn't use color, and phone photos have far more pixels than it needs, so the
+ * smaller image is read just as accurately. The re-encoded JPEG doesn't keep the EXIF metadata, so
+ * the orientation is applied to its pixels.
+ *
+ * <p>If the image can't be decoded or the re-encoded image isn't smaller, the original bytes are
+ * returned unchanged.
+ */
+public final class ImagePreprocessor {
+  // Images are downsampled to at most this many pixels, which keeps the characters of a full page
+  // receipt well above the size the Cloud Vision API needs for text detection.
+  private static final long DEFAULT_MAX_PIXELS = 3_000_000;
+  // JPEG quality of the re-encoded image, in the range [0,1].
+  private static final float DEFAULT_JPEG_QUALITY = 0.85f;
+  // Rows and columns with at least this fraction of bright pixels are considered receipt paper.
+  private static final double MIN_PAPER_FRACTION = 0.25;
+  // The crop is skipped if it would keep more than this fraction of the image, since the few
+  // bytes saved aren't worth the risk of cutting off text at the edges.
+  private static final double MAX_CROPPED_AREA_FRACTION = 0.9;
+  // The crop is skipped if it would keep less than this fraction of the image, since the receipt
+  // was most likely not detected correctly.
+  private static final double MIN_CROPPED_AREA_FRACTION = 0.1;
+  // Maximum number of pixels sampled to find the edges of the receipt.
+  private static final long MAX_CROP_SAMPLES = 1_000_000;
+  // Margin kept around the detected receipt, as a fraction of the image dimensions.
+  private static final double CROP_MARGIN_FRACTION = 0.02;
+  // Number of output buffers kept for reuse between images.
+  private static final int OUTPUT_BUFFER_POOL_SIZE = 4;
+  // Output buffers that grew larger than this are not returned to the pool.
+  private static final int MAX_POOLED_BUFFER_BYTES = 4 * 1024 * 1024;
+  // EXIF tag and value of the orientation of a photo that is already upright.
+  private static final int ORIENTATION_TAG = 0x0112;
+  private static final int UPRIGHT_ORIENTATION = 1;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ImagePreprocessor.class.getName());
+
+  private static ImagePreprocessor sharedInstance;
+
+  private final long maxPixels;
+  private final float jpegQuality;
+  private final BlockingQueue<OutputBuffer> outputBuffers =
+      new ArrayBlockingQueue<>(OUTPUT_BUFFER_POOL_SIZE);
+  private final PreprocessingMetrics metrics = new PreprocessingMetrics();
+
+  /** Creates a preprocessor with the default pixel limit and JPEG quality. */
+  public ImagePreprocessor() {
+    this(DEFAULT_MAX_PIXELS, DEFAULT_JPEG_QUALITY);
+  }
+
+  /**
+   * Creates a preprocessor that downsamples images to at most maxPixels pixels and re-encodes them
+   * with the given JPEG quality, in the range [0,1].
+   */
+  public ImagePreprocessor(long maxPixels, float jpegQuality) {
+    this.maxPixels = maxPixels;
+    this.jpegQuality = jpegQuality;
+  }
+
+  /** Returns the preprocessor shared by all receipt analyses in this instance. */
+  public static synchronized ImagePreprocessor getSharedInstance() {
+    if (sharedInstance == null) {
+      sharedInstance = new ImagePreprocessor();
+    }
+
+    return sharedInstance;
+  }
+
+  /**
+   * Returns a smaller grayscale JPEG of the receipt in the given image, or the original image if it
+   * can't be decoded or made smaller.
+   */
+  public ByteString preprocess(ByteString imageBytes) {
+    long[] stageNanos = new long[Stage.values().length];
+
+    try {
+      long start = System.nanoTime();
+      BufferedImage image;
+      try (InputStream input = imageBytes.newInput()) {
+        image = ImageIO.read(input);
+      }
+      start = recordStage(stageNanos, Stage.DECODE, start);
+
+      if (image == null) {
+        // No registered reader could decode the image.
+        metrics.recordSkipped(imageBytes.size());
+        return imageBytes;
+      }
+
+      image = toGrayscale(image);
+      start = recordStage(stageNanos, Stage.GRAYSCALE, start);
+
+      image = orient(image, readOrientation(imageBytes));
+      start = recordStage(stageNanos, Stage.ORIENT, start);
+
+      image = cropToReceipt(image);
+      start = recordStage(stageNanos, Stage.CROP, start);
+
+      image = downsample(image);
+      start = recordStage(stageNanos, Stage.DOWNSAMPLE, start);
+
+      ByteString processedBytes = encode(image);
+      recordStage(stageNanos, Stage.ENCODE, start);
+
+      if (processedBytes.size() >= imageBytes.size()) {
+        metrics.recordSkipped(imageBytes.size());
+        return imageBytes;
+      }
+
+      metrics.recordProcessed(imageBytes.size(), processedBytes.size(), stageNanos);
+      logger.fine(String.format("Preprocessed receipt image from %d to %d bytes in %.1f ms.",
+          imageBytes.size(), processedBytes.size(), sum(stageNanos) / 1e6));
+
+      return processedBytes;
+    } catch (IOException | RuntimeException e) {
+      // Corrupt images are still sent to the Cloud Vision API, which reports its own error.
+      logger.warning("Failed to preprocess receipt image: " + e);
+      metrics.recordSkipped(imageBytes.size());
+      return imageBytes;
+    }
+  }
+
+  public PreprocessingMetrics getMetrics() {
+    return metrics;
+  }
+
+  /** Returns the image with a single 8-bit gray channel. */
+  private static BufferedImage toGrayscale(BufferedImage image) {
+    // Cropping reads the pixels directly, so the raster must hold exactly the image's pixels.
+    if (image.getType() == BufferedImage.TYPE_BYTE_GRAY
+        && image.getRaster().getDataBuffer().getSize() == image.getWidth() * image.getHeight()) {
+      return image;
+    }
+
+    BufferedImage grayImage =
+        new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D graphics = grayImage.createGraphics();
+    try {
+      graphics.drawImage(image, 0, 0, null);
+    } finally {
+      graphics.dispose();
+    }
+
+    return grayImage;
+  }
+
+  /**
+   * Returns the orientation in the EXIF metadata of the JPEG image, from 1 to 8, or 1 if the image
+   * doesn't have one. Only the segments before the image data are read.
+   */
+  public static int readOrientation(ByteString jpegBytes) {
+    try {
+      // Skip the start of image marker.
+      int offset = 2;
+      while (offset + 4 <= jpegBytes.size() && (jpegBytes.byteAt(offset) & 0xFF) == 0xFF) {
+        int marker = jpegBytes.byteAt(offset + 1) & 0xFF;
+        int length = readUnsigned(jpegBytes, offset + 2, 2, /* littleEndian = */ false);
+        // The orientation is in an APP1 segment, and the start of scan marker begins the pixels.
+        if (marker == 0xDA) {
+          break;
+        }
+        if (marker == 0xE1 && jpegBytes.substring(offset + 4, offset + 10)
+                                  .equals(ByteString.copyFromUtf8("Exif\0\0"))) {
+          return readOrientationTag(jpegBytes, offset + 10);
+        }
+        offset += 2 + length;
+      }
+    } catch (IndexOutOfBoundsException e) {
+      logger.fine("Truncated JPEG metadata: " + e);
+    }
+
+    return UPRIGHT_ORIENTATION;
+  }
+
+  /** Reads the orientation tag from the first directory of the TIFF header at tiffStart. */
+  private static int readOrientationTag(ByteString jpegBytes, int tiffStart) {
+    boolean littleEndian = jpegBytes.byteAt(tiffStart) == 'I';
+    int directory = tiffStart + readUnsigned(jpegBytes, tiffStart + 4, 4, littleEndian);
+    int entries = readUnsigned(jpegBytes, directory, 2, littleEndian);
+
+    for (int i = 0; i < entries; i++) {
+      int entry = directory + 2 + i * 12;
+      if (readUnsigned(jpegBytes, entry, 2, littleEndian) == ORIENTATION_TAG) {
+        int orientation = readUnsigned(jpegBytes, entry + 8, 2, littleEndian);
+        return orientation >= 1 && orientation <= 8 ? orientation : UPRIGHT_ORIENTATION;
+      }
+    }
+
+    return UPRIGHT_ORIENTATION;
+  }
+
+  private static int readUnsigned(ByteString bytes, int offset, int length, boolean littleEndian) {
+    int value = 0;
+    for (int i = 0; i < length; i++) {
+      int b = bytes.byteAt(littleEndian ? offset + length - 1 - i : offset + i) & 0xFF;
+      value = (value << 8) | b;
+    }
+
+    return value;
+  }
+
+  /**
+   * Returns the image turned upright according to its EXIF orientation, which records how the
+   * camera was held as a rotation and possibly a mirroring of the stored pixels. The pixels are
+   * copied between the images' arrays, so the image must be 8-bit gray or packed RGB and its raster
+   * must hold exactly its pixels, like the images created here and by {@link ImageVariants}.
+   */
+  static BufferedImage orient(BufferedImage image, int orientation) {
+    if (orientation == UPRIGHT_ORIENTATION) {
+      return image;
+    }
+
+    int width = image.getWidth();
+    int height = image.getHeight();
+    // Orientations 5 to 8 are rotated by a quarter turn, which swaps the width and height.
+    boolean transposed = orientation >= 5;
+    int orientedWidth = transposed ? height : width;
+    int orientedHeight = transposed ? width : height;
+
+    // Every orientation moves the pixel at (x, y) to origin + x * xStep + y * yStep.
+    int origin;
+    int xStep;
+    int yStep;
+    switch (orientation) {
+      case 2: // Mirrored horizontally.
+        origin = width - 1;
+        xStep = -1;
+        yStep = orientedWidth;
+        break;
+      case 3: // Rotated half a turn.
+        origin = (height - 1) * orientedWidth + width - 1;
+        xStep = -1;
+        yStep = -orientedWidth;
+        break;
+      case 4: // Mirrored vertically.
+        origin = (height - 1) * orientedWidth;
+        xStep = 1;
+        yStep = -orientedWidth;
+        break;
+      case 5: // Mirrored across the main diagonal.
+        origin = 0;
+        xStep = orientedWidth;
+        yStep = 1;
+        break;
+      case 6: // Needs a quarter turn clockwise.
+        origin = height - 1;
+        xStep = orientedWidth;
+        yStep = -1;
+        break;
+      case 7: // Mirrored across the other diagonal.
+        origin = (width - 1) * orientedWidth + height - 1;
+        xStep = -orientedWidth;
+        yStep = -1;
+        break;
+      default: // 8, needs a quarter turn counterclockwise.
+        origin = (width - 1) * orientedWidth;
+        xStep = -orientedWidth;
+        yStep = 1;
+        break;
+    }
+
+    BufferedImage orientedImage =
+        new BufferedImage(orientedWidth, orientedHeight, image.getType());
+    DataBuffer pixels = image.getRaster().getDataBuffer();
+    DataBuffer orientedPixels = orientedImage.getRaster().getDataBuffer();
+    if (pixels instanceof DataBufferByte && image.getType() == BufferedImage.TYPE_BYTE_GRAY) {
+      byte[] source = ((DataBufferByte) pixels).getData();
+      byte[] target = ((DataBufferByte) orientedPixels).getData();
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          target[origin + x * xStep + y * yStep] = source[y * width + x];
+        }
+      }
+    } else if (pixels instanceof DataBufferInt && image.getType() == BufferedImage.TYPE_INT_RGB) {
+      int[] source = ((DataBufferInt) pixels).getData();
+      int[] target = ((DataBufferInt) orientedPixels).getData();
+      for (int y = 0; y < height; y++) {
+        for (int x = 0; x < width; x++) {
+          target[origin + x * xStep + y * yStep] = source[y * width + x];
+        }
+      }
+    } else {
+      throw new IllegalArgumentException("Only gray and RGB images can be oriented.");
+    }
+
+    return orientedImage;
+  }
+
+  /**
+   * Crops the grayscale image to the rows and columns that are mostly receipt paper, which is
+   * brighter than the background it was photographed on. The image is returned uncropped if the
+   * receipt fills most of it or no receipt can be found.
+   */
+  private static BufferedImage cropToReceipt(BufferedImage grayImage) {
+    int width = grayImage.getWidth();
+    int height = grayImage.getHeight();
+    byte[] pixels = ((DataBufferByte) grayImage.getRaster().getDataBuffer()).getData();
+
+    // The receipt's edges are found on a grid of sampled pixels, which is accurate to within the
+    // crop margin and keeps the cost independent of the photo's resolution.
+    int step = (int) Math.max(1, Math.ceil(Math.sqrt((double) width * height / MAX_CROP_SAMPLES)));
+    int sampledWidth = (width + step - 1) / step;
+    int sampledHeight = (height + step - 1) / step;
+
+    long[] histogram = new long[256];
+    for (int y = 0; y < height; y += step) {
+      int rowOffset = y * width;
+      for (int x = 0; x < width; x += step) {
+        histogram[pixels[rowOffset + x] & 0xFF]++;
+      }
+    }
+    int threshold = otsuThreshold(histogram);
+
+    // Count the bright samples in each sampled row and column in a single pass.
+    int[] brightSamplesPerRow = new int[sampledHeight];
+    int[] brightSamplesPerColumn = new int[sampledWidth];
+    for (int row = 0; row < sampledHeight; row++) {
+      int rowOffset = row * step * width;
+      for (int column = 0; column < sampledWidth; column++) {
+        if ((pixels[rowOffset + column * step] & 0xFF) > threshold) {
+          brightSamplesPerRow[row]++;
+          brightSamplesPerColumn[column]++;
+        }
+      }
+    }
+
+    int firstRow = firstIndexAbove(brightSamplesPerRow, MIN_PAPER_FRACTION * sampledWidth);
+    int lastRow = lastIndexAbove(brightSamplesPerRow, MIN_PAPER_FRACTION * sampledWidth);
+    int firstColumn = firstIndexAbove(brightSamplesPerColumn, MIN_PAPER_FRACTION * sampledHeight);
+    int lastColumn = lastIndexAbove(brightSamplesPerColumn, MIN_PAPER_FRACTION * sampledHeight);
+
+    if (firstRow < 0 || firstColumn < 0) {
+      return grayImage;
+    }
+
+    // Extend the edges to the next sample and add the margin.
+    int verticalMargin = (int) (height * CROP_MARGIN_FRACTION);
+    int horizontalMargin = (int) (width * CROP_MARGIN_FRACTION);
+    int top = Math.max(0, firstRow * step - verticalMargin);
+    int bottom = Math.min(height - 1, (lastRow + 1) * step - 1 + verticalMargin);
+    int left = Math.max(0, firstColumn * step - horizontalMargin);
+    int right = Math.min(width - 1, (lastColumn + 1) * step - 1 + horizontalMargin);
+
+    int croppedWidth = right - left + 1;
+    int croppedHeight = bottom - top + 1;
+    double croppedAreaFraction = (double) croppedWidth * croppedHeight / ((double) width * height);
+    if (croppedAreaFraction > MAX_CROPPED_AREA_FRACTION
+        || croppedAreaFraction < MIN_CROPPED_AREA_FRACTION) {
+      return grayImage;
+    }
+
+    // Shares the pixels of the original image instead of copying them.
+    return grayImage.getSubimage(left, top, croppedWidth, croppedHeight);
+  }
+
+  /**
+   * Returns the gray level that best separates the histogram into dark and bright classes, using
+   * Otsu's method of maximizing the variance between the two classes.
+   */
+  private static int otsuThreshold(long[] histogram) {
+    long total = 0;
+    for (long count : histogram) {
+      total += count;
+    }
+
+    double weightedSum = 0;
+    for (int level = 0; level < histogram.length; level++) {
+      weightedSum += (double) level * histogram[level];
+    }
+
+    long darkCount = 0;
+    double darkWeightedSum = 0;
+    double maxVariance = -1;
+    int threshold = 0;
+
+    for (int level = 0; level < histogram.length; level++) {
+      darkCount += histogram[level];
+      if (darkCount == 0) {
+        continue;
+      }
+      long brightCount = total - darkCount;
+      if (brightCount == 0) {
+        break;
+      }
+
+      darkWeightedSum += (double) level * histogram[level];
+      double darkMean = darkWeightedSum / darkCount;
+      double brightMean = (weightedSum - darkWeightedSum) / brightCount;
+      double variance = (double) darkCount * brightCount * (darkMean - brightMean)
+          * (darkMean - brightMean);
+
+      if (variance > maxVariance) {
+        maxVariance = variance;
+        threshold = level;
+      }
+    }
+
+    return threshold;
+  }
+
+  private static int firstIndexAbove(int[] counts, double minCount) {
+    for (int i = 0; i < counts.length; i++) {
+      if (counts[i] >= minCount) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  private static int lastIndexAbove(int[] counts, double minCount) {
+    for (int i = counts.length - 1; i >= 0; i--) {
+      if (counts[i] >= minCount) {
+        return i;
+      }
+    }
+
+    return -1;
+  }
+
+  /**
+   * Scales the image down to at most maxPixels pixels, keeping its aspect ratio. Large reductions
+   * are done by repeatedly halving the image, since a single bilinear step would skip most of the
+   * source pixels and blur thin strokes of text unevenly.
+   */
+  private BufferedImage downsample(BufferedImage image) {
+    long pixels = (long) image.getWidth() * image.getHeight();
+    if (pixels <= maxPixels) {
+      return image;
+    }
+
+    double scale = Math.sqrt((double) maxPixels / pixels);
+    int targetWidth = Math.max(1, (int) (image.getWidth() * scale));
+    int targetHeight = Math.max(1, (int) (image.getHeight() * scale));
+
+    BufferedImage scaledImage = image;
+    do {
+      int width = Math.max(targetWidth, scaledImage.getWidth() / 2);
+      int height = Math.max(targetHeight, scaledImage.getHeight() / 2);
+      scaledImage = resize(scaledImage, width, height);
+    } while (scaledImage.getWidth() > targetWidth || scaledImage.getHeight() > targetHeight);
+
+    return scaledImage;
+  }
+
+  private static BufferedImage resize(BufferedImage image, int width, int height) {
+    BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_BYTE_GRAY);
+    Graphics2D graphics = resizedImage.createGraphics();
+    try {
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(image, 0, 0, width, height, null);
+    } finally {
+      graphics.dispose();
+    }
+
+    return resizedImage;
+  }
+
+  /** Encodes the image as a JPEG into a pooled buffer and copies the result once. */
+  private ByteString encode(BufferedImage image) throws IOException {
+    OutputBuffer buffer = borrowOutputBuffer();
+    try {
+      writeJpeg(image, jpegQuality, buffer);
+      return buffer.toByteString();
+    } finally {
+      returnOutputBuffer(buffer);
+    }
+  }
+
+  /** Writes the image to the stream as a JPEG with the given quality, in the range [0,1]. */
+  static void writeJpeg(BufferedImage image, float quality, OutputStream stream)
+      throws IOException {
+    Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+    if (!writers.hasNext()) {
+      throw new IOException("No JPEG writer is available.");
+    }
+    ImageWriter writer = writers.next();
+
+    ImageWriteParam param = writer.getDefaultWriteParam();
+    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+    param.setCompressionQuality(quality);
+
+    try (ImageOutputStream output = ImageIO.createImageOutputStream(stream)) {
+      writer.setOutput(output);
+      writer.write(null, new IIOImage(image, null, null), param);
+    } finally {
+      writer.dispose();
+    }
+  }
+
+  private OutputBuffer borrowOutputBuffer() {
+    OutputBuffer buffer = outputBuffers.poll();
+    return buffer == null ? new OutputBuffer() : buffer;
+  }
+
+  private void returnOutputBuffer(OutputBuffer buffer) {
+    if (buffer.capacity() <= MAX_POOLED_BUFFER_BYTES) {
+      buffer.reset();
+      outputBuffers.offer(buffer);
+    }
+  }
+
+  private static long recordStage(long[] stageNanos, Stage stage, long start) {
+    long end = System.nanoTime();
+    stageNanos[stage.ordinal()] = end - start;
+    return end;
+  }
+
+  private static long sum(long[] values) {
+    long sum = 0;
+    for (long value : values) {
+      sum += value;
+    }
+
+    return sum;
+  }
+
+  /** Steps of preprocessing, whose latencies are recorded separately. */
+  public enum Stage {
+    DECODE,
+    GRAYSCALE,
+    ORIENT,
+    CROP,
+    DOWNSAMPLE,
+    ENCODE
+  }
+
+  /** Byte output stream whose buffer can be reused and read without an extra copy. */
+  private static class OutputBuffer extends ByteArrayOutputStream {
+    private OutputBuffer() {
+      super(256 * 1024);
+    }
+
+    private int capacity() {
+      return buf.length;
+    }
+
+    private ByteString toByteString() {
+      return ByteString.copyFrom(buf, 0, count);
+    }
+  }
+
+  /** Image counts, bytes saved, and latencies of each stage of preprocessing. */
+  public static class PreprocessingMetrics {
+    private final AtomicLong processedImages = new AtomicLong();
+    private final AtomicLong skippedImages = new AtomicLong();
+    private final AtomicLong inputBytes = new AtomicLong();
+    private final AtomicLong outputBytes = new AtomicLong();
+    private final AtomicLongArray totalStageNanos = new AtomicLongArray(Stage.values().length);
+
+    private void recordProcessed(long imageInputBytes, long imageOutputBytes, long[] stageNanos) {
+      processedImages.incrementAndGet();
+      inputBytes.addAndGet(imageInputBytes);
+      outputBytes.addAndGet(imageOutputBytes);
+      for (int i = 0; i < stageNanos.length; i++) {
+        totalStageNanos.addAndGet(i, stageNanos[i]);
+      }
+    }
+
+    private void recordSkipped(long imageBytes) {
+      skippedImages.incrementAndGet();
+      inputBytes.addAndGet(imageBytes);
+      outputBytes.addAndGet(imageBytes);
+    }
+
+    /** Returns the number of images that were replaced by a smaller preprocessed image. */
+    public long getProcessedImages() {
+      return processedImages.get();
+    }
+
+    /** Returns the number of images that were sent unchanged. */
+    public long getSkippedImages() {
+      return skippedImages.get();
+    }
+
+    /** Returns the number of bytes that weren't sent to the Cloud Vision API. */
+    public long getBytesSaved() {
+      return inputBytes.get() - outputBytes.get();
+    }
+
+    /** Returns the average latency of the stage over the images that were preprocessed. */
+    public double getAverageLatencyMillis(Stage stage) {
+      long images = processedImages.get();
+      return images == 0 ? 0 : totalStageNanos.get(stage.ordinal()) / 1e6 / images;
+    }
+
+    @Override
+    public String toString() {
+      StringBuilder description = new StringBuilder(
+          String.format("%d images preprocessed (%d skipped), %d bytes saved",
+              getProcessedImages(), getSkippedImages(), getBytesSaved()));
+      for (Stage stage : Stage.values()) {
+        description.append(String.format(
+            ", %s %.1f ms average", stage.name().toLowerCase(), getAverageLatencyMillis(stage)));
+      }
+
+      return description.toString();
+    }
+  }
+}
@@ -0,0 +1,214 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.protobuf.ByteString;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.logging.Logger;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+
+/**
+ * Smaller copies of receipt images for pages that show many receipts at once. Each variant is
+ * created from the original blob the first time it's requested, and stored in the {@link
+ * ReceiptRepository} under a key derived from the blob key and size, so any receipt's image URL
+ * leads to its variants without storing their keys on the receipt.
+ */
+public final class ImageVariants {
+  public static final String KIND = "ImageVariant";
+
+  // JPEG quality of the variants, in the range [0,1]. Photos of paper stay legible at this quality.
+  private static final float JPEG_QUALITY = 0.8f;
+  // Datastore entities are limited to 1 MiB, so larger variants are served without being stored.
+  private static final int MAX_STORED_BYTES = 1000 * 1000;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ImageVariants.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final ImageBytesReader imageBytesReader;
+
+  public ImageVariants(ReceiptRepository receipts, ImageBytesReader imageBytesReader) {
+    this.receipts = receipts;
+    this.imageBytesReader = imageBytesReader;
+  }
+
+  /**
+   * Returns the JPEG bytes of the image at the given size, creating and storing them if this is the
+   * first request for that size. If the original image is already no larger than the size, or
+   * can't be decoded, returns an empty optional so that the original is served instead. That is
+   * stored too, as a variant without bytes, so the original isn't read again.
+   */
+  public Optional<byte[]> get(BlobKey blobKey, Size size) throws IOException {
+    Key key = getKey(blobKey, size);
+    Optional<Entity> storedEntity = receipts.getImageVariant(key);
+    if (storedEntity.isPresent()) {
+      return storedEntity.get().hasProperty("bytes")
+          ? Optional.of(((Blob) storedEntity.get().getProperty("bytes")).getBytes())
+          : Optional.empty();
+    }
+
+    Optional<byte[]> variant = create(imageBytesReader.read(blobKey), size);
+    if (!variant.isPresent() || variant.get().length <= MAX_STORED_BYTES) {
+      // Concurrent first requests store the same variant, so neither write needs a transaction.
+      Entity entity = new Entity(key);
+      variant.ifPresent(bytes -> entity.setUnindexedProperty("bytes", new Blob(bytes)));
+      receipts.putImageVariant(entity);
+    }
+
+    return variant;
+  }
+
+  /** Returns the keys of the variants of every size of the image, such as to delete them. */
+  public static List<Key> getKeys(BlobKey blobKey) {
+    List<Key> keys = new ArrayList<>();
+    for (Size size : Size.values()) {
+      keys.add(getKey(blobKey, size));
+    }
+    return keys;
+  }
+
+  /** Returns the key of the blob the receipt's image is served from, if it has one. */
+  public static Optional<BlobKey> getBlobKey(Entity receipt) {
+    String imageUrl = (String) receipt.getProperty("imageUrl");
+    if (imageUrl == null || !imageUrl.startsWith(ImageOwnershipCache.IMAGE_URL_PREFIX)) {
+      return Optional.empty();
+    }
+    return Optional.of(
+        new BlobKey(imageUrl.substring(ImageOwnershipCache.IMAGE_URL_PREFIX.length())));
+  }
+
+  /**
+   * Returns the image scaled down to fit the size and turned upright according to its EXIF
+   * orientation, or an empty optional if it can't be. The image is decoded at the coarsest
+   * subsampling that still covers the size, so a large photo isn't decoded at full resolution
+   * only to be discarded by the resize.
+   */
+  public static Optional<byte[]> create(ByteString imageBytes, Size size) throws IOException {
+    int originalWidth;
+    int originalHeight;
+    BufferedImage image;
+    try (InputStream stream = imageBytes.newInput();
+        ImageInputStream input = ImageIO.createImageInputStream(stream)) {
+      Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+      if (!readers.hasNext()) {
+        logger.warning("Image could not be decoded to create a variant.");
+        return Optional.empty();
+      }
+
+      ImageReader reader = readers.next();
+      try {
+        reader.setInput(input, true, true);
+        originalWidth = reader.getWidth(0);
+        originalHeight = reader.getHeight(0);
+        int largerDimension = Math.max(originalWidth, originalHeight);
+        if (largerDimension <= size.getMaxDimension()) {
+          return Optional.empty();
+        }
+
+        // Keeps every nth pixel of each row and column, where n leaves at least the size's pixels.
+        int subsampling = largerDimension / size.getMaxDimension();
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+        image = reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+    }
+
+    double scale = (double) size.getMaxDimension() / Math.max(originalWidth, originalHeight);
+    int width = Math.max(1, (int) Math.round(originalWidth * scale));
+    int height = Math.max(1, (int) Math.round(originalHeight * scale));
+    BufferedImage resizedImage = resize(image, width, height);
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ImagePreprocessor.writeJpeg(
+        ImagePreprocessor.orient(resizedImage, ImagePreprocessor.readOrientation(imageBytes)),
+        JPEG_QUALITY, bytes);
+    return Optional.of(bytes.toByteArray());
+  }
+
+  private static Key getKey(BlobKey blobKey, Size size) {
+    return KeyFactory.createKey(KIND, size.name().toLowerCase() + ":" + blobKey.getKeyString());
+  }
+
+  /**
+   * Resizes the image in steps that halve its dimensions until the last step, since a single
+   * bilinear step from a large photo skips most of its pixels and looks grainy.
+   */
+  private static BufferedImage resize(BufferedImage image, int targetWidth, int targetHeight) {
+    BufferedImage scaledImage = image;
+    do {
+      int width = Math.max(targetWidth, scaledImage.getWidth() / 2);
+      int height = Math.max(targetHeight, scaledImage.getHeight() / 2);
+
+      BufferedImage resizedImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = resizedImage.createGraphics();
+      try {
+        graphics.setRenderingHint(
+            RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+        graphics.drawImage(scaledImage, 0, 0, width, height, null);
+      } finally {
+        graphics.dispose();
+      }
+      scaledImage = resizedImage;
+    } while (scaledImage.getWidth() > targetWidth || scaledImage.getHeight() > targetHeight);
+
+    return scaledImage;
+  }
+
+  /** Sizes of the variants, which fit within a square with sides of the given number of pixels. */
+  public enum Size {
+    SMALL(320),
+    MEDIUM(1024);
+
+    private final int maxDimension;
+
+    Size(int maxDimension) {
+      this.maxDimension = maxDimension;
+    }
+
+    /** Returns the size with the given name, such as "small", ignoring case. */
+    public static Optional<Size> fromName(String name) {
+      for (Size size : values()) {
+        if (size.name().equalsIgnoreCase(name)) {
+          return Optional.of(size);
+        }
+      }
+
+      return Optional.empty();
+    }
+
+    public int getMaxDimension() {
+      return maxDimension;
+    }
+  }
+}
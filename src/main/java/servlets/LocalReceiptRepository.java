@@ -0,0 +1,779 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreFailureException;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.data.UserSpendingSummary;
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.NavigableSet;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.concurrent.locks.ReadWriteLock;
+import java.util.concurrent.locks.ReentrantReadWriteLock;
+
+/**
+ * Receipt repository stored in a single file on local disk, for load tests and deployments that
+ * run on one machine without Datastore. The file is an append-only log of receipt writes and
+ * deletes that is memory-mapped, so writes and reads are memory copies that the operating system
+ * flushes to disk. Indexes of where each receipt is in the log, of each user's receipts sorted by
+ * timestamp, of the words in their text, and of each user's summary are kept in memory and rebuilt
+ * from the log when it's opened, so lookups, pages, keyword searches and summaries don't scan the
+ * log. Image variants are only kept in memory, since they're created again when they're missing.
+ *
+ * <p>Receipts are stored as Datastore protocol buffers, so the store holds the same entities as
+ * Datastore and keys must be created in an App Engine environment. The log only grows, since an
+ * edit or delete appends a record rather than replacing the old one, and it can be mapped up to
+ * 2 GB. Writes survive the process exiting but may be lost if the machine fails before they are
+ * flushed, which {@link #close} forces.
+ */
+public final class LocalReceiptRepository implements ReceiptRepository, Closeable {
+  // Marks the file as a receipt log, so that another file isn't overwritten.
+  private static final int MAGIC_NUMBER = 0x52435054;
+  private static final int FILE_HEADER_BYTES = Integer.BYTES;
+  // Each record starts with its length in bytes, its type and the receipt's ID. A put record is
+  // followed by the receipt's protocol buffer. A length of zero marks the end of the log.
+  private static final int RECORD_HEADER_BYTES = Integer.BYTES + 1 + Long.BYTES;
+  private static final byte PUT_RECORD = 1;
+  private static final byte DELETE_RECORD = 2;
+  private static final long INITIAL_CAPACITY_BYTES = 1024 * 1024;
+  private static final String CURSOR_SEPARATOR = "_";
+
+  // Sorts receipts by descending timestamp and then ID, with receipts without one last.
+  private static final Comparator<IndexedReceipt> NEWEST_FIRST =
+      Comparator
+          .comparing((IndexedReceipt receipt) -> receipt.timestamp,
+              Comparator.nullsLast(Comparator.reverseOrder()))
+          .thenComparing(receipt -> receipt.id, Comparator.reverseOrder());
+  // Sorted before every receipt, so that the first page starts after it.
+  private static final IndexedReceipt BEFORE_NEWEST =
+      IndexedReceipt.position(Long.MAX_VALUE, Long.MAX_VALUE);
+
+  private final FileChannel channel;
+  // Guards the mapped log and the indexes. Reads of the log use duplicates of the buffer, so they
+  // can run concurrently while it isn't being remapped.
+  private final ReadWriteLock lock = new ReentrantReadWriteLock();
+  // Sorted by ID, so that a scan of every receipt can continue from the last ID it returned.
+  private final NavigableMap<Long, IndexedReceipt> receiptsById = new TreeMap<>();
+  private final Map<String, NavigableSet<IndexedReceipt>> receiptsByUser = new HashMap<>();
+  // IDs of each user's receipts by the words of their text.
+  private final Map<String, Map<String, NavigableSet<Long>>> receiptIdsByWord = new HashMap<>();
+  private final Map<String, UserSpendingSummary> summaries = new HashMap<>();
+  private final Map<Key, Entity> imageVariants = new HashMap<>();
+  private MappedByteBuffer log;
+  // Position in the log where the next record is written.
+  private int end;
+  private long nextId = 1;
+
+  /** Opens the log in the file, or creates it if the file doesn't exist, and indexes it. */
+  public LocalReceiptRepository(Path file) throws IOException {
+    channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.READ,
+        StandardOpenOption.WRITE);
+
+    try {
+      long size = channel.size();
+      if (size > Integer.MAX_VALUE) {
+        throw new IOException("Receipt log is too large to map: " + file);
+      }
+
+      log = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(size, INITIAL_CAPACITY_BYTES));
+      if (size == 0) {
+        log.putInt(0, MAGIC_NUMBER);
+      } else if (log.getInt(0) != MAGIC_NUMBER) {
+        throw new IOException("Not a receipt log: " + file);
+      }
+
+      end = FILE_HEADER_BYTES;
+      replay();
+    } catch (IOException | RuntimeException e) {
+      channel.close();
+      throw e;
+    }
+  }
+
+  @Override
+  public Entity put(Entity receipt) {
+    return put(Collections.singletonList(receipt)).get(0);
+  }
+
+  /**
+   * Stores the receipts. Receipts with incomplete keys are copied to new entities with the next
+   * unused IDs, and the others are stored as they are.
+   */
+  @Override
+  public List<Entity> put(List<Entity> receipts) {
+    List<Entity> storedReceipts = new ArrayList<>(receipts.size());
+    Set<String> userIds = new LinkedHashSet<>();
+
+    lock.writeLock().lock();
+    try {
+      for (Entity receipt : receipts) {
+        markTextIndexed(receipt);
+        Entity storedReceipt = withCompleteKey(receipt);
+        long id = storedReceipt.getKey().getId();
+        byte[] bytes = EntityTranslator.convertToPb(storedReceipt).toByteArray();
+        int length = write(PUT_RECORD, id, bytes);
+
+        unindex(id);
+        index(storedReceipt, end, length);
+        commit(length);
+        storedReceipts.add(storedReceipt);
+        addUserId(userIds, storedReceipt);
+      }
+    } catch (IOException e) {
+      throw new DatastoreFailureException("Failed to write to the receipt log.", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    userIds.forEach(SearchCache::invalidate);
+    return storedReceipts;
+  }
+
+  @Override
+  public Optional<Entity> update(long id, Predicate<Entity> condition, Consumer<Entity> update) {
+    Optional<Entity> updatedReceipt;
+
+    lock.writeLock().lock();
+    try {
+      updatedReceipt =
+          Optional.ofNullable(receiptsById.get(id)).map(this::read).filter(condition);
+      if (updatedReceipt.isPresent()) {
+        update.accept(updatedReceipt.get());
+        markTextIndexed(updatedReceipt.get());
+        byte[] bytes = EntityTranslator.convertToPb(updatedReceipt.get()).toByteArray();
+        int length = write(PUT_RECORD, id, bytes);
+
+        unindex(id);
+        index(updatedReceipt.get(), end, length);
+        commit(length);
+      }
+    } catch (IOException e) {
+      throw new DatastoreFailureException("Failed to write to the receipt log.", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    updatedReceipt.map(receipt -> (String) receipt.getProperty("userId"))
+        .ifPresent(SearchCache::invalidate);
+    return updatedReceipt;
+  }
+
+  @Override
+  public Optional<Entity> get(long id) {
+    lock.readLock().lock();
+    try {
+      return Optional.ofNullable(receiptsById.get(id)).map(this::read);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public Map<Long, Entity> get(Collection<Long> ids) {
+    Map<Long, Entity> receipts = new HashMap<>();
+
+    lock.readLock().lock();
+    try {
+      for (long id : ids) {
+        IndexedReceipt receipt = receiptsById.get(id);
+        if (receipt != null) {
+          receipts.put(id, read(receipt));
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return receipts;
+  }
+
+  @Override
+  public void delete(long id) {
+    Set<String> userIds = new LinkedHashSet<>();
+
+    lock.writeLock().lock();
+    try {
+      if (!receiptsById.containsKey(id)) {
+        return;
+      }
+
+      int length = write(DELETE_RECORD, id, new byte[0]);
+      Entity receipt = unindex(id).get();
+      addUserId(userIds, receipt);
+      commit(length);
+      ImageVariants.getBlobKey(receipt)
+          .ifPresent(blobKey -> ImageVariants.getKeys(blobKey).forEach(imageVariants::remove));
+    } catch (IOException e) {
+      throw new DatastoreFailureException("Failed to write to the receipt log.", e);
+    } finally {
+      lock.writeLock().unlock();
+    }
+
+    userIds.forEach(SearchCache::invalidate);
+  }
+
+  /** Returns a page read from the user's index, whose cursor is the last receipt's position. */
+  @Override
+  public SearchPageFetcher.Page query(String userId, Optional<String> encodedCursor, int pageSize) {
+    IndexedReceipt start = encodedCursor.map(LocalReceiptRepository::decodeCursor)
+                               .orElse(BEFORE_NEWEST);
+    ImmutableList.Builder<Entity> receipts = ImmutableList.builder();
+    IndexedReceipt last = start;
+    int scanned = 0;
+
+    lock.readLock().lock();
+    try {
+      for (IndexedReceipt receipt : getUserReceipts(userId).tailSet(start, false)) {
+        // Receipts without a timestamp are sorted last, and aren't returned like in Datastore.
+        if (scanned == pageSize || receipt.timestamp == null) {
+          break;
+        }
+
+        receipts.add(read(receipt));
+        last = receipt;
+        scanned++;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return new SearchPageFetcher.Page(receipts.build(), encodeCursor(last), scanned);
+  }
+
+  /**
+   * Returns a page read from the part of the user's index in the date range, whose cursor is the
+   * last scanned receipt's position.
+   */
+  @Override
+  public SearchPageFetcher.Page query(String userId, QueryInformation queryInformation,
+      Optional<String> encodedCursor, int pageSize, int scanBudget) {
+    IndexedReceipt start = encodedCursor.map(LocalReceiptRepository::decodeCursor)
+                               .orElse(BEFORE_NEWEST);
+    IndexedReceipt newest =
+        IndexedReceipt.position(queryInformation.getEndTimestamp(), Long.MAX_VALUE);
+    IndexedReceipt oldest =
+        IndexedReceipt.position(queryInformation.getStartTimestamp(), Long.MIN_VALUE);
+    if (NEWEST_FIRST.compare(newest, oldest) > 0 || NEWEST_FIRST.compare(start, oldest) >= 0) {
+      // The date range is empty, or the previous page ended at its oldest receipt.
+      return new SearchPageFetcher.Page(ImmutableList.of(), encodeCursor(start), 0);
+    }
+
+    ImmutableList.Builder<Entity> receipts = ImmutableList.builder();
+    IndexedReceipt last = start;
+    int matches = 0;
+    int scanned = 0;
+
+    lock.readLock().lock();
+    try {
+      NavigableSet<IndexedReceipt> receiptsInRange = NEWEST_FIRST.compare(start, newest) < 0
+          ? getUserReceipts(userId).subSet(newest, true, oldest, true)
+          : getUserReceipts(userId).subSet(start, false, oldest, true);
+      for (IndexedReceipt receipt : receiptsInRange) {
+        if (matches == pageSize || scanned == scanBudget) {
+          break;
+        }
+
+        Entity entity = read(receipt);
+        last = receipt;
+        scanned++;
+        if (queryInformation.matches(entity)) {
+          receipts.add(entity);
+          matches++;
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return new SearchPageFetcher.Page(receipts.build(), encodeCursor(last), scanned);
+  }
+
+  /** Intersects the IDs of each word's receipts, starting with the word in the fewest receipts. */
+  @Override
+  public long[] searchText(String userId, Set<String> words) {
+    if (words.isEmpty()) {
+      return new long[0];
+    }
+
+    lock.readLock().lock();
+    try {
+      Map<String, NavigableSet<Long>> userIdsByWord =
+          receiptIdsByWord.getOrDefault(userId, Collections.emptyMap());
+      List<NavigableSet<Long>> idSets = new ArrayList<>();
+      for (String word : words) {
+        NavigableSet<Long> ids = userIdsByWord.get(word);
+        if (ids == null) {
+          return new long[0];
+        }
+        idSets.add(ids);
+      }
+
+      idSets.sort(Comparator.comparingInt(Set::size));
+      return idSets.get(0)
+          .stream()
+          .filter(id -> idSets.stream().allMatch(ids -> ids.contains(id)))
+          .mapToLong(Long::longValue)
+          .toArray();
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /** Returns the receipts in ID order, whose cursor is the last receipt's ID. */
+  @Override
+  public SearchPageFetcher.Page scan(Optional<String> encodedCursor, int batchSize) {
+    long start;
+    try {
+      start = encodedCursor.map(Long::parseLong).orElse(Long.MIN_VALUE);
+    } catch (NumberFormatException exception) {
+      throw new IllegalArgumentException("Invalid cursor: " + encodedCursor.get(), exception);
+    }
+
+    ImmutableList.Builder<Entity> receipts = ImmutableList.builder();
+    long last = start;
+    int scanned = 0;
+
+    lock.readLock().lock();
+    try {
+      for (IndexedReceipt receipt : receiptsById.tailMap(start, false).values()) {
+        if (scanned == batchSize) {
+          break;
+        }
+
+        receipts.add(read(receipt));
+        last = receipt.id;
+        scanned++;
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return new SearchPageFetcher.Page(receipts.build(), Long.toString(last), scanned);
+  }
+
+  @Override
+  public UserSpendingSummary getSummary(String userId) {
+    UserSpendingSummary summary = new UserSpendingSummary();
+
+    lock.readLock().lock();
+    try {
+      Optional.ofNullable(summaries.get(userId)).ifPresent(summary::addSummary);
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return summary;
+  }
+
+  @Override
+  public Map<String, Long> getStoreReceiptCounts(String userId) {
+    return getSummary(userId).getStoreReceiptCounts();
+  }
+
+  /** Adds up the receipts in the range, which are read from the user's index by timestamp. */
+  @Override
+  public UserSpendingSummary getSummary(String userId, long startTimestamp, long endTimestamp) {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    if (startTimestamp > endTimestamp) {
+      return summary;
+    }
+
+    lock.readLock().lock();
+    try {
+      NavigableSet<IndexedReceipt> receiptsInRange = getUserReceipts(userId).subSet(
+          IndexedReceipt.position(endTimestamp, Long.MAX_VALUE), true,
+          IndexedReceipt.position(startTimestamp, Long.MIN_VALUE), true);
+      for (IndexedReceipt receipt : receiptsInRange) {
+        summary.addReceipt(read(receipt));
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return summary;
+  }
+
+  /** Adds up the user's receipts by the bucket names of their timestamps. */
+  @Override
+  public SortedMap<String, UserSpendingSummary> getSummarySeries(
+      String userId, TimeBuckets.Interval interval) {
+    SortedMap<String, UserSpendingSummary> series = new TreeMap<>();
+
+    lock.readLock().lock();
+    try {
+      for (IndexedReceipt receipt : getUserReceipts(userId)) {
+        if (receipt.timestamp == null) {
+          continue;
+        }
+
+        Entity storedReceipt = read(receipt);
+        for (String name : TimeBuckets.getBucketNames(receipt.timestamp)) {
+          if (name.startsWith(interval.getNamePrefix())) {
+            series.computeIfAbsent(interval.getPeriod(name), period -> new UserSpendingSummary())
+                .addReceipt(storedReceipt);
+          }
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return series;
+  }
+
+  @Override
+  public ImmutableSet<String> getImageUrls(String userId) {
+    ImmutableSet.Builder<String> imageUrls = ImmutableSet.builder();
+
+    lock.readLock().lock();
+    try {
+      for (IndexedReceipt receipt : getUserReceipts(userId)) {
+        if (receipt.imageUrl != null) {
+          imageUrls.add(receipt.imageUrl);
+        }
+      }
+    } finally {
+      lock.readLock().unlock();
+    }
+
+    return imageUrls.build();
+  }
+
+  @Override
+  public boolean hasImageUrl(String userId, String imageUrl) {
+    lock.readLock().lock();
+    try {
+      return getUserReceipts(userId).stream().anyMatch(
+          receipt -> imageUrl.equals(receipt.imageUrl));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  /**
+   * Compares the summary kept in memory with one computed from the user's receipts. They only
+   * differ if a summary update was wrong, since both are built from the same receipts.
+   */
+  @Override
+  public SpendingSummaries.ConsistencyReport checkSummary(String userId) {
+    lock.readLock().lock();
+    try {
+      return new SpendingSummaries.ConsistencyReport(
+          Optional.ofNullable(summaries.get(userId)), computeSummary(userId));
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public UserSpendingSummary recomputeSummary(String userId) {
+    lock.writeLock().lock();
+    try {
+      UserSpendingSummary summary = computeSummary(userId);
+      if (receiptsByUser.containsKey(userId)) {
+        summaries.put(userId, summary);
+      }
+      return getSummary(userId);
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  @Override
+  public Optional<Entity> getImageVariant(Key key) {
+    lock.readLock().lock();
+    try {
+      return Optional.ofNullable(imageVariants.get(key)).map(Entity::clone);
+    } finally {
+      lock.readLock().unlock();
+    }
+  }
+
+  @Override
+  public void putImageVariant(Entity variant) {
+    lock.writeLock().lock();
+    try {
+      imageVariants.put(variant.getKey(), variant.clone());
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Flushes the log to disk and closes it. The repository can't be used afterwards. */
+  @Override
+  public void close() throws IOException {
+    lock.writeLock().lock();
+    try {
+      log.force();
+      channel.close();
+    } finally {
+      lock.writeLock().unlock();
+    }
+  }
+
+  /** Indexes every record in the log, and clears anything after the last complete record. */
+  private void replay() throws IOException {
+    while (end + RECORD_HEADER_BYTES <= log.capacity()) {
+      int length = log.getInt(end);
+      if (length == 0) {
+        break;
+      }
+
+      if (length < RECORD_HEADER_BYTES || (long) end + length > log.capacity()) {
+        throw new IOException("Corrupt receipt log record at " + end);
+      }
+
+      byte type = log.get(end + Integer.BYTES);
+      long id = log.getLong(end + Integer.BYTES + 1);
+      unindex(id);
+      if (type == PUT_RECORD) {
+        index(read(end, length), end, length);
+      }
+
+      nextId = Math.max(nextId, id + 1);
+      end += length;
+    }
+
+    // A record that was being written when the process exited has no length yet, and its bytes
+    // are cleared so that they aren't mistaken for part of the records appended after it.
+    for (int position = end; position < log.capacity(); position++) {
+      if (log.get(position) != 0) {
+        log.put(position, (byte) 0);
+      }
+    }
+  }
+
+  /**
+   * Writes a record at the end of the log, remapping it if it's full, and returns its length. The
+   * record isn't part of the log until it's committed, so the indexes are updated in between and
+   * a failure to update them leaves a record that is never replayed.
+   */
+  private int write(byte type, long id, byte[] payload) throws IOException {
+    int length = RECORD_HEADER_BYTES + payload.length;
+    ensureCapacity(length);
+
+    view(end + Integer.BYTES).put(type).putLong(id).put(payload);
+    return length;
+  }
+
+  /** Commits the record written at the end of the log by writing its length, which comes last. */
+  private void commit(int length) {
+    log.putInt(end, length);
+    end += length;
+  }
+
+  /** Maps a larger part of the file if the log doesn't have room for a record of the length. */
+  private void ensureCapacity(int length) throws IOException {
+    long required = (long) end + length;
+    if (required <= log.capacity()) {
+      return;
+    }
+
+    long capacity = Math.min(Math.max(required, 2L * log.capacity()), Integer.MAX_VALUE);
+    if (required > capacity) {
+      throw new IOException("Receipt log is full.");
+    }
+
+    log = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+  }
+
+  private Entity read(IndexedReceipt receipt) {
+    return read(receipt.offset, receipt.length);
+  }
+
+  /** Decodes the receipt in the put record at the offset. */
+  private Entity read(int offset, int length) {
+    byte[] bytes = new byte[length - RECORD_HEADER_BYTES];
+    view(offset + RECORD_HEADER_BYTES).get(bytes);
+    return EntityTranslator.createFromPbBytes(bytes);
+  }
+
+  /** Returns a view of the log starting at the position, which doesn't move the log's position. */
+  private ByteBuffer view(int position) {
+    // Calls the methods as Java 8 declares them, since later versions override them with other
+    // return types that Java 8 doesn't have.
+    ByteBuffer view = ((ByteBuffer) log).duplicate();
+    ((Buffer) view).position(position);
+    return view;
+  }
+
+  /** Adds the receipt, whose put record is at the offset, to the indexes and its user's summary. */
+  private void index(Entity receipt, int offset, int length) {
+    IndexedReceipt indexedReceipt = IndexedReceipt.of(receipt, offset, length);
+    receiptsById.put(indexedReceipt.id, indexedReceipt);
+    receiptsByUser.computeIfAbsent(indexedReceipt.userId, userId -> new TreeSet<>(NEWEST_FIRST))
+        .add(indexedReceipt);
+    summaries.computeIfAbsent(indexedReceipt.userId, userId -> new UserSpendingSummary())
+        .addReceipt(receipt);
+
+    Map<String, NavigableSet<Long>> userIdsByWord =
+        receiptIdsByWord.computeIfAbsent(indexedReceipt.userId, userId -> new HashMap<>());
+    for (String word : ReceiptTextIndex.getTokens(receipt)) {
+      userIdsByWord.computeIfAbsent(word, key -> new TreeSet<>()).add(indexedReceipt.id);
+    }
+  }
+
+  /** Removes the receipt with the ID from the indexes and its user's summary, and returns it. */
+  private Optional<Entity> unindex(long id) {
+    IndexedReceipt indexedReceipt = receiptsById.remove(id);
+    if (indexedReceipt == null) {
+      return Optional.empty();
+    }
+
+    Entity receipt = read(indexedReceipt);
+    UserSpendingSummary summary = summaries.get(indexedReceipt.userId);
+    if (summary != null) {
+      summary.removeReceipt(receipt);
+    }
+
+    Map<String, NavigableSet<Long>> userIdsByWord = receiptIdsByWord.get(indexedReceipt.userId);
+    for (String word : ReceiptTextIndex.getTokens(receipt)) {
+      NavigableSet<Long> ids = userIdsByWord.get(word);
+      ids.remove(id);
+      if (ids.isEmpty()) {
+        userIdsByWord.remove(word);
+      }
+    }
+
+    // A user's summary is kept until they have no receipts left, since receipts without a price,
+    // such as pending ones, leave it empty.
+    NavigableSet<IndexedReceipt> userReceipts = receiptsByUser.get(indexedReceipt.userId);
+    userReceipts.remove(indexedReceipt);
+    if (userReceipts.isEmpty()) {
+      receiptsByUser.remove(indexedReceipt.userId);
+      receiptIdsByWord.remove(indexedReceipt.userId);
+      summaries.remove(indexedReceipt.userId);
+    }
+
+    return Optional.of(receipt);
+  }
+
+  /** Adds up the user's receipts, which are read from the log. */
+  private UserSpendingSummary computeSummary(String userId) {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    for (IndexedReceipt receipt : getUserReceipts(userId)) {
+      summary.addReceipt(read(receipt));
+    }
+    return summary;
+  }
+
+  private NavigableSet<IndexedReceipt> getUserReceipts(String userId) {
+    return receiptsByUser.getOrDefault(userId, Collections.emptyNavigableSet());
+  }
+
+  /** Returns the receipt if its key is complete, or a copy of it with the next unused ID. */
+  private Entity withCompleteKey(Entity receipt) {
+    Key key = receipt.getKey();
+    if (!key.getKind().equals("Receipt") || key.getParent() != null || key.getName() != null) {
+      throw new IllegalArgumentException("Only receipts with numeric IDs can be stored: " + key);
+    }
+
+    if (key.isComplete()) {
+      nextId = Math.max(nextId, key.getId() + 1);
+      return receipt;
+    }
+
+    Entity storedReceipt = new Entity("Receipt", nextId++);
+    storedReceipt.setPropertiesFrom(receipt);
+    return storedReceipt;
+  }
+
+  /**
+   * Marks the receipt's text as indexed, like the Datastore repository does, since the text of
+   * every stored receipt is indexed as it's written and never needs a backfill.
+   */
+  private static void markTextIndexed(Entity receipt) {
+    receipt.setUnindexedProperty(ReceiptTextIndex.INDEXED_PROPERTY, true);
+  }
+
+  private static void addUserId(Set<String> userIds, Entity receipt) {
+    String userId = (String) receipt.getProperty("userId");
+    if (userId != null) {
+      userIds.add(userId);
+    }
+  }
+
+  private static String encodeCursor(IndexedReceipt position) {
+    return position.timestamp + CURSOR_SEPARATOR + position.id;
+  }
+
+  private static IndexedReceipt decodeCursor(String encodedCursor) {
+    String[] parts = encodedCursor.split(CURSOR_SEPARATOR, 2);
+    if (parts.length != 2) {
+      throw new IllegalArgumentException("Invalid cursor: " + encodedCursor);
+    }
+
+    return IndexedReceipt.position(Long.parseLong(parts[0]), Long.parseLong(parts[1]));
+  }
+
+  /** Where a receipt's latest put record is in the log, and the properties it's indexed by. */
+  private static final class IndexedReceipt {
+    private final long id;
+    private final String userId;
+    private final Long timestamp;
+    private final String imageUrl;
+    private final int offset;
+    private final int length;
+
+    private IndexedReceipt(
+        long id, String userId, Long timestamp, String imageUrl, int offset, int length) {
+      this.id = id;
+      this.userId = userId;
+      this.timestamp = timestamp;
+      this.imageUrl = imageUrl;
+      this.offset = offset;
+      this.length = length;
+    }
+
+    static IndexedReceipt of(Entity receipt, int offset, int length) {
+      return new IndexedReceipt(receipt.getKey().getId(), (String) receipt.getProperty("userId"),
+          (Long) receipt.getProperty("timestamp"), (String) receipt.getProperty("imageUrl"),
+          offset, length);
+    }
+
+    /** Returns a position in the sort order, such as a cursor, rather than a stored receipt. */
+    static IndexedReceipt position(long timestamp, long id) {
+      return new IndexedReceipt(id, /* userId = */ null, timestamp, /* imageUrl = */ null,
+          /* offset = */ 0, /* length = */ 0);
+    }
+  }
+}
@@ -0,0 +1,102 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes sorted lists of receipt IDs. Each ID is stored as its difference from the previous ID,
+ * as a varint that takes one byte for every 7 bits of the difference. Datastore scatters the IDs it
+ * allocates over 52 bits, so the differences in a list of n IDs take about (52 - log2(n)) / 7
+ * bytes: seven or eight bytes per ID for a few receipts and about six for thousands, barely less
+ * than a fixed eight. Only lists of close IDs, like those assigned sequentially by {@link
+ * LocalReceiptRepository}, take a byte or two per ID.
+ */
+public final class PostingLists {
+  private static final int VARINT_PAYLOAD_BITS = 7;
+  private static final int VARINT_PAYLOAD_MASK = 0x7F;
+  private static final int VARINT_CONTINUATION_BIT = 0x80;
+
+  /**
+   * Prevents instantiation.
+   */
+  private PostingLists() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Encodes the IDs, which must be positive, sorted, and distinct. */
+  public static byte[] encode(long[] ids) {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(ids.length * 2);
+    long previousId = 0;
+
+    for (long id : ids) {
+      long delta = id - previousId;
+      while ((delta & ~VARINT_PAYLOAD_MASK) != 0) {
+        bytes.write((int) (delta & VARINT_PAYLOAD_MASK) | VARINT_CONTINUATION_BIT);
+        delta >>>= VARINT_PAYLOAD_BITS;
+      }
+      bytes.write((int) delta);
+      previousId = id;
+    }
+
+    return bytes.toByteArray();
+  }
+
+  /** Decodes IDs encoded by {@link #encode}. */
+  public static long[] decode(byte[] bytes) {
+    // Each ID takes at least one byte.
+    long[] ids = new long[bytes.length];
+    int count = 0;
+    long previousId = 0;
+    long delta = 0;
+    int shift = 0;
+
+    for (byte b : bytes) {
+      delta |= (long) (b & VARINT_PAYLOAD_MASK) << shift;
+      if ((b & VARINT_CONTINUATION_BIT) != 0) {
+        shift += VARINT_PAYLOAD_BITS;
+        continue;
+      }
+
+      previousId += delta;
+      ids[count++] = previousId;
+      delta = 0;
+      shift = 0;
+    }
+
+    return Arrays.copyOf(ids, count);
+  }
+
+  /** Returns the IDs that are in both sorted lists. */
+  public static long[] intersect(long[] first, long[] second) {
+    long[] ids = new long[Math.min(first.length, second.length)];
+    int count = 0;
+
+    for (int i = 0, j = 0; i < first.length && j < second.length;) {
+      if (first[i] < second[j]) {
+        i++;
+      } else if (first[i] > second[j]) {
+        j++;
+      } else {
+        ids[count++] = first[i];
+        i++;
+        j++;
+      }
+    }
+
+    return Arrays.copyOf(ids, count);
+  }
+}
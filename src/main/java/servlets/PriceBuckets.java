@@ -0,0 +1,106 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.common.collect.ImmutableList;
+import java.util.Optional;
+import java.util.function.Predicate;
+
+/**
+ * Maps prices to log-scaled buckets that are stored as an indexed receipt property. Datastore
+ * doesn't support an inequality filter on price alongside the one on timestamp, but a price range
+ * can be turned into an equality filter on the buckets it spans. Only receipts in the buckets at
+ * either end of the range can be outside of it, so only those need to be checked in memory.
+ */
+public final class PriceBuckets {
+  public static final String PROPERTY_NAME = "priceBucket";
+
+  // Each doubling of the price is split into this many buckets, so each bucket spans about 41%.
+  private static final int BUCKETS_PER_DOUBLING = 2;
+  // Prices under $1 share bucket 0.
+  private static final double MIN_BUCKETED_PRICE = 1;
+
+  /**
+   * Prevents instantiation.
+   */
+  private PriceBuckets() {
+    throw new UnsupportedOperationException();
+  }
+
+  /**
+   * Returns the bucket of the price. Buckets increase with price, so a receipt in a bucket between
+   * the buckets of two prices is between those prices.
+   */
+  public static long getBucket(double price) {
+    if (price < MIN_BUCKETED_PRICE) {
+      return 0;
+    }
+
+    return 1 + (long) Math.floor(BUCKETS_PER_DOUBLING * Math.log(price) / Math.log(2));
+  }
+
+  /** Returns the buckets that contain prices between the min and max price, inclusive. */
+  public static ImmutableList<Long> getBuckets(double minPrice, double maxPrice) {
+    ImmutableList.Builder<Long> buckets = ImmutableList.builder();
+
+    for (long bucket = getBucket(minPrice); bucket <= getBucket(maxPrice); bucket++) {
+      buckets.add(bucket);
+    }
+
+    return buckets.build();
+  }
+
+  /** Sets the price bucket of the receipt to match its price, if it has one. */
+  public static void setBucket(Entity receipt) {
+    Optional<Long> bucket = getExpectedBucket(receipt);
+
+    if (bucket.isPresent()) {
+      receipt.setProperty(PROPERTY_NAME, bucket.get());
+    } else {
+      receipt.removeProperty(PROPERTY_NAME);
+    }
+  }
+
+  /** Returns true if the receipt's price bucket is missing or doesn't match its price. */
+  public static boolean isBucketStale(Entity receipt) {
+    return !getExpectedBucket(receipt).equals(
+        Optional.ofNullable((Long) receipt.getProperty(PROPERTY_NAME)));
+  }
+
+  private static Optional<Long> getExpectedBucket(Entity receipt) {
+    return Optional.ofNullable((Double) receipt.getProperty("price")).map(PriceBuckets::getBucket);
+  }
+
+  /**
+   * Returns a filter for receipts that were queried by the buckets of the price range. Receipts in
+   * the buckets strictly inside the range always match, so only the prices of receipts in the
+   * boundary buckets are compared.
+   */
+  public static Predicate<Entity> createRefinementFilter(double minPrice, double maxPrice) {
+    long minBucket = getBucket(minPrice);
+    long maxBucket = getBucket(maxPrice);
+
+    return receipt -> {
+      long bucket = (long) receipt.getProperty(PROPERTY_NAME);
+      if (bucket > minBucket && bucket < maxBucket) {
+        return true;
+      }
+
+      double price = (double) receipt.getProperty("price");
+      return price >= minPrice && price <= maxPrice;
+    };
+  }
+}
@@ -15,40 +15,49 @@
 package com.google.sps.servlets;
 
 import com.google.api.gax.rpc.ApiException;
-import com.google.appengine.api.blobstore.BlobInfo;
 import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
-import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.cloud.language.v1.ClassificationCategory;
 import com.google.cloud.language.v1.ClassifyTextRequest;
 import com.google.cloud.language.v1.ClassifyTextResponse;
 import com.google.cloud.language.v1.Document;
 import com.google.cloud.language.v1.Document.Type;
-import com.google.cloud.language.v1.LanguageServiceClient;
 import com.google.cloud.vision.v1.AnnotateImageRequest;
 import com.google.cloud.vision.v1.AnnotateImageResponse;
 import com.google.cloud.vision.v1.BatchAnnotateImagesResponse;
 import com.google.cloud.vision.v1.EntityAnnotation;
 import com.google.cloud.vision.v1.Feature;
 import com.google.cloud.vision.v1.Image;
-import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.common.base.Throwables;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.common.collect.Iterables;
+import com.google.common.collect.Lists;
+import com.google.common.util.concurrent.ThreadFactoryBuilder;
 import com.google.protobuf.ByteString;
 import com.google.sps.data.AnalysisResults;
-import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
 import java.time.LocalDate;
 import java.time.ZoneOffset;
 import java.time.ZonedDateTime;
 import java.time.format.DateTimeFormatter;
 import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
-import java.util.regex.Pattern;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import java.util.stream.Stream;
 
 /**
@@ -61,147 +70,582 @@ public class ReceiptAnalysis {
   // minimum confidence score that a detected logo must have to be considered significant for
   // receipt analysis.
   private static final float LOGO_DETECTION_CONFIDENCE_THRESHOLD = 0.6f;
-  // Matches strings in U.S. date format.
-  private static final Pattern dateRegex =
-      Pattern.compile("\\d?\\d([/-])\\d?\\d\\1\\d{2}(\\d{2})?");
-  // Matches strings formatted as prices in dollars.
-  private static final Pattern priceRegex = Pattern.compile("\\$?\\d+\\.\\d\\d");
-
-  /** Returns the text and categorization of the image at the requested URL. */
-  public static AnalysisResults analyzeImageAt(URL url) throws IOException {
+  // Formatters for U.S. dates, indexed by separator and number of year digits.
+  private static final DateTimeFormatter slashDateFormatter = DateTimeFormatter.ofPattern("M/d/yy");
+  private static final DateTimeFormatter slashLongYearDateFormatter =
+      DateTimeFormatter.ofPattern("M/d/yyyy");
+  private static final DateTimeFormatter dashDateFormatter = DateTimeFormatter.ofPattern("M-d-yy");
+  private static final DateTimeFormatter dashLongYearDateFormatter =
+      DateTimeFormatter.ofPattern("M-d-yyyy");
+  // The Cloud Vision API rejects batch annotation requests with more images than this.
+  public static final int MAX_IMAGES_PER_BATCH = 16;
+  // The Cloud Vision API rejects requests larger than 10 MB, so batches are split to stay under it.
+  private static final long MAX_BATCH_REQUEST_BYTES = 10 * 1024 * 1024;
+  // Number of fragments of a blob that are fetched at the same time.
+  private static final int MAX_CONCURRENT_BLOB_FETCHES = 4;
+  // Number of threads that run the stages of asynchronous analyses.
+  private static final int ANALYSIS_THREADS = 16;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptAnalysis.class.getName());
+  // Stages that time out are cancelled, so they don't hold the threads that later stages need.
+  private static final ExecutorService executor = Executors.newFixedThreadPool(ANALYSIS_THREADS,
+      new ThreadFactoryBuilder().setNameFormat("receipt-analysis-%d").setDaemon(true).build());
+  // Reads uploaded images, fetching the fragments of each blob on threads of the request, so the
+  // fetches don't wait for or hold up the analysis stages.
+  private static final ImageBytesReader imageBytesReader =
+      new ImageBytesReader(BlobstoreServiceFactory.getBlobstoreService(), new BlobInfoFactory(),
+          ImageBytesReader.requestThreadExecutor(), MAX_CONCURRENT_BLOB_FETCHES);
+  // Shrinks images before text detection. Cached results are keyed by the original image bytes.
+  private static final ImagePreprocessor preprocessor = ImagePreprocessor.getSharedInstance();
+  private static final ScheduledExecutorService timeoutScheduler =
+      Executors.newSingleThreadScheduledExecutor(new ThreadFactoryBuilder()
+                                                     .setNameFormat("receipt-analysis-timeout")
+                                                     .setDaemon(true)
+                                                     .build());
+
+  /**
+   * Returns the text and categorization of the image at the requested URL, using the given clients
+   * to call the Cloud Vision and Cloud Natural Language APIs. If the same image was analyzed
+   * before, the cached results are returned instead.
+   */
+  public static AnalysisResults analyzeImageAt(
+      URL url, ReceiptAnalysisClients clients, AnalysisCache cache) throws IOException {
     ByteString imageBytes = readImageBytes(url);
 
-    return analyzeImage(imageBytes);
+    return analyzeImage(imageBytes, clients, cache);
   }
 
-  /** Returns the text and categorization of the image at the requested blob key. */
-  public static AnalysisResults analyzeImageAt(BlobKey blobKey) throws IOException {
+  /**
+   * Returns the text and categorization of the image at the requested blob key, using the given
+   * clients to call the Cloud Vision and Cloud Natural Language APIs. If the same image was
+   * analyzed before, the cached results are returned instead.
+   */
+  public static AnalysisResults analyzeImageAt(
+      BlobKey blobKey, ReceiptAnalysisClients clients, AnalysisCache cache) throws IOException {
     ByteString imageBytes = readImageBytes(blobKey);
 
-    return analyzeImage(imageBytes);
+    return analyzeImage(imageBytes, clients, cache);
   }
 
-  /** Reads the image bytes from the URL. */
-  private static ByteString readImageBytes(URL url) throws IOException {
-    ByteString imageBytes;
+  /**
+   * Returns the text and categorization of each image at the requested URLs, in the same order.
+   * Images that weren't analyzed before are sent to the Cloud Vision API in batches of up to
+   * MAX_IMAGES_PER_BATCH images, so that many receipts only need a few requests.
+   */
+  public static ImmutableList<AnalysisResults> analyzeImagesAtUrls(
+      List<URL> urls, ReceiptAnalysisClients clients, AnalysisCache cache) throws IOException {
+    return analyzeImagesInBatches(urls, ReceiptAnalysis::readImageBytes, clients, cache);
+  }
+
+  /**
+   * Returns the text and categorization of each image at the requested blob keys, in the same
+   * order. Images that weren't analyzed before are sent to the Cloud Vision API in batches of up
+   * to MAX_IMAGES_PER_BATCH images, so that many receipts only need a few requests.
+   */
+  public static ImmutableList<AnalysisResults> analyzeImagesAtBlobKeys(List<BlobKey> blobKeys,
+      ReceiptAnalysisClients clients, AnalysisCache cache) throws IOException {
+    return analyzeImagesInBatches(blobKeys, ReceiptAnalysis::readImageBytes, clients, cache);
+  }
 
-    try (InputStream imageInputStream = url.openStream()) {
-      imageBytes = ByteString.readFrom(imageInputStream);
+  /**
+   * Reads the images MAX_IMAGES_PER_BATCH at a time, and analyzes each group before the next one is
+   * read, so that only one group of images is held in memory at once. Groups are split further by
+   * request size when they are sent to the Cloud Vision API.
+   */
+  private static <T> ImmutableList<AnalysisResults> analyzeImagesInBatches(List<T> sources,
+      ImageSource<T> reader, ReceiptAnalysisClients clients, AnalysisCache cache)
+      throws IOException {
+    ImmutableList.Builder<AnalysisResults> results = ImmutableList.builder();
+
+    for (List<T> group : Lists.partition(sources, MAX_IMAGES_PER_BATCH)) {
+      List<ByteString> images = new ArrayList<>(group.size());
+      for (T source : group) {
+        images.add(reader.read(source));
+      }
+
+      results.addAll(analyzeImages(images, clients, cache));
     }
 
-    return imageBytes;
+    return results.build();
+  }
+
+  /** Reads the bytes of an image from where it is stored. */
+  private interface ImageSource<T> {
+    ByteString read(T source) throws IOException;
+  }
+
+  /** Reads the image bytes from the URL. */
+  private static ByteString readImageBytes(URL url) throws IOException {
+    return imageBytesReader.read(url);
   }
 
   /** Retrieves the binary data stored at the given blob key. */
   private static ByteString readImageBytes(BlobKey blobKey) throws IOException {
-    BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
-    BlobInfo blobInfo = new BlobInfoFactory().loadBlobInfo(blobKey);
-    long blobSize = blobInfo.getSize();
-
-    ByteArrayOutputStream outputBytes = new ByteArrayOutputStream();
-    int fetchSize = BlobstoreService.MAX_BLOB_FETCH_SIZE;
-    long currentByteIndex = 0;
-
-    // Fetch all the bytes from the blob in fragments of the maximum fetch size.
-    while (currentByteIndex < blobSize) {
-      // End index is inclusive, so subtract 1 to get fetchSize bytes.
-      // Get data starting at currentByteIndex until either the fetch size or
-      // the end of the blob is reached.
-      byte[] bytes =
-          blobstoreService.fetchData(blobKey, currentByteIndex, currentByteIndex + fetchSize - 1);
-      outputBytes.write(bytes);
-
-      currentByteIndex += fetchSize;
+    return imageBytesReader.read(blobKey);
+  }
+
+  /**
+   * Returns the cached results for the image represented by the given ByteString, or analyzes the
+   * image and caches the results if it hasn't been seen before.
+   */
+  private static AnalysisResults analyzeImage(
+      ByteString imageBytes, ReceiptAnalysisClients clients, AnalysisCache cache)
+      throws IOException {
+    String hash = AnalysisCache.hash(imageBytes);
+    Optional<AnalysisResults> cachedResults = cache.get(hash);
+
+    if (cachedResults.isPresent()) {
+      return cachedResults.get();
     }
 
-    return ByteString.copyFrom(outputBytes.toByteArray());
+    AnalysisResults results = analyzeImage(imageBytes, clients, cache.getCategorizationCache());
+    cache.put(hash, results);
+
+    return results;
   }
 
-  /** Analyzes the image represented by the given ByteString. */
-  private static AnalysisResults analyzeImage(ByteString imageBytes) throws IOException {
-    AnalysisResults.Builder analysisBuilder = retrieveText(imageBytes);
+  /**
+   * Returns the cached results for each image that was seen before, and analyzes the rest in
+   * batches and caches their results. The results are in the same order as the images.
+   */
+  private static ImmutableList<AnalysisResults> analyzeImages(
+      List<ByteString> images, ReceiptAnalysisClients clients, AnalysisCache cache)
+      throws IOException {
+    AnalysisResults[] results = new AnalysisResults[images.size()];
+    String[] hashes = new String[images.size()];
+    List<Integer> uncachedIndices = new ArrayList<>();
+
+    for (int i = 0; i < images.size(); i++) {
+      hashes[i] = AnalysisCache.hash(images.get(i));
+      Optional<AnalysisResults> cachedResults = cache.get(hashes[i]);
+
+      if (cachedResults.isPresent()) {
+        results[i] = cachedResults.get();
+      } else {
+        uncachedIndices.add(i);
+      }
+    }
 
+    List<ByteString> uncachedImages =
+        uncachedIndices.stream().map(images::get).collect(Collectors.toList());
+    ImmutableList<CompletableFuture<AnalysisResults>> analyses = analyzeImagesAsync(uncachedImages,
+        clients, Optional.of(cache.getCategorizationCache()), StageTimeouts.DEFAULT);
+
+    for (int i = 0; i < uncachedIndices.size(); i++) {
+      int index = uncachedIndices.get(i);
+      results[index] = await(analyses.get(i));
+      cache.put(hashes[index], results[index]);
+    }
+
+    return ImmutableList.copyOf(results);
+  }
+
+  /**
+   * Analyzes the image represented by the given ByteString, waiting for all stages of the analysis
+   * to finish.
+   */
+  private static AnalysisResults analyzeImage(ByteString imageBytes,
+      ReceiptAnalysisClients clients, CategorizationCache categorizationCache) throws IOException {
+    return await(
+        analyzeImageAsync(imageBytes, clients, categorizationCache, StageTimeouts.DEFAULT));
+  }
+
+  /** Waits for the analysis to finish, rethrowing the IOException that it failed with, if any. */
+  private static AnalysisResults await(CompletableFuture<AnalysisResults> analysis)
+      throws IOException {
+    try {
+      return analysis.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      throw new IOException("Receipt analysis was interrupted.", e);
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      Throwables.throwIfInstanceOf(cause, IOException.class);
+      Throwables.throwIfUnchecked(cause);
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Asynchronously analyzes the image represented by the given ByteString using the default stage
+   * timeouts.
+   */
+  public static CompletableFuture<AnalysisResults> analyzeImageAsync(
+      ByteString imageBytes, ReceiptAnalysisClients clients) {
+    return analyzeImageAsync(imageBytes, clients, StageTimeouts.DEFAULT);
+  }
+
+  /**
+   * Asynchronously analyzes the image represented by the given ByteString. Once text is detected,
+   * the date and price are parsed from it while it's categorized with the Cloud Natural Language
+   * API. Each API call has its own timeout, after which the analysis continues without the fields
+   * that call would have filled in. The returned future only fails if text detection fails with an
+   * IOException.
+   */
+  public static CompletableFuture<AnalysisResults> analyzeImageAsync(
+      ByteString imageBytes, ReceiptAnalysisClients clients, StageTimeouts timeouts) {
+    return analyzeImageAsync(imageBytes, clients, Optional.empty(), timeouts);
+  }
+
+  /**
+   * Asynchronously analyzes the image represented by the given ByteString, reusing the categories
+   * of a similar receipt from the same store if the categorization cache has them.
+   */
+  public static CompletableFuture<AnalysisResults> analyzeImageAsync(ByteString imageBytes,
+      ReceiptAnalysisClients clients, CategorizationCache categorizationCache,
+      StageTimeouts timeouts) {
+    return analyzeImageAsync(imageBytes, clients, Optional.of(categorizationCache), timeouts);
+  }
+
+  private static CompletableFuture<AnalysisResults> analyzeImageAsync(ByteString imageBytes,
+      ReceiptAnalysisClients clients, Optional<CategorizationCache> categorizationCache,
+      StageTimeouts timeouts) {
+    // The image is shrunk before text detection starts, so its timeout only covers the API call.
+    return preprocessAsync(imageBytes)
+        .thenCompose(image -> {
+          CompletableFuture<AnalysisResults.Builder> textDetection =
+              supplyAsync(() -> retrieveText(image, clients));
+
+          // If text detection times out, the receipt is left for the user to fill in.
+          return withTimeout(textDetection, timeouts.textDetectionMillis,
+              () -> new AnalysisResults.Builder().setPartial(true));
+        })
+        .thenCompose(analysisBuilder
+            -> completeAnalysis(analysisBuilder, clients, categorizationCache, timeouts));
+  }
+
+  /**
+   * Asynchronously analyzes the images represented by the given ByteStrings, returning one future
+   * per image in the same order. Text detection for up to MAX_IMAGES_PER_BATCH images is done with
+   * a single Cloud Vision API request, after which each image is categorized and parsed on its own
+   * with the same stage timeouts as analyzeImageAsync.
+   */
+  public static ImmutableList<CompletableFuture<AnalysisResults>> analyzeImagesAsync(
+      List<ByteString> images, ReceiptAnalysisClients clients, StageTimeouts timeouts) {
+    return analyzeImagesAsync(images, clients, Optional.empty(), timeouts);
+  }
+
+  private static ImmutableList<CompletableFuture<AnalysisResults>> analyzeImagesAsync(
+      List<ByteString> images, ReceiptAnalysisClients clients,
+      Optional<CategorizationCache> categorizationCache, StageTimeouts timeouts) {
+    ImmutableList.Builder<CompletableFuture<AnalysisResults>> analyses = ImmutableList.builder();
+
+    for (List<ByteString> batch : partitionIntoBatches(images)) {
+      // The images of a batch are shrunk concurrently before its text detection starts.
+      List<CompletableFuture<ByteString>> preprocessing = batch.stream()
+          .map(ReceiptAnalysis::preprocessAsync)
+          .collect(Collectors.toList());
+      CompletableFuture<ImmutableList<AnalysisResults.Builder>> detectedText =
+          CompletableFuture.allOf(preprocessing.toArray(new CompletableFuture<?>[0]))
+              .thenCompose(done -> {
+                List<ByteString> preprocessedBatch = preprocessing.stream()
+                    .map(CompletableFuture::join)
+                    .collect(Collectors.toList());
+                CompletableFuture<ImmutableList<AnalysisResults.Builder>> textDetection =
+                    supplyAsync(() -> retrieveText(preprocessedBatch, clients));
+
+                // If text detection times out, the receipts in the batch are left for the user
+                // to fill in.
+                return withTimeout(textDetection, timeouts.textDetectionMillis,
+                    () -> createPartialBuilders(batch.size()));
+              });
+
+      for (int i = 0; i < batch.size(); i++) {
+        int index = i;
+        analyses.add(detectedText.thenCompose(analysisBuilders
+            -> completeAnalysis(
+                analysisBuilders.get(index), clients, categorizationCache, timeouts)));
+      }
+    }
+
+    return analyses.build();
+  }
+
+  /**
+   * Splits the images into batches of at most MAX_IMAGES_PER_BATCH images whose combined size is
+   * at most MAX_BATCH_REQUEST_BYTES, keeping their order. An image larger than the size limit is
+   * sent in a batch of its own.
+   */
+  private static List<List<ByteString>> partitionIntoBatches(List<ByteString> images) {
+    List<List<ByteString>> batches = new ArrayList<>();
+    List<ByteString> batch = new ArrayList<>();
+    long batchBytes = 0;
+
+    for (ByteString image : images) {
+      if (!batch.isEmpty()
+          && (batch.size() == MAX_IMAGES_PER_BATCH
+              || batchBytes + image.size() > MAX_BATCH_REQUEST_BYTES)) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchBytes = 0;
+      }
+
+      batch.add(image);
+      batchBytes += image.size();
+    }
+
+    if (!batch.isEmpty()) {
+      batches.add(batch);
+    }
+
+    return batches;
+  }
+
+  /**
+   * Generates categories and parses the date and price of a receipt whose text was detected.
+   * Parsing only scans the text, so it runs on the calling thread while the categorization request
+   * is in flight, rather than taking an executor thread that API calls are waiting for.
+   */
+  private static CompletableFuture<AnalysisResults> completeAnalysis(
+      AnalysisResults.Builder analysisBuilder, ReceiptAnalysisClients clients,
+      Optional<CategorizationCache> categorizationCache, StageTimeouts timeouts) {
     // Generate categories and parse date and price if text was extracted.
-    if (analysisBuilder.getRawText().isPresent()) {
-      ImmutableSet<String> categories = categorizeText(analysisBuilder.getRawText().get());
-      analysisBuilder.setCategories(categories);
+    if (!analysisBuilder.getRawText().isPresent()) {
+      return CompletableFuture.completedFuture(analysisBuilder.build());
+    }
+
+    String rawText = analysisBuilder.getRawText().get();
+    Optional<String> store = analysisBuilder.getStore();
+
+    // An empty Optional means the stage failed or timed out.
+    CompletableFuture<Optional<ImmutableSet<String>>> categorization = withFallback(
+        supplyAsync(() -> categorizeText(rawText, store, clients, categorizationCache)),
+        timeouts.categorizationMillis, Optional::empty);
+    AnalysisResults.Builder parsedFields = parseDateAndPrice(rawText);
+
+    return categorization.thenApply(categories -> {
+      categories.ifPresent(analysisBuilder::setCategories);
+      parsedFields.getTransactionTimestamp().ifPresent(analysisBuilder::setTransactionTimestamp);
+      parsedFields.getPrice().ifPresent(analysisBuilder::setPrice);
 
-      checkForParsableDate(analysisBuilder);
-      checkForParsablePrices(analysisBuilder);
+      if (!categories.isPresent()) {
+        analysisBuilder.setPartial(true);
+      }
+
+      return analysisBuilder.build();
+    });
+  }
+
+  /**
+   * Returns a builder holding the date and price parsed from the raw text, if any were found.
+   * Assumes that the first date on the receipt is the transaction date and that the largest price
+   * is the total price.
+   */
+  public static AnalysisResults.Builder parseDateAndPrice(String rawText) {
+    AnalysisResults.Builder parsedFields = new AnalysisResults.Builder().setRawText(rawText);
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan(rawText);
+
+    if (scanner.hasDate()) {
+      addDateIfValid(parsedFields, scanner.getDate());
+    }
+    if (scanner.hasPrice()) {
+      parsedFields.setPrice(scanner.getLargestPrice());
     }
 
-    return analysisBuilder.build();
+    return parsedFields;
+  }
+
+  /**
+   * Shrinks the image on the analysis executor. Preprocessing never fails, since images that can't
+   * be shrunk are returned unchanged.
+   */
+  private static CompletableFuture<ByteString> preprocessAsync(ByteString imageBytes) {
+    return CompletableFuture.supplyAsync(() -> preprocessor.preprocess(imageBytes), executor);
+  }
+
+  /**
+   * Runs a stage on the analysis executor. Cancelling the returned future removes the stage from
+   * the executor's queue, or interrupts its thread if it already started.
+   */
+  private static <T> CompletableFuture<T> supplyAsync(ApiStage<T> stage) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    Future<?> task = executor.submit(() -> {
+      try {
+        result.complete(stage.run());
+      } catch (IOException | RuntimeException e) {
+        result.completeExceptionally(e);
+      }
+    });
+
+    result.whenComplete((value, error) -> {
+      if (result.isCancelled()) {
+        task.cancel(/* mayInterruptIfRunning = */ true);
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Returns a future that completes with the stage's result, or with the fallback value if the
+   * stage does not finish within the timeout, in which case the stage is cancelled. Failures of the
+   * stage are passed through.
+   */
+  private static <T> CompletableFuture<T> withTimeout(
+      CompletableFuture<T> stage, long timeoutMillis, Supplier<T> fallback) {
+    CompletableFuture<T> result = new CompletableFuture<>();
+    ScheduledFuture<?> timeout = timeoutScheduler.schedule(() -> {
+      result.complete(fallback.get());
+      stage.cancel(/* mayInterruptIfRunning = */ true);
+    }, timeoutMillis, TimeUnit.MILLISECONDS);
+
+    stage.whenComplete((value, error) -> {
+      timeout.cancel(/* mayInterruptIfRunning = */ false);
+
+      if (error == null) {
+        result.complete(value);
+      } else {
+        result.completeExceptionally(error);
+      }
+    });
+
+    return result;
+  }
+
+  /**
+   * Returns a future that completes with the stage's result, or with the fallback value if the
+   * stage fails or does not finish within the timeout.
+   */
+  private static <T> CompletableFuture<T> withFallback(
+      CompletableFuture<T> stage, long timeoutMillis, Supplier<T> fallback) {
+    return withTimeout(stage, timeoutMillis, fallback).exceptionally(error -> {
+      logger.warning("Receipt analysis stage failed: " + error);
+      return fallback.get();
+    });
   }
 
   /** Detects and retrieves text and store logo in the provided image. */
-  private static AnalysisResults.Builder retrieveText(ByteString imageBytes) throws IOException {
-    AnalysisResults.Builder analysisBuilder = new AnalysisResults.Builder();
+  private static AnalysisResults.Builder retrieveText(
+      ByteString imageBytes, ReceiptAnalysisClients clients) throws IOException {
+    return Iterables.getOnlyElement(retrieveText(ImmutableList.of(imageBytes), clients));
+  }
 
-    Image image = Image.newBuilder().setContent(imageBytes).build();
+  /**
+   * Detects and retrieves text and store logo in each of the provided images, which were already
+   * preprocessed, with a single batch annotation request. Returns one builder per image, in the
+   * same order as the images.
+   */
+  private static ImmutableList<AnalysisResults.Builder> retrieveText(
+      List<ByteString> images, ReceiptAnalysisClients clients) throws IOException {
     ImmutableList<Feature> features =
         ImmutableList.of(Feature.newBuilder().setType(Feature.Type.TEXT_DETECTION).build(),
             Feature.newBuilder().setType(Feature.Type.LOGO_DETECTION).build());
-    AnnotateImageRequest request =
-        AnnotateImageRequest.newBuilder().addAllFeatures(features).setImage(image).build();
-    ImmutableList<AnnotateImageRequest> requests = ImmutableList.of(request);
+    ImmutableList<AnnotateImageRequest> requests =
+        images.stream()
+            .map(imageBytes -> Image.newBuilder().setContent(imageBytes).build())
+            .map(image -> AnnotateImageRequest.newBuilder()
+                              .addAllFeatures(features)
+                              .setImage(image)
+                              .build())
+            .collect(ImmutableList.toImmutableList());
 
-    try (ImageAnnotatorClient client = ImageAnnotatorClient.create()) {
-      BatchAnnotateImagesResponse batchResponse = client.batchAnnotateImages(requests);
+    try {
+      BatchAnnotateImagesResponse batchResponse =
+          clients.callImageClient(client -> client.batchAnnotateImages(requests));
 
-      if (batchResponse.getResponsesList().isEmpty()) {
-        return analysisBuilder;
+      // Responses are in the same order as the requests, so they can't be matched to the images
+      // if any are missing.
+      if (batchResponse.getResponsesCount() != images.size()) {
+        return createPartialBuilders(images.size());
       }
 
-      AnnotateImageResponse response = Iterables.getOnlyElement(batchResponse.getResponsesList());
+      return batchResponse.getResponsesList()
+          .stream()
+          .map(ReceiptAnalysis::parseImageResponse)
+          .collect(ImmutableList.toImmutableList());
+    } catch (ApiException e) {
+      // Return default builders if the image annotation request failed.
+      return createPartialBuilders(images.size());
+    }
+  }
 
-      if (response.hasError()) {
-        return analysisBuilder;
-      }
+  /** Returns a builder with the text and store logo detected in a single image. */
+  private static AnalysisResults.Builder parseImageResponse(AnnotateImageResponse response) {
+    AnalysisResults.Builder analysisBuilder = new AnalysisResults.Builder();
 
-      // Add extracted raw text to builder.
-      if (!response.getTextAnnotationsList().isEmpty()) {
-        // First element has the entire raw text from the image.
-        EntityAnnotation textAnnotation = response.getTextAnnotationsList().get(0);
+    if (response.hasError()) {
+      return analysisBuilder.setPartial(true);
+    }
 
-        String rawText = textAnnotation.getDescription();
-        analysisBuilder.setRawText(rawText);
-      }
+    // Add extracted raw text to builder.
+    if (!response.getTextAnnotationsList().isEmpty()) {
+      // First element has the entire raw text from the image.
+      EntityAnnotation textAnnotation = response.getTextAnnotationsList().get(0);
 
-      // If a logo was detected with a confidence above the threshold, use it to set the store.
-      if (!response.getLogoAnnotationsList().isEmpty()
-          && response.getLogoAnnotationsList().get(0).getScore()
-              > LOGO_DETECTION_CONFIDENCE_THRESHOLD) {
-        String store = response.getLogoAnnotationsList().get(0).getDescription();
-        analysisBuilder.setStore(store);
-      }
-    } catch (ApiException e) {
-      // Return default builder if image annotation request failed.
-      return analysisBuilder;
+      String rawText = textAnnotation.getDescription();
+      analysisBuilder.setRawText(rawText);
+    }
+
+    // If a logo was detected with a confidence above the threshold, use it to set the store.
+    if (!response.getLogoAnnotationsList().isEmpty()
+        && response.getLogoAnnotationsList().get(0).getScore()
+            > LOGO_DETECTION_CONFIDENCE_THRESHOLD) {
+      String store = response.getLogoAnnotationsList().get(0).getDescription();
+      analysisBuilder.setStore(store);
     }
 
     return analysisBuilder;
   }
 
-  /** Generates categories for the provided text. */
-  private static ImmutableSet<String> categorizeText(String text) throws IOException {
-    ImmutableSet<String> categories = ImmutableSet.of();
+  /** Returns empty builders for images whose text couldn't be detected. */
+  private static ImmutableList<AnalysisResults.Builder> createPartialBuilders(int count) {
+    return Stream.generate(() -> new AnalysisResults.Builder().setPartial(true))
+        .limit(count)
+        .collect(ImmutableList.toImmutableList());
+  }
+
+  /**
+   * Returns the cached categories of a similar receipt from the same store, or generates categories
+   * for the provided text and caches them. Receipts without a detected store are always sent to the
+   * Cloud Natural Language API, since similar text alone isn't enough to share categories.
+   */
+  private static Optional<ImmutableSet<String>> categorizeText(String text, Optional<String> store,
+      ReceiptAnalysisClients clients, Optional<CategorizationCache> categorizationCache)
+      throws IOException {
+    if (!store.isPresent() || !categorizationCache.isPresent()) {
+      return categorizeText(text, clients);
+    }
+
+    CategorizationCache cache = categorizationCache.get();
+    long fingerprint = CategorizationCache.fingerprint(text);
+    Optional<ImmutableSet<String>> cachedCategories = cache.get(store.get(), fingerprint);
+
+    if (cachedCategories.isPresent()) {
+      return cachedCategories;
+    }
 
-    try (LanguageServiceClient client = LanguageServiceClient.create()) {
+    Optional<ImmutableSet<String>> categories = categorizeText(text, clients);
+    categories.ifPresent(generatedCategories
+        -> cache.put(store.get(), fingerprint, generatedCategories));
+
+    return categories;
+  }
+
+  /**
+   * Generates categories for the provided text. Returns an empty Optional if the classification
+   * request failed.
+   */
+  private static Optional<ImmutableSet<String>> categorizeText(
+      String text, ReceiptAnalysisClients clients) throws IOException {
+    ImmutableSet<String> categories;
+
+    try {
       Document document = Document.newBuilder().setContent(text).setType(Type.PLAIN_TEXT).build();
       ClassifyTextRequest request = ClassifyTextRequest.newBuilder().setDocument(document).build();
 
-      ClassifyTextResponse response = client.classifyText(request);
+      ClassifyTextResponse response =
+          clients.callLanguageClient(client -> client.classifyText(request));
 
       categories = response.getCategoriesList()
                        .stream()
                        .flatMap(ReceiptAnalysis::parseCategory)
                        .collect(ImmutableSet.toImmutableSet());
     } catch (ApiException e) {
-      // Return empty set if classification request failed.
-      return categories;
+      return Optional.empty();
     }
 
-    return categories;
+    return Optional.of(categories);
   }
 
   /**
@@ -212,36 +656,23 @@ public class ReceiptAnalysis {
     return Stream.of(category.getName().substring(1).split("/| & "));
   }
 
-  /**
-   * Checks the raw text in the builder for a date that can be parsed. If one is found, it is added
-   * to the builder as a timestamp.
-   */
-  private static void checkForParsableDate(AnalysisResults.Builder analysisBuilder) {
-    Stream<String> dates =
-        getTokensFromRawText(analysisBuilder.getRawText().get()).filter(ReceiptAnalysis::isDate);
-    // Assume that the first date on the receipt is the transaction date.
-    Optional<String> firstDate = dates.findFirst();
-
-    firstDate.ifPresent(date -> ReceiptAnalysis.addDateIfValid(analysisBuilder, date));
-  }
-
   /**
    * Adds a valid date to the builder as a timestamp. If the date has an invalid month or day, then
    * nothing is added.
    */
   private static void addDateIfValid(AnalysisResults.Builder analysisBuilder, String date) {
-    String separator = date.contains("-") ? "-" : "/";
-    String formatterPattern = "M" + separator + "d" + separator;
+    boolean isDashSeparated = date.indexOf('-') >= 0;
+    String separator = isDashSeparated ? "-" : "/";
 
     // Determine if the date has 2 or 4 digits for the year
-    if (date.lastIndexOf(separator) + 3 == date.length()) {
-      formatterPattern += "yy";
+    boolean hasTwoDigitYear = date.lastIndexOf(separator) + 3 == date.length();
+    DateTimeFormatter formatter;
+    if (isDashSeparated) {
+      formatter = hasTwoDigitYear ? dashDateFormatter : dashLongYearDateFormatter;
     } else {
-      formatterPattern += "yyyy";
+      formatter = hasTwoDigitYear ? slashDateFormatter : slashLongYearDateFormatter;
     }
 
-    DateTimeFormatter formatter = DateTimeFormatter.ofPattern(formatterPattern);
-
     try {
       ZonedDateTime dateAndTime = LocalDate.parse(date, formatter).atStartOfDay(ZoneOffset.UTC);
       dateAndTime = fixYearIfInFuture(dateAndTime);
@@ -265,57 +696,32 @@ public class ReceiptAnalysis {
     return dateAndTime;
   }
 
-  /**
-   * Splits a string on whitespace and returns a stream of the resulting strings.
-   */
-  private static Stream<String> getTokensFromRawText(String rawText) {
-    return Stream.of(rawText.split("\\s"));
+  /** A stage of the analysis that calls an external API. */
+  @FunctionalInterface
+  private interface ApiStage<T> {
+    T run() throws IOException;
   }
 
-  /**
-   * Checks if the token is formatted as a date.
-   */
-  private static boolean isDate(String token) {
-    return dateRegex.matcher(token).matches();
-  }
+  /** Maximum time each API call of an asynchronous analysis may take before it is skipped. */
+  public static class StageTimeouts {
+    public static final StageTimeouts DEFAULT = new StageTimeouts(
+        /* textDetectionMillis = */ 15000, /* categorizationMillis = */ 5000);
 
-  /**
-   * Checks the raw text in the builder for prices that can be parsed. The largest price found, if
-   * it exists, is added to the builder.
-   */
-  private static void checkForParsablePrices(AnalysisResults.Builder analysisBuilder) {
-    // Assume that the largest price on the receipt is the total price.
-    double largestPrice = getTokensFromRawText(analysisBuilder.getRawText().get())
-                              .filter(ReceiptAnalysis::isPrice)
-                              .mapToDouble(ReceiptAnalysis::parsePrice)
-                              .reduce(Double.NEGATIVE_INFINITY, Double::max);
-
-    if (largestPrice != Double.NEGATIVE_INFINITY) {
-      analysisBuilder.setPrice(largestPrice);
-    }
-  }
+    private final long textDetectionMillis;
+    private final long categorizationMillis;
 
-  /**
-   * Returns the price represented by the string as a double, or Double.NEGATIVE_INFINITY if the
-   * string cannot be parsed.
-   */
-  private static double parsePrice(String price) {
-    if (price.startsWith("$")) {
-      price = price.substring(1);
+    public StageTimeouts(long textDetectionMillis, long categorizationMillis) {
+      this.textDetectionMillis = textDetectionMillis;
+      this.categorizationMillis = categorizationMillis;
     }
 
-    try {
-      return Double.parseDouble(price);
-    } catch (NumberFormatException e) {
-      return Double.NEGATIVE_INFINITY;
+    public long getTextDetectionMillis() {
+      return textDetectionMillis;
     }
-  }
 
-  /**
-   * Checks if the token is formatted as a price.
-   */
-  private static boolean isPrice(String token) {
-    return priceRegex.matcher(token).matches();
+    public long getCategorizationMillis() {
+      return categorizationMillis;
+    }
   }
 
   public static class ReceiptAnalysisException extends Exception {
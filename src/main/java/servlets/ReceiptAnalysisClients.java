@@ -0,0 +1,276 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.api.gax.core.BackgroundResource;
+import com.google.api.gax.retrying.RetrySettings;
+import com.google.cloud.language.v1.LanguageServiceClient;
+import com.google.cloud.language.v1.LanguageServiceSettings;
+import com.google.cloud.vision.v1.ImageAnnotatorClient;
+import com.google.cloud.vision.v1.ImageAnnotatorSettings;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Logger;
+import org.threeten.bp.Duration;
+
+/**
+ * Holds the Cloud Vision and Cloud Natural Language clients used for receipt analysis. Creating a
+ * client opens a new gRPC channel and loads credentials, so the clients are created once and shared
+ * by all request threads instead of being created for every upload.
+ */
+public class ReceiptAnalysisClients {
+  // Maximum time to wait for outstanding calls to finish when shutting down the clients.
+  private static final long SHUTDOWN_TIMEOUT_SECONDS = 10;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptAnalysisClients.class.getName());
+
+  private static ReceiptAnalysisClients sharedInstance;
+
+  private final ManagedClient<ImageAnnotatorClient> imageClient;
+  private final ManagedClient<LanguageServiceClient> languageClient;
+
+  /**
+   * Creates a holder that uses the given factories to create its clients. Tests can pass factories
+   * that return local fakes.
+   */
+  public ReceiptAnalysisClients(ClientFactory<ImageAnnotatorClient> imageClientFactory,
+      ClientFactory<LanguageServiceClient> languageClientFactory) {
+    this.imageClient = new ManagedClient<>("ImageAnnotatorClient", imageClientFactory);
+    this.languageClient = new ManagedClient<>("LanguageServiceClient", languageClientFactory);
+  }
+
+  /**
+   * Returns the holder shared by all servlets in this instance. The first call registers a shutdown
+   * hook that closes the clients when the instance stops. The clients' calls have deadlines of the
+   * default stage timeouts of receipt analysis, so a call whose stage timed out is cancelled on
+   * the server rather than running until the much longer default deadline.
+   */
+  public static synchronized ReceiptAnalysisClients getSharedInstance() {
+    if (sharedInstance == null) {
+      ReceiptAnalysis.StageTimeouts timeouts = ReceiptAnalysis.StageTimeouts.DEFAULT;
+      sharedInstance = new ReceiptAnalysisClients(
+          () -> ImageAnnotatorClient.create(createImageSettings(timeouts.getTextDetectionMillis())),
+          () -> LanguageServiceClient.create(
+              createLanguageSettings(timeouts.getCategorizationMillis())));
+
+      ReceiptAnalysisClients clients = sharedInstance;
+      Runtime.getRuntime().addShutdownHook(new Thread(clients::shutdown));
+    }
+
+    return sharedInstance;
+  }
+
+  private static ImageAnnotatorSettings createImageSettings(long deadlineMillis)
+      throws IOException {
+    ImageAnnotatorSettings.Builder settings = ImageAnnotatorSettings.newBuilder();
+    settings.batchAnnotateImagesSettings().setRetrySettings(withDeadline(
+        settings.batchAnnotateImagesSettings().getRetrySettings(), deadlineMillis));
+    return settings.build();
+  }
+
+  private static LanguageServiceSettings createLanguageSettings(long deadlineMillis)
+      throws IOException {
+    LanguageServiceSettings.Builder settings = LanguageServiceSettings.newBuilder();
+    settings.classifyTextSettings().setRetrySettings(
+        withDeadline(settings.classifyTextSettings().getRetrySettings(), deadlineMillis));
+    return settings.build();
+  }
+
+  /** Returns the retry settings with each attempt and all attempts limited to the deadline. */
+  private static RetrySettings withDeadline(RetrySettings retrySettings, long deadlineMillis) {
+    Duration deadline = Duration.ofMillis(deadlineMillis);
+    return retrySettings.toBuilder()
+        .setInitialRpcTimeout(deadline)
+        .setMaxRpcTimeout(deadline)
+        .setTotalTimeout(deadline)
+        .build();
+  }
+
+  /**
+   * Creates both clients ahead of the first request so that it doesn't pay for the channel setup.
+   */
+  public void warmUp() throws IOException {
+    imageClient.get();
+    languageClient.get();
+  }
+
+  /** Returns true if both clients have been created and neither has been shut down. */
+  public boolean isHealthy() {
+    return imageClient.isHealthy() && languageClient.isHealthy();
+  }
+
+  /**
+   * Runs the call with the shared Cloud Vision client, recording its in-flight count and latency.
+   */
+  public <T> T callImageClient(ClientCall<ImageAnnotatorClient, T> call) throws IOException {
+    return imageClient.call(call);
+  }
+
+  /**
+   * Runs the call with the shared Cloud Natural Language client, recording its in-flight count and
+   * latency.
+   */
+  public <T> T callLanguageClient(ClientCall<LanguageServiceClient, T> call) throws IOException {
+    return languageClient.call(call);
+  }
+
+  public ClientMetrics getImageClientMetrics() {
+    return imageClient.metrics;
+  }
+
+  public ClientMetrics getLanguageClientMetrics() {
+    return languageClient.metrics;
+  }
+
+  /**
+   * Shuts down both clients, waiting for outstanding calls to finish. Clients are recreated if they
+   * are used again afterwards.
+   */
+  public void shutdown() {
+    imageClient.shutdown();
+    languageClient.shutdown();
+  }
+
+  /** Creates a client, e.g. {@code ImageAnnotatorClient::create}. */
+  @FunctionalInterface
+  public interface ClientFactory<C extends BackgroundResource> {
+    C create() throws IOException;
+  }
+
+  /** A request made with a client. */
+  @FunctionalInterface
+  public interface ClientCall<C, T> {
+    T call(C client) throws IOException;
+  }
+
+  /** A client that is created lazily and recreated if it has been shut down. */
+  private static class ManagedClient<C extends BackgroundResource> {
+    private final String name;
+    private final ClientFactory<C> factory;
+    private final ClientMetrics metrics = new ClientMetrics();
+    private volatile C client;
+
+    private ManagedClient(String name, ClientFactory<C> factory) {
+      this.name = name;
+      this.factory = factory;
+    }
+
+    private C get() throws IOException {
+      C currentClient = client;
+
+      if (currentClient == null || currentClient.isShutdown()) {
+        synchronized (this) {
+          if (client == null || client.isShutdown()) {
+            client = factory.create();
+            logger.info("Created " + name + ".");
+          }
+          currentClient = client;
+        }
+      }
+
+      return currentClient;
+    }
+
+    private boolean isHealthy() {
+      C currentClient = client;
+      return currentClient != null && !currentClient.isShutdown();
+    }
+
+    private <T> T call(ClientCall<C, T> call) throws IOException {
+      C currentClient = get();
+      long startNanos = System.nanoTime();
+      metrics.inFlight.incrementAndGet();
+      boolean succeeded = false;
+
+      try {
+        T result = call.call(currentClient);
+        succeeded = true;
+        return result;
+      } finally {
+        metrics.inFlight.decrementAndGet();
+        metrics.recordCall(System.nanoTime() - startNanos, succeeded);
+      }
+    }
+
+    private synchronized void shutdown() {
+      if (client == null) {
+        return;
+      }
+
+      client.shutdown();
+      try {
+        if (!client.awaitTermination(SHUTDOWN_TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+          client.shutdownNow();
+        }
+      } catch (InterruptedException e) {
+        client.shutdownNow();
+        Thread.currentThread().interrupt();
+      }
+
+      logger.info("Shut down " + name + " after " + metrics + ".");
+      client = null;
+    }
+  }
+
+  /** Call counts and latencies for a single client. */
+  public static class ClientMetrics {
+    private final AtomicLong inFlight = new AtomicLong();
+    private final AtomicLong calls = new AtomicLong();
+    private final AtomicLong failedCalls = new AtomicLong();
+    private final AtomicLong totalLatencyNanos = new AtomicLong();
+    private final AtomicLong maxLatencyNanos = new AtomicLong();
+
+    private void recordCall(long latencyNanos, boolean succeeded) {
+      calls.incrementAndGet();
+      if (!succeeded) {
+        failedCalls.incrementAndGet();
+      }
+      totalLatencyNanos.addAndGet(latencyNanos);
+      maxLatencyNanos.accumulateAndGet(latencyNanos, Math::max);
+    }
+
+    /** Returns the number of calls that have started but not yet finished. */
+    public long getInFlight() {
+      return inFlight.get();
+    }
+
+    /** Returns the number of finished calls, including failed ones. */
+    public long getCalls() {
+      return calls.get();
+    }
+
+    public long getFailedCalls() {
+      return failedCalls.get();
+    }
+
+    public double getAverageLatencyMillis() {
+      long finishedCalls = calls.get();
+      return finishedCalls == 0 ? 0 : totalLatencyNanos.get() / 1e6 / finishedCalls;
+    }
+
+    public double getMaxLatencyMillis() {
+      return maxLatencyNanos.get() / 1e6;
+    }
+
+    @Override
+    public String toString() {
+      return String.format("%d calls (%d failed, %d in flight), %.1f ms average, %.1f ms max",
+          getCalls(), getFailedCalls(), getInFlight(), getAverageLatencyMillis(),
+          getMaxLatencyMillis());
+    }
+  }
+}
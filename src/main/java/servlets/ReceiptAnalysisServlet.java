@@ -18,6 +18,7 @@ import com.google.gson.Gson;
 import com.google.sps.data.AnalysisResults;
 import java.io.IOException;
 import java.net.URL;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
@@ -29,6 +30,37 @@ import javax.servlet.http.HttpServletResponse;
  */
 @WebServlet("/receipt-analysis")
 public class ReceiptAnalysisServlet extends HttpServlet {
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptAnalysisServlet.class.getName());
+
+  private final ReceiptAnalysisClients analysisClients;
+  private final AnalysisCache analysisCache;
+
+  public ReceiptAnalysisServlet() {
+    this.analysisClients = ReceiptAnalysisClients.getSharedInstance();
+    this.analysisCache = AnalysisCache.getSharedInstance();
+  }
+
+  public ReceiptAnalysisServlet(
+      ReceiptAnalysisClients analysisClients, AnalysisCache analysisCache) {
+    this.analysisClients = analysisClients;
+    this.analysisCache = analysisCache;
+  }
+
+  /**
+   * Creates the Cloud Vision and Cloud Natural Language clients when the servlet is loaded so that
+   * the first request doesn't pay for the channel setup.
+   */
+  @Override
+  public void init() {
+    try {
+      analysisClients.warmUp();
+    } catch (IOException e) {
+      // The clients will be created on the first request instead.
+      logger.warning("Failed to warm up receipt analysis clients: " + e);
+    }
+  }
+
   /** Serves the text and categorization of the image at the requested URL. */
   @Override
   public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
@@ -40,7 +72,7 @@ public class ReceiptAnalysisServlet extends HttpServlet {
       return;
     }
 
-    results = ReceiptAnalysis.analyzeImageAt(new URL(url));
+    results = ReceiptAnalysis.analyzeImageAt(new URL(url), analysisClients, analysisCache);
 
     Gson gson = new Gson();
     response.setContentType("application/json;");
@@ -0,0 +1,77 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.common.base.Strings;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
+import java.util.logging.Logger;
+
+/**
+ * Chooses the {@link ReceiptRepository} that servlets share. Receipts are stored in Datastore
+ * unless the receipts.localStorePath system property is set, in which case they are stored in a
+ * {@link LocalReceiptRepository} log at that path.
+ */
+public final class ReceiptRepositories {
+  public static final String LOCAL_STORE_PATH_PROPERTY = "receipts.localStorePath";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptRepositories.class.getName());
+
+  private static ReceiptRepository sharedInstance;
+
+  private ReceiptRepositories() {}
+
+  /** Returns the repository shared by all servlets in this instance. */
+  public static synchronized ReceiptRepository getSharedInstance() {
+    if (sharedInstance == null) {
+      if (isLocalStoreActive()) {
+        sharedInstance = openLocalStore(System.getProperty(LOCAL_STORE_PATH_PROPERTY));
+      } else {
+        sharedInstance = new DatastoreReceiptRepository(
+            DatastoreServiceFactory.getDatastoreService(),
+            DatastoreServiceFactory.getAsyncDatastoreService());
+      }
+    }
+
+    return sharedInstance;
+  }
+
+  /** Checks if receipts are stored in the local store rather than in Datastore. */
+  private static boolean isLocalStoreActive() {
+    return !Strings.isNullOrEmpty(System.getProperty(LOCAL_STORE_PATH_PROPERTY));
+  }
+
+  /** Opens the local store, which is flushed to disk when the instance shuts down. */
+  private static LocalReceiptRepository openLocalStore(String path) {
+    LocalReceiptRepository repository;
+    try {
+      repository = new LocalReceiptRepository(Paths.get(path));
+    } catch (IOException e) {
+      throw new UncheckedIOException("Failed to open the local receipt store at " + path, e);
+    }
+
+    Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+      try {
+        repository.close();
+      } catch (IOException e) {
+        logger.warning("Failed to close the local receipt store: " + e);
+      }
+    }));
+    return repository;
+  }
+}
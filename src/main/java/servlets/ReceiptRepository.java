@@ -0,0 +1,140 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.data.UserSpendingSummary;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+
+/**
+ * Stores receipt entities, the spending summaries of their users and the variants of their images.
+ * Servlets read and write receipts through this interface rather than through Datastore, so that
+ * they can run against either {@link DatastoreReceiptRepository} or the embedded {@link
+ * LocalReceiptRepository}.
+ *
+ * <p>Every write to a user's receipts invalidates their cached search results in {@link
+ * SearchCache}. Implementations throw {@link
+ * com.google.appengine.api.datastore.DatastoreFailureException} if the store can't be read or
+ * written.
+ */
+public interface ReceiptRepository {
+  /**
+   * Stores the receipt and updates its user's summary. Returns the stored receipt, which has a
+   * newly assigned ID if the receipt's key was incomplete.
+   */
+  Entity put(Entity receipt);
+
+  /**
+   * Stores the receipts, which all belong to the same user, and updates their user's summary.
+   * Returns the stored receipts in the same order.
+   */
+  List<Entity> put(List<Entity> receipts);
+
+  /**
+   * Atomically re-reads the receipt with the given ID and, if it still exists and matches the
+   * condition, applies the update to it and stores it. Returns the updated receipt, or an empty
+   * optional if there is no receipt with the ID or it doesn't match.
+   */
+  Optional<Entity> update(long id, Predicate<Entity> condition, Consumer<Entity> update);
+
+  /** Returns the receipt with the given ID, or an empty optional if there is none. */
+  Optional<Entity> get(long id);
+
+  /** Returns the receipts with the given IDs by ID, leaving out the IDs that have no receipt. */
+  Map<Long, Entity> get(Collection<Long> ids);
+
+  /**
+   * Deletes the receipt with the given ID, if it exists, along with the variants of its image, and
+   * removes it from its user's totals.
+   */
+  void delete(long id);
+
+  /**
+   * Returns a page of up to pageSize of the user's receipts that have a timestamp, newest first and
+   * then by descending ID, starting at the cursor of the previous page or at the newest receipt if
+   * no cursor is given.
+   *
+   * @throws IllegalArgumentException if the cursor wasn't returned by this repository.
+   */
+  SearchPageFetcher.Page query(String userId, Optional<String> encodedCursor, int pageSize);
+
+  /**
+   * Returns a page of up to pageSize of the user's receipts that match the query information, in
+   * the same order as {@link #query(String, Optional, int)}. At most scanBudget receipts are read
+   * to fill the page, so a page can come back short while later pages still have matches.
+   *
+   * @throws IllegalArgumentException if the cursor wasn't returned by this repository.
+   */
+  SearchPageFetcher.Page query(String userId, QueryInformation queryInformation,
+      Optional<String> encodedCursor, int pageSize, int scanBudget);
+
+  /** Returns the sorted IDs of the user's receipts whose text contains every word. */
+  long[] searchText(String userId, Set<String> words);
+
+  /**
+   * Returns a batch of up to batchSize receipts of every user, in no particular order, starting at
+   * the cursor of the previous batch or at the first receipt if no cursor is given.
+   *
+   * @throws IllegalArgumentException if the cursor wasn't returned by this repository.
+   */
+  SearchPageFetcher.Page scan(Optional<String> encodedCursor, int batchSize);
+
+  /** Returns the totals of all of the user's receipts. */
+  UserSpendingSummary getSummary(String userId);
+
+  /** Returns the totals of the user's receipts between the timestamps, inclusive. */
+  UserSpendingSummary getSummary(String userId, long startTimestamp, long endTimestamp);
+
+  /**
+   * Returns the totals of the user's receipts in each UTC week or month that has any, by the
+   * period's name from {@link TimeBuckets.Interval#getPeriod}, in chronological order.
+   */
+  SortedMap<String, UserSpendingSummary> getSummarySeries(
+      String userId, TimeBuckets.Interval interval);
+
+  /**
+   * Returns the number of the user's receipts from each store, by store name. Unlike {@link
+   * #getSummary(String)}, this never computes and stores a missing summary.
+   */
+  Map<String, Long> getStoreReceiptCounts(String userId);
+
+  /** Returns the image URLs of all of the user's receipts. */
+  ImmutableSet<String> getImageUrls(String userId);
+
+  /** Returns whether any of the user's receipts has the image URL. */
+  boolean hasImageUrl(String userId, String imageUrl);
+
+  /** Compares the user's stored summary with one computed from every receipt. */
+  SpendingSummaries.ConsistencyReport checkSummary(String userId);
+
+  /** Replaces the user's stored summary with one computed from every receipt, and returns it. */
+  UserSpendingSummary recomputeSummary(String userId);
+
+  /** Returns the image variant with the given key, or an empty optional if it isn't stored. */
+  Optional<Entity> getImageVariant(Key key);
+
+  /** Stores the image variant, replacing any variant with the same key. */
+  void putImageVariant(Entity variant);
+}
@@ -0,0 +1,128 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.gson.Gson;
+import com.google.sps.data.ReceiptStatus;
+import java.io.IOException;
+import java.time.Clock;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet with a GET handler that returns a receipt uploaded asynchronously, so that the upload
+ * page can poll until the receipt's status is ANALYZED or FAILED. An analysis task can still be
+ * lost or keep failing, so a receipt that is still pending long after it was uploaded is marked
+ * FAILED and its fields are left for the user to enter.
+ */
+@WebServlet("/receipt-status")
+public class ReceiptStatusServlet extends HttpServlet {
+  private static final String USER_NOT_LOGGED_IN_WARNING =
+      "User must be logged in to check the status of a receipt.";
+  private static final String RECEIPT_NOT_FOUND_WARNING = "Receipt could not be found.";
+  // Time after the upload at which a receipt that is still pending is considered lost.
+  private static final long PENDING_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(5);
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ReceiptStatusServlet.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final UserService userService = UserServiceFactory.getUserService();
+  private final Clock clock;
+
+  public ReceiptStatusServlet() {
+    this(ReceiptRepositories.getSharedInstance(), Clock.systemDefaultZone());
+  }
+
+  public ReceiptStatusServlet(DatastoreService datastore, Clock clock) {
+    this(new DatastoreReceiptRepository(datastore), clock);
+  }
+
+  public ReceiptStatusServlet(ReceiptRepository receipts, Clock clock) {
+    this.receipts = receipts;
+    this.clock = clock;
+  }
+
+  /**
+   * Returns the receipt with the given ID as JSON. While the receipt is being analyzed, its
+   * "status" property is PENDING. Receipts of other users are reported as not found.
+   */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!userService.isUserLoggedIn()) {
+      logger.warning(USER_NOT_LOGGED_IN_WARNING);
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(USER_NOT_LOGGED_IN_WARNING);
+      return;
+    }
+
+    Optional<Entity> storedReceipt;
+    try {
+      long id = Long.parseLong(request.getParameter("id"));
+      storedReceipt = receipts.get(id);
+    } catch (NumberFormatException exception) {
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(exception.toString());
+      return;
+    }
+
+    String userId = userService.getCurrentUser().getUserId();
+    if (!storedReceipt.isPresent() || !userId.equals(storedReceipt.get().getProperty("userId"))) {
+      response.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      response.getWriter().println(RECEIPT_NOT_FOUND_WARNING);
+      return;
+    }
+
+    Entity receipt = storedReceipt.get();
+    if (isStale(receipt)) {
+      long id = receipt.getKey().getId();
+      logger.warning("Receipt " + id + " was not analyzed in time.");
+      Optional<Entity> failedReceipt = receipts.update(id, this::isStale,
+          staleReceipt -> staleReceipt.setProperty("status", ReceiptStatus.FAILED.name()));
+      // If the analysis finished in the meantime, return the receipt as it is now.
+      receipt = failedReceipt.isPresent() ? failedReceipt.get() : receipts.get(id).orElse(receipt);
+    }
+
+    // Receipts uploaded synchronously have no status property.
+    receipt.setProperty("status", ReceiptStatus.of(receipt).name());
+
+    String json = new Gson().toJson(receipt);
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
+  /**
+   * Returns whether the receipt is still pending after it should have been analyzed. Pending
+   * receipts are only stored by asynchronous uploads, which record their upload time.
+   */
+  private boolean isStale(Entity receipt) {
+    if (ReceiptStatus.of(receipt) != ReceiptStatus.PENDING) {
+      return false;
+    }
+
+    long uploadTimestamp = (long) receipt.getProperty("uploadTimestamp");
+    return clock.millis() - uploadTimestamp > PENDING_TIMEOUT_MILLIS;
+  }
+}
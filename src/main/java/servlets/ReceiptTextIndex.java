@@ -0,0 +1,250 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Blob;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Lists;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.stream.Collectors;
+import java.util.stream.LongStream;
+
+/**
+ * Inverted index from the words in each user's receipt text to the IDs of the receipts they're in,
+ * so that receipts can be searched by keyword without reading their text. Each word has a posting
+ * entity with the sorted receipt IDs encoded by {@link PostingLists}, and a search intersects the
+ * postings of its words.
+ *
+ * <p>Postings are children of a root key for the user, so every posting of a user is in one entity
+ * group, and are changed in the same transaction as the receipts. Receipts stored before the index
+ * existed are added to it by the backfill.
+ */
+public final class ReceiptTextIndex {
+  public static final String KIND = "ReceiptTextIndex";
+  public static final String POSTING_KIND = "Posting";
+  // Marks receipts whose text is in the index, so the backfill can skip them.
+  public static final String INDEXED_PROPERTY = "textIndexed";
+
+  private static final String IDS_PROPERTY = "receiptIds";
+  // Single characters match too many receipts to narrow a search, and long tokens are usually
+  // unreadable text rather than words.
+  private static final int MIN_TOKEN_LENGTH = 2;
+  private static final int MAX_TOKEN_LENGTH = 40;
+  // Each word of a receipt is a posting written in the receipt's transaction, which can commit at
+  // most 500 mutations, so only the first words of a long text are indexed.
+  public static final int MAX_TOKENS_PER_RECEIPT = 200;
+  // Datastore writes at most 500 entities per call.
+  private static final int MAX_ENTITIES_PER_WRITE = 500;
+
+  private final DatastoreService datastore;
+
+  public ReceiptTextIndex(DatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /** Splits the text into distinct lowercase words of letters and digits. */
+  public static ImmutableSet<String> tokenize(String text) {
+    return Arrays.stream(text.toLowerCase(Locale.ROOT).split("[^\\p{L}\\p{N}]+"))
+        .filter(token -> token.length() >= MIN_TOKEN_LENGTH && token.length() <= MAX_TOKEN_LENGTH)
+        .collect(ImmutableSet.toImmutableSet());
+  }
+
+  /**
+   * Returns the words of the receipt's raw text that are indexed, which are at most the first
+   * {@link #MAX_TOKENS_PER_RECEIPT}, or no words if it doesn't have any text.
+   */
+  public static ImmutableSet<String> getTokens(Entity receipt) {
+    Object rawText = receipt.getProperty("rawText");
+    ImmutableSet<String> tokens;
+    if (rawText instanceof Text) {
+      tokens = tokenize(((Text) rawText).getValue());
+    } else if (rawText instanceof String) {
+      tokens = tokenize((String) rawText);
+    } else {
+      return ImmutableSet.of();
+    }
+
+    return tokens.size() <= MAX_TOKENS_PER_RECEIPT
+        ? tokens
+        : tokens.stream().limit(MAX_TOKENS_PER_RECEIPT).collect(ImmutableSet.toImmutableSet());
+  }
+
+  /** Checks if the receipt belongs to a user and has text that isn't in the index yet. */
+  public static boolean needsIndexing(Entity receipt) {
+    return receipt.getProperty("userId") != null
+        && !Boolean.TRUE.equals(receipt.getProperty(INDEXED_PROPERTY))
+        && !getTokens(receipt).isEmpty();
+  }
+
+  /**
+   * Returns the sorted IDs of the user's receipts whose text contains every token. Postings are
+   * intersected from the shortest, so the work is bounded by the rarest token.
+   */
+  public long[] search(String userId, Set<String> tokens) {
+    if (tokens.isEmpty()) {
+      return new long[0];
+    }
+
+    Key indexKey = getIndexKey(userId);
+    List<Key> postingKeys =
+        tokens.stream().map(token -> getPostingKey(indexKey, token)).collect(Collectors.toList());
+    Map<Key, Entity> postings = datastore.get(postingKeys);
+    // A token without a posting isn't in any receipt.
+    if (postings.size() < postingKeys.size()) {
+      return new long[0];
+    }
+
+    List<long[]> idLists = postings.values()
+                               .stream()
+                               .map(ReceiptTextIndex::getIds)
+                               .sorted(Comparator.comparingInt(ids -> ids.length))
+                               .collect(Collectors.toList());
+
+    long[] ids = idLists.get(0);
+    for (int i = 1; i < idLists.size() && ids.length > 0; i++) {
+      ids = PostingLists.intersect(ids, idLists.get(i));
+    }
+
+    return ids;
+  }
+
+  /** Starts collecting changes to the user's index, which are written in the transaction. */
+  public Changes startChanges(Transaction transaction, String userId) {
+    return new Changes(transaction, getIndexKey(userId));
+  }
+
+  private static long[] getIds(Entity posting) {
+    return PostingLists.decode(((Blob) posting.getProperty(IDS_PROPERTY)).getBytes());
+  }
+
+  private static Key getIndexKey(String userId) {
+    return KeyFactory.createKey(KIND, userId);
+  }
+
+  private static Key getPostingKey(Key indexKey, String token) {
+    return KeyFactory.createKey(indexKey, POSTING_KIND, token);
+  }
+
+  /**
+   * Receipts added to and removed from a user's index in a transaction. Added receipts are read
+   * when the changes are written, so receipts with incomplete keys can be added before they're
+   * stored and assigned an ID. Only postings whose IDs change are written, so editing a receipt
+   * without changing its text doesn't write to the index.
+   */
+  public final class Changes {
+    private final Transaction transaction;
+    private final Key indexKey;
+    private final List<Entity> addedReceipts = new ArrayList<>();
+    private final List<Entity> removedReceipts = new ArrayList<>();
+
+    private Changes(Transaction transaction, Key indexKey) {
+      this.transaction = transaction;
+      this.indexKey = indexKey;
+    }
+
+    /** Adds the receipt's text to the index and marks the receipt as indexed. */
+    public void addReceipt(Entity receipt) {
+      receipt.setUnindexedProperty(INDEXED_PROPERTY, true);
+      addedReceipts.add(receipt);
+    }
+
+    /** Removes the text of the stored receipt from the index. */
+    public void removeReceipt(Entity receipt) {
+      removedReceipts.add(receipt);
+    }
+
+    /**
+     * Writes the postings of every changed token, and deletes postings without any receipts left.
+     * Removals are applied before additions, so a receipt that is replaced stays in the postings
+     * of the tokens its new text has.
+     */
+    public void write() {
+      // Whether each receipt ID is added to or removed from the posting of each token.
+      Map<String, Map<Long, Boolean>> changes = new HashMap<>();
+      collectChanges(changes, removedReceipts, /* isAdded = */ false);
+      collectChanges(changes, addedReceipts, /* isAdded = */ true);
+      if (changes.isEmpty()) {
+        return;
+      }
+
+      List<Key> postingKeys = changes.keySet()
+                                  .stream()
+                                  .map(token -> getPostingKey(indexKey, token))
+                                  .collect(Collectors.toList());
+      Map<Key, Entity> storedPostings = datastore.get(transaction, postingKeys);
+
+      List<Entity> changedPostings = new ArrayList<>();
+      List<Key> emptyPostingKeys = new ArrayList<>();
+      changes.forEach((token, tokenChanges) -> {
+        Key key = getPostingKey(indexKey, token);
+        Entity storedPosting = storedPostings.get(key);
+        long[] storedIds = storedPosting == null ? new long[0] : getIds(storedPosting);
+        long[] ids = apply(storedIds, tokenChanges);
+
+        if (Arrays.equals(storedIds, ids)) {
+          return;
+        }
+        if (ids.length == 0) {
+          emptyPostingKeys.add(key);
+          return;
+        }
+
+        Entity posting = new Entity(key);
+        posting.setUnindexedProperty(IDS_PROPERTY, new Blob(PostingLists.encode(ids)));
+        changedPostings.add(posting);
+      });
+
+      for (List<Entity> batch : Lists.partition(changedPostings, MAX_ENTITIES_PER_WRITE)) {
+        datastore.put(transaction, batch);
+      }
+      for (List<Key> batch : Lists.partition(emptyPostingKeys, MAX_ENTITIES_PER_WRITE)) {
+        datastore.delete(transaction, batch);
+      }
+    }
+
+    private void collectChanges(
+        Map<String, Map<Long, Boolean>> changes, List<Entity> receipts, boolean isAdded) {
+      for (Entity receipt : receipts) {
+        long id = receipt.getKey().getId();
+        for (String token : getTokens(receipt)) {
+          changes.computeIfAbsent(token, key -> new HashMap<>()).put(id, isAdded);
+        }
+      }
+    }
+
+    /** Returns the sorted IDs after adding and removing the changed IDs. */
+    private long[] apply(long[] ids, Map<Long, Boolean> idChanges) {
+      LongStream keptIds = Arrays.stream(ids).filter(id -> !idChanges.containsKey(id));
+      LongStream addedIds = idChanges.entrySet()
+                                .stream()
+                                .filter(Map.Entry::getValue)
+                                .mapToLong(Map.Entry::getKey);
+      return LongStream.concat(keptIds, addedIds).sorted().toArray();
+    }
+  }
+}
@@ -0,0 +1,178 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+/**
+ * Scans the raw text of a receipt for the first date and the largest price in a single pass.
+ * Tokens are the runs of characters between whitespace characters, as with
+ * {@code rawText.split("\\s")}. A token is a date if it matches
+ * {@code \d?\d([/-])\d?\d\1\d{2}(\d{2})?} and a price if it matches {@code \$?\d+\.\d\d}, but the
+ * tokens are checked in place by their offsets instead of being copied into strings and matched
+ * with regular expressions.
+ */
+public final class ReceiptTextScanner {
+  // Largest integer below which every long is exactly representable as a double.
+  private static final long MAX_EXACT_DOUBLE_INTEGER = 1L << 53;
+
+  private final CharSequence text;
+  private int dateStart = -1;
+  private int dateEnd = -1;
+  private double largestPrice = Double.NEGATIVE_INFINITY;
+
+  private ReceiptTextScanner(CharSequence text) {
+    this.text = text;
+  }
+
+  /** Scans the text and returns the scanner holding the date and price candidates found. */
+  public static ReceiptTextScanner scan(CharSequence text) {
+    ReceiptTextScanner scanner = new ReceiptTextScanner(text);
+    scanner.scanTokens();
+    return scanner;
+  }
+
+  /** Returns true if a token formatted as a date was found. */
+  public boolean hasDate() {
+    return dateStart >= 0;
+  }
+
+  /** Returns the offset of the first token formatted as a date, or -1 if there is none. */
+  public int getDateStart() {
+    return dateStart;
+  }
+
+  /** Returns the offset just past the first token formatted as a date, or -1 if there is none. */
+  public int getDateEnd() {
+    return dateEnd;
+  }
+
+  /** Returns the first token formatted as a date, which is the only token copied from the text. */
+  public String getDate() {
+    return hasDate() ? text.subSequence(dateStart, dateEnd).toString() : null;
+  }
+
+  /** Returns true if a token formatted as a price was found. */
+  public boolean hasPrice() {
+    return largestPrice != Double.NEGATIVE_INFINITY;
+  }
+
+  /**
+   * Returns the largest price found, or Double.NEGATIVE_INFINITY if no token was formatted as a
+   * price.
+   */
+  public double getLargestPrice() {
+    return largestPrice;
+  }
+
+  private void scanTokens() {
+    int length = text.length();
+    int tokenStart = 0;
+
+    for (int i = 0; i <= length; i++) {
+      if (i == length || isWhitespace(text.charAt(i))) {
+        if (i > tokenStart) {
+          checkToken(tokenStart, i);
+        }
+        tokenStart = i + 1;
+      }
+    }
+  }
+
+  private void checkToken(int start, int end) {
+    // A date needs a separator and a price needs a decimal point, so a token can't be both.
+    if (!hasDate() && isDate(start, end)) {
+      dateStart = start;
+      dateEnd = end;
+    } else {
+      double price = parsePrice(start, end);
+      if (price > largestPrice) {
+        largestPrice = price;
+      }
+    }
+  }
+
+  /** Checks if the token matches {@code \d?\d([/-])\d?\d\1\d{2}(\d{2})?}. */
+  private boolean isDate(int start, int end) {
+    int monthEnd = skipDigits(start, end);
+    int monthDigits = monthEnd - start;
+    if (monthDigits < 1 || monthDigits > 2 || monthEnd == end) {
+      return false;
+    }
+
+    char separator = text.charAt(monthEnd);
+    if (separator != '/' && separator != '-') {
+      return false;
+    }
+
+    int dayStart = monthEnd + 1;
+    int dayEnd = skipDigits(dayStart, end);
+    int dayDigits = dayEnd - dayStart;
+    if (dayDigits < 1 || dayDigits > 2 || dayEnd == end || text.charAt(dayEnd) != separator) {
+      return false;
+    }
+
+    int yearStart = dayEnd + 1;
+    int yearEnd = skipDigits(yearStart, end);
+    int yearDigits = yearEnd - yearStart;
+    return yearEnd == end && (yearDigits == 2 || yearDigits == 4);
+  }
+
+  /**
+   * Returns the price if the token matches {@code \$?\d+\.\d\d}, or Double.NEGATIVE_INFINITY
+   * otherwise.
+   */
+  private double parsePrice(int start, int end) {
+    int digitsStart = start < end && text.charAt(start) == '$' ? start + 1 : start;
+    int pointIndex = skipDigits(digitsStart, end);
+
+    if (pointIndex == digitsStart || end - pointIndex != 3 || text.charAt(pointIndex) != '.'
+        || !isDigit(text.charAt(end - 2)) || !isDigit(text.charAt(end - 1))) {
+      return Double.NEGATIVE_INFINITY;
+    }
+
+    // Accumulate the price in cents. Dividing an exactly representable number of cents by 100 is
+    // correctly rounded, so it gives the same double as Double.parseDouble.
+    long cents = 0;
+    for (int i = digitsStart; i < end; i++) {
+      if (i == pointIndex) {
+        continue;
+      }
+
+      cents = cents * 10 + (text.charAt(i) - '0');
+      if (cents >= MAX_EXACT_DOUBLE_INTEGER) {
+        return Double.parseDouble(text.subSequence(digitsStart, end).toString());
+      }
+    }
+
+    return cents / 100.0;
+  }
+
+  private int skipDigits(int start, int end) {
+    int i = start;
+    while (i < end && isDigit(text.charAt(i))) {
+      i++;
+    }
+    return i;
+  }
+
+  /** Matches {@code \d}, which only includes ASCII digits. */
+  private static boolean isDigit(char c) {
+    return c >= '0' && c <= '9';
+  }
+
+  /** Matches {@code \s}, which only includes ASCII whitespace. */
+  private static boolean isWhitespace(char c) {
+    return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+  }
+}
@@ -0,0 +1,193 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.memcache.MemcacheService;
+import com.google.appengine.api.memcache.MemcacheServiceFactory;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.common.cache.CacheStats;
+import com.google.sps.data.QueryInformation;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache of search responses, so that paging back and forth through the same results doesn't
+ * repeat their queries. Responses are cached as JSON, bounded by their size, and expire after a few
+ * minutes.
+ *
+ * <p>Each user has a generation in Memcache, which every receipt write increments. Responses are
+ * cached under the user's current generation, so a write makes all of the user's cached responses
+ * unreachable on every instance, and they're evicted as they age out. If Memcache is unavailable,
+ * searches aren't cached.
+ *
+ * <p>Searches run eventually consistent queries, which can miss a write for a short while after it
+ * commits. The time of each user's last write is kept in Memcache too, and searches aren't cached
+ * until that settle period has passed, so a stale page isn't cached under the new generation.
+ */
+public class SearchCache {
+  // Default bound on the size of the responses kept in memory.
+  private static final long DEFAULT_MAX_MEMORY_BYTES = 8 * 1024 * 1024;
+  private static final long DEFAULT_TTL_MINUTES = 5;
+  // Eventually consistent queries usually reflect a write within a few seconds of its commit.
+  private static final long DEFAULT_WRITE_SETTLE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  // Approximate memory used by a cached response apart from its JSON and key characters.
+  private static final int ENTRY_OVERHEAD_BYTES = 128;
+  private static final String GENERATION_KEY_PREFIX = "searchGeneration:";
+  private static final String WRITE_TIME_KEY_PREFIX = "searchWriteTime:";
+
+  private static SearchCache sharedInstance;
+
+  private final Cache<String, String> responses;
+  private final long writeSettleMillis;
+
+  public SearchCache(long maxMemoryBytes, long ttl, TimeUnit ttlUnit) {
+    this(maxMemoryBytes, ttl, ttlUnit, DEFAULT_WRITE_SETTLE_MILLIS);
+  }
+
+  /**
+   * @param writeSettleMillis How long after one of a user's receipts is written that their searches
+   *     aren't cached, while queries may still miss the write.
+   */
+  public SearchCache(long maxMemoryBytes, long ttl, TimeUnit ttlUnit, long writeSettleMillis) {
+    this.writeSettleMillis = writeSettleMillis;
+    this.responses = CacheBuilder.newBuilder()
+                         .maximumWeight(maxMemoryBytes)
+                         .weigher(SearchCache::estimateSizeBytes)
+                         .expireAfterWrite(ttl, ttlUnit)
+                         .recordStats()
+                         .build();
+  }
+
+  /** Returns the cache shared by all servlets in this instance. */
+  public static synchronized SearchCache getSharedInstance() {
+    if (sharedInstance == null) {
+      sharedInstance =
+          new SearchCache(DEFAULT_MAX_MEMORY_BYTES, DEFAULT_TTL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    return sharedInstance;
+  }
+
+  /**
+   * Makes every cached search response of the user unreachable. Call this after any of the user's
+   * receipts are written.
+   */
+  public static void invalidate(String userId) {
+    long now = System.currentTimeMillis();
+    // A generation that was evicted from Memcache starts again from the current time, so that it
+    // doesn't return to a generation that responses are still cached under.
+    getMemcache().increment(getGenerationKey(userId), 1L, now);
+    getMemcache().put(getWriteTimeKey(userId), now);
+  }
+
+  /**
+   * Returns the user's current generation, which changes whenever any of their receipts are
+   * written, or an empty optional if Memcache is unavailable. Other per-user caches can store it
+   * alongside their values to tell when those are out of date.
+   */
+  public static Optional<Long> getGeneration(String userId) {
+    return Optional.ofNullable(
+        getMemcache().increment(getGenerationKey(userId), 0L, System.currentTimeMillis()));
+  }
+
+  /**
+   * Returns the cache key of a search, or an empty optional if the search shouldn't be cached
+   * because the user's generation couldn't be read or one of their receipts was just written.
+   * @param queryInformation The search filters, or null to get every receipt.
+   * @param keywords The normalized words the receipt text must contain, if any.
+   * @param pageDirection Which page is requested relative to the cursor, such as "next".
+   */
+  public Optional<String> getKey(String userId, QueryInformation queryInformation,
+      Set<String> keywords, String pageDirection, String encodedCursor) {
+    Optional<Long> generation = getGeneration(userId);
+    if (!generation.isPresent() || isSettling(userId)) {
+      return Optional.empty();
+    }
+
+    StringBuilder key = new StringBuilder()
+                            .append(userId)
+                            .append('|')
+                            .append(generation.get())
+                            .append('|')
+                            .append(pageDirection)
+                            .append('|')
+                            .append(encodedCursor)
+                            .append('|')
+                            .append(new TreeSet<>(keywords));
+    // Query information is normalized when it's parsed, so equal searches have equal keys.
+    if (queryInformation != null) {
+      key.append('|')
+          .append(queryInformation.getStartTimestamp())
+          .append('|')
+          .append(queryInformation.getEndTimestamp())
+          .append('|')
+          .append(queryInformation.getCategory())
+          .append('|')
+          .append(queryInformation.getStore())
+          .append('|')
+          .append(queryInformation.getMinPrice())
+          .append('|')
+          .append(queryInformation.getMaxPrice());
+    }
+
+    return Optional.of(key.toString());
+  }
+
+  /** Returns the cached JSON response of the search with the given key. */
+  public Optional<String> get(String key) {
+    return Optional.ofNullable(responses.getIfPresent(key));
+  }
+
+  /** Caches the JSON response of the search with the given key. */
+  public void put(String key, String json) {
+    responses.put(key, json);
+  }
+
+  /** Returns the fraction of lookups that found a cached response, or 1 if there were none. */
+  public double getHitRatio() {
+    return responses.stats().hitRate();
+  }
+
+  /** Returns the hit, miss, and eviction counts of the cache. */
+  public CacheStats getStats() {
+    return responses.stats();
+  }
+
+  /** Estimates the memory used by a cached response, which is mostly its JSON characters. */
+  private static int estimateSizeBytes(String key, String json) {
+    return ENTRY_OVERHEAD_BYTES + 2 * (key.length() + json.length());
+  }
+
+  /** Checks if one of the user's receipts was written too recently for queries to reflect it. */
+  private boolean isSettling(String userId) {
+    Long writeTime = (Long) getMemcache().get(getWriteTimeKey(userId));
+    return writeTime != null && System.currentTimeMillis() - writeTime < writeSettleMillis;
+  }
+
+  private static MemcacheService getMemcache() {
+    return MemcacheServiceFactory.getMemcacheService();
+  }
+
+  private static String getGenerationKey(String userId) {
+    return GENERATION_KEY_PREFIX + userId;
+  }
+
+  private static String getWriteTimeKey(String userId) {
+    return WRITE_TIME_KEY_PREFIX + userId;
+  }
+}
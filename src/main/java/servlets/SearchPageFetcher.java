@@ -0,0 +1,247 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.Cursor;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.CompositeFilter;
+import com.google.appengine.api.datastore.Query.CompositeFilterOperator;
+import com.google.appengine.api.datastore.Query.Filter;
+import com.google.appengine.api.datastore.Query.FilterOperator;
+import com.google.appengine.api.datastore.Query.FilterPredicate;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterators;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Fetches pages of entities that match a filter Datastore can't apply, such as a second inequality
+ * filter. Entities are pulled from the query in batches until the page is full or the scan budget
+ * runs out, so that a selective filter still returns full pages in a single request.
+ */
+public final class SearchPageFetcher {
+  // Entities fetched in each batch after the first, which only fetches a page's worth.
+  private static final int DEFAULT_BATCH_SIZE = 100;
+
+  private final int pageSize;
+  private final int scanBudget;
+  private final int batchSize;
+
+  /**
+   * Creates a fetcher that returns up to pageSize matching entities per page, scanning at most
+   * scanBudget entities to find them.
+   */
+  public SearchPageFetcher(int pageSize, int scanBudget) {
+    this(pageSize, scanBudget, DEFAULT_BATCH_SIZE);
+  }
+
+  public SearchPageFetcher(int pageSize, int scanBudget, int batchSize) {
+    this.pageSize = pageSize;
+    this.scanBudget = scanBudget;
+    this.batchSize = batchSize;
+  }
+
+  /**
+   * Returns the next page of entities that match the filter, starting at the cursor or at the
+   * beginning of the query if no cursor is given. The page's cursor points right after the last
+   * entity that was scanned, so the next page continues without skipping or repeating entities.
+   */
+  public Page fetch(
+      PreparedQuery query, Optional<String> encodedCursor, Predicate<Entity> filter) {
+    // The first batch is the size of a page, which is enough when most entities match.
+    FetchOptions options =
+        FetchOptions.Builder.withLimit(scanBudget).prefetchSize(pageSize).chunkSize(batchSize);
+    encodedCursor.map(Cursor::fromWebSafeString).ifPresent(options::startCursor);
+
+    QueryResultIterator<Entity> results = query.asQueryResultIterator(options);
+    ImmutableList.Builder<Entity> matchingEntities = ImmutableList.builder();
+    int matches = 0;
+    int scanned = 0;
+
+    while (matches < pageSize && results.hasNext()) {
+      Entity entity = results.next();
+      scanned++;
+
+      if (filter.test(entity)) {
+        matchingEntities.add(entity);
+        matches++;
+      }
+    }
+
+    return new Page(matchingEntities.build(), results.getCursor().toWebSafeString(), scanned);
+  }
+
+  /**
+   * Returns the next page of entities that match the filter, like {@link #fetch}, for queries that
+   * Datastore can't return cursors for, such as queries with an IN filter over several values. The
+   * query must be sorted by timestamp and then key, both descending. Instead of a cursor, the page
+   * encodes the timestamp and key of the last scanned entity, and the next page is fetched by
+   * querying for the entities with that timestamp and a lower key, and then for the entities with
+   * a lower timestamp, so no entity is read again.
+   */
+  public Page fetchAfterPosition(DatastoreService datastore, Query query,
+      Optional<String> encodedPosition, Predicate<Entity> filter) {
+    FetchOptions options = FetchOptions.Builder.withPrefetchSize(pageSize).chunkSize(batchSize);
+    Optional<Position> start = encodedPosition.map(Position::decode);
+    Iterator<Entity> results;
+    if (start.isPresent()) {
+      // The second query only runs once the entities with the start's timestamp run out.
+      Query sameTimestampQuery = start.get().getSameTimestampQuery(query);
+      Query earlierQuery = start.get().getEarlierQuery(query);
+      results = Iterators.concat(
+          Stream.of(sameTimestampQuery, earlierQuery)
+              .map(resultsQuery -> datastore.prepare(resultsQuery).asIterator(options))
+              .iterator());
+    } else {
+      results = datastore.prepare(query).asIterator(options);
+    }
+
+    ImmutableList.Builder<Entity> matchingEntities = ImmutableList.builder();
+    Optional<Position> end = start;
+    int matches = 0;
+    int scanned = 0;
+
+    while (matches < pageSize && scanned < scanBudget && results.hasNext()) {
+      Entity entity = results.next();
+      scanned++;
+      end = Optional.of(Position.of(entity));
+
+      if (filter.test(entity)) {
+        matchingEntities.add(entity);
+        matches++;
+      }
+    }
+
+    String encodedEnd = end.map(Position::encode).orElse("");
+    return new Page(matchingEntities.build(), encodedEnd, scanned);
+  }
+
+  /**
+   * Returns a query for the kind with the query's filters, except those on the excluded property,
+   * and the given filters.
+   */
+  private static Query withFilters(Query query, String excludedProperty, Filter... filters) {
+    // A query can't combine a filter with the filter predicates of addFilter, so both are read.
+    List<Filter> queryFilters = new ArrayList<>(query.getFilterPredicates());
+    if (query.getFilter() instanceof CompositeFilter
+        && ((CompositeFilter) query.getFilter()).getOperator() == CompositeFilterOperator.AND) {
+      queryFilters.addAll(((CompositeFilter) query.getFilter()).getSubFilters());
+    } else if (query.getFilter() != null) {
+      queryFilters.add(query.getFilter());
+    }
+
+    List<Filter> allFilters = queryFilters.stream()
+        .filter(filter -> !(filter instanceof FilterPredicate)
+            || !((FilterPredicate) filter).getPropertyName().equals(excludedProperty))
+        .collect(Collectors.toList());
+    allFilters.addAll(Arrays.asList(filters));
+
+    return new Query(query.getKind())
+        .setFilter(allFilters.size() == 1 ? allFilters.get(0)
+                                          : CompositeFilterOperator.and(allFilters));
+  }
+
+  /** The timestamp and key of an entity, which identify its place in the query's sort order. */
+  private static final class Position {
+    private static final String SEPARATOR = "_";
+
+    private final long timestamp;
+    private final Key key;
+
+    private Position(long timestamp, Key key) {
+      this.timestamp = timestamp;
+      this.key = key;
+    }
+
+    static Position of(Entity entity) {
+      return new Position((long) entity.getProperty("timestamp"), entity.getKey());
+    }
+
+    static Position decode(String encodedPosition) {
+      String[] parts = encodedPosition.split(SEPARATOR, 2);
+      if (parts.length != 2) {
+        throw new IllegalArgumentException("Invalid position: " + encodedPosition);
+      }
+
+      return new Position(Long.parseLong(parts[0]), KeyFactory.stringToKey(parts[1]));
+    }
+
+    String encode() {
+      return timestamp + SEPARATOR + KeyFactory.keyToString(key);
+    }
+
+    /** Returns the query's entities with this timestamp that are sorted after this key. */
+    Query getSameTimestampQuery(Query query) {
+      // The timestamp was in the query's range, whose filters are replaced by the equality filter
+      // since a query has only one inequality property. That leaves the key as the only sort.
+      return withFilters(query, "timestamp",
+                 new FilterPredicate("timestamp", FilterOperator.EQUAL, timestamp),
+                 new FilterPredicate(
+                     Entity.KEY_RESERVED_PROPERTY, FilterOperator.LESS_THAN, key))
+          .addSort(Entity.KEY_RESERVED_PROPERTY, SortDirection.DESCENDING);
+    }
+
+    /** Returns the query's entities with a lower timestamp than this one, in the query's order. */
+    Query getEarlierQuery(Query query) {
+      Query earlierQuery =
+          withFilters(query, /* excludedProperty = */ "",
+              new FilterPredicate("timestamp", FilterOperator.LESS_THAN, timestamp));
+      query.getSortPredicates().forEach(
+          sort -> earlierQuery.addSort(sort.getPropertyName(), sort.getDirection()));
+      return earlierQuery;
+    }
+  }
+
+  /** Entities on a page of results, and the cursor where the next page starts. */
+  public static final class Page {
+    private final ImmutableList<Entity> entities;
+    private final String encodedCursor;
+    private final int scannedEntities;
+
+    public Page(ImmutableList<Entity> entities, String encodedCursor, int scannedEntities) {
+      this.entities = entities;
+      this.encodedCursor = encodedCursor;
+      this.scannedEntities = scannedEntities;
+    }
+
+    public ImmutableList<Entity> getEntities() {
+      return entities;
+    }
+
+    /** Returns a web-safe string that the next page can be fetched from. */
+    public String getEncodedCursor() {
+      return encodedCursor;
+    }
+
+    /** Returns the number of entities that were read to fill the page, including filtered ones. */
+    public int getScannedEntities() {
+      return scannedEntities;
+    }
+  }
+}
@@ -14,16 +14,8 @@
 
 package com.google.sps.servlets;
 
-import com.google.appengine.api.datastore.Cursor;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.PreparedQuery;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.FilterOperator;
-import com.google.appengine.api.datastore.Query.SortDirection;
-import com.google.appengine.api.datastore.QueryResultList;
 import com.google.appengine.api.datastore.Text;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
@@ -37,16 +29,29 @@ import com.google.sps.data.SearchServletResponse;
 import java.io.IOException;
 import java.text.ParseException;
 import java.util.ArrayList;
-import java.util.stream.Stream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that searches and returns matching receipts from datastore. */
+/** Servlet that searches and returns matching receipts from the receipt repository. */
 @WebServlet("/search-receipts")
 public class SearchServlet extends HttpServlet {
   private static final int RECEIPTS_PER_PAGE = 10;
+  // Maximum number of receipts read to fill a page when filtering by price.
+  private static final int MAX_RECEIPTS_SCANNED_PER_PAGE = 500;
+  // Datastore gets at most 1000 entities per call, so keyword matches are read in batches.
+  private static final int MAX_RECEIPTS_PER_GET = 1000;
 
   /** Messages that show up on client-side banner on thrown exception. */
   private static final String NULL_EXCEPTION_MESSAGE =
@@ -55,18 +60,32 @@ public class SearchServlet extends HttpServlet {
       "Invalid Price: Receipt unable to be queried at this time, please try again.";
   private static final String PARSE_EXCEPTION_MESSAGE =
       "Dates Unparseable: Receipt unable to be queried at this time, please try again.";
+  private static final String CURSOR_EXCEPTION_MESSAGE =
+      "Invalid Cursor: Receipt unable to be queried at this time, please try again.";
   private static final String AUTHENTICATION_ERROR_MESSAGE =
       "No Authentication: User must be logged in to search receipts.";
 
-  private final DatastoreService datastore;
+  private static final Logger logger = Logger.getLogger(SearchServlet.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final SearchCache searchCache;
   private final UserService userService = UserServiceFactory.getUserService();
 
   public SearchServlet() {
-    datastore = DatastoreServiceFactory.getDatastoreService();
+    this(ReceiptRepositories.getSharedInstance(), SearchCache.getSharedInstance());
   }
 
   public SearchServlet(DatastoreService datastore) {
-    this.datastore = datastore;
+    this(datastore, new SearchCache(/* maxMemoryBytes = */ 1024 * 1024, 5, TimeUnit.MINUTES));
+  }
+
+  public SearchServlet(DatastoreService datastore, SearchCache searchCache) {
+    this(new DatastoreReceiptRepository(datastore), searchCache);
+  }
+
+  public SearchServlet(ReceiptRepository receipts, SearchCache searchCache) {
+    this.receipts = receipts;
+    this.searchCache = searchCache;
   }
 
   @Override
@@ -77,13 +96,14 @@ public class SearchServlet extends HttpServlet {
       return;
     }
 
-    Query query = null;
     QueryInformation queryInformation = null;
+    boolean isPageLoad = checkParameter(request, "isPageLoad");
+    // Searches for words in the receipt text are answered from the text index instead of a query.
+    ImmutableSet<String> keywords = isPageLoad
+        ? ImmutableSet.of()
+        : ReceiptTextIndex.tokenize(Strings.nullToEmpty(request.getParameter("keywords")));
 
-    // Query is set differently based on type of search.
-    if (checkParameter(request, "isPageLoad")) {
-      query = getQuery(/* isPageLoad = */ true, queryInformation);
-    } else {
+    if (!isPageLoad) {
       try {
         queryInformation = createQueryInformation(request);
       } catch (NullPointerException exception) {
@@ -99,25 +119,51 @@ public class SearchServlet extends HttpServlet {
         response.getWriter().println(PARSE_EXCEPTION_MESSAGE);
         return;
       }
-      query = getQuery(/* isPageLoad = */ false, queryInformation);
     }
 
-    QueryResultList<Entity> results = null;
+    // Pages that were already fetched since the user last changed a receipt are cached.
+    boolean isNextPage = checkParameter(request, "getNextPage");
+    String pageDirection = isNextPage ? "next" : "first";
+    Optional<String> cacheKey = searchCache.getKey(userService.getCurrentUser().getUserId(),
+        queryInformation, keywords, pageDirection, request.getParameter("encodedCursor"));
+    Optional<String> cachedJson = cacheKey.flatMap(searchCache::get);
+    if (cachedJson.isPresent()) {
+      response.setContentType("application/json;");
+      response.getWriter().println(cachedJson.get());
+      return;
+    }
+
+    SearchServletResponse servletResponse = null;
 
     // Results retrieved differently based on type of search.
-    if (checkParameter(request, "getNextPage")) {
-      results = getNextPage(request.getParameter("encodedCursor"), query);
-    } else if (checkParameter(request, "getPreviousPage")) {
-      results = getPreviousPage(request.getParameter("encodedCursor"), query);
+    if (!keywords.isEmpty()) {
+      try {
+        servletResponse = searchByKeywords(keywords, queryInformation,
+            request.getParameter("encodedCursor"), isNextPage);
+      } catch (NumberFormatException exception) {
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.getWriter().println(CURSOR_EXCEPTION_MESSAGE);
+        return;
+      }
     } else {
-      results = getFirstPage(query);
+      Optional<String> encodedCursor = isNextPage
+          ? Optional.of(request.getParameter("encodedCursor")).filter(cursor -> !cursor.isEmpty())
+          : Optional.empty();
+      String userId = userService.getCurrentUser().getUserId();
+      SearchPageFetcher.Page page = isPageLoad
+          ? receipts.query(userId, encodedCursor, RECEIPTS_PER_PAGE)
+          : receipts.query(userId, queryInformation, encodedCursor, RECEIPTS_PER_PAGE,
+              MAX_RECEIPTS_SCANNED_PER_PAGE);
+      servletResponse = createServletResponse(page);
     }
 
-    SearchServletResponse servletResponse = createServletResponse(results, queryInformation);
-
     Gson gson = new Gson();
+    String json = gson.toJson(servletResponse);
+    cacheKey.ifPresent(key -> searchCache.put(key, json));
+    logger.fine(String.format("Search cache hit ratio: %.2f", searchCache.getHitRatio()));
+
     response.setContentType("application/json;");
-    response.getWriter().println(gson.toJson(servletResponse));
+    response.getWriter().println(json);
   }
 
   /**
@@ -143,98 +189,117 @@ public class SearchServlet extends HttpServlet {
   }
 
   /**
-   * Gets next receipts page from an existing query.
-   * @return list of receipts as entities.
-   */
-  private QueryResultList<Entity> getNextPage(String encodedCursor, Query query) {
-    Cursor cursor = Cursor.fromWebSafeString(encodedCursor);
-    FetchOptions options = FetchOptions.Builder.withStartCursor(cursor);
-    options.limit(RECEIPTS_PER_PAGE);
-
-    return datastore.prepare(query).asQueryResultList(options);
-  }
-
-  /**
-   * Gets previous receipts page from an existing query.
-   * @return list of receipts as entities.
-   */
-  private QueryResultList<Entity> getPreviousPage(String encodedCursor, Query query) {
-    Cursor cursor = Cursor.fromWebSafeString(encodedCursor);
-    FetchOptions options = FetchOptions.Builder.withEndCursor(cursor);
-    options.limit(RECEIPTS_PER_PAGE);
-
-    return datastore.prepare(query).asQueryResultList(options);
-  }
-
-  /**
-   * Gets first receipts page from a new query.
-   * @return list of receipts as entities.
+   * Gets a page of the receipts whose text contains every keyword and that match the query
+   * information, newest first. The first page of a search reads every receipt the text index
+   * matches, in batches, and keeps the IDs of those that pass the filters in timestamp order. The
+   * sorted IDs are cached with the search, so later pages only read their own receipts, and the
+   * cursor is the index of the receipt after the page.
    */
-  private QueryResultList<Entity> getFirstPage(Query query) {
-    PreparedQuery preparedQuery = datastore.prepare(query);
-    QueryResultList<Entity> results =
-        preparedQuery.asQueryResultList(FetchOptions.Builder.withLimit(RECEIPTS_PER_PAGE));
+  private SearchServletResponse searchByKeywords(ImmutableSet<String> keywords,
+      QueryInformation queryInformation, String encodedCursor, boolean isNextPage)
+      throws NumberFormatException {
+    int cursor = isNextPage && !Strings.isNullOrEmpty(encodedCursor)
+        ? Integer.parseUnsignedInt(encodedCursor)
+        : 0;
+    String userId = userService.getCurrentUser().getUserId();
+
+    Optional<String> matchesKey = searchCache.getKey(
+        userId, queryInformation, keywords, /* pageDirection = */ "matches", "");
+    Optional<long[]> cachedMatches =
+        matchesKey.flatMap(searchCache::get).map(SearchServlet::decodeIds);
+    long[] matchingIds;
+    int scannedReceipts;
+    if (cachedMatches.isPresent()) {
+      matchingIds = cachedMatches.get();
+      scannedReceipts = 0;
+    } else {
+      long[] ids = receipts.searchText(userId, keywords);
+      matchingIds = getMatchingIdsNewestFirst(ids, userId, queryInformation);
+      scannedReceipts = ids.length;
+      matchesKey.ifPresent(key -> searchCache.put(key, encodeIds(matchingIds)));
+    }
 
-    return results;
+    int startIndex = Math.min(matchingIds.length, cursor);
+    int endIndex = Math.min(matchingIds.length, startIndex + RECEIPTS_PER_PAGE);
+    List<Long> pageIds = Arrays.stream(matchingIds, startIndex, endIndex)
+                             .boxed()
+                             .collect(Collectors.toList());
+    Map<Long, Entity> pageReceipts = receipts.get(pageIds);
+    ImmutableList<Receipt> page = pageIds.stream()
+                                      .map(pageReceipts::get)
+                                      .filter(Objects::nonNull)
+                                      .map(this::createReceiptFromEntity)
+                                      .collect(ImmutableList.toImmutableList());
+
+    return new SearchServletResponse(
+        page, Integer.toString(endIndex), scannedReceipts + pageIds.size());
   }
 
   /**
-   * Creates query to be used to retrieve receipts from datastore.
-   * @param isPageLoad If true, gets all receipts, else gets receipts matching queryInformation.
+   * Reads the receipts with the IDs in batches and returns the IDs of those that match the query
+   * information, newest first. Only the ID and timestamp of each match are kept, so the receipts of
+   * a batch can be released before the next batch is read.
    */
-  private Query getQuery(boolean isPageLoad, QueryInformation queryInformation) {
-    Query query = new Query("Receipt")
-                      .addSort("timestamp", SortDirection.DESCENDING)
-                      .addSort("__key__", SortDirection.DESCENDING);
-    query.addFilter("userId", Query.FilterOperator.EQUAL, userService.getCurrentUser().getUserId());
-
-    // Don't need to set any other filters if it's a pageLoad event.
-    if (!isPageLoad) {
-      setupQuery(query, queryInformation);
+  private long[] getMatchingIdsNewestFirst(
+      long[] ids, String userId, QueryInformation queryInformation) {
+    Predicate<Entity> filter = createKeywordSearchFilter(userId, queryInformation);
+    List<long[]> matches = new ArrayList<>();
+
+    for (int start = 0; start < ids.length; start += MAX_RECEIPTS_PER_GET) {
+      int end = Math.min(ids.length, start + MAX_RECEIPTS_PER_GET);
+      List<Long> batch = Arrays.stream(ids, start, end).boxed().collect(Collectors.toList());
+      for (Entity receipt : receipts.get(batch).values()) {
+        if (filter.test(receipt)) {
+          matches.add(
+              new long[] {(Long) receipt.getProperty("timestamp"), receipt.getKey().getId()});
+        }
+      }
     }
 
-    return query;
+    return matches.stream()
+        .sorted(Comparator.comparingLong((long[] match) -> match[0])
+                    .thenComparingLong(match -> match[1])
+                    .reversed())
+        .mapToLong(match -> match[1])
+        .toArray();
   }
 
-  /** Sets up a {@link Query} with filters set based on which values were input by user. */
-  private void setupQuery(Query query, QueryInformation queryInformation) {
-    query.addFilter("timestamp", Query.FilterOperator.GREATER_THAN_OR_EQUAL,
-        queryInformation.getStartTimestamp());
-    query.addFilter(
-        "timestamp", Query.FilterOperator.LESS_THAN_OR_EQUAL, queryInformation.getEndTimestamp());
+  /** Encodes receipt IDs to be cached with a search. */
+  private static String encodeIds(long[] ids) {
+    return Arrays.stream(ids)
+        .mapToObj(id -> Long.toString(id, Character.MAX_RADIX))
+        .collect(Collectors.joining(","));
+  }
 
-    if (queryInformation.getCategory() != null && queryInformation.getCategory().size() != 0) {
-      query.addFilter("categories", Query.FilterOperator.IN, queryInformation.getCategory());
+  /** Decodes receipt IDs encoded by {@link #encodeIds}. */
+  private static long[] decodeIds(String encodedIds) {
+    if (encodedIds.isEmpty()) {
+      return new long[0];
     }
 
-    if (!Strings.isNullOrEmpty(queryInformation.getStore())) {
-      query.addFilter("store", Query.FilterOperator.EQUAL, queryInformation.getStore());
-    }
+    return Arrays.stream(encodedIds.split(","))
+        .mapToLong(id -> Long.parseLong(id, Character.MAX_RADIX))
+        .toArray();
   }
 
-  /** Creates a SearchServletResponse object containing information for the client. */
-  private SearchServletResponse createServletResponse(
-      QueryResultList<Entity> results, QueryInformation queryInformation) {
-    ImmutableList<Receipt> receipts = entitiesListToReceiptsList(results, queryInformation);
-    String encodedCursor = results.getCursor().toWebSafeString();
-    return new SearchServletResponse(receipts, encodedCursor);
+  /** Returns a filter that matches the user's receipts that match the query information. */
+  private static Predicate<Entity> createKeywordSearchFilter(
+      String userId, QueryInformation queryInformation) {
+    return receipt
+        -> userId.equals(receipt.getProperty("userId")) && queryInformation.matches(receipt);
   }
 
-  private ImmutableList<Receipt> entitiesListToReceiptsList(
-      QueryResultList<Entity> results, QueryInformation queryInformation) {
-    Stream<Receipt> receipts = results.stream().map(this::createReceiptFromEntity);
-
-    if (queryInformation != null) {
-      /**
-       * Datastore doesn't support queries with multiple inequality filters
-       * (i.e price and timestamp) so price filtering is manually done here.
-       */
-      receipts = receipts.filter(receipt
-          -> receipt.getPrice() >= queryInformation.getMinPrice()
-              && receipt.getPrice() <= queryInformation.getMaxPrice());
-    }
-
-    return receipts.collect(ImmutableList.toImmutableList());
+  /** Creates a SearchServletResponse object containing a page of receipts for the client. */
+  private SearchServletResponse createServletResponse(SearchPageFetcher.Page page) {
+    ImmutableList<Receipt> receipts = page.getEntities()
+                                          .stream()
+                                          .map(this::createReceiptFromEntity)
+                                          .collect(ImmutableList.toImmutableList());
+    logger.fine(String.format("Scanned %d receipts to return %d.", page.getScannedEntities(),
+        receipts.size()));
+
+    return new SearchServletResponse(
+        receipts, page.getEncodedCursor(), page.getScannedEntities());
   }
 
   /** Creates a {@link Receipt} from an {@link Entity}. */
@@ -247,8 +312,9 @@ public class SearchServlet extends HttpServlet {
     String store = (String) entity.getProperty("store");
     ImmutableSet<String> categories =
         ImmutableSet.copyOf((ArrayList) entity.getProperty("categories"));
-    // String rawText = (new Text((String) entity.getProperty("rawText"))).getValue();
-    String rawText = "Test";
+    Object storedRawText = entity.getProperty("rawText");
+    String rawText = storedRawText instanceof Text ? ((Text) storedRawText).getValue()
+                                                   : Strings.nullToEmpty((String) storedRawText);
     return new Receipt(id, userId, timestamp, imageUrl, price, store, categories, rawText);
   }
 }
@@ -14,30 +14,212 @@
 
 package com.google.sps.servlets;
 
+import com.google.appengine.api.blobstore.BlobInfoFactory;
 import com.google.appengine.api.blobstore.BlobKey;
 import com.google.appengine.api.blobstore.BlobstoreService;
 import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.appengine.api.blobstore.RangeFormatException;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.base.Strings;
+import com.google.common.util.concurrent.MoreExecutors;
 import java.io.IOException;
+import java.util.Arrays;
+import java.util.Optional;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
 /**
- * Servlet with a GET handler that serves a blob using the Blobstore API.
+ * Servlet with a GET handler that serves a blob using the Blobstore API. Only the user whose
+ * receipt has the image may get it, which is checked against the {@link ImageOwnershipCache}.
+ *
+ * <p>A blob's contents never change once it's uploaded, so each image is served with a strong ETag
+ * derived from its blob key and may be cached indefinitely. Browsers that already have the image
+ * revalidate with If-None-Match and get an empty 304 response, and partial fetches with a single
+ * byte range are served only that range. Originals are served from the instance's {@link
+ * ImageDiskCache} when they fit in it, and from Blobstore otherwise.
+ *
+ * <p>The optional size parameter, "small" or "medium", serves a scaled down JPEG of the image from
+ * {@link ImageVariants} instead, so that pages with many receipts don't load every full photo. A
+ * size whose variant couldn't be created is served the original under the original's ETag, and is
+ * only cached for a day since a variant could be created later.
  */
 @WebServlet("/serve-image")
 public class ServeImageServlet extends HttpServlet {
-  private BlobstoreService blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
+  // Images are private to their user, so they're only cached by the user's browser.
+  private static final String CACHE_CONTROL = "private, max-age=31536000, immutable";
+  // A size served as the original could get its variant later, so it's revalidated after a day.
+  private static final String FALLBACK_CACHE_CONTROL = "private, max-age=86400";
+  private static final String MISSING_BLOB_KEY_MESSAGE = "Request must include a blob-key.";
+  private static final String NO_AUTHENTICATION_MESSAGE =
+      "No Authentication: User must be logged in to view receipt images.";
+  // Images of other users are reported as missing, so that their blob keys aren't confirmed.
+  private static final String IMAGE_NOT_FOUND_MESSAGE = "No receipt image has this blob-key.";
+  private static final String INVALID_SIZE_MESSAGE = "Size must be small, medium, or original.";
+  private static final String ORIGINAL_SIZE = "original";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(ServeImageServlet.class.getName());
+
+  private final BlobstoreService blobstoreService;
+  private final ImageVariants imageVariants;
+  private final ImageDiskCache imageDiskCache;
+  private final ImageOwnershipCache imageOwnershipCache;
+  private final UserService userService = UserServiceFactory.getUserService();
+
+  public ServeImageServlet() {
+    // Originals are read on the request thread, since a variant is only created once per image.
+    this(BlobstoreServiceFactory.getBlobstoreService(),
+        new ImageVariants(ReceiptRepositories.getSharedInstance(),
+            new ImageBytesReader(BlobstoreServiceFactory.getBlobstoreService(),
+                new BlobInfoFactory(), MoreExecutors.directExecutor(),
+                /* maxConcurrentFetches = */ 1)),
+        ImageDiskCache.getSharedInstance(),
+        new ImageOwnershipCache(ReceiptRepositories.getSharedInstance()));
+  }
+
+  public ServeImageServlet(BlobstoreService blobstoreService, ImageVariants imageVariants,
+      ImageDiskCache imageDiskCache, ImageOwnershipCache imageOwnershipCache) {
+    this.blobstoreService = blobstoreService;
+    this.imageVariants = imageVariants;
+    this.imageDiskCache = imageDiskCache;
+    this.imageOwnershipCache = imageOwnershipCache;
+  }
 
   /**
-   * Uses the blob key in the query string to serve a blob through Blobstore.
+   * Uses the blob key in the query string to serve a blob of the user's through Blobstore, or
+   * responds that the client's cached copy is still valid.
    */
   @Override
   public void doGet(HttpServletRequest req, HttpServletResponse res) throws IOException {
-    BlobKey blobKey = new BlobKey(req.getParameter("blob-key"));
+    if (!userService.isUserLoggedIn()) {
+      res.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      res.getWriter().println(NO_AUTHENTICATION_MESSAGE);
+      return;
+    }
+
+    String blobKeyString = req.getParameter("blob-key");
+    if (Strings.isNullOrEmpty(blobKeyString)) {
+      res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      res.getWriter().println(MISSING_BLOB_KEY_MESSAGE);
+      return;
+    }
+
+    String userId = userService.getCurrentUser().getUserId();
+    if (!imageOwnershipCache.isOwner(userId, blobKeyString)) {
+      res.setStatus(HttpServletResponse.SC_NOT_FOUND);
+      res.getWriter().println(IMAGE_NOT_FOUND_MESSAGE);
+      return;
+    }
+
+    String sizeName = req.getParameter("size");
+    Optional<ImageVariants.Size> size = Optional.empty();
+    if (!Strings.isNullOrEmpty(sizeName) && !sizeName.equals(ORIGINAL_SIZE)) {
+      size = ImageVariants.Size.fromName(sizeName);
+      if (!size.isPresent()) {
+        res.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        res.getWriter().println(INVALID_SIZE_MESSAGE);
+        return;
+      }
+    }
+
+    BlobKey blobKey = new BlobKey(blobKeyString);
+    String etag = getETag(blobKey, size);
+    res.setHeader("ETag", etag);
+    res.setHeader("Cache-Control", CACHE_CONTROL);
+
+    if (matchesETag(req.getHeader("If-None-Match"), etag)) {
+      res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+      return;
+    }
+
+    if (size.isPresent()) {
+      Optional<byte[]> variant = imageVariants.get(blobKey, size.get());
+      if (variant.isPresent()) {
+        // Variants are small, so they're always served whole.
+        res.setContentType("image/jpeg");
+        res.setContentLength(variant.get().length);
+        res.getOutputStream().write(variant.get());
+        return;
+      }
+
+      // The variant couldn't be created, so the original is served under its own ETag and without
+      // immutable, rather than being cached indefinitely as the variant.
+      etag = getETag(blobKey, Optional.empty());
+      res.setHeader("ETag", etag);
+      res.setHeader("Cache-Control", FALLBACK_CACHE_CONTROL);
+      if (matchesETag(req.getHeader("If-None-Match"), etag)) {
+        res.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+        return;
+      }
+    }
+
+    res.setHeader("Accept-Ranges", "bytes");
+    ByteRange range = getRange(req, etag);
+    if (imageDiskCache.serve(blobKey, range, res)) {
+      return;
+    }
+
+    // Replace the body of the response with the content of the blob, or the requested range of it.
+    if (range == null) {
+      blobstoreService.serve(blobKey, res);
+    } else {
+      blobstoreService.serve(blobKey, range, res);
+    }
+  }
+
+  @Override
+  public void destroy() {
+    logger.info("Shut down image serving after " + imageDiskCache.getMetrics() + ".");
+  }
+
+  /**
+   * Returns a strong ETag for the blob at the size, which is unique to its immutable contents. A
+   * size that is served as the original has its own ETag too, since the original could be served
+   * differently, such as with byte ranges.
+   */
+  private static String getETag(BlobKey blobKey, Optional<ImageVariants.Size> size) {
+    String sizeSuffix = size.map(value -> "-" + value.name().toLowerCase()).orElse("");
+    return '"' + blobKey.getKeyString() + sizeSuffix + '"';
+  }
+
+  /** Checks if the comma separated list of ETags from a request header contains the ETag. */
+  private static boolean matchesETag(String header, String etag) {
+    if (Strings.isNullOrEmpty(header)) {
+      return false;
+    }
+
+    // If-None-Match uses weak comparison, so a weak tag for the same blob matches too.
+    return Arrays.stream(header.split(","))
+        .map(String::trim)
+        .map(tag -> tag.startsWith("W/") ? tag.substring(2) : tag)
+        .anyMatch(tag -> tag.equals("*") || tag.equals(etag));
+  }
+
+  /**
+   * Returns the single byte range requested, or null to serve the whole blob. Requests without a
+   * Range header, with a range Blobstore can't serve such as multiple ranges, or with an If-Range
+   * validator for other contents get the whole blob.
+   */
+  private static ByteRange getRange(HttpServletRequest req, String etag) {
+    String rangeHeader = req.getHeader("Range");
+    if (Strings.isNullOrEmpty(rangeHeader)) {
+      return null;
+    }
+
+    String ifRange = req.getHeader("If-Range");
+    if (!Strings.isNullOrEmpty(ifRange) && !ifRange.trim().equals(etag)) {
+      return null;
+    }
 
-    // Replace the body of the response with the content of the blob.
-    blobstoreService.serve(blobKey, res);
+    try {
+      return ByteRange.parse(rangeHeader);
+    } catch (RangeFormatException exception) {
+      return null;
+    }
   }
 }
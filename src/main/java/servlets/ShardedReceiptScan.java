@@ -0,0 +1,228 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.PropertyProjection;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.QueryResultIterator;
+import com.google.common.collect.ImmutableMap;
+import com.google.sps.data.UserSpendingSummary;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+
+/**
+ * Totals every receipt of a user by splitting them into shards of receipt IDs that are queried
+ * concurrently. Each shard's query is started before any of them are read, so their first batches
+ * are fetched in parallel, and each shard is totaled separately before the totals are merged.
+ *
+ * <p>Shards are ranges of IDs rather than timestamps, since receipts whose date couldn't be parsed
+ * don't have a timestamp and wouldn't be in any timestamp range. Receipt IDs are allocated
+ * uniformly at random, so equal ranges of IDs hold about the same number of receipts.
+ *
+ * <p>Receipts are read with projection queries of the summed properties, one query per property,
+ * rather than as whole entities with their raw text. A projection skips receipts without the
+ * property, so a receipt without a store still has its price read, and categories are read as one
+ * result per category. The results are put back together by receipt key.
+ */
+public final class ShardedReceiptScan {
+  // Each shard is meant to be fetched in about one batch.
+  private static final int RECEIPTS_PER_SHARD = 500;
+  private static final int MAX_SHARDS = 16;
+  // Properties that summaries are totaled from, and the types they are projected to.
+  private static final ImmutableMap<String, Class<?>> SUMMED_PROPERTIES = ImmutableMap.of(
+      "price", Double.class, "store", String.class, "categories", String.class,
+      "timestamp", Long.class);
+
+  private final AsyncDatastoreService datastore;
+
+  public ShardedReceiptScan(AsyncDatastoreService datastore) {
+    this.datastore = datastore;
+  }
+
+  /** Returns the user's spending summary and buckets, totaled from every receipt. */
+  public Totals scan(String userId) {
+    Optional<Long> minId = getBoundaryId(userId, Query.SortDirection.ASCENDING);
+    if (!minId.isPresent()) {
+      return new Totals();
+    }
+    long maxId = getBoundaryId(userId, Query.SortDirection.DESCENDING).get();
+
+    int shards = getShardCount(countReceipts(userId));
+    List<List<QueryResultIterator<Entity>>> shardResults = new ArrayList<>();
+    for (int shard = 0; shard < shards; shard++) {
+      long startId = getShardStartId(minId.get(), maxId, shards, shard);
+      long endId = getShardStartId(minId.get(), maxId, shards, shard + 1);
+
+      List<QueryResultIterator<Entity>> propertyResults = new ArrayList<>();
+      SUMMED_PROPERTIES.forEach((property, type) -> propertyResults.add(
+          datastore.prepare(createShardQuery(userId, startId, endId, property, type))
+              .asQueryResultIterator(FetchOptions.Builder.withChunkSize(RECEIPTS_PER_SHARD)
+                                         .prefetchSize(RECEIPTS_PER_SHARD))));
+      shardResults.add(propertyResults);
+    }
+
+    Totals totals = new Totals();
+    for (List<QueryResultIterator<Entity>> propertyResults : shardResults) {
+      Totals shardTotals = new Totals();
+      joinProjections(propertyResults).forEach(shardTotals::addReceipt);
+      totals.merge(shardTotals);
+    }
+
+    return totals;
+  }
+
+  /**
+   * Returns the number of shards to split about the given number of receipts into, so that each
+   * shard has about RECEIPTS_PER_SHARD receipts, up to MAX_SHARDS.
+   */
+  public static int getShardCount(int estimatedReceipts) {
+    int shards = (estimatedReceipts + RECEIPTS_PER_SHARD - 1) / RECEIPTS_PER_SHARD;
+    return Math.max(1, Math.min(MAX_SHARDS, shards));
+  }
+
+  /**
+   * Returns the first ID of the shard, where the IDs from minId to maxId are split into equal
+   * ranges. The shard after the last one starts after maxId.
+   */
+  private static long getShardStartId(long minId, long maxId, int shards, int shard) {
+    if (shard == shards) {
+      return maxId + 1;
+    }
+
+    // Divides before multiplying, since IDs can be large enough to overflow. Rounding the size up
+    // can leave the last shards empty when there are fewer IDs than shards.
+    long shardSize = (maxId - minId) / shards + 1;
+    return Math.min(minId + shardSize * shard, maxId + 1);
+  }
+
+  /**
+   * Counts the user's receipts from their keys only, up to the most receipts that the maximum
+   * number of shards is meant to hold.
+   */
+  private int countReceipts(String userId) {
+    Query query = new Query("Receipt").setFilter(createUserFilter(userId)).setKeysOnly();
+    return datastore.prepare(query).countEntities(
+        FetchOptions.Builder.withLimit(RECEIPTS_PER_SHARD * MAX_SHARDS));
+  }
+
+  /** Returns the lowest or highest ID of the user's receipts, if they have any. */
+  private Optional<Long> getBoundaryId(String userId, Query.SortDirection direction) {
+    Query query = new Query("Receipt")
+                      .setFilter(createUserFilter(userId))
+                      .addSort(Entity.KEY_RESERVED_PROPERTY, direction)
+                      .setKeysOnly();
+
+    List<Entity> receipts =
+        datastore.prepare(query).asList(FetchOptions.Builder.withLimit(/* limit = */ 1));
+    return receipts.stream().findFirst().map(receipt -> receipt.getKey().getId());
+  }
+
+  /**
+   * Puts the projections of a shard's receipts back together into receipts with only the summed
+   * properties. The values of a multi-valued property are collected into a list.
+   */
+  private static Collection<Entity> joinProjections(
+      List<QueryResultIterator<Entity>> propertyResults) {
+    Map<Key, Entity> receipts = new HashMap<>();
+    for (QueryResultIterator<Entity> results : propertyResults) {
+      results.forEachRemaining(result -> {
+        Entity receipt = receipts.computeIfAbsent(result.getKey(), Entity::new);
+        result.getProperties().forEach((property, value) -> {
+          if (value == null) {
+            // Receipts with a null property don't count towards its totals.
+            return;
+          } else if (property.equals("categories")) {
+            if (!receipt.hasProperty(property)) {
+              receipt.setProperty(property, new ArrayList<String>());
+            }
+            ((List<Object>) receipt.getProperty(property)).add(value);
+          } else {
+            receipt.setProperty(property, value);
+          }
+        });
+      });
+    }
+
+    return receipts.values();
+  }
+
+  /** Creates a query that projects the shard's receipts to one property. */
+  private static Query createShardQuery(
+      String userId, long startId, long endId, String property, Class<?> type) {
+    return new Query("Receipt")
+        .setFilter(new Query.CompositeFilter(Query.CompositeFilterOperator.AND,
+            Arrays.asList(createUserFilter(userId),
+                new Query.FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                    Query.FilterOperator.GREATER_THAN_OR_EQUAL, createReceiptKey(startId)),
+                new Query.FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                    Query.FilterOperator.LESS_THAN, createReceiptKey(endId)))))
+        .addProjection(new PropertyProjection(property, type));
+  }
+
+  private static Query.Filter createUserFilter(String userId) {
+    return new Query.FilterPredicate("userId", Query.FilterOperator.EQUAL, userId);
+  }
+
+  private static Key createReceiptKey(long id) {
+    return KeyFactory.createKey("Receipt", id);
+  }
+
+  /**
+   * All-time and per bucket totals of some of a user's receipts. Merging is associative, so
+   * shards can be totaled separately and merged in any grouping.
+   */
+  public static final class Totals {
+    private final UserSpendingSummary summary = new UserSpendingSummary();
+    private final Map<String, UserSpendingSummary> buckets = new HashMap<>();
+
+    /** Adds the receipt to the all-time totals and to those of its week and month. */
+    public void addReceipt(Entity receipt) {
+      summary.addReceipt(receipt);
+
+      Long timestamp = (Long) receipt.getProperty("timestamp");
+      if (timestamp != null) {
+        for (String name : TimeBuckets.getBucketNames(timestamp)) {
+          buckets.computeIfAbsent(name, key -> new UserSpendingSummary()).addReceipt(receipt);
+        }
+      }
+    }
+
+    /** Adds the other totals to these totals. */
+    public void merge(Totals other) {
+      summary.addSummary(other.summary);
+      other.buckets.forEach((name, bucket) ->
+          buckets.computeIfAbsent(name, key -> new UserSpendingSummary()).addSummary(bucket));
+    }
+
+    public UserSpendingSummary getSummary() {
+      return summary;
+    }
+
+    /** Returns the totals of each bucket with receipts, by bucket name. */
+    public Map<String, UserSpendingSummary> getBuckets() {
+      return buckets;
+    }
+  }
+}
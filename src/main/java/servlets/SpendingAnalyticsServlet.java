@@ -15,39 +15,50 @@
 package com.google.sps.servlets;
 
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
-import com.google.appengine.api.datastore.Entity;
-import com.google.appengine.api.datastore.FetchOptions;
-import com.google.appengine.api.datastore.Query;
-import com.google.appengine.api.datastore.Query.FilterOperator;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
-import com.google.common.collect.ImmutableSet;
+import com.google.common.base.Strings;
 import com.google.gson.Gson;
+import com.google.sps.data.DateRange;
 import com.google.sps.data.SpendingAnalytics;
 import java.io.IOException;
-import java.util.HashMap;
-import java.util.stream.Stream;
+import java.text.ParseException;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.logging.Logger;
 import javax.servlet.annotation.WebServlet;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
 
-/** Servlet that computes user spending analytics from datastore data. */
+/**
+ * Servlet that computes user spending analytics from their stored receipts, optionally limited to
+ * the dateRange parameter in the timeZoneId time zone. With an interval parameter of "week" or
+ * "month", it instead returns the analytics of each UTC week or month with receipts, by period.
+ */
 @WebServlet("/compute-analytics")
 public class SpendingAnalyticsServlet extends HttpServlet {
   private static final String AUTHENTICATION_ERROR_MESSAGE =
       "No Authentication: User must be logged in to search receipts.";
+  private static final String INVALID_INTERVAL_MESSAGE = "Interval must be week or month: ";
 
-  private final DatastoreService datastore;
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(SpendingAnalyticsServlet.class.getName());
+
+  private final ReceiptRepository receipts;
   private final UserService userService = UserServiceFactory.getUserService();
 
   public SpendingAnalyticsServlet() {
-    datastore = DatastoreServiceFactory.getDatastoreService();
+    this(ReceiptRepositories.getSharedInstance());
   }
 
   public SpendingAnalyticsServlet(DatastoreService datastore) {
-    this.datastore = datastore;
+    this(new DatastoreReceiptRepository(datastore));
+  }
+
+  public SpendingAnalyticsServlet(ReceiptRepository receipts) {
+    this.receipts = receipts;
   }
 
   @Override
@@ -58,24 +69,64 @@ public class SpendingAnalyticsServlet extends HttpServlet {
       return;
     }
 
-    SpendingAnalytics analytics = getSpendingAnalytics();
+    String interval = request.getParameter("interval");
+    if (!Strings.isNullOrEmpty(interval)) {
+      Optional<TimeBuckets.Interval> parsedInterval = TimeBuckets.Interval.fromName(interval);
+      if (!parsedInterval.isPresent()) {
+        logger.warning(INVALID_INTERVAL_MESSAGE + interval);
+        response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+        response.getWriter().println(INVALID_INTERVAL_MESSAGE + interval);
+        return;
+      }
+
+      response.setContentType("application/json;");
+      response.getWriter().println(new Gson().toJson(getSpendingSeries(parsedInterval.get())));
+      return;
+    }
+
+    SpendingAnalytics analytics;
+    try {
+      analytics = getSpendingAnalytics(request);
+    } catch (ParseException exception) {
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(exception.toString());
+      return;
+    }
 
     Gson gson = new Gson();
     response.setContentType("application/json;");
     response.getWriter().println(gson.toJson(analytics));
   }
 
-  /** Returns information for both category and store analytics. */
-  private SpendingAnalytics getSpendingAnalytics() {
-    Query query = new Query("Receipt");
-    query.addFilter("userId", Query.FilterOperator.EQUAL, userService.getCurrentUser().getUserId());
-    ImmutableSet<Entity> allReceipts = datastore.prepare(query)
-                                           .asList(FetchOptions.Builder.withDefaults())
-                                           .stream()
-                                           .collect(ImmutableSet.toImmutableSet());
+  /**
+   * Returns information for both category and store analytics, which are read from the user's
+   * spending summary rather than computed from every receipt. If the request has a date range,
+   * only spending in that range is included.
+   */
+  private SpendingAnalytics getSpendingAnalytics(HttpServletRequest request)
+      throws ParseException {
+    String userId = userService.getCurrentUser().getUserId();
+    String dateRange = request.getParameter("dateRange");
+    if (Strings.isNullOrEmpty(dateRange)) {
+      return receipts.getSummary(userId).toAnalytics();
+    }
 
-    SpendingAnalytics analytics = new SpendingAnalytics(allReceipts);
+    DateRange range = new DateRange(request.getParameter("timeZoneId"), dateRange);
+    return receipts.getSummary(userId, range.getStartTimestamp(), range.getEndTimestamp())
+        .toAnalytics();
+  }
 
-    return analytics;
+  /**
+   * Returns the analytics of each week or month that has receipts, in chronological order. They
+   * are read from the buckets of the user's spending summary in a single query, so a chart of
+   * spending over time doesn't need a request per period.
+   */
+  private Map<String, SpendingAnalytics> getSpendingSeries(TimeBuckets.Interval interval) {
+    String userId = userService.getCurrentUser().getUserId();
+    Map<String, SpendingAnalytics> series = new LinkedHashMap<>();
+    receipts.getSummarySeries(userId, interval)
+        .forEach((period, summary) -> series.put(period, summary.toAnalytics()));
+    return series;
   }
-}
\ No newline at end of file
+}
@@ -0,0 +1,750 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.AsyncDatastoreService;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Transaction;
+import com.google.appengine.api.datastore.TransactionOptions;
+import com.google.common.collect.MapDifference;
+import com.google.common.collect.Range;
+import com.google.sps.data.UserSpendingSummary;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.ConcurrentModificationException;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Random;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.logging.Logger;
+import java.util.stream.Collectors;
+
+/**
+ * Writes receipts along with the {@link UserSpendingSummary} of their user, so that analytics can
+ * be read with a single lookup. Every write to a receipt goes through this class, which applies the
+ * difference between the stored receipt and the new one to the summary in the same cross-group
+ * transaction. The words of the receipts' text are updated in the user's {@link ReceiptTextIndex}
+ * in the same transaction, and each write also invalidates the user's cached search results.
+ *
+ * <p>Each summary also has children with the totals of every week and month the user has receipts
+ * in, which are updated along with it. Spending over a date range is read from the buckets inside
+ * the range and the receipts at its edges, rather than from every receipt in the range.
+ *
+ * <p>Users whose receipts were stored before summaries existed don't have one yet. Writes leave
+ * their summary missing, and it is computed from every receipt the first time it is read. The
+ * request that first reads it stores a pending summary with a build ID, and every write while it
+ * is pending increments its version. The computed summary is only stored if the version didn't
+ * change during the scan, so writes made while the receipts were read are never lost. Other
+ * requests wait for the build rather than scanning every receipt too.
+ */
+public final class SpendingSummaries {
+  public static final String BUCKET_KIND = "SpendingBucket";
+  // Properties of a summary that is being computed from every receipt.
+  public static final String PENDING_SINCE_PROPERTY = "pendingSince";
+  public static final String BUILD_ID_PROPERTY = "buildId";
+  public static final String VERSION_PROPERTY = "version";
+
+  // Transactions that conflict with a concurrent write to the same summary are retried.
+  private static final int MAX_TRANSACTION_ATTEMPTS = 3;
+  // Each receipt is its own entity group, and the summary and text index take up two of the 25
+  // allowed.
+  private static final int MAX_RECEIPTS_PER_TRANSACTION = 23;
+  // A transaction commits at most 500 mutations, including the summary and its time buckets.
+  private static final int MAX_MUTATIONS_PER_TRANSACTION = 500;
+  private static final int SUMMARY_MUTATIONS = 1;
+  private static final int BUCKETS_PER_RECEIPT = 2;
+  // Receipts at the edges of a date range are fetched in large chunks to cut round trips.
+  private static final int RECEIPTS_PER_BATCH = 500;
+  // A series reads every bucket of its interval, which are fetched in large chunks too.
+  private static final int BUCKETS_PER_BATCH = 500;
+  // Scans that are interrupted by writes are repeated, and then left to a later read.
+  private static final int MAX_BUILD_ATTEMPTS = 3;
+  // A summary pending for longer than this was abandoned by its request and is built again.
+  private static final long BUILD_TIMEOUT_MILLIS = TimeUnit.MINUTES.toMillis(1);
+  // How long a read waits for another request to build the summary before scanning itself.
+  private static final long BUILD_WAIT_MILLIS = TimeUnit.SECONDS.toMillis(10);
+  private static final long BUILD_POLL_MILLIS = 250;
+  // Buckets of a build are stored in transactions with the pending summary, which can each
+  // write at most 500 entities.
+  private static final int BUCKETS_PER_TRANSACTION = 400;
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(SpendingSummaries.class.getName());
+
+  private final DatastoreService datastore;
+  private final ShardedReceiptScan receiptScan;
+  private final ReceiptTextIndex textIndex;
+
+  /**
+   * Creates summaries stored in the datastore. The asynchronous service must use the same
+   * Datastore, and is used to scan the receipts of a summary that's built from scratch.
+   */
+  public SpendingSummaries(DatastoreService datastore, AsyncDatastoreService asyncDatastore) {
+    this.datastore = datastore;
+    this.textIndex = new ReceiptTextIndex(datastore);
+    this.receiptScan = new ShardedReceiptScan(asyncDatastore);
+  }
+
+  /**
+   * Stores the receipts, which all belong to the same user, and updates their user's summary with
+   * the difference from the stored receipts. Receipts with incomplete keys are new and are assigned
+   * an ID. A transaction can write to at most 25 entity groups, including the summary's and text
+   * index's, and commit at most 500 mutations, so many receipts are stored in several transactions.
+   */
+  public void put(List<Entity> receipts) {
+    if (receipts.isEmpty()) {
+      return;
+    }
+
+    String userId = (String) receipts.get(0).getProperty("userId");
+    for (List<Entity> batch : partitionForTransactions(receipts)) {
+      runInTransaction(userId, (transaction, changes) -> {
+        for (Entity receipt : batch) {
+          getStoredReceipt(transaction, receipt.getKey()).ifPresent(changes::removeReceipt);
+          changes.addReceipt(receipt);
+        }
+
+        datastore.put(transaction, batch);
+      });
+    }
+  }
+
+  /** Stores the receipt and updates its user's summary. */
+  public void put(Entity receipt) {
+    put(Collections.singletonList(receipt));
+  }
+
+  /** Deletes the receipt, if it exists, and removes it from its user's summary. */
+  public void delete(Key receiptKey) {
+    Optional<Entity> receipt = getStoredReceipt(/* transaction = */ null, receiptKey);
+    if (!receipt.isPresent()) {
+      return;
+    }
+
+    String userId = (String) receipt.get().getProperty("userId");
+    runInTransaction(userId, (transaction, changes) -> {
+      // Reads the receipt again, since it could have been edited after it was read.
+      getStoredReceipt(transaction, receiptKey).ifPresent(changes::removeReceipt);
+      datastore.delete(transaction, receiptKey);
+    });
+  }
+
+  /**
+   * Reads the receipt in a transaction and, if it still exists and matches the condition, applies
+   * the update to a copy of it and stores the copy along with the change to its user's summary.
+   * Returns the updated receipt, or an empty optional if the receipt was deleted or no longer
+   * matches.
+   */
+  public Optional<Entity> update(
+      Key receiptKey, Predicate<Entity> condition, Consumer<Entity> update) {
+    Optional<Entity> receipt = getStoredReceipt(/* transaction = */ null, receiptKey);
+    if (!receipt.filter(condition).isPresent()) {
+      return Optional.empty();
+    }
+
+    String userId = (String) receipt.get().getProperty("userId");
+    AtomicReference<Entity> updatedReceipt = new AtomicReference<>();
+    runInTransaction(userId, (transaction, changes) -> {
+      // Reads the receipt again, since it could have been edited or deleted after it was read.
+      updatedReceipt.set(null);
+      getStoredReceipt(transaction, receiptKey).filter(condition).ifPresent(storedReceipt -> {
+        Entity newReceipt = storedReceipt.clone();
+        update.accept(newReceipt);
+        changes.removeReceipt(storedReceipt);
+        changes.addReceipt(newReceipt);
+        datastore.put(transaction, newReceipt);
+        updatedReceipt.set(newReceipt);
+      });
+    });
+
+    return Optional.ofNullable(updatedReceipt.get());
+  }
+
+  /** Returns the user's stored summary, or an empty optional if it isn't stored or is pending. */
+  public Optional<UserSpendingSummary> getStored(String userId) {
+    return getEntity(/* transaction = */ null, getSummaryKey(userId))
+        .filter(summaryEntity -> !isPending(summaryEntity))
+        .map(UserSpendingSummary::fromEntity);
+  }
+
+  /**
+   * Returns the user's summary. If the user doesn't have one yet, it is computed from every receipt
+   * and stored. If another request is already computing it, waits for that request to store it,
+   * and computes it without storing it if that takes too long.
+   */
+  public UserSpendingSummary get(String userId) {
+    Key summaryKey = getSummaryKey(userId);
+    long deadline = System.currentTimeMillis() + BUILD_WAIT_MILLIS;
+
+    while (true) {
+      Optional<Entity> summaryEntity = getEntity(/* transaction = */ null, summaryKey);
+      if (summaryEntity.isPresent() && !isPending(summaryEntity.get())) {
+        return UserSpendingSummary.fromEntity(summaryEntity.get());
+      }
+
+      Optional<Entity> build = startBuild(summaryKey, /* force = */ false);
+      if (build.isPresent()) {
+        return build(userId, build.get());
+      }
+
+      if (System.currentTimeMillis() >= deadline) {
+        logger.warning("Timed out waiting for the spending summary of user " + userId);
+        return receiptScan.scan(userId).getSummary();
+      }
+
+      try {
+        Thread.sleep(BUILD_POLL_MILLIS);
+      } catch (InterruptedException exception) {
+        Thread.currentThread().interrupt();
+        return receiptScan.scan(userId).getSummary();
+      }
+    }
+  }
+
+  /**
+   * Returns the user's spending between the timestamps, inclusive. Whole weeks and months in the
+   * range are read from their buckets, and only the receipts in the rest of the range are read.
+   */
+  public UserSpendingSummary get(String userId, long startTimestamp, long endTimestamp) {
+    Key summaryKey = getSummaryKey(userId);
+    // Buckets are only kept up to date once the user has a summary.
+    get(userId);
+    if (!getEntity(/* transaction = */ null, summaryKey).filter(entity -> !isPending(entity))
+             .isPresent()) {
+      // The summary couldn't be stored yet, so every receipt in the range is read.
+      UserSpendingSummary summary = new UserSpendingSummary();
+      addReceipts(summary, userId, Range.closedOpen(startTimestamp, endTimestamp + 1));
+      return summary;
+    }
+
+    TimeBuckets.Split split = TimeBuckets.split(startTimestamp, endTimestamp + 1);
+    List<Key> bucketKeys = split.getBucketNames().stream()
+                               .map(name -> getBucketKey(summaryKey, name))
+                               .collect(Collectors.toList());
+
+    UserSpendingSummary summary = new UserSpendingSummary();
+    for (Entity bucket : datastore.get(bucketKeys).values()) {
+      summary.addSummary(UserSpendingSummary.fromEntity(bucket));
+    }
+
+    for (Range<Long> range : split.getResidualRanges()) {
+      addReceipts(summary, userId, range);
+    }
+
+    return summary;
+  }
+
+  /**
+   * Returns the user's spending in each week or month that they have receipts in, by the bucket's
+   * period. The buckets are read with a single ancestor query over the names of the interval's
+   * buckets, rather than a lookup per period.
+   */
+  public SortedMap<String, UserSpendingSummary> getSeries(
+      String userId, TimeBuckets.Interval interval) {
+    Key summaryKey = getSummaryKey(userId);
+    SortedMap<String, UserSpendingSummary> series = new TreeMap<>();
+    // Buckets are only kept up to date once the user has a summary.
+    get(userId);
+    if (!getEntity(/* transaction = */ null, summaryKey).filter(entity -> !isPending(entity))
+             .isPresent()) {
+      // The summary couldn't be stored yet, so the buckets are computed from every receipt.
+      receiptScan.scan(userId).getBuckets().forEach((name, bucket) -> {
+        if (name.startsWith(interval.getNamePrefix())) {
+          series.put(interval.getPeriod(name), bucket);
+        }
+      });
+      return series;
+    }
+
+    // Names of the interval's buckets are at least the prefix and sort before the prefix followed
+    // by the largest character.
+    Key firstKey = getBucketKey(summaryKey, interval.getNamePrefix());
+    Key endKey = getBucketKey(summaryKey, interval.getNamePrefix() + Character.MAX_VALUE);
+    Query query = new Query(BUCKET_KIND, summaryKey)
+        .setFilter(new Query.CompositeFilter(Query.CompositeFilterOperator.AND,
+            Arrays.asList(new Query.FilterPredicate(Entity.KEY_RESERVED_PROPERTY,
+                              Query.FilterOperator.GREATER_THAN_OR_EQUAL, firstKey),
+                new Query.FilterPredicate(
+                    Entity.KEY_RESERVED_PROPERTY, Query.FilterOperator.LESS_THAN, endKey))));
+
+    FetchOptions options = FetchOptions.Builder.withChunkSize(BUCKETS_PER_BATCH);
+    for (Entity bucket : datastore.prepare(query).asIterable(options)) {
+      series.put(interval.getPeriod(bucket.getKey().getName()),
+          UserSpendingSummary.fromEntity(bucket));
+    }
+
+    return series;
+  }
+
+  /** Adds the user's receipts with timestamps in the range, which is closed-open. */
+  private void addReceipts(UserSpendingSummary summary, String userId, Range<Long> range) {
+    Query query = new Query("Receipt")
+        .setFilter(new Query.CompositeFilter(Query.CompositeFilterOperator.AND,
+            Arrays.asList(
+                new Query.FilterPredicate("userId", Query.FilterOperator.EQUAL, userId),
+                new Query.FilterPredicate("timestamp",
+                    Query.FilterOperator.GREATER_THAN_OR_EQUAL, range.lowerEndpoint()),
+                new Query.FilterPredicate(
+                    "timestamp", Query.FilterOperator.LESS_THAN, range.upperEndpoint()))));
+
+    FetchOptions options = FetchOptions.Builder.withChunkSize(RECEIPTS_PER_BATCH);
+    for (Entity receipt : datastore.prepare(query).asIterable(options)) {
+      summary.addReceipt(receipt);
+    }
+  }
+
+  /**
+   * Computes the user's summary and buckets from every receipt and stores them, replacing the
+   * stored ones. This repairs a summary that doesn't match the receipts. Takes over a build that
+   * another request has pending.
+   */
+  public UserSpendingSummary recompute(String userId) {
+    Key summaryKey = getSummaryKey(userId);
+    return build(userId, startBuild(summaryKey, /* force = */ true).get());
+  }
+
+  /**
+   * Marks the summary as pending with a new build ID, unless it is already stored or another
+   * build is in progress and force is false. Returns the pending summary entity if this request
+   * is the one to build it.
+   */
+  private Optional<Entity> startBuild(Key summaryKey, boolean force) {
+    long now = System.currentTimeMillis();
+
+    for (int attempt = 1;; attempt++) {
+      Transaction transaction = datastore.beginTransaction();
+      try {
+        Optional<Entity> storedEntity = getEntity(transaction, summaryKey);
+        if (!force && storedEntity.isPresent()
+            && (!isPending(storedEntity.get())
+                || now - (Long) storedEntity.get().getProperty(PENDING_SINCE_PROPERTY)
+                    < BUILD_TIMEOUT_MILLIS)) {
+          return Optional.empty();
+        }
+
+        Entity pendingEntity = new Entity(summaryKey);
+        pendingEntity.setUnindexedProperty(PENDING_SINCE_PROPERTY, now);
+        pendingEntity.setUnindexedProperty(BUILD_ID_PROPERTY, new Random().nextLong());
+        pendingEntity.setUnindexedProperty(VERSION_PROPERTY,
+            storedEntity.filter(SpendingSummaries::isPending).map(SpendingSummaries::getVersion)
+                .orElse(0L));
+        datastore.put(transaction, pendingEntity);
+        transaction.commit();
+        return Optional.of(pendingEntity);
+      } catch (ConcurrentModificationException exception) {
+        if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+          // Another request is starting a build too, so this one waits for it.
+          return Optional.empty();
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  /**
+   * Computes the pending summary from every receipt. The buckets are stored first, and the summary
+   * is stored last, only if no receipt was written since the scan started. Otherwise the scan is
+   * repeated, and after too many attempts the computed summary is returned without being stored,
+   * and a later read builds it again.
+   */
+  private UserSpendingSummary build(String userId, Entity pendingEntity) {
+    Key summaryKey = pendingEntity.getKey();
+    long buildId = (Long) pendingEntity.getProperty(BUILD_ID_PROPERTY);
+    long version = getVersion(pendingEntity);
+    UserSpendingSummary summary = new UserSpendingSummary();
+
+    for (int attempt = 1; attempt <= MAX_BUILD_ATTEMPTS; attempt++) {
+      ShardedReceiptScan.Totals totals = receiptScan.scan(userId);
+      summary = totals.getSummary();
+
+      try {
+        writeBuckets(summaryKey, buildId, totals.getBuckets());
+        Optional<Long> changedVersion = commitBuild(summaryKey, buildId, version, summary);
+        if (!changedVersion.isPresent()) {
+          SearchCache.invalidate(userId);
+          return summary;
+        }
+        version = changedVersion.get();
+      } catch (ConcurrentModificationException exception) {
+        // Another build is writing buckets too, and one of the two is abandoned on the next try.
+        continue;
+      } catch (BuildAbandonedException exception) {
+        logger.info("Stopped building the spending summary of user " + userId + ": " + exception);
+        return summary;
+      }
+    }
+
+    logger.warning("Receipts of user " + userId + " kept changing while their summary was built.");
+    return summary;
+  }
+
+  /**
+   * Stores the buckets of a build and deletes the other buckets, in transactions that check that
+   * the summary is still pending with the build's ID. Writes that happen while the summary is
+   * pending don't change its buckets, so these transactions only conflict with other builds.
+   */
+  private void writeBuckets(Key summaryKey, long buildId, Map<String, UserSpendingSummary> buckets)
+      throws BuildAbandonedException {
+    List<Entity> bucketEntities = new ArrayList<>();
+    buckets.forEach(
+        (name, bucket) -> bucketEntities.add(bucket.toEntity(getBucketKey(summaryKey, name))));
+    Query query = new Query(BUCKET_KIND).setAncestor(summaryKey).setKeysOnly();
+    List<Key> staleBucketKeys = new ArrayList<>();
+    for (Entity bucket : datastore.prepare(query).asIterable()) {
+      if (!buckets.containsKey(bucket.getKey().getName())) {
+        staleBucketKeys.add(bucket.getKey());
+      }
+    }
+
+    for (int start = 0; start < bucketEntities.size(); start += BUCKETS_PER_TRANSACTION) {
+      List<Entity> batch = bucketEntities.subList(
+          start, Math.min(bucketEntities.size(), start + BUCKETS_PER_TRANSACTION));
+      runInBuild(summaryKey, buildId, transaction -> datastore.put(transaction, batch));
+    }
+    for (int start = 0; start < staleBucketKeys.size(); start += BUCKETS_PER_TRANSACTION) {
+      List<Key> batch = staleBucketKeys.subList(
+          start, Math.min(staleBucketKeys.size(), start + BUCKETS_PER_TRANSACTION));
+      runInBuild(summaryKey, buildId, transaction -> datastore.delete(transaction, batch));
+    }
+  }
+
+  /**
+   * Stores the computed summary if it is still pending with the build's ID and version. Returns the
+   * new version if receipts were written since the version was read, so the build is repeated.
+   */
+  private Optional<Long> commitBuild(Key summaryKey, long buildId, long version,
+      UserSpendingSummary summary) throws BuildAbandonedException {
+    AtomicReference<Optional<Long>> changedVersion = new AtomicReference<>(Optional.empty());
+    runInBuild(summaryKey, buildId, transaction -> {
+      Entity pendingEntity = getEntity(transaction, summaryKey).get();
+      if (getVersion(pendingEntity) != version) {
+        changedVersion.set(Optional.of(getVersion(pendingEntity)));
+        return;
+      }
+      datastore.put(transaction, summary.toEntity(summaryKey));
+    });
+    return changedVersion.get();
+  }
+
+  /** Runs the writes in a transaction if the summary is still pending with the build's ID. */
+  private void runInBuild(Key summaryKey, long buildId, Consumer<Transaction> writes)
+      throws BuildAbandonedException {
+    Transaction transaction = datastore.beginTransaction();
+    try {
+      Optional<Entity> summaryEntity = getEntity(transaction, summaryKey);
+      if (!summaryEntity.filter(SpendingSummaries::isPending).isPresent()
+          || !summaryEntity.get().getProperty(BUILD_ID_PROPERTY).equals(buildId)) {
+        throw new BuildAbandonedException();
+      }
+
+      writes.accept(transaction);
+      transaction.commit();
+    } finally {
+      if (transaction.isActive()) {
+        transaction.rollback();
+      }
+    }
+  }
+
+  /**
+   * Compares the user's stored summary with one computed from every receipt, without changing the
+   * stored summary.
+   */
+  public ConsistencyReport check(String userId) {
+    Optional<UserSpendingSummary> storedSummary =
+        getEntity(/* transaction = */ null, getSummaryKey(userId))
+            .filter(entity -> !isPending(entity))
+            .map(UserSpendingSummary::fromEntity);
+
+    return new ConsistencyReport(storedSummary, receiptScan.scan(userId).getSummary());
+  }
+
+  /**
+   * Splits the receipts into batches that each fit in a transaction. A batch writes each receipt,
+   * the summary, the time buckets of each receipt, and the posting of each distinct word of the
+   * batch. A receipt that replaces a stored one also removes the stored receipt's buckets and
+   * words, which are assumed to be about as many as its own.
+   */
+  private static List<List<Entity>> partitionForTransactions(List<Entity> receipts) {
+    List<List<Entity>> batches = new ArrayList<>();
+    List<Entity> batch = new ArrayList<>();
+    Set<String> batchTokens = new HashSet<>();
+    int batchMutations = SUMMARY_MUTATIONS;
+
+    for (Entity receipt : receipts) {
+      int mutations = countMutations(receipt, batchTokens);
+      if (!batch.isEmpty()
+          && (batch.size() == MAX_RECEIPTS_PER_TRANSACTION
+              || batchMutations + mutations > MAX_MUTATIONS_PER_TRANSACTION)) {
+        batches.add(batch);
+        batch = new ArrayList<>();
+        batchTokens.clear();
+        batchMutations = SUMMARY_MUTATIONS;
+        mutations = countMutations(receipt, batchTokens);
+      }
+
+      batch.add(receipt);
+      batchTokens.addAll(ReceiptTextIndex.getTokens(receipt));
+      batchMutations += mutations;
+    }
+
+    batches.add(batch);
+    return batches;
+  }
+
+  /** Counts the mutations that storing the receipt adds to a batch with the given words. */
+  private static int countMutations(Entity receipt, Set<String> batchTokens) {
+    int newTokens = (int) ReceiptTextIndex.getTokens(receipt)
+                        .stream()
+                        .filter(token -> !batchTokens.contains(token))
+                        .count();
+    int replacementFactor = receipt.getKey().isComplete() ? 2 : 1;
+    return 1 + replacementFactor * (BUCKETS_PER_RECEIPT + newTokens);
+  }
+
+  /**
+   * Runs the update in a cross-group transaction that reads the user's summary and stores it,
+   * along with the buckets of the changed receipts, after the update changes them. The buckets are
+   * in the summary's entity group, so they don't count towards the transaction's limit. If the user
+   * doesn't have a summary, the update only writes receipts and their text index. If the summary is
+   * being built, the update also increments its version, so the build knows its scan may have
+   * missed the update.
+   */
+  private void runInTransaction(String userId, SummaryUpdate update) {
+    Key summaryKey = getSummaryKey(userId);
+
+    for (int attempt = 1;; attempt++) {
+      Transaction transaction = datastore.beginTransaction(TransactionOptions.Builder.withXG(true));
+
+      try {
+        Optional<Entity> summaryEntity = getEntity(transaction, summaryKey);
+        Optional<Entity> pendingEntity = summaryEntity.filter(SpendingSummaries::isPending);
+        SummaryChanges changes = new SummaryChanges(transaction, summaryKey,
+            summaryEntity.filter(entity -> !pendingEntity.isPresent())
+                .map(UserSpendingSummary::fromEntity),
+            textIndex.startChanges(transaction, userId));
+
+        update.apply(transaction, changes);
+        changes.write();
+        if (pendingEntity.isPresent()) {
+          pendingEntity.get().setUnindexedProperty(
+              VERSION_PROPERTY, getVersion(pendingEntity.get()) + 1);
+          datastore.put(transaction, pendingEntity.get());
+        }
+
+        transaction.commit();
+        SearchCache.invalidate(userId);
+        return;
+      } catch (ConcurrentModificationException exception) {
+        if (attempt == MAX_TRANSACTION_ATTEMPTS) {
+          throw exception;
+        }
+      } finally {
+        if (transaction.isActive()) {
+          transaction.rollback();
+        }
+      }
+    }
+  }
+
+  private Optional<Entity> getStoredReceipt(Transaction transaction, Key key) {
+    // Receipts with incomplete keys haven't been stored yet.
+    if (!key.isComplete()) {
+      return Optional.empty();
+    }
+
+    return getEntity(transaction, key);
+  }
+
+  private Optional<Entity> getEntity(Transaction transaction, Key key) {
+    try {
+      return Optional.of(datastore.get(transaction, key));
+    } catch (EntityNotFoundException exception) {
+      return Optional.empty();
+    }
+  }
+
+  private static boolean isPending(Entity summaryEntity) {
+    return summaryEntity.hasProperty(PENDING_SINCE_PROPERTY);
+  }
+
+  private static long getVersion(Entity summaryEntity) {
+    return (Long) summaryEntity.getProperty(VERSION_PROPERTY);
+  }
+
+  private static Key getSummaryKey(String userId) {
+    return KeyFactory.createKey(UserSpendingSummary.KIND, userId);
+  }
+
+  private static Key getBucketKey(Key summaryKey, String name) {
+    return KeyFactory.createKey(summaryKey, BUCKET_KIND, name);
+  }
+
+  /** Thrown when a build finds that another request took it over. */
+  private static final class BuildAbandonedException extends Exception {
+    private BuildAbandonedException() {
+      super("Another request took over the build.");
+    }
+  }
+
+  /** Changes receipts in a transaction and applies the changes to the user's summary. */
+  private interface SummaryUpdate {
+    void apply(Transaction transaction, SummaryChanges changes);
+  }
+
+  /**
+   * Changes to a user's summary, buckets, and text index in a transaction. Buckets are read the
+   * first time a receipt in them changes. The summary and buckets aren't changed if the user
+   * doesn't have a summary yet.
+   */
+  private final class SummaryChanges {
+    private final Transaction transaction;
+    private final Key summaryKey;
+    private final Optional<UserSpendingSummary> summary;
+    private final Map<String, UserSpendingSummary> buckets = new HashMap<>();
+    private final ReceiptTextIndex.Changes textChanges;
+
+    private SummaryChanges(Transaction transaction, Key summaryKey,
+        Optional<UserSpendingSummary> summary, ReceiptTextIndex.Changes textChanges) {
+      this.transaction = transaction;
+      this.summaryKey = summaryKey;
+      this.summary = summary;
+      this.textChanges = textChanges;
+    }
+
+    private void addReceipt(Entity receipt) {
+      summary.ifPresent(userSummary -> userSummary.addReceipt(receipt));
+      getBuckets(receipt).forEach(bucket -> bucket.addReceipt(receipt));
+      textChanges.addReceipt(receipt);
+    }
+
+    private void removeReceipt(Entity receipt) {
+      summary.ifPresent(userSummary -> userSummary.removeReceipt(receipt));
+      getBuckets(receipt).forEach(bucket -> bucket.removeReceipt(receipt));
+      textChanges.removeReceipt(receipt);
+    }
+
+    private List<UserSpendingSummary> getBuckets(Entity receipt) {
+      Long timestamp = (Long) receipt.getProperty("timestamp");
+      if (!summary.isPresent() || timestamp == null) {
+        return Collections.emptyList();
+      }
+
+      return TimeBuckets.getBucketNames(timestamp).stream()
+          .map(name -> buckets.computeIfAbsent(name, this::readBucket))
+          .collect(Collectors.toList());
+    }
+
+    private UserSpendingSummary readBucket(String name) {
+      return getEntity(transaction, getBucketKey(summaryKey, name))
+          .map(UserSpendingSummary::fromEntity)
+          .orElseGet(UserSpendingSummary::new);
+    }
+
+    /**
+     * Stores the summary, changed buckets, and changed postings, and deletes buckets without any
+     * receipts left. Call this after the receipts are stored, so that new receipts have IDs.
+     */
+    private void write() {
+      textChanges.write();
+      if (!summary.isPresent()) {
+        return;
+      }
+
+      List<Entity> entities = new ArrayList<>();
+      List<Key> emptyBucketKeys = new ArrayList<>();
+      entities.add(summary.get().toEntity(summaryKey));
+      buckets.forEach((name, bucket) -> {
+        Key key = getBucketKey(summaryKey, name);
+        if (bucket.isEmpty()) {
+          emptyBucketKeys.add(key);
+        } else {
+          entities.add(bucket.toEntity(key));
+        }
+      });
+
+      datastore.put(transaction, entities);
+      datastore.delete(transaction, emptyBucketKeys);
+    }
+  }
+
+  /** Differences between a user's stored summary and one computed from their receipts. */
+  public static final class ConsistencyReport {
+    private final boolean hasStoredSummary;
+    // Totals that differ, with the stored total first and the computed total second.
+    private final Map<String, List<UserSpendingSummary.Total>> storeDifferences;
+    private final Map<String, List<UserSpendingSummary.Total>> categoryDifferences;
+
+    ConsistencyReport(
+        Optional<UserSpendingSummary> storedSummary, UserSpendingSummary computedSummary) {
+      hasStoredSummary = storedSummary.isPresent();
+      UserSpendingSummary summary = storedSummary.orElseGet(UserSpendingSummary::new);
+      storeDifferences = toDifferences(summary.diffStoreTotals(computedSummary));
+      categoryDifferences = toDifferences(summary.diffCategoryTotals(computedSummary));
+    }
+
+    /** Checks if the stored summary matches the receipts, or if there is no stored summary. */
+    public boolean isConsistent() {
+      return !hasStoredSummary || (storeDifferences.isEmpty() && categoryDifferences.isEmpty());
+    }
+
+    public Map<String, List<UserSpendingSummary.Total>> getStoreDifferences() {
+      return storeDifferences;
+    }
+
+    public Map<String, List<UserSpendingSummary.Total>> getCategoryDifferences() {
+      return categoryDifferences;
+    }
+
+    private static Map<String, List<UserSpendingSummary.Total>> toDifferences(
+        MapDifference<String, UserSpendingSummary.Total> difference) {
+      Map<String, List<UserSpendingSummary.Total>> differences = new TreeMap<>();
+      difference.entriesOnlyOnLeft().forEach(
+          (key, total) -> differences.put(key, totals(total, null)));
+      difference.entriesOnlyOnRight().forEach(
+          (key, total) -> differences.put(key, totals(null, total)));
+      difference.entriesDiffering().forEach((key, totals)
+          -> differences.put(key, totals(totals.leftValue(), totals.rightValue())));
+      return differences;
+    }
+
+    private static List<UserSpendingSummary.Total> totals(
+        UserSpendingSummary.Total stored, UserSpendingSummary.Total computed) {
+      List<UserSpendingSummary.Total> totals = new ArrayList<>();
+      totals.add(stored);
+      totals.add(computed);
+      return totals;
+    }
+  }
+}
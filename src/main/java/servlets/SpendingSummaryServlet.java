@@ -0,0 +1,110 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.base.Strings;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet for admins to repair a user's spending summary. The GET handler compares the stored
+ * summary with one computed from every receipt, and the POST handler replaces the stored summary
+ * with the computed one.
+ */
+@WebServlet("/spending-summary")
+public class SpendingSummaryServlet extends HttpServlet {
+  private static final String USER_NOT_ADMIN_WARNING =
+      "User must be an admin to check spending summaries.";
+  private static final String MISSING_USER_ID_WARNING = "Request must include a userId.";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(SpendingSummaryServlet.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final UserService userService = UserServiceFactory.getUserService();
+
+  public SpendingSummaryServlet() {
+    this(ReceiptRepositories.getSharedInstance());
+  }
+
+  public SpendingSummaryServlet(DatastoreService datastore) {
+    this(new DatastoreReceiptRepository(datastore));
+  }
+
+  public SpendingSummaryServlet(ReceiptRepository receipts) {
+    this.receipts = receipts;
+  }
+
+  /** Responds with the differences between the user's stored and computed summaries. */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String userId = getUserId(request, response);
+    if (userId == null) {
+      return;
+    }
+
+    SpendingSummaries.ConsistencyReport report = receipts.checkSummary(userId);
+    if (!report.isConsistent()) {
+      logger.warning("Spending summary of user " + userId + " doesn't match their receipts.");
+    }
+
+    response.setContentType("application/json;");
+    response.getWriter().println(new Gson().toJson(report));
+  }
+
+  /** Recomputes the user's summary and responds with the analytics it now holds. */
+  @Override
+  public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    String userId = getUserId(request, response);
+    if (userId == null) {
+      return;
+    }
+
+    response.setContentType("application/json;");
+    response.getWriter().println(
+        new Gson().toJson(receipts.recomputeSummary(userId).toAnalytics()));
+  }
+
+  /**
+   * Returns the ID of the user whose summary is requested, or null after sending an error response
+   * if the current user isn't an admin or no user was requested.
+   */
+  private String getUserId(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    if (!userService.isUserLoggedIn() || !userService.isUserAdmin()) {
+      logger.warning(USER_NOT_ADMIN_WARNING);
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(USER_NOT_ADMIN_WARNING);
+      return null;
+    }
+
+    String userId = request.getParameter("userId");
+    if (Strings.isNullOrEmpty(userId)) {
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(MISSING_USER_ID_WARNING);
+      return null;
+    }
+
+    return userId;
+  }
+}
@@ -0,0 +1,129 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Sorted array of the distinct store names of a user, with the number of receipts from each, for
+ * suggesting stores as a name is typed. The names that start with a prefix are next to each other
+ * in the array, so they're found with two binary searches, and only the most frequent of them are
+ * kept while they're scanned.
+ */
+public final class StoreNameIndex {
+  // Sorts suggestions by descending receipt count, with ties in alphabetical order.
+  private static final Comparator<Suggestion> BY_RANK =
+      Comparator.comparingLong(Suggestion::getReceipts).reversed().thenComparing(
+          Suggestion::getStore);
+
+  private final String[] stores;
+  private final long[] receipts;
+
+  /** Creates an index of the stores in the map of store names to receipt counts. */
+  public StoreNameIndex(Map<String, Long> receiptsByStore) {
+    stores = receiptsByStore.keySet().toArray(new String[0]);
+    Arrays.sort(stores);
+    receipts = new long[stores.length];
+    for (int i = 0; i < stores.length; i++) {
+      receipts[i] = receiptsByStore.get(stores[i]);
+    }
+  }
+
+  /**
+   * Returns up to the given number of stores whose names start with the prefix, with the stores
+   * the user has the most receipts from first.
+   */
+  public ImmutableList<Suggestion> getSuggestions(String prefix, int limit) {
+    int start = findFirstAtOrAfter(prefix);
+    int end = findPrefixEnd(prefix);
+
+    // Keeps the best suggestions seen so far, with the worst of them at the head.
+    PriorityQueue<Suggestion> best = new PriorityQueue<>(limit + 1, BY_RANK.reversed());
+    for (int i = start; i < end && limit > 0; i++) {
+      best.add(new Suggestion(stores[i], receipts[i]));
+      if (best.size() > limit) {
+        best.poll();
+      }
+    }
+
+    return best.stream().sorted(BY_RANK).collect(ImmutableList.toImmutableList());
+  }
+
+  public int size() {
+    return stores.length;
+  }
+
+  /** Returns the index of the first store name that is equal to or after the name. */
+  private int findFirstAtOrAfter(String name) {
+    int index = Arrays.binarySearch(stores, name);
+    return index >= 0 ? index : -(index + 1);
+  }
+
+  /**
+   * Returns the index after the last store name that starts with the prefix. Every name that
+   * starts with the prefix is before the prefix with its last character incremented.
+   */
+  private int findPrefixEnd(String prefix) {
+    int last = prefix.length() - 1;
+    if (last < 0 || prefix.charAt(last) == Character.MAX_VALUE) {
+      return stores.length;
+    }
+
+    return findFirstAtOrAfter(prefix.substring(0, last) + (char) (prefix.charAt(last) + 1));
+  }
+
+  /** A store name and the number of receipts the user has from it. */
+  public static final class Suggestion {
+    private final String store;
+    private final long receipts;
+
+    public Suggestion(String store, long receipts) {
+      this.store = store;
+      this.receipts = receipts;
+    }
+
+    public String getStore() {
+      return store;
+    }
+
+    public long getReceipts() {
+      return receipts;
+    }
+
+    @Override
+    public boolean equals(Object other) {
+      if (!(other instanceof Suggestion)) {
+        return false;
+      }
+
+      Suggestion suggestion = (Suggestion) other;
+      return store.equals(suggestion.store) && receipts == suggestion.receipts;
+    }
+
+    @Override
+    public int hashCode() {
+      return 31 * store.hashCode() + Long.hashCode(receipts);
+    }
+
+    @Override
+    public String toString() {
+      return store + " (" + receipts + ")";
+    }
+  }
+}
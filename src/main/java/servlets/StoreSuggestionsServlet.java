@@ -0,0 +1,154 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.users.UserService;
+import com.google.appengine.api.users.UserServiceFactory;
+import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+import com.google.gson.Gson;
+import java.io.IOException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Logger;
+import javax.servlet.annotation.WebServlet;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Servlet that suggests the user's store names that start with the prefix parameter, with the
+ * stores they have the most receipts from first, so that the store filter can be autocompleted.
+ *
+ * <p>Stores and their receipt counts are read from the user's spending summary, which every
+ * receipt write keeps up to date, or counted from the user's receipts if they don't have a summary
+ * yet, and kept in memory as a {@link StoreNameIndex}. Each index is
+ * cached along with the user's receipt generation from {@link SearchCache}, and is rebuilt once a
+ * receipt write changes the generation.
+ */
+@WebServlet("/store-suggestions")
+public class StoreSuggestionsServlet extends HttpServlet {
+  private static final int DEFAULT_LIMIT = 5;
+  private static final int MAX_LIMIT = 20;
+  private static final int MAX_CACHED_USERS = 10000;
+  private static final long CACHE_TTL_MINUTES = 30;
+
+  private static final String AUTHENTICATION_ERROR_MESSAGE =
+      "No Authentication: User must be logged in to get store suggestions.";
+  private static final String LIMIT_EXCEPTION_MESSAGE =
+      "Invalid Limit: The limit must be a number from 1 to " + MAX_LIMIT + ".";
+
+  // Logs to System.err by default.
+  private static final Logger logger = Logger.getLogger(StoreSuggestionsServlet.class.getName());
+
+  private final ReceiptRepository receipts;
+  private final Cache<String, CachedIndex> indexes =
+      CacheBuilder.newBuilder()
+          .maximumSize(MAX_CACHED_USERS)
+          .expireAfterAccess(CACHE_TTL_MINUTES, TimeUnit.MINUTES)
+          .build();
+  private final UserService userService = UserServiceFactory.getUserService();
+
+  public StoreSuggestionsServlet() {
+    this(ReceiptRepositories.getSharedInstance());
+  }
+
+  public StoreSuggestionsServlet(DatastoreService datastore) {
+    this(new DatastoreReceiptRepository(datastore));
+  }
+
+  public StoreSuggestionsServlet(ReceiptRepository receipts) {
+    this.receipts = receipts;
+  }
+
+  /** Responds with the suggested stores and the number of receipts from each. */
+  @Override
+  public void doGet(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (!userService.isUserLoggedIn()) {
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(AUTHENTICATION_ERROR_MESSAGE);
+      return;
+    }
+
+    int limit;
+    try {
+      limit = getLimit(request);
+    } catch (NumberFormatException exception) {
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(LIMIT_EXCEPTION_MESSAGE);
+      return;
+    }
+
+    String prefix = formatPrefix(Strings.nullToEmpty(request.getParameter("prefix")));
+    StoreNameIndex index = getIndex(userService.getCurrentUser().getUserId());
+
+    response.setContentType("application/json;");
+    response.getWriter().println(new Gson().toJson(index.getSuggestions(prefix, limit)));
+  }
+
+  /** Returns the limit parameter, or the default limit if there isn't one. */
+  private static int getLimit(HttpServletRequest request) throws NumberFormatException {
+    String limitParameter = request.getParameter("limit");
+    if (Strings.isNullOrEmpty(limitParameter)) {
+      return DEFAULT_LIMIT;
+    }
+
+    int limit = Integer.parseInt(limitParameter);
+    if (limit < 1 || limit > MAX_LIMIT) {
+      throw new NumberFormatException("Limit out of range: " + limit);
+    }
+
+    return limit;
+  }
+
+  /**
+   * Formats the prefix like stores are formatted when they're stored and searched for. Trailing
+   * whitespace is kept, since it separates the words of a store name.
+   */
+  private static String formatPrefix(String prefix) {
+    return prefix.toLowerCase().replaceAll("\\s+", " ").replaceAll("^ ", "");
+  }
+
+  /**
+   * Returns the user's index of stores, from the cache if no receipt was written since it was
+   * built. If the user's generation can't be read, the index is built without being cached.
+   */
+  private StoreNameIndex getIndex(String userId) {
+    Optional<Long> generation = SearchCache.getGeneration(userId);
+    CachedIndex cachedIndex = indexes.getIfPresent(userId);
+    if (generation.isPresent() && cachedIndex != null
+        && cachedIndex.generation == generation.get()) {
+      return cachedIndex.index;
+    }
+
+    StoreNameIndex index = new StoreNameIndex(receipts.getStoreReceiptCounts(userId));
+    generation.ifPresent(value -> indexes.put(userId, new CachedIndex(value, index)));
+    return index;
+  }
+
+  /** An index of a user's stores and the receipt generation it was built at. */
+  private static final class CachedIndex {
+    private final long generation;
+    private final StoreNameIndex index;
+
+    private CachedIndex(long generation, StoreNameIndex index) {
+      this.generation = generation;
+      this.index = index;
+    }
+  }
+}
@@ -0,0 +1,186 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps.servlets;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import java.time.DayOfWeek;
+import java.time.Instant;
+import java.time.LocalDate;
+import java.time.YearMonth;
+import java.time.ZoneOffset;
+import java.time.temporal.TemporalAdjusters;
+import java.util.Optional;
+
+/**
+ * Maps receipt timestamps to the UTC week and month they fall in, so that spending can be totaled
+ * per bucket as receipts are written. A time range is split into the whole buckets inside it and
+ * residual ranges at its edges, which are shorter than a week and are read from the receipts
+ * themselves. This keeps range totals exact in any time zone, while the number of receipts read
+ * doesn't grow with the length of the range.
+ */
+public final class TimeBuckets {
+  private static final String WEEK_PREFIX = "week-";
+  private static final String MONTH_PREFIX = "month-";
+
+  /**
+   * Prevents instantiation.
+   */
+  private TimeBuckets() {
+    throw new UnsupportedOperationException();
+  }
+
+  /** Returns the names of the week and month buckets that contain the timestamp. */
+  public static ImmutableList<String> getBucketNames(long timestamp) {
+    LocalDate date = toDate(timestamp);
+    return ImmutableList.of(getWeekName(floorWeek(date)), getMonthName(YearMonth.from(date)));
+  }
+
+  /**
+   * Splits the range from the start timestamp (inclusive) to the end timestamp (exclusive) into
+   * months, weeks outside of those months, and residual ranges outside of any whole bucket.
+   */
+  public static Split split(long startTimestamp, long endTimestamp) {
+    Split split = new Split();
+    if (startTimestamp >= endTimestamp) {
+      return split;
+    }
+
+    YearMonth firstMonth = ceilMonth(startTimestamp);
+    YearMonth endMonth = YearMonth.from(toDate(endTimestamp));
+
+    if (firstMonth.isBefore(endMonth)) {
+      long firstMonthStart = toTimestamp(firstMonth.atDay(1));
+      long endMonthStart = toTimestamp(endMonth.atDay(1));
+
+      split.addWeeks(startTimestamp, firstMonthStart);
+      for (YearMonth month = firstMonth; month.isBefore(endMonth); month = month.plusMonths(1)) {
+        split.bucketNames.add(getMonthName(month));
+      }
+      split.addWeeks(endMonthStart, endTimestamp);
+    } else {
+      split.addWeeks(startTimestamp, endTimestamp);
+    }
+
+    return split;
+  }
+
+  /** Returns the first month that starts at or after the timestamp. */
+  private static YearMonth ceilMonth(long timestamp) {
+    LocalDate date = toDate(timestamp);
+    YearMonth month = YearMonth.from(date);
+    return toTimestamp(month.atDay(1)) == timestamp ? month : month.plusMonths(1);
+  }
+
+  private static LocalDate floorWeek(LocalDate date) {
+    return date.with(TemporalAdjusters.previousOrSame(DayOfWeek.MONDAY));
+  }
+
+  private static LocalDate toDate(long timestamp) {
+    return Instant.ofEpochMilli(timestamp).atZone(ZoneOffset.UTC).toLocalDate();
+  }
+
+  private static long toTimestamp(LocalDate date) {
+    return date.atStartOfDay(ZoneOffset.UTC).toInstant().toEpochMilli();
+  }
+
+  private static String getWeekName(LocalDate monday) {
+    return WEEK_PREFIX + monday;
+  }
+
+  private static String getMonthName(YearMonth month) {
+    return MONTH_PREFIX + month;
+  }
+
+  /** Lengths of the buckets that receipts are totaled in. */
+  public enum Interval {
+    WEEK(WEEK_PREFIX),
+    MONTH(MONTH_PREFIX);
+
+    private final String namePrefix;
+
+    Interval(String namePrefix) {
+      this.namePrefix = namePrefix;
+    }
+
+    /** Returns the interval with the given name, such as "week", ignoring case. */
+    public static Optional<Interval> fromName(String name) {
+      for (Interval interval : values()) {
+        if (interval.name().equalsIgnoreCase(name)) {
+          return Optional.of(interval);
+        }
+      }
+
+      return Optional.empty();
+    }
+
+    /** Returns the prefix of the names of this interval's buckets, which sort by their start. */
+    public String getNamePrefix() {
+      return namePrefix;
+    }
+
+    /**
+     * Returns the period of the bucket with the given name, such as "2020-06" for a month or the
+     * date of its Monday for a week.
+     */
+    public String getPeriod(String bucketName) {
+      return bucketName.substring(namePrefix.length());
+    }
+  }
+
+  /** Whole buckets and residual ranges that together cover a time range exactly once. */
+  public static final class Split {
+    private final ImmutableList.Builder<String> bucketNames = ImmutableList.builder();
+    private final ImmutableList.Builder<Range<Long>> residualRanges = ImmutableList.builder();
+
+    private Split() {}
+
+    public ImmutableList<String> getBucketNames() {
+      return bucketNames.build();
+    }
+
+    /** Returns ranges of timestamps, closed at the start and open at the end. */
+    public ImmutableList<Range<Long>> getResidualRanges() {
+      return residualRanges.build();
+    }
+
+    /** Adds the weeks between the timestamps and residual ranges around them. */
+    private void addWeeks(long startTimestamp, long endTimestamp) {
+      LocalDate startDate = toDate(startTimestamp);
+      LocalDate firstWeek = floorWeek(startDate);
+      if (toTimestamp(firstWeek) != startTimestamp) {
+        firstWeek = firstWeek.plusWeeks(1);
+      }
+      LocalDate endWeek = floorWeek(toDate(endTimestamp));
+
+      if (!firstWeek.isBefore(endWeek)) {
+        addResidualRange(startTimestamp, endTimestamp);
+        return;
+      }
+
+      addResidualRange(startTimestamp, toTimestamp(firstWeek));
+      for (LocalDate week = firstWeek; week.isBefore(endWeek); week = week.plusWeeks(1)) {
+        bucketNames.add(getWeekName(week));
+      }
+      addResidualRange(toTimestamp(endWeek), endTimestamp);
+    }
+
+    private void addResidualRange(long startTimestamp, long endTimestamp) {
+      if (startTimestamp < endTimestamp) {
+        residualRanges.add(Range.closedOpen(startTimestamp, endTimestamp));
+      }
+    }
+  }
+}
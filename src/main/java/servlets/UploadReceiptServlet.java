@@ -22,21 +22,24 @@ import com.google.appengine.api.blobstore.BlobstoreServiceFactory;
 import com.google.appengine.api.blobstore.UploadOptions;
 import com.google.appengine.api.blobstore.UploadOptions.Builder;
 import com.google.appengine.api.datastore.DatastoreService;
-import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.QueueFactory;
+import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
 import com.google.sps.servlets.FormatUtils;
 import com.google.sps.servlets.FormatUtils.InvalidDateException;
 import com.google.sps.servlets.FormatUtils.InvalidPriceException;
 import com.google.sps.servlets.ReceiptAnalysis.ReceiptAnalysisException;
 import java.io.IOException;
-import java.net.URL;
 import java.time.Clock;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
 import java.util.Map;
@@ -51,14 +54,19 @@ import javax.servlet.http.HttpServletResponse;
 
 /**
  * Servlet with a GET handler that creates a URL that uploads a receipt image to Blobstore and
- * a POST handler that extracts data from the image and inserts it into Datastore.
+ * a POST handler that extracts data from the image and stores it as a receipt. If the upload
+ * form sets the "async" field, the receipt is stored before it is analyzed and the analysis runs in
+ * a push task handled by {@link AnalyzeReceiptServlet}. If the form sets the "batch" field, every
+ * image selected in the form becomes its own receipt.
  */
 @WebServlet("/upload-receipt")
 public class UploadReceiptServlet extends HttpServlet {
   // Max upload size of 10 MB.
   private static final long MAX_UPLOAD_SIZE_BYTES = 10 * 1024 * 1024;
-  // Base URL for the web app running on the Cloud Shell dev server.
-  private static final String DEV_SERVER_BASE_URL = "http://0.0.0.0:80";
+  // Most images that can be uploaded with one form, so a batch upload finishes within a request.
+  public static final int MAX_IMAGES_PER_UPLOAD = 50;
+  // Seconds a client should wait before retrying an upload whose analysis task couldn't be added.
+  private static final int RETRY_AFTER_SECONDS = 5;
   // Matches JPEG image filenames.
   private static final Pattern validFilename = Pattern.compile("([^\\s]+(\\.(?i)(jpe?g))$)");
 
@@ -66,23 +74,54 @@ public class UploadReceiptServlet extends HttpServlet {
   private static final Logger logger = Logger.getLogger(UploadReceiptServlet.class.getName());
   private final BlobstoreService blobstoreService;
   private final BlobInfoFactory blobInfoFactory;
-  private final DatastoreService datastore;
+  private final ReceiptRepository receipts;
   private final UserService userService = UserServiceFactory.getUserService();
   private final Clock clock;
+  private final ReceiptAnalysisClients analysisClients;
+  private final AnalysisCache analysisCache;
+  private final Queue analysisQueue;
 
   public UploadReceiptServlet() {
     this.blobstoreService = BlobstoreServiceFactory.getBlobstoreService();
     this.blobInfoFactory = new BlobInfoFactory();
-    this.datastore = DatastoreServiceFactory.getDatastoreService();
+    this.receipts = ReceiptRepositories.getSharedInstance();
     this.clock = Clock.systemDefaultZone();
+    this.analysisClients = ReceiptAnalysisClients.getSharedInstance();
+    this.analysisCache = AnalysisCache.getSharedInstance();
+    this.analysisQueue = QueueFactory.getDefaultQueue();
   }
 
   public UploadReceiptServlet(BlobstoreService blobstoreService, BlobInfoFactory blobInfoFactory,
-      DatastoreService datastore, Clock clock) {
+      DatastoreService datastore, Clock clock, ReceiptAnalysisClients analysisClients,
+      AnalysisCache analysisCache, Queue analysisQueue) {
+    this(blobstoreService, blobInfoFactory, new DatastoreReceiptRepository(datastore), clock,
+        analysisClients, analysisCache, analysisQueue);
+  }
+
+  public UploadReceiptServlet(BlobstoreService blobstoreService, BlobInfoFactory blobInfoFactory,
+      ReceiptRepository receipts, Clock clock, ReceiptAnalysisClients analysisClients,
+      AnalysisCache analysisCache, Queue analysisQueue) {
     this.blobstoreService = blobstoreService;
     this.blobInfoFactory = blobInfoFactory;
-    this.datastore = datastore;
+    this.receipts = receipts;
     this.clock = clock;
+    this.analysisClients = analysisClients;
+    this.analysisCache = analysisCache;
+    this.analysisQueue = analysisQueue;
+  }
+
+  /**
+   * Creates the Cloud Vision and Cloud Natural Language clients when the servlet is loaded so that
+   * the first upload doesn't pay for the channel setup.
+   */
+  @Override
+  public void init() {
+    try {
+      analysisClients.warmUp();
+    } catch (IOException e) {
+      // The clients will be created on the first upload instead.
+      logger.warning("Failed to warm up receipt analysis clients: " + e);
+    }
   }
 
   /**
@@ -104,10 +143,20 @@ public class UploadReceiptServlet extends HttpServlet {
   /**
    * When the user submits the upload form, Blobstore processes the image and then forwards the
    * request to this servlet, which analyzes the receipt image and inserts information
-   * about the receipt into Datastore. The JSON response contains the receipt that was added.
+   * about the receipt into the {@link ReceiptRepository}. The JSON response contains the receipt
+   * that was added.
    */
   @Override
   public void doPost(HttpServletRequest request, HttpServletResponse response) throws IOException {
+    if (Boolean.parseBoolean(request.getParameter("async"))) {
+      doPostAsync(request, response);
+      return;
+    }
+    if (Boolean.parseBoolean(request.getParameter("batch"))) {
+      doPostBatch(request, response);
+      return;
+    }
+
     Entity receipt = null;
 
     try {
@@ -130,8 +179,8 @@ public class UploadReceiptServlet extends HttpServlet {
       return;
     }
 
-    // Store the receipt entity in Datastore.
-    datastore.put(receipt);
+    // Store the receipt entity.
+    receipt = receipts.put(receipt);
 
     // Convert the receipt to JSON.
     String json = new Gson().toJson(receipt);
@@ -141,6 +190,119 @@ public class UploadReceiptServlet extends HttpServlet {
     response.getWriter().println(json);
   }
 
+  /**
+   * Stores a pending receipt with the uploaded image and enqueues a push task that analyzes it.
+   * Responds with 202 Accepted and the pending receipt, whose status can be polled at
+   * /receipt-status until the analysis finishes. If the task can't be added, the upload is
+   * discarded and the response is 503 Service Unavailable.
+   */
+  private void doPostAsync(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    BlobKey blobKey;
+    String userId;
+
+    try {
+      blobKey = getUploadedBlobKey(request, "receipt-image");
+      userId = getUserId(blobKey);
+    } catch (FileNotSelectedException | InvalidFileException e) {
+      logger.warning(e.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(e.toString());
+      return;
+    } catch (UserNotLoggedInException e) {
+      logger.warning(e.toString());
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(e.toString());
+      return;
+    }
+
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("imageUrl", getBlobServingUrl(blobKey));
+    receipt.setProperty("userId", userId);
+    receipt.setProperty("status", ReceiptStatus.PENDING.name());
+    // Lets the status servlet tell a slow analysis from one lost with its instance.
+    receipt.setUnindexedProperty("uploadTimestamp", clock.millis());
+    receipt = receipts.put(receipt);
+
+    String json = new Gson().toJson(receipt);
+    long id = receipt.getKey().getId();
+
+    try {
+      analysisQueue.add(AnalyzeReceiptServlet.createTask(id, blobKey));
+    } catch (TransientFailureException e) {
+      logger.warning("Failed to enqueue receipt analysis: " + e);
+      receipts.delete(id);
+      blobstoreService.delete(blobKey);
+      response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+      response.setIntHeader("Retry-After", RETRY_AFTER_SECONDS);
+      response.getWriter().println("Too many receipts are being analyzed, please try again.");
+      return;
+    }
+
+    response.setStatus(HttpServletResponse.SC_ACCEPTED);
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
+  /**
+   * Analyzes all of the uploaded images, sending them to the Cloud Vision API in batches, and
+   * stores one receipt per image with a single repository call. The JSON response contains the list
+   * of receipts that were added, in the order the images were uploaded. If any image is invalid,
+   * there are more than MAX_IMAGES_PER_UPLOAD images, or the analysis fails, no receipts are added
+   * and all of the images are deleted. The receipts are stored in several transactions once every
+   * image is analyzed, so if storing them fails, the receipts stored before the failure are kept.
+   */
+  private void doPostBatch(HttpServletRequest request, HttpServletResponse response)
+      throws IOException {
+    List<BlobKey> blobKeys;
+    String userId;
+
+    try {
+      blobKeys = getUploadedBlobKeys(request, "receipt-image");
+      userId = getUserId(blobKeys.toArray(new BlobKey[0]));
+    } catch (FileNotSelectedException | InvalidFileException e) {
+      logger.warning(e.toString());
+      response.setStatus(HttpServletResponse.SC_BAD_REQUEST);
+      response.getWriter().println(e.toString());
+      return;
+    } catch (UserNotLoggedInException e) {
+      logger.warning(e.toString());
+      response.setStatus(HttpServletResponse.SC_FORBIDDEN);
+      response.getWriter().println(e.toString());
+      return;
+    }
+
+    List<AnalysisResults> results;
+
+    try {
+      results = analyzeImages(blobKeys);
+    } catch (IOException e) {
+      blobstoreService.delete(blobKeys.toArray(new BlobKey[0]));
+      ReceiptAnalysisException exception =
+          new ReceiptAnalysisException("Receipt analysis failed.", e);
+      logger.warning(exception.toString());
+      response.setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+      response.getWriter().println(exception.toString());
+      return;
+    }
+
+    List<Entity> newReceipts = new ArrayList<>(blobKeys.size());
+    for (int i = 0; i < blobKeys.size(); i++) {
+      Entity receipt = new Entity("Receipt");
+      receipt.setProperty("imageUrl", getBlobServingUrl(blobKeys.get(i)));
+      addAnalysisResults(receipt, results.get(i), clock);
+      receipt.setProperty("userId", userId);
+      newReceipts.add(receipt);
+    }
+
+    // Store all of the receipts with a single call.
+    List<Entity> storedReceipts = receipts.put(newReceipts);
+
+    String json = new Gson().toJson(storedReceipts);
+    response.setContentType("application/json;");
+    response.getWriter().println(json);
+  }
+
   /**
    * Creates and returns a receipt entity, which includes the receipt image and
    * information about the receipt.
@@ -149,21 +311,28 @@ public class UploadReceiptServlet extends HttpServlet {
       throws FileNotSelectedException, InvalidFileException, UserNotLoggedInException,
              InvalidPriceException, InvalidDateException, ReceiptAnalysisException {
     BlobKey blobKey = getUploadedBlobKey(request, "receipt-image");
-
-    if (!userService.isUserLoggedIn()) {
-      blobstoreService.delete(blobKey);
-      throw new UserNotLoggedInException("User must be logged in to upload a receipt.");
-    }
-
-    String userId = userService.getCurrentUser().getUserId();
+    String userId = getUserId(blobKey);
 
     // Populate a receipt entity with the information extracted from the image with Cloud Vision.
-    Entity receipt = analyzeReceiptImage(blobKey, request);
+    Entity receipt = analyzeReceiptImage(blobKey);
     receipt.setProperty("userId", userId);
 
     return receipt;
   }
 
+  /**
+   * Returns the ID of the user uploading the receipts. If the user isn't logged in, the uploaded
+   * images are deleted.
+   */
+  private String getUserId(BlobKey... blobKeys) throws UserNotLoggedInException {
+    if (!userService.isUserLoggedIn()) {
+      blobstoreService.delete(blobKeys);
+      throw new UserNotLoggedInException("User must be logged in to upload a receipt.");
+    }
+
+    return userService.getCurrentUser().getUserId();
+  }
+
   /**
    * Returns a blob key that points to the uploaded file.
    */
@@ -196,6 +365,46 @@ public class UploadReceiptServlet extends HttpServlet {
     return blobKey;
   }
 
+  /**
+   * Returns the blob keys of all of the files uploaded with the form input, in the order they were
+   * selected. If any of the files is missing or invalid, or there are more than
+   * MAX_IMAGES_PER_UPLOAD files, all of them are deleted.
+   */
+  private List<BlobKey> getUploadedBlobKeys(
+      HttpServletRequest request, String formInputElementName)
+      throws FileNotSelectedException, InvalidFileException {
+    Map<String, List<BlobKey>> blobs = blobstoreService.getUploads(request);
+    List<BlobKey> blobKeys = blobs.get(formInputElementName);
+
+    // User submitted the form without selecting a file. (dev server)
+    if (blobKeys == null || blobKeys.isEmpty()) {
+      throw new FileNotSelectedException("No file was uploaded by the user (dev server).");
+    }
+
+    if (blobKeys.size() > MAX_IMAGES_PER_UPLOAD) {
+      blobstoreService.delete(blobKeys.toArray(new BlobKey[0]));
+      throw new InvalidFileException(
+          "At most " + MAX_IMAGES_PER_UPLOAD + " images can be uploaded at once.");
+    }
+
+    for (BlobKey blobKey : blobKeys) {
+      BlobInfo blobInfo = blobInfoFactory.loadBlobInfo(blobKey);
+
+      // User submitted the form without selecting a file. (live server)
+      if (blobInfo.getSize() == 0) {
+        blobstoreService.delete(blobKeys.toArray(new BlobKey[0]));
+        throw new FileNotSelectedException("No file was uploaded by the user (live server).");
+      }
+
+      if (!isValidFilename(blobInfo.getFilename())) {
+        blobstoreService.delete(blobKeys.toArray(new BlobKey[0]));
+        throw new InvalidFileException("Uploaded file must be a JPEG image.");
+      }
+    }
+
+    return blobKeys;
+  }
+
   /**
    * Checks if the filename is a valid JPEG file.
    */
@@ -207,22 +416,12 @@ public class UploadReceiptServlet extends HttpServlet {
    * Extracts the raw text from the image with the Cloud Vision API. Returns a receipt
    * entity populated with the extracted fields.
    */
-  private Entity analyzeReceiptImage(BlobKey blobKey, HttpServletRequest request)
+  private Entity analyzeReceiptImage(BlobKey blobKey)
       throws ReceiptAnalysisException, InvalidPriceException, InvalidDateException {
-    String imageUrl = getBlobServingUrl(blobKey);
-    String baseUrl = getBaseUrl(request);
-
     AnalysisResults results = null;
 
     try {
-      // For the dev server, authentication is required to access the image served at the URL, so
-      // fetch the bytes directly from Blobstore instead.
-      if (baseUrl.equals(DEV_SERVER_BASE_URL)) {
-        results = ReceiptAnalysis.analyzeImageAt(blobKey);
-      } else {
-        URL absoluteUrl = new URL(baseUrl + imageUrl);
-        results = ReceiptAnalysis.analyzeImageAt(absoluteUrl);
-      }
+      results = analyzeImage(blobKey);
     } catch (IOException e) {
       blobstoreService.delete(blobKey);
       throw new ReceiptAnalysisException("Receipt analysis failed.", e);
@@ -230,7 +429,31 @@ public class UploadReceiptServlet extends HttpServlet {
 
     // Create an entity with a kind of Receipt.
     Entity receipt = new Entity("Receipt");
-    receipt.setUnindexedProperty("imageUrl", imageUrl);
+    receipt.setProperty("imageUrl", getBlobServingUrl(blobKey));
+    addAnalysisResults(receipt, results, clock);
+
+    return receipt;
+  }
+
+  /**
+   * Analyzes the uploaded image with the Cloud Vision and Cloud Natural Language APIs. The bytes
+   * are read directly from Blobstore, since the image's serving URL is only available to the user
+   * who owns the receipt.
+   */
+  private AnalysisResults analyzeImage(BlobKey blobKey) throws IOException {
+    return ReceiptAnalysis.analyzeImageAt(blobKey, analysisClients, analysisCache);
+  }
+
+  /**
+   * Analyzes the uploaded images with the Cloud Vision and Cloud Natural Language APIs, returning
+   * the results in the same order as the blob keys.
+   */
+  private List<AnalysisResults> analyzeImages(List<BlobKey> blobKeys) throws IOException {
+    return ReceiptAnalysis.analyzeImagesAtBlobKeys(blobKeys, analysisClients, analysisCache);
+  }
+
+  /** Adds the fields extracted from the image to the receipt entity. */
+  static void addAnalysisResults(Entity receipt, AnalysisResults results, Clock clock) {
 
     // Set the timestamp if a date was parsed.
     results.getTransactionTimestamp().ifPresent(timestamp -> {
@@ -253,6 +476,7 @@ public class UploadReceiptServlet extends HttpServlet {
         return;
       }
     });
+    PriceBuckets.setBucket(receipt);
 
     // Text objects wrap around a string of unlimited size while strings are limited to 1500 bytes.
     results.getRawText().ifPresent(
@@ -262,27 +486,16 @@ public class UploadReceiptServlet extends HttpServlet {
     // If a logo was detected, set the store name.
     results.getStore().ifPresent(
         store -> receipt.setProperty("store", FormatUtils.sanitize(store)));
-
-    return receipt;
   }
 
   /**
-   * Gets a URL that serves the blob file using the blob key.
+   * Gets a URL that serves the blob file using the blob key. Receipts store it as an indexed
+   * property, so that the {@link ImageOwnershipCache} can find the images of a user.
    */
   private String getBlobServingUrl(BlobKey blobKey) {
     return "/serve-image?blob-key=" + blobKey.getKeyString();
   }
 
-  /**
-   * Get the base URL of the web application.
-   */
-  private String getBaseUrl(HttpServletRequest request) {
-    String baseUrl = request.getScheme() + "://" + request.getServerName() + ":"
-        + request.getServerPort() + request.getContextPath();
-
-    return baseUrl;
-  }
-
   public static class InvalidFileException extends Exception {
     public InvalidFileException(String errorMessage) {
       super(errorMessage);
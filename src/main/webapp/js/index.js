@@ -16,6 +16,15 @@
 
 let encodedCursor;
 let isPageLoad;
+// Cursors where each page before the current one starts, with null for the
+// first page. Pages are filled by scanning past receipts outside the price
+// range, so going back re-fetches from where the previous page started.
+let previousPageCursors = [];
+let currentPageCursor = null;
+
+/** Milliseconds after the last keystroke before stores are suggested. */
+const STORE_SUGGESTION_DELAY_MS = 250;
+let storeSuggestionTimeout = null;
 
 /** Checks if user is logged in then loads the logout button and receipts. */
 function load() {
@@ -41,6 +50,7 @@ function getAllReceipts() {
 
   const params = new URLSearchParams();
   isPageLoad = true;
+  resetPageCursors();
   params.append('isPageLoad', isPageLoad);
 
   searchReceipts(params);
@@ -52,6 +62,7 @@ function getMatchingReceipts() {
 
   const params = new URLSearchParams();
   isPageLoad = false;
+  resetPageCursors();
   params.append('isPageLoad', isPageLoad);
   appendQueryInformation(params);
 
@@ -68,25 +79,81 @@ function getNextPageOfReceipts() {
   params.append('encodedCursor', encodedCursor);
   appendQueryInformation(params);
 
+  previousPageCursors.push(currentPageCursor);
+  currentPageCursor = encodedCursor;
+
   searchReceipts(params);
   scrollToTop();
 }
 
 /** Fetches previous receipts page from the server and adds to the DOM. */
 function getPreviousPageOfReceipts() {
+  if (previousPageCursors.length === 0) {
+    return;
+  }
+
   document.body.style.cursor = 'wait';
 
+  currentPageCursor = previousPageCursors.pop();
+
   const params = new URLSearchParams();
   params.append('isPageLoad', isPageLoad);
-  params.append('getNextPage', 'false');
-  params.append('getPreviousPage', 'true');
-  params.append('encodedCursor', encodedCursor);
+  if (currentPageCursor !== null) {
+    params.append('getNextPage', 'true');
+    params.append('encodedCursor', currentPageCursor);
+  }
   appendQueryInformation(params);
 
   searchReceipts(params);
   scrollToTop();
 }
 
+/** Forgets the cursors of earlier pages when a new search starts. */
+function resetPageCursors() {
+  previousPageCursors = [];
+  currentPageCursor = null;
+}
+
+/**
+ * Suggests stores once the user stops typing in the store input, so that each
+ * keystroke doesn't send a request.
+ */
+function scheduleStoreSuggestions() {
+  clearTimeout(storeSuggestionTimeout);
+  storeSuggestionTimeout =
+      setTimeout(suggestStores, STORE_SUGGESTION_DELAY_MS);
+}
+
+/**
+ * Suggests the user's stores that start with the text in the store input, with
+ * the stores they have the most receipts from first.
+ */
+async function suggestStores() {
+  const storeInput = document.getElementById('store-name-input');
+  const prefix = storeInput.value;
+  const params = new URLSearchParams();
+  params.append('prefix', prefix);
+
+  const response = await fetch(`/store-suggestions?${params.toString()}`);
+  if (response.status !== 200) {
+    return;
+  }
+  const suggestions = await response.json();
+
+  // A slow response is dropped if the user typed more while waiting for it.
+  if (storeInput.value !== prefix) {
+    return;
+  }
+
+  const storeSuggestions = document.getElementById('store-suggestions');
+  storeSuggestions.innerHTML = '';
+  for (const suggestion of suggestions) {
+    const option = document.createElement('option');
+    option.value = suggestion.store;
+    storeSuggestions.appendChild(option);
+  }
+}
+
 /** Attaches search query information to params to be sent to the server. */
 function appendQueryInformation(params) {
   params.append('category', document.getElementById('category-input').value);
@@ -95,6 +162,7 @@ function appendQueryInformation(params) {
   params.append('store', document.getElementById('store-name-input').value);
   params.append('min', document.getElementById('min-price-input').value);
   params.append('max', document.getElementById('max-price-input').value);
+  params.append('keywords', document.getElementById('keywords-input').value);
   const dateTimeFormat = new Intl.DateTimeFormat();
   params.append('timeZoneId', dateTimeFormat.resolvedOptions().timeZone);
 }
@@ -183,7 +251,8 @@ function createReceiptCardElement(receipt) {
     categoriesContainer.appendChild(createCategoryElement(categories[i]));
   }
 
-  receiptCardClone.querySelector('img').src = receipt.imageUrl;
+  receiptCardClone.querySelector('img').src =
+      getSmallImageUrl(receipt.imageUrl);
   receiptCardClone.querySelector('.col-md-6').id = receipt.id;
 
   // Attach listeners to trigger the deletion and editing of this receipt.
@@ -194,6 +263,15 @@ function createReceiptCardElement(receipt) {
   document.getElementById('receipts-display').appendChild(receiptCardClone);
 }
 
+/**
+ * Returns the URL of a small copy of the receipt's image, since the card only
+ * shows a thumbnail. Images not served by the app are used as they are.
+ */
+function getSmallImageUrl(imageUrl) {
+  return imageUrl.startsWith('/serve-image?') ? `${imageUrl}&size=small` :
+                                                imageUrl;
+}
+
 /** Creates the div element for a category along with its children. */
 function createCategoryElement(category) {
   category = capitalizeFirstLetters(category);
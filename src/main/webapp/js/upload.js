@@ -20,9 +20,19 @@ async function load() {
   loadPage();  // From js/common.js
 }
 
+/** Milliseconds between requests for the status of a pending receipt. */
+const STATUS_POLL_INTERVAL_MS = 1000;
 /**
- * Sends a request to add a receipt to Blobstore then redirects to the receipt
- * analysis page.
+ * Maximum number of status requests, which lasts a little longer than the
+ * server waits before marking a pending receipt as failed.
+ */
+const STATUS_POLL_MAX_ATTEMPTS = 330;
+/** Maximum number of images the server accepts in one upload. */
+const MAX_IMAGES_PER_UPLOAD = 50;
+
+/**
+ * Sends a request to add a receipt to Blobstore, waits for the receipt to be
+ * analyzed in the background, then redirects to the receipt analysis page.
  */
 async function uploadReceipt(event) {
   // Prevent the default action of reloading the page on form submission.
@@ -36,46 +46,137 @@ async function uploadReceipt(event) {
 
   const loadingIntervalId = startLoading();
 
+  if (fileInput.files.length > 1) {
+    await uploadReceipts(fileInput.files, loadingIntervalId);
+    return;
+  }
+
   const uploadUrl = await fetchBlobstoreUrl();
   const image = fileInput.files[0];
   const formData = new FormData();
   formData.append('receipt-image', image);
+  // Analyze the receipt in the background instead of during the upload request.
+  formData.append('async', 'true');
 
   const response = await fetch(uploadUrl, {method: 'POST', body: formData});
 
-  // Restore the cursor after the upload request has loaded.
-  document.body.style.cursor = 'default';
-
   // Create an alert and re-enable the submit button and file input if there is
   // an error.
-  if (response.status !== 200) {
-    const submitButton = document.getElementById('submit-receipt');
-    submitButton.innerText = 'Error!';
-
-    // Stop the loading animation.
-    document.getElementById('loading').classList.add('hidden');
-    clearInterval(loadingIntervalId);
-
-    // Delay the alert so the above changes can render first.
-    const error = await response.text();
-    setTimeout(() => {
-      alert(error);
-
-      // Restore the file input and submit button.
-      fileInput.disabled = false;
-      submitButton.disabled = false;
-      submitButton.innerText = 'Add Receipt';
-    }, 10);
+  if (response.status !== 202) {
+    displayUploadError(await response.text(), loadingIntervalId);
+    return;
+  }
+
+  const pendingReceipt = await response.json();
+  const statusResponse = await pollReceiptStatus(pendingReceipt.key.id);
+
+  if (statusResponse.status !== 200) {
+    displayUploadError(await statusResponse.text(), loadingIntervalId);
     return;
   }
 
-  const json = (await response.json());
+  const json = await statusResponse.json();
+  if (json.propertyMap.status !== 'ANALYZED') {
+    alert('The receipt could not be analyzed. Please enter its details.');
+  }
+
+  // Restore the cursor after the receipt has been analyzed.
+  document.body.style.cursor = 'default';
+
   const params = setUrlParameters(json);
 
   // Redirect to the receipt analysis page.
   window.location.href = `/receipt-analysis.html?${params.toString()}`;
 }
 
+/**
+ * Sends a request to add a receipt for each of the images, which are analyzed
+ * together during the upload request, then redirects to the home page.
+ * @param {FileList} images The receipt images selected by the user.
+ * @param {number} loadingIntervalId The ID value of the loading animation
+ *     timer.
+ */
+async function uploadReceipts(images, loadingIntervalId) {
+  const uploadUrl = await fetchBlobstoreUrl();
+  const formData = new FormData();
+  for (const image of images) {
+    formData.append('receipt-image', image);
+  }
+  formData.append('batch', 'true');
+
+  const response = await fetch(uploadUrl, {method: 'POST', body: formData});
+
+  if (response.status !== 200) {
+    displayUploadError(await response.text(), loadingIntervalId);
+    return;
+  }
+
+  const receipts = await response.json();
+  alert(`${receipts.length} receipts were added.`);
+
+  // Redirect to the home page, where the new receipts can be searched.
+  window.location.href = '/';
+}
+
+/**
+ * Requests the status of the receipt with the given ID until it is no longer
+ * pending or the maximum number of attempts is reached.
+ * @param {number} id The ID of the receipt that was uploaded.
+ * @return {Response} The last response from the status servlet.
+ */
+async function pollReceiptStatus(id) {
+  const params = new URLSearchParams();
+  params.append('id', id);
+
+  let response;
+  for (let attempt = 0; attempt < STATUS_POLL_MAX_ATTEMPTS; attempt++) {
+    await new Promise(
+        (resolve) => setTimeout(resolve, STATUS_POLL_INTERVAL_MS));
+
+    response = await fetch(`/receipt-status?${params.toString()}`);
+    if (response.status !== 200) {
+      return response;
+    }
+
+    const json = await response.clone().json();
+    if (json.propertyMap.status !== 'PENDING') {
+      return response;
+    }
+  }
+
+  return response;
+}
+
+/**
+ * Stops the loading animation, alerts the user of the error, and re-enables
+ * the submit button and file input.
+ * @param {string} error The error message to display.
+ * @param {number} loadingIntervalId The ID value of the loading animation
+ *     timer.
+ */
+function displayUploadError(error, loadingIntervalId) {
+  // Restore the cursor after the upload request has loaded.
+  document.body.style.cursor = 'default';
+
+  const submitButton = document.getElementById('submit-receipt');
+  submitButton.innerText = 'Error!';
+
+  // Stop the loading animation.
+  document.getElementById('loading').classList.add('hidden');
+  clearInterval(loadingIntervalId);
+
+  // Delay the alert so the above changes can render first.
+  setTimeout(() => {
+    alert(error);
+
+    // Restore the file input and submit button.
+    const fileInput = document.getElementById('receipt-image-input');
+    fileInput.disabled = false;
+    submitButton.disabled = false;
+    submitButton.innerText = 'Add Receipt';
+  }, 10);
+}
+
 /**
  * Gets a Blobstore upload URL for uploading a receipt image.
  * @return {string} A Blobstore upload URL.
@@ -132,7 +233,8 @@ function setUrlParameters(json) {
   params.append('image-url', receipt.imageUrl.value);
 
   // Add fields that were successfully generated.
-  if (receipt.categories.length > 0) {
+  // Receipts whose analysis failed have no categories.
+  if (receipt.categories && receipt.categories.length > 0) {
     params.append('categories', receipt.categories);
   }
   if (receipt.price) {
@@ -149,8 +251,8 @@ function setUrlParameters(json) {
 }
 
 /**
- * Adds the selected file name to the input label and checks that the size of
- * the uploaded file is within the limit.
+ * Adds the selected file name, or the number of selected files, to the input
+ * label and checks that the size of each uploaded file is within the limit.
  */
 function displayFileName() {
   const fileLabel = document.getElementById('receipt-filename-label');
@@ -159,15 +261,19 @@ function displayFileName() {
   if (checkFileSize()) {
     const fileInput = document.getElementById('receipt-image-input');
     const fileName = fileInput.value.split('\\').pop();
-    fileLabel.innerText = fileName;
+    fileLabel.innerText = fileInput.files.length > 1 ?
+        `${fileInput.files.length} files` :
+        fileName;
   } else {
     fileLabel.innerText = DEFAULT_FILE_LABEL;
   }
 }
 
 /**
- * Displays an error message if the user selects a file larger than 10 MB.
- * @return {boolean} Whether a file is selected and has size less than 10 MB.
+ * Displays an error message if the user selects a file larger than 10 MB, or
+ * more files than can be uploaded at once.
+ * @return {boolean} Whether a file is selected, at most MAX_IMAGES_PER_UPLOAD
+ *     files are selected, and every selected file has size less than 10 MB.
  */
 function checkFileSize() {
   const fileInput = document.getElementById('receipt-image-input');
@@ -178,7 +284,14 @@ function checkFileSize() {
     return false;
   }
 
-  if (fileInput.files[0].size > MAX_FILE_SIZE_BYTES) {
+  if (fileInput.files.length > MAX_IMAGES_PER_UPLOAD) {
+    alert(`At most ${MAX_IMAGES_PER_UPLOAD} images can be uploaded at once.`);
+    fileInput.value = '';
+    return false;
+  }
+
+  const files = Array.from(fileInput.files);
+  if (files.some((file) => file.size > MAX_FILE_SIZE_BYTES)) {
     alert('The selected file exceeds the maximum file size of 10 MB.');
     fileInput.value = '';
     return false;
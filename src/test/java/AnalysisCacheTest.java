@@ -0,0 +1,163 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableSet;
+import com.google.protobuf.ByteString;
+import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.AnalysisCache;
+import java.util.Optional;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class AnalysisCacheTest {
+  private static final long MAX_MEMORY_BYTES = 1024 * 1024;
+  private static final String HASH = AnalysisCache.hash(ByteString.copyFromUtf8("image"));
+  private static final String OTHER_HASH = AnalysisCache.hash(ByteString.copyFromUtf8("other"));
+  private static final String RAW_TEXT = "raw text";
+  private static final ImmutableSet<String> CATEGORIES = ImmutableSet.of("Food", "Drink");
+  private static final String STORE = "Google";
+  private static final long TIMESTAMP = 1588896000000L;
+  private static final double PRICE = 12.77;
+
+  // Uses local Datastore.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private AnalysisCache cache;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    cache = new AnalysisCache(datastore, MAX_MEMORY_BYTES);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void hashSameBytesReturnsSameHash() {
+    ByteString bytes = ByteString.copyFromUtf8("ima").concat(ByteString.copyFromUtf8("ge"));
+
+    Assert.assertEquals(HASH, AnalysisCache.hash(bytes));
+    Assert.assertNotEquals(HASH, OTHER_HASH);
+  }
+
+  @Test
+  public void getMissingEntryReturnsEmpty() {
+    Optional<AnalysisResults> results = cache.get(HASH);
+
+    Assert.assertFalse(results.isPresent());
+    Assert.assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void getAfterPutReturnsResultsFromMemory() {
+    cache.put(HASH, createResults());
+
+    Optional<AnalysisResults> results = cache.get(HASH);
+
+    Assert.assertTrue(results.isPresent());
+    assertResultsEqual(createResults(), results.get());
+    Assert.assertEquals(1, cache.getMemoryHits());
+    Assert.assertEquals(0, cache.getDatastoreHits());
+  }
+
+  @Test
+  public void getFromNewInstanceReturnsResultsFromDatastore() {
+    cache.put(HASH, createResults());
+    AnalysisCache newCache = new AnalysisCache(datastore, MAX_MEMORY_BYTES);
+
+    Optional<AnalysisResults> results = newCache.get(HASH);
+
+    Assert.assertTrue(results.isPresent());
+    assertResultsEqual(createResults(), results.get());
+    Assert.assertEquals(1, newCache.getDatastoreHits());
+
+    // The second lookup is answered from memory.
+    newCache.get(HASH);
+    Assert.assertEquals(1, newCache.getMemoryHits());
+  }
+
+  @Test
+  public void getResultsWithoutOptionalFieldsFromDatastore() {
+    AnalysisResults emptyResults = new AnalysisResults.Builder().build();
+    cache.put(HASH, emptyResults);
+    AnalysisCache newCache = new AnalysisCache(datastore, MAX_MEMORY_BYTES);
+
+    Optional<AnalysisResults> results = newCache.get(HASH);
+
+    Assert.assertTrue(results.isPresent());
+    assertResultsEqual(emptyResults, results.get());
+  }
+
+  @Test
+  public void putPartialResultsIsNotCached() {
+    AnalysisResults partialResults =
+        new AnalysisResults.Builder().setRawText(RAW_TEXT).setPartial(true).build();
+
+    cache.put(HASH, partialResults);
+
+    Assert.assertFalse(cache.get(HASH).isPresent());
+    Assert.assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void putBeyondMemoryBoundEvictsEntries() {
+    // Each entry's estimated size exceeds the bound, so neither stays in memory.
+    AnalysisCache smallCache = new AnalysisCache(datastore, 100);
+
+    smallCache.put(HASH, createResults());
+    smallCache.put(OTHER_HASH, createResults());
+
+    Assert.assertEquals(2, smallCache.getEvictions());
+
+    // Evicted entries are still found in Datastore.
+    Assert.assertTrue(smallCache.get(HASH).isPresent());
+    Assert.assertEquals(1, smallCache.getDatastoreHits());
+  }
+
+  private static AnalysisResults createResults() {
+    return new AnalysisResults.Builder()
+        .setRawText(RAW_TEXT)
+        .setCategories(CATEGORIES)
+        .setStore(STORE)
+        .setTransactionTimestamp(TIMESTAMP)
+        .setPrice(PRICE)
+        .build();
+  }
+
+  private static void assertResultsEqual(AnalysisResults expected, AnalysisResults actual) {
+    Assert.assertEquals(expected.getRawText(), actual.getRawText());
+    Assert.assertEquals(expected.getCategories(), actual.getCategories());
+    Assert.assertEquals(expected.getStore(), actual.getStore());
+    Assert.assertEquals(expected.getTransactionTimestamp(), actual.getTransactionTimestamp());
+    Assert.assertEquals(expected.getPrice(), actual.getPrice());
+    Assert.assertFalse(actual.isPartial());
+  }
+}
@@ -0,0 +1,106 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.servlets.AnalysisCache;
+import com.google.sps.servlets.AnalyzeReceiptServlet;
+import com.google.sps.servlets.ReceiptAnalysisClients;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Clock;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public final class AnalyzeReceiptServletTest {
+  private static final String QUEUE_NAME_HEADER = "X-AppEngine-QueueName";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+  @Mock private ReceiptAnalysisClients analysisClients;
+  @Mock private AnalysisCache analysisCache;
+
+  private AnalyzeReceiptServlet servlet;
+  private StringWriter stringWriter;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    servlet = new AnalyzeReceiptServlet(
+        datastore, Clock.systemDefaultZone(), analysisClients, analysisCache);
+
+    stringWriter = new StringWriter();
+    when(response.getWriter()).thenReturn(new PrintWriter(stringWriter));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doPostWithoutQueueHeaderReturnsForbidden() throws IOException {
+    when(request.getParameter("id")).thenReturn("1");
+    when(request.getParameter("blob-key")).thenReturn("blobKey");
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertTrue(stringWriter.toString().contains("Receipts are only analyzed by tasks."));
+  }
+
+  @Test
+  public void doPostWithInvalidIdReturnsBadRequest() throws IOException {
+    when(request.getHeader(QUEUE_NAME_HEADER)).thenReturn("default");
+    when(request.getParameter("id")).thenReturn("notAnId");
+    when(request.getParameter("blob-key")).thenReturn("blobKey");
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void doPostWithDeletedReceiptSucceeds() throws IOException {
+    when(request.getHeader(QUEUE_NAME_HEADER)).thenReturn("default");
+    when(request.getParameter("id")).thenReturn("1");
+    when(request.getParameter("blob-key")).thenReturn("blobKey");
+
+    servlet.doPost(request, response);
+
+    verify(response, never()).setStatus(anyInt());
+  }
+}
@@ -0,0 +1,215 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.BackfillReceiptsServlet;
+import com.google.sps.servlets.ImageOwnershipCache;
+import com.google.sps.servlets.LocalReceiptRepository;
+import com.google.sps.servlets.PriceBuckets;
+import com.google.sps.servlets.ReceiptTextIndex;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.List;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public final class BackfillReceiptsServletTest {
+  private static final String USER_NOT_ADMIN_WARNING =
+      "User must be an admin to backfill receipts.";
+  private static final int RECEIPTS_PER_BATCH = 500;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvIsAdmin(true)
+          .setEnvEmail("admin@gmail.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private BackfillReceiptsServlet servlet;
+  private DatastoreService datastore;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    servlet = new BackfillReceiptsServlet(datastore);
+
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    when(response.getWriter()).thenReturn(writer);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doPost_localStore_addsBucket() throws IOException {
+    try (LocalReceiptRepository receipts = new LocalReceiptRepository(
+             temporaryFolder.getRoot().toPath().resolve("receipts.log"))) {
+      long id = receipts.put(createReceiptWithoutBucket(26.12)).getKey().getId();
+      servlet = new BackfillReceiptsServlet(receipts);
+
+      servlet.doPost(request, response);
+      writer.flush();
+
+      JSONObject backfillResponse = new JSONObject(stringWriter.toString());
+      Assert.assertEquals(1, backfillResponse.getInt("updatedReceipts"));
+      Assert.assertTrue(backfillResponse.getBoolean("done"));
+      Assert.assertEquals(PriceBuckets.getBucket(26.12),
+          receipts.get(id).get().getProperty(PriceBuckets.PROPERTY_NAME));
+    }
+  }
+
+  @Test
+  public void doPost_receiptsWithoutBucket_addsBucket()
+      throws IOException, EntityNotFoundException {
+    Entity oldReceipt = createReceiptWithoutBucket(26.12);
+    Entity newReceipt = createReceiptWithoutBucket(14.51);
+    PriceBuckets.setBucket(newReceipt);
+    Entity receiptWithoutPrice = createReceiptWithoutBucket(0);
+    receiptWithoutPrice.removeProperty("price");
+    datastore.put(ImmutableSet.of(oldReceipt, newReceipt, receiptWithoutPrice));
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    JSONObject backfillResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(3, backfillResponse.getInt("scannedReceipts"));
+    Assert.assertEquals(1, backfillResponse.getInt("updatedReceipts"));
+    Assert.assertTrue(backfillResponse.getBoolean("done"));
+    Entity storedReceipt = datastore.get(oldReceipt.getKey());
+    Assert.assertEquals(
+        PriceBuckets.getBucket(26.12), storedReceipt.getProperty(PriceBuckets.PROPERTY_NAME));
+    Assert.assertFalse(
+        datastore.get(receiptWithoutPrice.getKey()).hasProperty(PriceBuckets.PROPERTY_NAME));
+  }
+
+  @Test
+  public void doPost_receiptsWithUnindexedText_addsToTextIndex()
+      throws IOException, EntityNotFoundException {
+    Entity receipt = TestUtils.createEntity(/* userId = */ "testID", /* timestamp = */ 6292020,
+        "img/walmart-receipt.jpg", 5.00, "walmart", ImmutableSet.of("candy"), "");
+    receipt.setUnindexedProperty("rawText", new Text("Chocolate bar"));
+    Entity receiptWithoutText = createReceiptWithoutBucket(3.00);
+    PriceBuckets.setBucket(receiptWithoutText);
+    datastore.put(ImmutableSet.of(receipt, receiptWithoutText));
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    JSONObject backfillResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(1, backfillResponse.getInt("updatedReceipts"));
+    Assert.assertEquals(true,
+        datastore.get(receipt.getKey()).getProperty(ReceiptTextIndex.INDEXED_PROPERTY));
+    Assert.assertArrayEquals(new long[] {receipt.getKey().getId()},
+        new ReceiptTextIndex(datastore).search("testID", ImmutableSet.of("chocolate", "bar")));
+  }
+
+  @Test
+  public void doPost_receiptsWithUnindexedImageUrl_indexesImageUrl()
+      throws IOException, EntityNotFoundException {
+    Entity receipt = TestUtils.createEntity(/* userId = */ "testID", /* timestamp = */ 6292020,
+        "/serve-image?blob-key=oldKey", 5.00, "walmart", ImmutableSet.of("candy"), "");
+    receipt.setUnindexedProperty("imageUrl", receipt.getProperty("imageUrl"));
+    datastore.put(receipt);
+    ImageOwnershipCache imageOwnershipCache = new ImageOwnershipCache(datastore);
+    Assert.assertFalse(imageOwnershipCache.isOwner("testID", "oldKey"));
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    JSONObject backfillResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(1, backfillResponse.getInt("updatedReceipts"));
+    Assert.assertFalse(datastore.get(receipt.getKey()).isUnindexedProperty("imageUrl"));
+    Assert.assertTrue(imageOwnershipCache.isOwner("testID", "oldKey"));
+  }
+
+  @Test
+  public void doPost_moreReceiptsThanBatch_continuesFromCursor() throws IOException {
+    List<Entity> receipts = new ArrayList<>();
+    for (int i = 0; i <= RECEIPTS_PER_BATCH; i++) {
+      receipts.add(createReceiptWithoutBucket(i));
+    }
+    datastore.put(receipts);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    JSONObject firstBatch = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(RECEIPTS_PER_BATCH, firstBatch.getInt("updatedReceipts"));
+    Assert.assertFalse(firstBatch.getBoolean("done"));
+
+    when(request.getParameter("encodedCursor")).thenReturn(firstBatch.getString("encodedCursor"));
+    stringWriter.getBuffer().setLength(0);
+    servlet.doPost(request, response);
+    writer.flush();
+
+    JSONObject secondBatch = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(1, secondBatch.getInt("updatedReceipts"));
+    Assert.assertTrue(secondBatch.getBoolean("done"));
+  }
+
+  @Test
+  public void doPost_userNotAdmin_returnsForbidden() throws IOException {
+    helper.setEnvIsAdmin(false);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertTrue(stringWriter.toString().contains(USER_NOT_ADMIN_WARNING));
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+
+  private static Entity createReceiptWithoutBucket(double price) {
+    Entity receipt = TestUtils.createEntity(/* userId = */ "testID", /* timestamp = */ 6292020,
+        "img/walmart-receipt.jpg", price, "walmart", ImmutableSet.of("candy"), "");
+    receipt.removeProperty(PriceBuckets.PROPERTY_NAME);
+    return receipt;
+  }
+}
@@ -0,0 +1,122 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.CategorizationCache;
+import java.time.Clock;
+import java.util.concurrent.TimeUnit;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class CategorizationCacheTest {
+  private static final int MAX_HAMMING_DISTANCE = 3;
+  private static final long TTL_MILLIS = TimeUnit.HOURS.toMillis(1);
+  private static final long CURRENT_MILLIS = 1588896000000L;
+
+  private static final String STORE = "Google";
+  private static final String OTHER_STORE = "Walmart";
+  private static final ImmutableSet<String> CATEGORIES = ImmutableSet.of("Food", "Drink");
+
+  private static final String RECEIPT_TEXT = "GOOGLE CAFE\n1600 Amphitheatre Parkway\n"
+      + "Mountain View, CA 94043\nThank you for visiting!\nServer: Alex\nTable 12\n"
+      + "Burrito bowl 9.99\nIced coffee 3.50\nSubtotal 13.49\nTax 1.18\nTotal $14.67\n"
+      + "05/08/2020 12:31 PM\nPlease come again";
+  // Same receipt layout with a different server, prices, date, and table number.
+  private static final String SIMILAR_RECEIPT_TEXT = "GOOGLE CAFE\n1600 Amphitheatre Parkway\n"
+      + "Mountain View, CA 94043\nThank you for visiting!\nServer: Sam\nTable 7\n"
+      + "Burrito bowl 10.49\nIced coffee 3.25\nSubtotal 13.74\nTax 1.20\nTotal $14.94\n"
+      + "06/11/2020 6:02 PM\nPlease come again";
+  private static final String DIFFERENT_RECEIPT_TEXT = "HARDWARE DEPOT\nReturn policy: 90 days\n"
+      + "Cordless drill 79.00\nDrill bits set 19.99\nWood screws 6.47\nSandpaper 4.99\n"
+      + "Member savings applied\nCredit card ending in 4242";
+
+  private Clock clock;
+  private CategorizationCache cache;
+
+  @Before
+  public void setUp() {
+    clock = mock(Clock.class);
+    when(clock.millis()).thenReturn(CURRENT_MILLIS);
+    cache = new CategorizationCache(MAX_HAMMING_DISTANCE, TTL_MILLIS, clock);
+  }
+
+  @Test
+  public void fingerprintIgnoresNumbersAndCase() {
+    Assert.assertEquals(CategorizationCache.fingerprint("Total $14.67 on 05/08/2020"),
+        CategorizationCache.fingerprint("TOTAL $3.50 ON 6/11/2020"));
+  }
+
+  @Test
+  public void getWithSimilarTextReturnsCachedCategories() {
+    cache.put(STORE, CategorizationCache.fingerprint(RECEIPT_TEXT), CATEGORIES);
+
+    Assert.assertEquals(CATEGORIES,
+        cache.get(STORE, CategorizationCache.fingerprint(SIMILAR_RECEIPT_TEXT)).get());
+    Assert.assertEquals(1, cache.getHits());
+  }
+
+  @Test
+  public void getWithDifferentTextReturnsEmpty() {
+    cache.put(STORE, CategorizationCache.fingerprint(RECEIPT_TEXT), CATEGORIES);
+
+    Assert.assertFalse(
+        cache.get(STORE, CategorizationCache.fingerprint(DIFFERENT_RECEIPT_TEXT)).isPresent());
+    Assert.assertEquals(1, cache.getMisses());
+  }
+
+  @Test
+  public void getFromOtherStoreReturnsEmpty() {
+    long fingerprint = CategorizationCache.fingerprint(RECEIPT_TEXT);
+    cache.put(STORE, fingerprint, CATEGORIES);
+
+    Assert.assertFalse(cache.get(OTHER_STORE, fingerprint).isPresent());
+  }
+
+  @Test
+  public void getIgnoresStoreCaseAndWhitespace() {
+    long fingerprint = CategorizationCache.fingerprint(RECEIPT_TEXT);
+    cache.put(STORE, fingerprint, CATEGORIES);
+
+    Assert.assertTrue(cache.get(" google ", fingerprint).isPresent());
+  }
+
+  @Test
+  public void getAfterTtlReturnsEmpty() {
+    long fingerprint = CategorizationCache.fingerprint(RECEIPT_TEXT);
+    cache.put(STORE, fingerprint, CATEGORIES);
+
+    when(clock.millis()).thenReturn(CURRENT_MILLIS + TTL_MILLIS + 1);
+
+    Assert.assertFalse(cache.get(STORE, fingerprint).isPresent());
+  }
+
+  @Test
+  public void getWithZeroThresholdRequiresIdenticalFingerprint() {
+    CategorizationCache exactCache = new CategorizationCache(0, TTL_MILLIS, clock);
+    long fingerprint = CategorizationCache.fingerprint(RECEIPT_TEXT);
+    exactCache.put(STORE, fingerprint, CATEGORIES);
+
+    Assert.assertTrue(exactCache.get(STORE, fingerprint).isPresent());
+    Assert.assertFalse(exactCache.get(STORE, fingerprint ^ 1).isPresent());
+  }
+}
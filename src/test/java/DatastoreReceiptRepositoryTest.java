@@ -0,0 +1,159 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.DatastoreReceiptRepository;
+import com.google.sps.servlets.ImageVariants;
+import com.google.sps.servlets.SearchPageFetcher;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Optional;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class DatastoreReceiptRepositoryTest {
+  private static final String USER_ID = "testID";
+  private static final String OTHER_USER_ID = "otherID";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+  private DatastoreService datastore;
+  private DatastoreReceiptRepository receipts;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    receipts = new DatastoreReceiptRepository(datastore);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void get_receiptsThatWereStored_returnsThemById() {
+    List<Entity> storedReceipts = receipts.put(Arrays.asList(
+        createReceipt(USER_ID, 1000, "walmart"), createReceipt(USER_ID, 2000, "contoso")));
+    long firstId = storedReceipts.get(0).getKey().getId();
+    long secondId = storedReceipts.get(1).getKey().getId();
+
+    Assert.assertEquals(Optional.of(storedReceipts.get(0)), receipts.get(firstId));
+    Assert.assertEquals(Optional.empty(), receipts.get(12345));
+    Assert.assertEquals(
+        ImmutableMap.of(firstId, storedReceipts.get(0), secondId, storedReceipts.get(1)),
+        receipts.get(Arrays.asList(firstId, secondId, 12345L)));
+  }
+
+  @Test
+  public void update_onlyUpdatesReceiptsThatStillMatch() {
+    Entity receipt = receipts.put(createReceipt(USER_ID, 1000, "walmart"));
+    long id = receipt.getKey().getId();
+
+    Optional<Entity> updatedReceipt = receipts.update(id,
+        storedReceipt -> "walmart".equals(storedReceipt.getProperty("store")),
+        storedReceipt -> storedReceipt.setProperty("store", "contoso"));
+    Optional<Entity> unchangedReceipt = receipts.update(id,
+        storedReceipt -> "walmart".equals(storedReceipt.getProperty("store")),
+        storedReceipt -> storedReceipt.setProperty("store", "target"));
+
+    Assert.assertEquals("contoso", updatedReceipt.get().getProperty("store"));
+    Assert.assertEquals(Optional.empty(), unchangedReceipt);
+    Assert.assertEquals(updatedReceipt, receipts.get(id));
+    Assert.assertEquals(Optional.empty(),
+        receipts.update(/* id = */ 12345, storedReceipt -> true, storedReceipt -> {}));
+  }
+
+  @Test
+  public void delete_removesVariantsOfReceiptsImage() {
+    Entity receipt = receipts.put(createReceipt(USER_ID, 1000, "walmart"));
+    receipts.put(createReceipt(USER_ID, 2000, "contoso"));
+    for (String name : Arrays.asList("small:walmart", "medium:walmart", "small:contoso")) {
+      datastore.put(new Entity(KeyFactory.createKey(ImageVariants.KIND, name)));
+    }
+
+    receipts.delete(receipt.getKey().getId());
+
+    Assert.assertEquals(Optional.empty(), receipts.get(receipt.getKey().getId()));
+    List<Entity> variants = datastore.prepare(new Query(ImageVariants.KIND))
+                                .asList(FetchOptions.Builder.withDefaults());
+    Assert.assertEquals(Collections.singletonList("small:contoso"),
+        variants.stream().map(variant -> variant.getKey().getName()).collect(Collectors.toList()));
+  }
+
+  @Test
+  public void query_pagesThroughReceiptsNewestFirst() {
+    List<Entity> storedReceipts = new ArrayList<>();
+    for (int i = 0; i < 15; i++) {
+      storedReceipts.add(receipts.put(createReceipt(USER_ID, i / 2, "walmart")));
+    }
+    receipts.put(createReceipt(OTHER_USER_ID, 5, "walmart"));
+
+    SearchPageFetcher.Page firstPage = receipts.query(USER_ID, Optional.empty(), 10);
+    SearchPageFetcher.Page secondPage =
+        receipts.query(USER_ID, Optional.of(firstPage.getEncodedCursor()), 10);
+
+    List<Entity> pagedReceipts = new ArrayList<>(firstPage.getEntities());
+    pagedReceipts.addAll(secondPage.getEntities());
+    Collections.reverse(storedReceipts);
+    Assert.assertEquals(10, firstPage.getEntities().size());
+    Assert.assertEquals(getIds(storedReceipts), getIds(pagedReceipts));
+  }
+
+  @Test
+  public void getImageUrls_returnsUsersImageUrls() {
+    receipts.put(createReceipt(USER_ID, 1000, "walmart"));
+    receipts.put(createReceipt(OTHER_USER_ID, 2000, "contoso"));
+
+    Assert.assertEquals(
+        ImmutableSet.of("/serve-image?blob-key=walmart"), receipts.getImageUrls(USER_ID));
+  }
+
+  @Test
+  public void hasImageUrl_onlyForUsersOwnImages() {
+    receipts.put(createReceipt(USER_ID, 1000, "walmart"));
+    receipts.put(createReceipt(OTHER_USER_ID, 2000, "contoso"));
+
+    Assert.assertTrue(receipts.hasImageUrl(USER_ID, "/serve-image?blob-key=walmart"));
+    Assert.assertFalse(receipts.hasImageUrl(USER_ID, "/serve-image?blob-key=contoso"));
+  }
+
+  private static Entity createReceipt(String userId, long timestamp, String store) {
+    return TestUtils.createEntity(userId, timestamp, "/serve-image?blob-key=" + store, 1.00,
+        store, ImmutableSet.of("food"), "");
+  }
+
+  private static List<Long> getIds(List<Entity> receipts) {
+    return receipts.stream().map(receipt -> receipt.getKey().getId()).collect(Collectors.toList());
+  }
+}
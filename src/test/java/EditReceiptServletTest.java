@@ -34,7 +34,10 @@ import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
 import com.google.common.collect.ImmutableMap;
 import com.google.gson.Gson;
+import com.google.sps.data.ReceiptStatus;
 import com.google.sps.servlets.EditReceiptServlet;
+import com.google.sps.servlets.PriceBuckets;
+import com.google.sps.servlets.ReceiptTextIndex;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
@@ -162,6 +165,7 @@ public final class EditReceiptServletTest {
   public void doPost_noInitialProperties_editsReceipt()
       throws IOException, EntityNotFoundException {
     Entity originalReceipt = new Entity("Receipt");
+    originalReceipt.setProperty("userId", USER_ID);
     datastore.put(originalReceipt);
     long id = originalReceipt.getKey().getId();
 
@@ -178,6 +182,24 @@ public final class EditReceiptServletTest {
     Assert.assertEquals(Arrays.asList(NEW_CATEGORIES), receipt.getProperty("categories"));
   }
 
+  @Test
+  public void doPost_pendingReceipt_marksItAnalyzed()
+      throws IOException, EntityNotFoundException {
+    Entity originalReceipt = new Entity("Receipt");
+    originalReceipt.setProperty("userId", USER_ID);
+    originalReceipt.setProperty("status", ReceiptStatus.PENDING.name());
+    datastore.put(originalReceipt);
+    long id = originalReceipt.getKey().getId();
+
+    stubRequestBody(request, id, NEW_CATEGORIES, NEW_STORE, NEW_PRICE, NEW_TIMESTAMP);
+
+    servlet.doPost(request, response);
+
+    // The pending analysis must not overwrite the fields entered by the user.
+    Entity receipt = datastore.get(KeyFactory.createKey("Receipt", id));
+    Assert.assertEquals(ReceiptStatus.ANALYZED, ReceiptStatus.of(receipt));
+  }
+
   @Test
   public void doPost_sanitizesStore() throws IOException {
     String store = "    TraDeR   JOE's  ";
@@ -333,10 +355,13 @@ public final class EditReceiptServletTest {
   private Entity createReceiptEntity(
       double price, String store, long timestamp, String[] categories) {
     Entity receipt = new Entity("Receipt");
+    receipt.setProperty("userId", USER_ID);
     receipt.setProperty("categories", Arrays.asList(categories));
     receipt.setProperty("timestamp", timestamp);
     receipt.setProperty("store", store);
     receipt.setProperty("price", price);
+    receipt.setProperty("priceBucket", PriceBuckets.getBucket(price));
+    receipt.setUnindexedProperty(ReceiptTextIndex.INDEXED_PROPERTY, true);
 
     return receipt;
   }
@@ -0,0 +1,226 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.ImageBytesReader;
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.jupiter.api.Assertions;
+
+public final class ImageBytesReaderTest {
+  private static final BlobKey BLOB_KEY = new BlobKey("blobKey");
+  private static final int FRAGMENT_SIZE = BlobstoreService.MAX_BLOB_FETCH_SIZE;
+  private static final int MAX_CONCURRENT_FETCHES = 2;
+  // Long enough for the fetches of different lanes to overlap.
+  private static final long FETCH_MILLIS = 20;
+
+  private BlobstoreService blobstoreService;
+  private BlobInfoFactory blobInfoFactory;
+  private ExecutorService executor;
+  private ImageBytesReader reader;
+
+  @Before
+  public void setUp() {
+    blobstoreService = mock(BlobstoreService.class);
+    blobInfoFactory = mock(BlobInfoFactory.class);
+    executor = Executors.newFixedThreadPool(4);
+    reader = new ImageBytesReader(
+        blobstoreService, blobInfoFactory, executor, MAX_CONCURRENT_FETCHES);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdown();
+  }
+
+  @Test
+  public void readBlobKey_multipleFragments_returnsAllBytes() throws IOException {
+    byte[] blob = createBlob(FRAGMENT_SIZE * 5 / 2, /* fetchMillis = */ 0);
+
+    ByteString bytes = reader.read(BLOB_KEY);
+
+    Assert.assertArrayEquals(blob, bytes.toByteArray());
+    verify(blobstoreService, times(3)).fetchData(eq(BLOB_KEY), anyLong(), anyLong());
+  }
+
+  @Test
+  public void readBlobKey_outsideRequest_fetchesOnCallingThread() throws IOException {
+    byte[] blob = createBlob(FRAGMENT_SIZE * 5 / 2, /* fetchMillis = */ 0);
+    ImageBytesReader requestThreadReader = new ImageBytesReader(blobstoreService,
+        blobInfoFactory, ImageBytesReader.requestThreadExecutor(), MAX_CONCURRENT_FETCHES);
+
+    ByteString bytes = requestThreadReader.read(BLOB_KEY);
+
+    Assert.assertArrayEquals(blob, bytes.toByteArray());
+  }
+
+  @Test
+  public void readBlobKey_singleFragment_returnsAllBytes() throws IOException {
+    byte[] blob = createBlob(1234, /* fetchMillis = */ 0);
+
+    ByteString bytes = reader.read(BLOB_KEY);
+
+    Assert.assertArrayEquals(blob, bytes.toByteArray());
+    verify(blobstoreService).fetchData(BLOB_KEY, 0, 1233);
+  }
+
+  @Test
+  public void readBlobKey_emptyBlob_returnsEmptyBytes() throws IOException {
+    createBlob(0, /* fetchMillis = */ 0);
+
+    ByteString bytes = reader.read(BLOB_KEY);
+
+    Assert.assertTrue(bytes.isEmpty());
+  }
+
+  @Test
+  public void readBlobKey_limitsConcurrentFetches() throws IOException {
+    AtomicInteger inFlight = new AtomicInteger();
+    AtomicInteger maxInFlight = new AtomicInteger();
+    byte[] blob = new byte[FRAGMENT_SIZE * 6];
+    stubBlobInfo(blob.length);
+    when(blobstoreService.fetchData(eq(BLOB_KEY), anyLong(), anyLong())).thenAnswer(invocation -> {
+      maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+      Thread.sleep(FETCH_MILLIS);
+      inFlight.decrementAndGet();
+      return fetch(blob, invocation.getArgumentAt(1, Long.class),
+          invocation.getArgumentAt(2, Long.class));
+    });
+
+    reader.read(BLOB_KEY);
+
+    Assert.assertEquals(MAX_CONCURRENT_FETCHES, maxInFlight.get());
+  }
+
+  @Test
+  public void readBlobKey_shortFragment_throwsIOException() {
+    stubBlobInfo(FRAGMENT_SIZE * 2);
+    when(blobstoreService.fetchData(eq(BLOB_KEY), anyLong(), anyLong())).thenReturn(new byte[10]);
+
+    Assertions.assertThrows(IOException.class, () -> reader.read(BLOB_KEY));
+  }
+
+  @Test
+  public void readBlobKey_missingBlob_throwsIOException() {
+    Assertions.assertThrows(IOException.class, () -> reader.read(BLOB_KEY));
+  }
+
+  @Test
+  public void readUrl_knownContentLength_returnsBytes() throws IOException {
+    byte[] image = randomBytes(100000);
+
+    ByteString bytes = reader.read(createUrl(image, image.length));
+
+    Assert.assertArrayEquals(image, bytes.toByteArray());
+  }
+
+  @Test
+  public void readUrl_unknownContentLength_returnsBytes() throws IOException {
+    byte[] image = randomBytes(100000);
+
+    ByteString bytes = reader.read(createUrl(image, -1));
+
+    Assert.assertArrayEquals(image, bytes.toByteArray());
+  }
+
+  @Test
+  public void readUrl_truncatedResponse_throwsIOException() throws IOException {
+    byte[] image = randomBytes(1000);
+    URL url = createUrl(image, image.length + 1);
+
+    Assertions.assertThrows(IOException.class, () -> reader.read(url));
+  }
+
+  /** Adds a blob of random bytes with the given size to the mocked Blobstore. */
+  private byte[] createBlob(int size, long fetchMillis) {
+    byte[] blob = randomBytes(size);
+    stubBlobInfo(size);
+    when(blobstoreService.fetchData(eq(BLOB_KEY), anyLong(), anyLong())).thenAnswer(invocation -> {
+      Thread.sleep(fetchMillis);
+      return fetch(blob, invocation.getArgumentAt(1, Long.class),
+          invocation.getArgumentAt(2, Long.class));
+    });
+
+    return blob;
+  }
+
+  private void stubBlobInfo(long size) {
+    BlobInfo blobInfo =
+        new BlobInfo(BLOB_KEY, "image/jpeg", new Date(), "image.jpg", size, "hash", null);
+    when(blobInfoFactory.loadBlobInfo(BLOB_KEY)).thenReturn(blobInfo);
+  }
+
+  /** Returns the bytes of the blob between the start index and the inclusive end index. */
+  private static byte[] fetch(byte[] blob, long start, long end) {
+    return Arrays.copyOfRange(blob, (int) start, (int) Math.min(end + 1, blob.length));
+  }
+
+  private static byte[] randomBytes(int size) {
+    byte[] bytes = new byte[size];
+    new Random(size).nextBytes(bytes);
+    return bytes;
+  }
+
+  /** Returns a URL that serves the bytes with the given content length, or -1 if unknown. */
+  private static URL createUrl(byte[] bytes, long contentLength) throws IOException {
+    URLStreamHandler handler = new URLStreamHandler() {
+      @Override
+      protected URLConnection openConnection(URL url) {
+        return new URLConnection(url) {
+          @Override
+          public void connect() {}
+
+          @Override
+          public long getContentLengthLong() {
+            return contentLength;
+          }
+
+          @Override
+          public InputStream getInputStream() {
+            return new ByteArrayInputStream(bytes);
+          }
+        };
+      }
+    };
+
+    return new URL("test", "localhost", 80, "/serve-image", handler);
+  }
+}
@@ -0,0 +1,260 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.sps.servlets.ImageDiskCache;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class ImageDiskCacheTest {
+  private static final int IMAGE_SIZE_BYTES = 100 * 1024;
+  // Room for two images but not three.
+  private static final long MAX_BYTES = 2 * IMAGE_SIZE_BYTES + IMAGE_SIZE_BYTES / 2;
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private BlobstoreService blobstoreService;
+  private BlobInfoFactory blobInfoFactory;
+  private ImageDiskCache imageDiskCache;
+
+  @Before
+  public void setUp() {
+    blobstoreService = mock(BlobstoreService.class);
+    blobInfoFactory = mock(BlobInfoFactory.class);
+    imageDiskCache = new ImageDiskCache(
+        blobstoreService, blobInfoFactory, temporaryFolder.getRoot().toPath(), MAX_BYTES);
+  }
+
+  @Test
+  public void serve_cachedImage_servesFileWithoutFetching() throws IOException {
+    byte[] image = stubImage("a", IMAGE_SIZE_BYTES);
+
+    byte[] firstResponse = serve("a", null);
+    byte[] secondResponse = serve("a", null);
+
+    Assert.assertArrayEquals(image, firstResponse);
+    Assert.assertArrayEquals(image, secondResponse);
+    verify(blobInfoFactory, times(1)).loadBlobInfo(new BlobKey("a"));
+    ImageDiskCache.CacheMetrics metrics = imageDiskCache.getMetrics();
+    Assert.assertEquals(1, metrics.getHits());
+    Assert.assertEquals(1, metrics.getMisses());
+    Assert.assertEquals(0.5, metrics.getHitRate(), 0);
+    Assert.assertEquals(2 * IMAGE_SIZE_BYTES, metrics.getBytesServed());
+  }
+
+  @Test
+  public void serve_largeImage_fetchesInFragments() throws IOException {
+    int size = BlobstoreService.MAX_BLOB_FETCH_SIZE * 2 + 10;
+    imageDiskCache = new ImageDiskCache(
+        blobstoreService, blobInfoFactory, temporaryFolder.getRoot().toPath(), size);
+    byte[] image = stubImage("a", size);
+
+    Assert.assertArrayEquals(image, serve("a", null));
+    verify(blobstoreService, times(3)).fetchData(eq(new BlobKey("a")), anyLong(), anyLong());
+  }
+
+  @Test
+  public void serve_range_servesOnlyRange() throws IOException {
+    byte[] image = stubImage("a", IMAGE_SIZE_BYTES);
+    HttpServletResponse response = createResponse();
+
+    Assert.assertTrue(imageDiskCache.serve(new BlobKey("a"), new ByteRange(10, 19), response));
+
+    verify(response).setStatus(HttpServletResponse.SC_PARTIAL_CONTENT);
+    verify(response).setHeader("Content-Range", "bytes 10-19/" + IMAGE_SIZE_BYTES);
+    verify(response).setContentLengthLong(10);
+    Assert.assertArrayEquals(Arrays.copyOfRange(image, 10, 20), getBytes(response));
+  }
+
+  @Test
+  public void serve_suffixRange_servesEndOfImage() throws IOException {
+    byte[] image = stubImage("a", IMAGE_SIZE_BYTES);
+
+    Assert.assertArrayEquals(Arrays.copyOfRange(image, IMAGE_SIZE_BYTES - 5, IMAGE_SIZE_BYTES),
+        serve("a", new ByteRange(-5)));
+  }
+
+  @Test
+  public void serve_unsatisfiableRange_returnsFalse() throws IOException {
+    stubImage("a", IMAGE_SIZE_BYTES);
+
+    ByteRange range = new ByteRange(IMAGE_SIZE_BYTES, IMAGE_SIZE_BYTES + 10);
+
+    Assert.assertFalse(imageDiskCache.serve(new BlobKey("a"), range, createResponse()));
+  }
+
+  @Test
+  public void serve_missingBlob_returnsFalse() throws IOException {
+    Assert.assertFalse(imageDiskCache.serve(new BlobKey("a"), null, createResponse()));
+  }
+
+  @Test
+  public void serve_imageLargerThanCache_returnsFalseWithoutFetching() throws IOException {
+    stubImage("a", (int) MAX_BYTES + 1);
+
+    Assert.assertFalse(imageDiskCache.serve(new BlobKey("a"), null, createResponse()));
+    verify(blobstoreService, never()).fetchData(eq(new BlobKey("a")), anyLong(), anyLong());
+  }
+
+  @Test
+  public void serve_cacheTurnedOff_returnsFalseWithoutLookingUpBlob() throws IOException {
+    imageDiskCache = new ImageDiskCache(blobstoreService, blobInfoFactory,
+        temporaryFolder.getRoot().toPath(), /* maxBytes = */ 0);
+    stubImage("a", IMAGE_SIZE_BYTES);
+
+    Assert.assertFalse(imageDiskCache.serve(new BlobKey("a"), null, createResponse()));
+    verify(blobInfoFactory, never()).loadBlobInfo(new BlobKey("a"));
+  }
+
+  @Test
+  public void serve_overMaxBytes_evictsLeastRecentlyUsed() throws IOException {
+    stubImage("a", IMAGE_SIZE_BYTES);
+    stubImage("b", IMAGE_SIZE_BYTES);
+    stubImage("c", IMAGE_SIZE_BYTES);
+
+    serve("a", null);
+    serve("b", null);
+    // Using a makes b the least recently used.
+    serve("a", null);
+    serve("c", null);
+    serve("a", null);
+    serve("b", null);
+
+    verify(blobInfoFactory, times(1)).loadBlobInfo(new BlobKey("a"));
+    verify(blobInfoFactory, times(2)).loadBlobInfo(new BlobKey("b"));
+    ImageDiskCache.CacheMetrics metrics = imageDiskCache.getMetrics();
+    Assert.assertEquals(2, metrics.getEvictions());
+    Assert.assertEquals(2 * IMAGE_SIZE_BYTES, metrics.getEvictedBytes());
+    Assert.assertEquals(2, temporaryFolder.getRoot().list().length);
+  }
+
+  @Test
+  public void serve_concurrentMisses_fetchOnce() throws Exception {
+    byte[] image = stubImage("a", IMAGE_SIZE_BYTES);
+    CountDownLatch fetchStarted = new CountDownLatch(1);
+    CountDownLatch fetchAllowed = new CountDownLatch(1);
+    when(blobstoreService.fetchData(eq(new BlobKey("a")), anyLong(), anyLong()))
+        .thenAnswer(invocation -> {
+          fetchStarted.countDown();
+          fetchAllowed.await();
+          return image;
+        });
+
+    ExecutorService executor = Executors.newFixedThreadPool(2);
+    try {
+      Future<byte[]> firstResponse = executor.submit(() -> serve("a", null));
+      fetchStarted.await();
+      Future<byte[]> secondResponse = executor.submit(() -> serve("a", null));
+      while (imageDiskCache.getMetrics().getCoalescedMisses() == 0) {
+        Thread.sleep(1);
+      }
+      fetchAllowed.countDown();
+
+      Assert.assertArrayEquals(image, firstResponse.get(10, TimeUnit.SECONDS));
+      Assert.assertArrayEquals(image, secondResponse.get(10, TimeUnit.SECONDS));
+    } finally {
+      executor.shutdownNow();
+    }
+
+    verify(blobstoreService, times(1)).fetchData(eq(new BlobKey("a")), anyLong(), anyLong());
+    Assert.assertEquals(1, imageDiskCache.getMetrics().getMisses());
+    Assert.assertEquals(1, imageDiskCache.getMetrics().getCoalescedMisses());
+  }
+
+  /** Stubs a blob of the given size with bytes that differ by position, and returns its bytes. */
+  private byte[] stubImage(String blobKeyString, int size) {
+    BlobKey blobKey = new BlobKey(blobKeyString);
+    byte[] image = new byte[size];
+    for (int i = 0; i < size; i++) {
+      image[i] = (byte) (i * 31 + blobKeyString.hashCode());
+    }
+
+    when(blobInfoFactory.loadBlobInfo(blobKey))
+        .thenReturn(
+            new BlobInfo(blobKey, "image/jpeg", new Date(), "image.jpg", size, "hash", null));
+    when(blobstoreService.fetchData(eq(blobKey), anyLong(), anyLong()))
+        .thenAnswer(invocation
+            -> Arrays.copyOfRange(image, invocation.getArgumentAt(1, Long.class).intValue(),
+                invocation.getArgumentAt(2, Long.class).intValue() + 1));
+    return image;
+  }
+
+  private byte[] serve(String blobKeyString, ByteRange range) throws IOException {
+    HttpServletResponse response = createResponse();
+    Assert.assertTrue(imageDiskCache.serve(new BlobKey(blobKeyString), range, response));
+    return getBytes(response);
+  }
+
+  private static HttpServletResponse createResponse() throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new ByteArrayServletOutputStream());
+    return response;
+  }
+
+  private static byte[] getBytes(HttpServletResponse response) throws IOException {
+    return ((ByteArrayServletOutputStream) response.getOutputStream()).bytes.toByteArray();
+  }
+
+  /** Output stream that keeps the bytes written to it. */
+  private static final class ByteArrayServletOutputStream extends ServletOutputStream {
+    private final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+
+    @Override
+    public void write(int b) {
+      bytes.write(b);
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+      bytes.write(b, off, len);
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {}
+  }
+}
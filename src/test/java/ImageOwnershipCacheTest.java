@@ -0,0 +1,127 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.sps.servlets.ImageOwnershipCache;
+import com.google.sps.servlets.SpendingSummaries;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ImageOwnershipCacheTest {
+  private static final String USER_ID = "testID";
+  private static final String OTHER_USER_ID = "otherID";
+
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper(
+      new LocalDatastoreServiceTestConfig(), new LocalMemcacheServiceTestConfig());
+
+  private DatastoreService datastore;
+  private SpendingSummaries spendingSummaries;
+  private ImageOwnershipCache imageOwnershipCache;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+    imageOwnershipCache = new ImageOwnershipCache(datastore);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void isOwner_onlyForUsersOwnImages() {
+    spendingSummaries.put(createReceipt(USER_ID, "blobKey"));
+    spendingSummaries.put(createReceipt(OTHER_USER_ID, "otherKey"));
+
+    Assert.assertTrue(imageOwnershipCache.isOwner(USER_ID, "blobKey"));
+    Assert.assertFalse(imageOwnershipCache.isOwner(USER_ID, "otherKey"));
+    Assert.assertFalse(imageOwnershipCache.isOwner(USER_ID, "missingKey"));
+    Assert.assertTrue(imageOwnershipCache.isOwner(OTHER_USER_ID, "otherKey"));
+  }
+
+  @Test
+  public void isOwner_unchangedReceipts_answersFromCache() {
+    Entity receipt = createReceipt(USER_ID, "blobKey");
+    spendingSummaries.put(receipt);
+    Assert.assertTrue(imageOwnershipCache.isOwner(USER_ID, "blobKey"));
+
+    // Deleting the receipt behind the cache's back shows that Datastore isn't read again.
+    datastore.delete(receipt.getKey());
+
+    Assert.assertTrue(imageOwnershipCache.isOwner(USER_ID, "blobKey"));
+  }
+
+  @Test
+  public void isOwner_imageMissingFromCache_looksItUp() {
+    spendingSummaries.put(createReceipt(USER_ID, "blobKey"));
+    Assert.assertFalse(imageOwnershipCache.isOwner(USER_ID, "newKey"));
+
+    // Storing the receipt behind the cache's back leaves the cached keys without its image.
+    datastore.put(createReceipt(USER_ID, "newKey"));
+
+    Assert.assertTrue(imageOwnershipCache.isOwner(USER_ID, "newKey"));
+    Assert.assertFalse(imageOwnershipCache.isOwner(OTHER_USER_ID, "newKey"));
+  }
+
+  @Test
+  public void isOwner_afterUploadAndDelete_readsImagesAgain() {
+    Entity receipt = createReceipt(USER_ID, "blobKey");
+    spendingSummaries.put(receipt);
+    Assert.assertFalse(imageOwnershipCache.isOwner(USER_ID, "newKey"));
+
+    spendingSummaries.put(createReceipt(USER_ID, "newKey"));
+    spendingSummaries.delete(receipt.getKey());
+
+    Assert.assertTrue(imageOwnershipCache.isOwner(USER_ID, "newKey"));
+    Assert.assertFalse(imageOwnershipCache.isOwner(USER_ID, "blobKey"));
+  }
+
+  @Test
+  public void setImageUrlIndexed_indexesUnindexedImageUrl() throws EntityNotFoundException {
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("userId", USER_ID);
+    receipt.setUnindexedProperty("imageUrl", "/serve-image?blob-key=blobKey");
+    datastore.put(receipt);
+    Entity storedReceipt = datastore.get(receipt.getKey());
+    Assert.assertTrue(ImageOwnershipCache.needsIndexing(storedReceipt));
+    Assert.assertFalse(imageOwnershipCache.isOwner(USER_ID, "blobKey"));
+
+    ImageOwnershipCache.setImageUrlIndexed(storedReceipt);
+    spendingSummaries.put(storedReceipt);
+
+    Assert.assertFalse(ImageOwnershipCache.needsIndexing(datastore.get(receipt.getKey())));
+    Assert.assertTrue(imageOwnershipCache.isOwner(USER_ID, "blobKey"));
+  }
+
+  private static Entity createReceipt(String userId, String blobKey) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("userId", userId);
+    receipt.setProperty("imageUrl", "/serve-image?blob-key=" + blobKey);
+    return receipt;
+  }
+}
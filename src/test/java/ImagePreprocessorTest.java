@@ -0,0 +1,190 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.ImagePreprocessor;
+import com.google.sps.servlets.ImagePreprocessor.Stage;
+import java.awt.Color;
+import java.awt.Font;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import javax.imageio.ImageIO;
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class ImagePreprocessorTest {
+  private static final int PHOTO_WIDTH = 1200;
+  private static final int PHOTO_HEIGHT = 1600;
+  private static final int RECEIPT_X = 300;
+  private static final int RECEIPT_Y = 200;
+  private static final int RECEIPT_WIDTH = 600;
+  private static final int RECEIPT_HEIGHT = 1200;
+  private static final long NO_PIXEL_LIMIT = Long.MAX_VALUE;
+  private static final float JPEG_QUALITY = 0.85f;
+
+  @Test
+  public void preprocess_colorPhoto_returnsSmallerGrayscaleJpeg() throws IOException {
+    ByteString photo = createReceiptPhoto(RECEIPT_X, RECEIPT_Y, RECEIPT_WIDTH, RECEIPT_HEIGHT);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(NO_PIXEL_LIMIT, JPEG_QUALITY);
+
+    ByteString processed = preprocessor.preprocess(photo);
+
+    Assert.assertTrue(processed.size() < photo.size());
+    BufferedImage image = decode(processed);
+    Assert.assertEquals(1, image.getColorModel().getNumComponents());
+  }
+
+  @Test
+  public void preprocess_receiptOnDarkBackground_cropsToReceipt() throws IOException {
+    ByteString photo = createReceiptPhoto(RECEIPT_X, RECEIPT_Y, RECEIPT_WIDTH, RECEIPT_HEIGHT);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(NO_PIXEL_LIMIT, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.preprocess(photo));
+
+    // The crop keeps a small margin around the receipt.
+    Assert.assertTrue(image.getWidth() >= RECEIPT_WIDTH);
+    Assert.assertTrue(image.getWidth() < RECEIPT_WIDTH + PHOTO_WIDTH * 0.05);
+    Assert.assertTrue(image.getHeight() >= RECEIPT_HEIGHT);
+    Assert.assertTrue(image.getHeight() < RECEIPT_HEIGHT + PHOTO_HEIGHT * 0.05);
+  }
+
+  @Test
+  public void preprocess_receiptFillsPhoto_doesNotCrop() throws IOException {
+    ByteString photo = createReceiptPhoto(0, 0, PHOTO_WIDTH, PHOTO_HEIGHT);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(NO_PIXEL_LIMIT, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.preprocess(photo));
+
+    Assert.assertEquals(PHOTO_WIDTH, image.getWidth());
+    Assert.assertEquals(PHOTO_HEIGHT, image.getHeight());
+  }
+
+  @Test
+  public void preprocess_largeReceipt_downsamplesToPixelLimit() throws IOException {
+    ByteString photo = createReceiptPhoto(0, 0, PHOTO_WIDTH, PHOTO_HEIGHT);
+    long maxPixels = PHOTO_WIDTH * PHOTO_HEIGHT / 4;
+    ImagePreprocessor preprocessor = new ImagePreprocessor(maxPixels, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.preprocess(photo));
+
+    Assert.assertTrue((long) image.getWidth() * image.getHeight() <= maxPixels);
+    // The aspect ratio is kept.
+    Assert.assertEquals(
+        (double) PHOTO_WIDTH / PHOTO_HEIGHT, (double) image.getWidth() / image.getHeight(), 0.01);
+  }
+
+  @Test
+  public void preprocess_rotatedPhoto_turnsUpright() throws IOException {
+    ByteString photo = withOrientation(
+        createReceiptPhoto(RECEIPT_X, RECEIPT_Y, RECEIPT_WIDTH, RECEIPT_HEIGHT), 6);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(NO_PIXEL_LIMIT, JPEG_QUALITY);
+
+    BufferedImage image = decode(preprocessor.preprocess(photo));
+
+    // The photo is shown turned a quarter turn clockwise, so the tall receipt becomes wide.
+    Assert.assertEquals(6, ImagePreprocessor.readOrientation(photo));
+    Assert.assertTrue(image.getWidth() >= RECEIPT_HEIGHT);
+    Assert.assertTrue(image.getHeight() < RECEIPT_WIDTH + PHOTO_WIDTH * 0.05);
+  }
+
+  @Test
+  public void readOrientation_noExifMetadata_returnsUpright() throws IOException {
+    Assert.assertEquals(1, ImagePreprocessor.readOrientation(
+        createReceiptPhoto(0, 0, PHOTO_WIDTH, PHOTO_HEIGHT)));
+    Assert.assertEquals(1, ImagePreprocessor.readOrientation(ByteString.copyFromUtf8("not")));
+  }
+
+  @Test
+  public void preprocess_notAnImage_returnsOriginalBytes() {
+    ByteString bytes = ByteString.copyFromUtf8("not an image");
+    ImagePreprocessor preprocessor = new ImagePreprocessor();
+
+    ByteString processed = preprocessor.preprocess(bytes);
+
+    Assert.assertSame(bytes, processed);
+    Assert.assertEquals(1, preprocessor.getMetrics().getSkippedImages());
+    Assert.assertEquals(0, preprocessor.getMetrics().getBytesSaved());
+  }
+
+  @Test
+  public void preprocess_recordsBytesSavedAndStageLatencies() throws IOException {
+    ByteString photo = createReceiptPhoto(RECEIPT_X, RECEIPT_Y, RECEIPT_WIDTH, RECEIPT_HEIGHT);
+    ImagePreprocessor preprocessor = new ImagePreprocessor(NO_PIXEL_LIMIT, JPEG_QUALITY);
+
+    ByteString first = preprocessor.preprocess(photo);
+    ByteString second = preprocessor.preprocess(photo);
+
+    // Reusing the pooled output buffer doesn't change the result.
+    Assert.assertEquals(first, second);
+    Assert.assertEquals(2, preprocessor.getMetrics().getProcessedImages());
+    Assert.assertEquals(
+        2 * (photo.size() - first.size()), preprocessor.getMetrics().getBytesSaved());
+    Assert.assertTrue(preprocessor.getMetrics().getAverageLatencyMillis(Stage.DECODE) > 0);
+    Assert.assertTrue(preprocessor.getMetrics().getAverageLatencyMillis(Stage.ENCODE) > 0);
+  }
+
+  /**
+   * Returns a color JPEG of a white receipt with dark text at the given position, photographed on
+   * a dark brown table.
+   */
+  private static ByteString createReceiptPhoto(int x, int y, int width, int height)
+      throws IOException {
+    BufferedImage photo = new BufferedImage(PHOTO_WIDTH, PHOTO_HEIGHT, BufferedImage.TYPE_INT_RGB);
+    Graphics2D graphics = photo.createGraphics();
+
+    graphics.setColor(new Color(74, 52, 38));
+    graphics.fillRect(0, 0, PHOTO_WIDTH, PHOTO_HEIGHT);
+    graphics.setColor(new Color(246, 244, 236));
+    graphics.fillRect(x, y, width, height);
+
+    graphics.setColor(new Color(30, 30, 30));
+    graphics.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 20));
+    for (int line = 1; line * 40 < height - 40; line++) {
+      graphics.drawString("ITEM " + line + "   $" + line + ".99", x + 40, y + line * 40);
+    }
+    graphics.dispose();
+
+    ByteArrayOutputStream output = new ByteArrayOutputStream();
+    ImageIO.write(photo, "jpeg", output);
+    return ByteString.copyFrom(output.toByteArray());
+  }
+
+  /**
+   * Returns the JPEG with an EXIF segment holding only the orientation, after the JFIF segment
+   * that ImageIO writes first.
+   */
+  static ByteString withOrientation(ByteString jpeg, int orientation) {
+    int jfifEnd = 4 + ((jpeg.byteAt(4) & 0xFF) << 8 | (jpeg.byteAt(5) & 0xFF));
+    byte[] exif = {
+        (byte) 0xFF, (byte) 0xE1, 0, 34, 'E', 'x', 'i', 'f', 0, 0,
+        // Big-endian TIFF header, with the first directory right after it.
+        'M', 'M', 0, 42, 0, 0, 0, 8,
+        // One entry, the orientation as a single short, and no next directory.
+        0, 1, 0x01, 0x12, 0, 3, 0, 0, 0, 1, 0, (byte) orientation, 0, 0, 0, 0, 0, 0};
+    return jpeg.substring(0, jfifEnd)
+        .concat(ByteString.copyFrom(exif))
+        .concat(jpeg.substring(jfifEnd));
+  }
+
+  private static BufferedImage decode(ByteString imageBytes) throws IOException {
+    try (InputStream input = imageBytes.newInput()) {
+      return ImageIO.read(input);
+    }
+  }
+}
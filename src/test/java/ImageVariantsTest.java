@@ -0,0 +1,192 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.protobuf.ByteString;
+import com.google.sps.servlets.DatastoreReceiptRepository;
+import com.google.sps.servlets.ImageBytesReader;
+import com.google.sps.servlets.ImageVariants;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.Optional;
+import java.util.Random;
+import javax.imageio.ImageIO;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ImageVariantsTest {
+  private static final BlobKey BLOB_KEY = new BlobKey("blobKey");
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private BlobstoreService blobstoreService;
+  private BlobInfoFactory blobInfoFactory;
+  private ImageVariants imageVariants;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    blobstoreService = mock(BlobstoreService.class);
+    blobInfoFactory = mock(BlobInfoFactory.class);
+    imageVariants = new ImageVariants(
+        new DatastoreReceiptRepository(DatastoreServiceFactory.getDatastoreService()),
+        new ImageBytesReader(blobstoreService, blobInfoFactory, MoreExecutors.directExecutor(),
+            /* maxConcurrentFetches = */ 1));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void get_largeImage_returnsScaledJpeg() throws IOException {
+    stubBlob(createReceiptPhoto(1500, 2000));
+
+    BufferedImage small = decode(imageVariants.get(BLOB_KEY, ImageVariants.Size.SMALL).get());
+    BufferedImage medium = decode(imageVariants.get(BLOB_KEY, ImageVariants.Size.MEDIUM).get());
+
+    Assert.assertEquals(240, small.getWidth());
+    Assert.assertEquals(320, small.getHeight());
+    Assert.assertEquals(768, medium.getWidth());
+    Assert.assertEquals(1024, medium.getHeight());
+  }
+
+  @Test
+  public void get_rotatedPhoto_returnsUprightVariant() throws IOException {
+    stubBlob(ImagePreprocessorTest
+                 .withOrientation(ByteString.copyFrom(createReceiptPhoto(1500, 2000)), 6)
+                 .toByteArray());
+
+    BufferedImage small = decode(imageVariants.get(BLOB_KEY, ImageVariants.Size.SMALL).get());
+
+    // The photo is shown turned a quarter turn clockwise, so the tall receipt becomes wide.
+    Assert.assertEquals(320, small.getWidth());
+    Assert.assertEquals(240, small.getHeight());
+  }
+
+  @Test
+  public void get_secondRequest_readsStoredVariant() throws IOException {
+    stubBlob(createReceiptPhoto(1500, 2000));
+
+    byte[] first = imageVariants.get(BLOB_KEY, ImageVariants.Size.SMALL).get();
+    byte[] second = imageVariants.get(BLOB_KEY, ImageVariants.Size.SMALL).get();
+
+    Assert.assertArrayEquals(first, second);
+    verify(blobstoreService, times(1)).fetchData(eq(BLOB_KEY), anyLong(), anyLong());
+  }
+
+  @Test
+  public void get_imageAlreadySmall_servesOriginalWithoutReadingAgain() throws IOException {
+    stubBlob(createReceiptPhoto(200, 300));
+
+    Assert.assertFalse(imageVariants.get(BLOB_KEY, ImageVariants.Size.SMALL).isPresent());
+    Assert.assertFalse(imageVariants.get(BLOB_KEY, ImageVariants.Size.SMALL).isPresent());
+
+    verify(blobstoreService, times(1)).fetchData(eq(BLOB_KEY), anyLong(), anyLong());
+  }
+
+  @Test
+  public void get_undecodableImage_servesOriginal() throws IOException {
+    stubBlob(new byte[] {1, 2, 3, 4});
+
+    Assert.assertEquals(Optional.empty(), imageVariants.get(BLOB_KEY, ImageVariants.Size.MEDIUM));
+  }
+
+  @Test
+  public void sizeFromName_ignoresCase() {
+    Assert.assertEquals(
+        Optional.of(ImageVariants.Size.SMALL), ImageVariants.Size.fromName("Small"));
+    Assert.assertEquals(Optional.empty(), ImageVariants.Size.fromName("large"));
+  }
+
+  /**
+   * Returns a JPEG of a receipt-like photo: a strip of white paper with rows of dark marks in place
+   * of text on a gray table, with a little noise like a phone camera's.
+   */
+  static byte[] createReceiptPhoto(int width, int height) throws IOException {
+    BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Random random = new Random(width * 31 + height);
+    Graphics2D graphics = image.createGraphics();
+    try {
+      graphics.setColor(Color.GRAY);
+      graphics.fillRect(0, 0, width, height);
+      graphics.setColor(Color.WHITE);
+      graphics.fillRect(width / 5, 0, width * 3 / 5, height);
+
+      graphics.setColor(Color.DARK_GRAY);
+      int lineHeight = Math.max(2, height / 80);
+      for (int y = lineHeight * 2; y < height - lineHeight; y += lineHeight * 3) {
+        int lineEnd = width / 4 + random.nextInt(width / 2);
+        for (int x = width / 4; x < lineEnd; x += lineHeight) {
+          if (random.nextInt(5) != 0) {
+            graphics.fillRect(x, y, lineHeight * 2 / 3, lineHeight);
+          }
+        }
+      }
+    } finally {
+      graphics.dispose();
+    }
+
+    for (int y = 0; y < height; y++) {
+      for (int x = 0; x < width; x++) {
+        int gray = Math.max(0, (image.getRGB(x, y) & 0xFF) - random.nextInt(6));
+        image.setRGB(x, y, new Color(gray, gray, gray).getRGB());
+      }
+    }
+
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    ImageIO.write(image, "jpeg", bytes);
+    return bytes.toByteArray();
+  }
+
+  private void stubBlob(byte[] blob) {
+    when(blobInfoFactory.loadBlobInfo(BLOB_KEY))
+        .thenReturn(new BlobInfo(
+            BLOB_KEY, "image/jpeg", new Date(), "image.jpg", blob.length, "hash", null));
+    when(blobstoreService.fetchData(eq(BLOB_KEY), anyLong(), anyLong()))
+        .thenAnswer(invocation
+            -> Arrays.copyOfRange(blob, invocation.getArgumentAt(1, Long.class).intValue(),
+                (int) Math.min(invocation.getArgumentAt(2, Long.class) + 1, blob.length)));
+  }
+
+  private static BufferedImage decode(byte[] bytes) throws IOException {
+    return ImageIO.read(new ByteArrayInputStream(bytes));
+  }
+}
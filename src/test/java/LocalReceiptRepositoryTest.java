@@ -0,0 +1,465 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityTranslator;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.data.SpendingAnalytics;
+import com.google.sps.data.UserSpendingSummary;
+import com.google.sps.servlets.ImageVariants;
+import com.google.sps.servlets.LocalReceiptRepository;
+import com.google.sps.servlets.SearchCache;
+import com.google.sps.servlets.SearchPageFetcher;
+import com.google.sps.servlets.TimeBuckets;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.SortedMap;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public final class LocalReceiptRepositoryTest {
+  private static final String USER_ID = "testID";
+  private static final String OTHER_USER_ID = "otherID";
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  private Path file;
+  private LocalReceiptRepository receipts;
+
+  @Before
+  public void setUp() throws IOException {
+    helper.setUp();
+    file = temporaryFolder.getRoot().toPath().resolve("receipts.log");
+    receipts = new LocalReceiptRepository(file);
+  }
+
+  @After
+  public void tearDown() throws IOException {
+    receipts.close();
+    helper.tearDown();
+  }
+
+  @Test
+  public void put_newReceipt_assignsIdAndCanBeRead() {
+    Entity receipt = createReceipt(USER_ID, 1000, 10.50, "walmart");
+
+    Entity storedReceipt = receipts.put(receipt);
+
+    Assert.assertTrue(storedReceipt.getKey().isComplete());
+    Assert.assertEquals(
+        Optional.of(storedReceipt), receipts.get(storedReceipt.getKey().getId()));
+    Assert.assertEquals(receipt.getProperties(),
+        receipts.get(storedReceipt.getKey().getId()).get().getProperties());
+  }
+
+  @Test
+  public void put_existingReceipt_replacesItInSummary() {
+    Entity receipt = receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+
+    receipt.setProperty("price", 20.00);
+    receipt.setProperty("store", "target");
+    receipts.put(receipt);
+
+    assertStoreAnalytics(ImmutableMap.of("target", 20.00, "contoso", 5.25),
+        receipts.getSummary(USER_ID).toAnalytics());
+    Assert.assertEquals(
+        "target", receipts.get(receipt.getKey().getId()).get().getProperty("store"));
+  }
+
+  @Test
+  public void put_write_invalidatesSearchCache() {
+    long generation = SearchCache.getGeneration(USER_ID).get();
+
+    receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+
+    Assert.assertNotEquals(generation, (long) SearchCache.getGeneration(USER_ID).get());
+  }
+
+  @Test
+  public void delete_removesReceiptAndItsTotals() {
+    Entity receipt = receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+
+    receipts.delete(receipt.getKey().getId());
+    receipts.delete(/* id = */ 12345);
+
+    Assert.assertEquals(Optional.empty(), receipts.get(receipt.getKey().getId()));
+    assertStoreAnalytics(
+        ImmutableMap.of("contoso", 5.25), receipts.getSummary(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void delete_pendingReceipts_canBeReopened() throws IOException {
+    long firstId = receipts.put(createPendingReceipt(USER_ID)).getKey().getId();
+    long secondId = receipts.put(createPendingReceipt(USER_ID)).getKey().getId();
+
+    receipts.delete(firstId);
+    receipts.delete(secondId);
+    reopen();
+
+    Assert.assertEquals(Optional.empty(), receipts.get(secondId));
+    Assert.assertTrue(receipts.getSummary(USER_ID).isEmpty());
+  }
+
+  @Test
+  public void update_matchingReceipt_updatesItAndItsTotals() throws IOException {
+    long id = receipts.put(createPendingReceipt(USER_ID)).getKey().getId();
+
+    Optional<Entity> updatedReceipt = receipts.update(id,
+        receipt -> "PENDING".equals(receipt.getProperty("status")), receipt -> {
+          receipt.setProperty("status", "ANALYZED");
+          receipt.setProperty("store", "walmart");
+          receipt.setProperty("price", 10.50);
+          receipt.setProperty("timestamp", 1000L);
+        });
+    reopen();
+
+    Assert.assertEquals(updatedReceipt, receipts.get(id));
+    Assert.assertEquals("ANALYZED", receipts.get(id).get().getProperty("status"));
+    assertStoreAnalytics(
+        ImmutableMap.of("walmart", 10.50), receipts.getSummary(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void update_missingOrNonMatchingReceipt_leavesItUnchanged() {
+    Entity receipt = receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    long id = receipt.getKey().getId();
+
+    Assert.assertEquals(Optional.empty(),
+        receipts.update(id, storedReceipt -> false, storedReceipt -> storedReceipt.setProperty(
+            "store", "contoso")));
+    Assert.assertEquals(Optional.empty(),
+        receipts.update(/* id = */ 12345, storedReceipt -> true,
+            storedReceipt -> storedReceipt.setProperty("store", "contoso")));
+    Assert.assertEquals(Optional.of(receipt), receipts.get(id));
+  }
+
+  @Test
+  public void get_batch_leavesOutMissingIds() {
+    List<Entity> storedReceipts = receipts.put(Arrays.asList(
+        createReceipt(USER_ID, 1000, 10.50, "walmart"),
+        createReceipt(USER_ID, 2000, 5.25, "contoso")));
+    long firstId = storedReceipts.get(0).getKey().getId();
+    long secondId = storedReceipts.get(1).getKey().getId();
+
+    Map<Long, Entity> batch = receipts.get(Arrays.asList(firstId, secondId, 12345L));
+
+    Assert.assertEquals(
+        ImmutableMap.of(firstId, storedReceipts.get(0), secondId, storedReceipts.get(1)), batch);
+  }
+
+  @Test
+  public void query_pagesThroughReceiptsNewestFirst() {
+    List<Entity> storedReceipts = new ArrayList<>();
+    for (int i = 0; i < 25; i++) {
+      // Pairs of receipts share a timestamp, so that they're sorted by ID.
+      storedReceipts.add(receipts.put(createReceipt(USER_ID, i / 2, 1.00, "walmart")));
+    }
+    receipts.put(createReceipt(OTHER_USER_ID, 5, 1.00, "walmart"));
+    receipts.put(createPendingReceipt(USER_ID));
+
+    List<Entity> pagedReceipts = new ArrayList<>();
+    Optional<String> cursor = Optional.empty();
+    int pages = 0;
+    while (true) {
+      SearchPageFetcher.Page page = receipts.query(USER_ID, cursor, /* pageSize = */ 10);
+      if (page.getEntities().isEmpty()) {
+        break;
+      }
+      pagedReceipts.addAll(page.getEntities());
+      cursor = Optional.of(page.getEncodedCursor());
+      pages++;
+    }
+
+    List<Entity> expectedReceipts = new ArrayList<>(storedReceipts);
+    Collections.reverse(expectedReceipts);
+    Assert.assertEquals(3, pages);
+    Assert.assertEquals(getIds(expectedReceipts), getIds(pagedReceipts));
+  }
+
+  @Test(expected = IllegalArgumentException.class)
+  public void query_invalidCursor_throws() {
+    receipts.query(USER_ID, Optional.of("not a cursor"), /* pageSize = */ 10);
+  }
+
+  @Test
+  public void query_filtered_pagesThroughMatchingReceiptsInRange() throws ParseException {
+    List<Entity> matchingReceipts = new ArrayList<>();
+    for (int i = 0; i < 12; i++) {
+      matchingReceipts.add(receipts.put(createReceipt(USER_ID, 1000 + i, 10.00, "walmart")));
+      receipts.put(createReceipt(USER_ID, 1000 + i, 10.00, "contoso"));
+      receipts.put(createReceipt(USER_ID, 1000 + i, 50.00, "walmart"));
+    }
+    // After the end of the range, which is the last millisecond of January 1, 1970.
+    receipts.put(createReceipt(USER_ID, TimeUnit.DAYS.toMillis(1), 10.00, "walmart"));
+    receipts.put(createReceipt(OTHER_USER_ID, 1005, 10.00, "walmart"));
+    QueryInformation queryInformation = new QueryInformation("GMT", /* category = */ "",
+        "January 1, 1970 - January 1, 1970", "walmart", /* minPrice = */ "5", "20");
+
+    List<Entity> pagedReceipts = new ArrayList<>();
+    Optional<String> cursor = Optional.empty();
+    for (int pages = 0; pages < 10; pages++) {
+      SearchPageFetcher.Page page = receipts.query(USER_ID, queryInformation, cursor,
+          /* pageSize = */ 5, /* scanBudget = */ 10);
+      if (page.getScannedEntities() == 0) {
+        break;
+      }
+      Assert.assertTrue(page.getEntities().size() <= 5);
+      pagedReceipts.addAll(page.getEntities());
+      cursor = Optional.of(page.getEncodedCursor());
+    }
+
+    Collections.reverse(matchingReceipts);
+    Assert.assertEquals(getIds(matchingReceipts), getIds(pagedReceipts));
+  }
+
+  @Test
+  public void searchText_returnsSortedIdsOfReceiptsWithEveryWord() {
+    long bothWords = receipts.put(createReceipt(USER_ID, 1000, "Walmart receipt")).getKey().getId();
+    long oneWord = receipts.put(createReceipt(USER_ID, 2000, "walmart")).getKey().getId();
+    Entity editedReceipt = receipts.put(createReceipt(USER_ID, 3000, "receipt walmart"));
+    editedReceipt.setProperty("rawText", new Text("contoso receipt"));
+    receipts.put(editedReceipt);
+    receipts.put(createReceipt(OTHER_USER_ID, 4000, "walmart receipt"));
+
+    Assert.assertArrayEquals(new long[] {bothWords},
+        receipts.searchText(USER_ID, ImmutableSet.of("walmart", "receipt")));
+    Assert.assertArrayEquals(
+        new long[] {bothWords, oneWord}, receipts.searchText(USER_ID, ImmutableSet.of("walmart")));
+    Assert.assertArrayEquals(new long[0], receipts.searchText(USER_ID, ImmutableSet.of("target")));
+  }
+
+  @Test
+  public void scan_pagesThroughEveryUsersReceipts() {
+    List<Entity> storedReceipts = new ArrayList<>();
+    for (int i = 0; i < 5; i++) {
+      storedReceipts.add(receipts.put(createReceipt(USER_ID, i, 1.00, "walmart")));
+      storedReceipts.add(receipts.put(createReceipt(OTHER_USER_ID, i, 1.00, "walmart")));
+    }
+
+    List<Entity> scannedReceipts = new ArrayList<>();
+    Optional<String> cursor = Optional.empty();
+    SearchPageFetcher.Page batch;
+    do {
+      batch = receipts.scan(cursor, /* batchSize = */ 4);
+      scannedReceipts.addAll(batch.getEntities());
+      cursor = Optional.of(batch.getEncodedCursor());
+    } while (batch.getEntities().size() == 4);
+
+    Assert.assertEquals(getIds(storedReceipts), getIds(scannedReceipts));
+  }
+
+  @Test
+  public void delete_removesVariantsOfItsImage() {
+    Entity receipt = receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    Entity otherReceipt = receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+    Key variantKey = ImageVariants.getKeys(new BlobKey("walmart")).get(0);
+    Key otherVariantKey = ImageVariants.getKeys(new BlobKey("contoso")).get(0);
+    receipts.putImageVariant(new Entity(variantKey));
+    receipts.putImageVariant(new Entity(otherVariantKey));
+
+    receipts.delete(receipt.getKey().getId());
+
+    Assert.assertEquals(Optional.empty(), receipts.getImageVariant(variantKey));
+    Assert.assertTrue(receipts.getImageVariant(otherVariantKey).isPresent());
+  }
+
+  @Test
+  public void recomputeSummary_matchesCheckedReceipts() {
+    receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    Entity receipt = receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+    receipts.update(receipt.getKey().getId(), storedReceipt -> true,
+        storedReceipt -> storedReceipt.setProperty("price", 6.00));
+
+    Assert.assertTrue(receipts.checkSummary(USER_ID).isConsistent());
+    assertStoreAnalytics(ImmutableMap.of("walmart", 10.50, "contoso", 6.00),
+        receipts.recomputeSummary(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void getSummary_dateRange_onlyIncludesReceiptsInRange() {
+    receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+    receipts.put(createReceipt(USER_ID, 3000, 2.00, "contoso"));
+    receipts.put(createReceipt(USER_ID, 4000, 7.00, "target"));
+    receipts.put(createReceipt(OTHER_USER_ID, 2500, 100.00, "contoso"));
+
+    assertStoreAnalytics(ImmutableMap.of("contoso", 7.25),
+        receipts.getSummary(USER_ID, 2000, 3000).toAnalytics());
+  }
+
+  @Test
+  public void getSummarySeries_month_totalsEachMonth() {
+    receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+    // February 1, 1970 in UTC.
+    receipts.put(createReceipt(USER_ID, 2678400000L, 2.00, "contoso"));
+    receipts.put(createReceipt(OTHER_USER_ID, 2500, 100.00, "contoso"));
+
+    SortedMap<String, UserSpendingSummary> series =
+        receipts.getSummarySeries(USER_ID, TimeBuckets.Interval.MONTH);
+
+    Assert.assertEquals(Arrays.asList("1970-01", "1970-02"), new ArrayList<>(series.keySet()));
+    assertStoreAnalytics(ImmutableMap.of("walmart", 10.50, "contoso", 5.25),
+        series.get("1970-01").toAnalytics());
+    assertStoreAnalytics(
+        ImmutableMap.of("contoso", 2.00), series.get("1970-02").toAnalytics());
+  }
+
+  @Test
+  public void getImageUrls_returnsUsersImageUrls() {
+    receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.put(createReceipt(OTHER_USER_ID, 2000, 5.25, "contoso"));
+
+    Assert.assertEquals(
+        ImmutableSet.of("/serve-image?blob-key=walmart"), receipts.getImageUrls(USER_ID));
+  }
+
+  @Test
+  public void hasImageUrl_onlyForUsersOwnImages() {
+    receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.put(createReceipt(OTHER_USER_ID, 2000, 5.25, "contoso"));
+
+    Assert.assertTrue(receipts.hasImageUrl(USER_ID, "/serve-image?blob-key=walmart"));
+    Assert.assertFalse(receipts.hasImageUrl(USER_ID, "/serve-image?blob-key=contoso"));
+  }
+
+  @Test
+  public void reopen_restoresReceiptsAndIndexes() throws IOException {
+    Entity deletedReceipt = receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    Entity editedReceipt = receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+    receipts.delete(deletedReceipt.getKey().getId());
+    editedReceipt.setProperty("price", 6.00);
+    receipts.put(editedReceipt);
+
+    reopen();
+    Entity newReceipt = receipts.put(createReceipt(USER_ID, 3000, 1.00, "target"));
+
+    Assert.assertEquals(Optional.empty(), receipts.get(deletedReceipt.getKey().getId()));
+    Assert.assertEquals(editedReceipt.getProperties(),
+        receipts.get(editedReceipt.getKey().getId()).get().getProperties());
+    Assert.assertTrue(newReceipt.getKey().getId() > editedReceipt.getKey().getId());
+    assertStoreAnalytics(ImmutableMap.of("contoso", 6.00, "target", 1.00),
+        receipts.getSummary(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void put_beyondInitialCapacity_remapsLargerLog() throws IOException {
+    List<Long> ids = new ArrayList<>();
+    for (int i = 0; i < 100; i++) {
+      Entity receipt = createReceipt(USER_ID, i, 1.00, "walmart");
+      receipt.setUnindexedProperty("rawText", new Text(Strings.repeat("receipt text ", 2000)));
+      ids.add(receipts.put(receipt).getKey().getId());
+    }
+
+    reopen();
+
+    Assert.assertEquals(ids.size(), receipts.get(ids).size());
+    assertStoreAnalytics(
+        ImmutableMap.of("walmart", 100.00), receipts.getSummary(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void reopen_partlyWrittenRecord_isIgnored() throws IOException {
+    Entity firstReceipt = receipts.put(createReceipt(USER_ID, 1000, 10.50, "walmart"));
+    receipts.close();
+    // Writes the start of a record without its length, as if the process exited while appending
+    // it after the file's header and the first record.
+    long end = Integer.BYTES + Integer.BYTES + 1 + Long.BYTES
+        + EntityTranslator.convertToPb(firstReceipt).toByteArray().length;
+    try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+      byte[] partialRecord = new byte[1000];
+      Arrays.fill(partialRecord, (byte) 0x7F);
+      channel.write(ByteBuffer.wrap(partialRecord), end + Integer.BYTES);
+    }
+
+    receipts = new LocalReceiptRepository(file);
+    Entity secondReceipt = receipts.put(createReceipt(USER_ID, 2000, 5.25, "contoso"));
+    reopen();
+
+    Assert.assertEquals(Optional.of(firstReceipt), receipts.get(firstReceipt.getKey().getId()));
+    Assert.assertEquals(Optional.of(secondReceipt), receipts.get(secondReceipt.getKey().getId()));
+  }
+
+  @Test(expected = IOException.class)
+  public void open_otherFile_throws() throws IOException {
+    Path otherFile = temporaryFolder.newFile().toPath();
+    Files.write(otherFile, "not a receipt log".getBytes());
+
+    new LocalReceiptRepository(otherFile);
+  }
+
+  private void reopen() throws IOException {
+    receipts.close();
+    receipts = new LocalReceiptRepository(file);
+  }
+
+  private static Entity createReceipt(String userId, long timestamp, double price, String store) {
+    return TestUtils.createEntity(userId, timestamp, "/serve-image?blob-key=" + store, price,
+        store, ImmutableSet.of("food"), "");
+  }
+
+  private static Entity createReceipt(String userId, long timestamp, String rawText) {
+    return TestUtils.createEntity(userId, timestamp, "/serve-image?blob-key=" + timestamp, 1.00,
+        "walmart", ImmutableSet.of("food"), rawText);
+  }
+
+  private static Entity createPendingReceipt(String userId) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("userId", userId);
+    receipt.setProperty("status", "PENDING");
+    return receipt;
+  }
+
+  private static List<Long> getIds(List<Entity> receipts) {
+    return receipts.stream().map(receipt -> receipt.getKey().getId()).collect(Collectors.toList());
+  }
+
+  private static void assertStoreAnalytics(
+      ImmutableMap<String, Double> expectedStoreAnalytics, SpendingAnalytics analytics) {
+    Assert.assertEquals(new HashMap<>(expectedStoreAnalytics), analytics.getStoreAnalytics());
+  }
+}
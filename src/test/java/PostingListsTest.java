@@ -0,0 +1,65 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.sps.servlets.PostingLists;
+import java.util.Random;
+import java.util.stream.LongStream;
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class PostingListsTest {
+  @Test
+  public void decode_encodedIds_returnsSameIds() {
+    long[] ids = {1, 127, 128, 300, 16384, 4503599627370496L, Long.MAX_VALUE};
+
+    Assert.assertArrayEquals(ids, PostingLists.decode(PostingLists.encode(ids)));
+  }
+
+  @Test
+  public void decode_randomDatastoreIds_returnsSameIds() {
+    // Datastore allocates IDs scattered below 2^53.
+    long[] ids = new Random(/* seed = */ 42)
+                     .longs(1000, 1, 1L << 53)
+                     .distinct()
+                     .sorted()
+                     .toArray();
+
+    Assert.assertArrayEquals(ids, PostingLists.decode(PostingLists.encode(ids)));
+  }
+
+  @Test
+  public void encode_closeIds_takesOneBytePerId() {
+    long[] ids = LongStream.rangeClosed(5629499534213120L, 5629499534213219L).toArray();
+
+    // The first ID takes 8 bytes, and every difference after it takes 1.
+    Assert.assertEquals(8 + 99, PostingLists.encode(ids).length);
+  }
+
+  @Test
+  public void encode_noIds_isEmpty() {
+    Assert.assertEquals(0, PostingLists.encode(new long[0]).length);
+    Assert.assertEquals(0, PostingLists.decode(new byte[0]).length);
+  }
+
+  @Test
+  public void intersect_returnsCommonIds() {
+    long[] first = {2, 3, 5, 7, 11, 13};
+    long[] second = {1, 3, 5, 9, 13, 15};
+
+    Assert.assertArrayEquals(new long[] {3, 5, 13}, PostingLists.intersect(first, second));
+    Assert.assertArrayEquals(new long[0], PostingLists.intersect(first, new long[] {4, 6}));
+  }
+}
@@ -0,0 +1,124 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.sps.servlets.PriceBuckets;
+import java.util.function.Predicate;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class PriceBucketsTest {
+  // Entities need an App Engine environment to create their keys.
+  private final LocalServiceTestHelper helper = new LocalServiceTestHelper();
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void getBucket_pricesUnderOneDollar_shareFirstBucket() {
+    Assert.assertEquals(0, PriceBuckets.getBucket(0));
+    Assert.assertEquals(0, PriceBuckets.getBucket(0.99));
+    Assert.assertEquals(1, PriceBuckets.getBucket(1));
+  }
+
+  @Test
+  public void getBucket_increasesWithPrice() {
+    long previousBucket = PriceBuckets.getBucket(0);
+
+    for (double price = 0.01; price < 10000; price *= 1.1) {
+      long bucket = PriceBuckets.getBucket(price);
+      Assert.assertTrue(bucket >= previousBucket);
+      previousBucket = bucket;
+    }
+  }
+
+  @Test
+  public void getBucket_splitsEachDoublingInTwo() {
+    Assert.assertEquals(PriceBuckets.getBucket(10) + 2, PriceBuckets.getBucket(20));
+    Assert.assertEquals(PriceBuckets.getBucket(64) + 1, PriceBuckets.getBucket(91));
+  }
+
+  @Test
+  public void getBuckets_returnsBucketsFromMinToMaxPrice() {
+    long minBucket = PriceBuckets.getBucket(5);
+
+    ImmutableList<Long> buckets = PriceBuckets.getBuckets(5, 30);
+
+    Assert.assertEquals(minBucket, (long) buckets.get(0));
+    Assert.assertEquals(PriceBuckets.getBucket(30), (long) buckets.get(buckets.size() - 1));
+    for (int i = 0; i < buckets.size(); i++) {
+      Assert.assertEquals(minBucket + i, (long) buckets.get(i));
+    }
+  }
+
+  @Test
+  public void setBucket_receiptWithoutPrice_removesBucket() {
+    Entity receipt = createReceipt(12.50);
+    PriceBuckets.setBucket(receipt);
+    receipt.removeProperty("price");
+
+    PriceBuckets.setBucket(receipt);
+
+    Assert.assertFalse(receipt.hasProperty(PriceBuckets.PROPERTY_NAME));
+  }
+
+  @Test
+  public void isBucketStale_checksBucketMatchesPrice() {
+    Entity receipt = createReceipt(12.50);
+    Assert.assertTrue(PriceBuckets.isBucketStale(receipt));
+
+    PriceBuckets.setBucket(receipt);
+    Assert.assertFalse(PriceBuckets.isBucketStale(receipt));
+
+    receipt.setProperty("price", 125.00);
+    Assert.assertTrue(PriceBuckets.isBucketStale(receipt));
+  }
+
+  @Test
+  public void createRefinementFilter_checksPricesInBoundaryBuckets() {
+    Predicate<Entity> filter = PriceBuckets.createRefinementFilter(5, 30);
+
+    Assert.assertTrue(filter.test(createReceiptWithBucket(5)));
+    Assert.assertTrue(filter.test(createReceiptWithBucket(15)));
+    Assert.assertTrue(filter.test(createReceiptWithBucket(30)));
+    // Same buckets as the min and max prices, but outside of the range.
+    Assert.assertFalse(filter.test(createReceiptWithBucket(4.99)));
+    Assert.assertFalse(filter.test(createReceiptWithBucket(30.01)));
+  }
+
+  private static Entity createReceipt(double price) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("price", price);
+    return receipt;
+  }
+
+  private static Entity createReceiptWithBucket(double price) {
+    Entity receipt = createReceipt(price);
+    PriceBuckets.setBucket(receipt);
+    return receipt;
+  }
+}
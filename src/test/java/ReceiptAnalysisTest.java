@@ -16,15 +16,18 @@ package com.google.sps;
 
 import static org.mockito.Mockito.any;
 import static org.mockito.Mockito.anyList;
+import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mock;
-import static org.powermock.api.mockito.PowerMockito.mockStatic;
 
 import com.google.api.gax.grpc.GrpcStatusCode;
 import com.google.api.gax.rpc.ApiException;
 import com.google.api.gax.rpc.StatusCode;
 import com.google.api.gax.rpc.StatusCode.Code;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.cloud.language.v1.ClassificationCategory;
 import com.google.cloud.language.v1.ClassifyTextRequest;
 import com.google.cloud.language.v1.ClassifyTextResponse;
@@ -43,14 +46,26 @@ import com.google.common.collect.ImmutableSet;
 import com.google.protobuf.ByteString;
 import com.google.rpc.Status;
 import com.google.sps.data.AnalysisResults;
+import com.google.sps.servlets.AnalysisCache;
+import com.google.sps.servlets.CategorizationCache;
+import com.google.sps.servlets.ImageBytesReader;
 import com.google.sps.servlets.ReceiptAnalysis;
 import com.google.sps.servlets.ReceiptAnalysis.ReceiptAnalysisException;
+import com.google.sps.servlets.ReceiptAnalysis.StageTimeouts;
+import com.google.sps.servlets.ReceiptAnalysisClients;
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.net.URL;
+import java.net.URLConnection;
 import java.time.Instant;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
 import org.junit.Test;
@@ -63,8 +78,8 @@ import org.powermock.modules.junit4.PowerMockRunner;
 
 @PowerMockIgnore("jdk.internal.reflect.*")
 @RunWith(PowerMockRunner.class)
-@PrepareForTest(
-    {ImageAnnotatorClient.class, LanguageServiceClient.class, ReceiptAnalysis.class, URL.class})
+@PrepareForTest({ImageAnnotatorClient.class, ImageBytesReader.class, LanguageServiceClient.class,
+    ReceiptAnalysis.class, URL.class})
 public final class ReceiptAnalysisTest {
   private static final ByteString IMAGE_BYTES = ByteString.copyFromUtf8("byte string");
   private static final Optional<String> RAW_TEXT = Optional.of("raw text");
@@ -88,28 +103,40 @@ public final class ReceiptAnalysisTest {
   private static final Optional<Long> TIMESTAMP_IN_1900S =
       Optional.of(Long.valueOf(INSTANT_IN_1900S.toEpochMilli()));
 
+  private static final long CACHE_SIZE_BYTES = 1024 * 1024;
+
+  // Longer than the stage timeouts used to test slow API calls.
+  private static final long SLOW_CALL_MILLIS = 2000;
+
   private static final double PRICE_VALUE = 12.77;
   private static final Optional<Double> PRICE = Optional.of(Double.valueOf(PRICE_VALUE));
 
   private URL url;
   private ImageAnnotatorClient imageClient;
   private LanguageServiceClient languageClient;
+  private ReceiptAnalysisClients clients;
+  private AnalysisCache cache;
+
+  // Uses local Datastore for the persistent tier of the analysis cache.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
 
   @Before
   public void setUp() throws IOException {
     MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    cache = new AnalysisCache(DatastoreServiceFactory.getDatastoreService(), CACHE_SIZE_BYTES);
 
-    url = mock(URL.class);
-    InputStream inputStream = new ByteArrayInputStream(IMAGE_BYTES.toByteArray());
-    when(url.openStream()).thenReturn(inputStream);
+    url = mockUrl(IMAGE_BYTES);
 
     imageClient = mock(ImageAnnotatorClient.class);
-    mockStatic(ImageAnnotatorClient.class);
-    when(ImageAnnotatorClient.create()).thenReturn(imageClient);
-
     languageClient = mock(LanguageServiceClient.class);
-    mockStatic(LanguageServiceClient.class);
-    when(LanguageServiceClient.create()).thenReturn(languageClient);
+    clients = new ReceiptAnalysisClients(() -> imageClient, () -> languageClient);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
   }
 
   @Test
@@ -120,7 +147,7 @@ public final class ReceiptAnalysisTest {
     ImmutableList<AnnotateImageRequest> imageRequests = createImageRequest();
     ClassifyTextRequest classifyRequest = createClassifyRequest();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(RAW_TEXT, results.getRawText());
     Assert.assertEquals(CATEGORIES, results.getCategories());
@@ -141,7 +168,7 @@ public final class ReceiptAnalysisTest {
 
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getStore());
   }
@@ -154,7 +181,7 @@ public final class ReceiptAnalysisTest {
     ImmutableList<AnnotateImageRequest> imageRequests = createImageRequest();
     ClassifyTextRequest classifyRequest = createClassifyRequest();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getStore());
   }
@@ -165,7 +192,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDate);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(TIMESTAMP, results.getTransactionTimestamp());
   }
@@ -177,7 +204,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateUsingSlashes);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(TIMESTAMP, results.getTransactionTimestamp());
   }
@@ -189,7 +216,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateNoLeadingZeros);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(TIMESTAMP, results.getTransactionTimestamp());
   }
@@ -201,7 +228,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateTwoDigitYear);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(TIMESTAMP, results.getTransactionTimestamp());
   }
@@ -213,7 +240,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateIn1900s);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(TIMESTAMP_IN_1900S, results.getTransactionTimestamp());
   }
@@ -225,7 +252,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithPrice);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(PRICE, results.getPrice());
   }
@@ -237,7 +264,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithPriceNoDollarSign);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(PRICE, results.getPrice());
   }
@@ -250,7 +277,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithMultiplePrices);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(PRICE, results.getPrice());
   }
@@ -262,7 +289,7 @@ public final class ReceiptAnalysisTest {
     stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateAndPrice);
     stubTextClassification();
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(TIMESTAMP, results.getTransactionTimestamp());
     Assert.assertEquals(PRICE, results.getPrice());
@@ -274,7 +301,7 @@ public final class ReceiptAnalysisTest {
     BatchAnnotateImagesResponse batchResponse = BatchAnnotateImagesResponse.newBuilder().build();
     when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getRawText());
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
@@ -290,7 +317,7 @@ public final class ReceiptAnalysisTest {
         BatchAnnotateImagesResponse.newBuilder().addResponses(response).build();
     when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getRawText());
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
@@ -305,7 +332,7 @@ public final class ReceiptAnalysisTest {
         BatchAnnotateImagesResponse.newBuilder().addResponses(response).build();
     when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getRawText());
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
@@ -323,7 +350,7 @@ public final class ReceiptAnalysisTest {
         BatchAnnotateImagesResponse.newBuilder().addResponses(response).build();
     when(imageClient.batchAnnotateImages(anyList())).thenReturn(batchResponse);
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getRawText());
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
@@ -337,7 +364,7 @@ public final class ReceiptAnalysisTest {
     ApiException clientException = new ApiException(null, statusCode, false);
     when(imageClient.batchAnnotateImages(anyList())).thenThrow(clientException);
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
 
     Assert.assertEquals(Optional.empty(), results.getRawText());
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
@@ -359,9 +386,282 @@ public final class ReceiptAnalysisTest {
     ApiException clientException = new ApiException(null, statusCode, false);
     when(languageClient.classifyText(any(ClassifyTextRequest.class))).thenThrow(clientException);
 
-    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url);
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+
+    Assert.assertEquals(ImmutableSet.of(), results.getCategories());
+  }
+
+  @Test
+  public void analyzeImageAsync_multipleCalls_reusesClients()
+      throws IOException, ExecutionException, InterruptedException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    stubTextClassification();
+    ReceiptAnalysisClients.ClientFactory<ImageAnnotatorClient> imageClientFactory =
+        mock(ReceiptAnalysisClients.ClientFactory.class);
+    when(imageClientFactory.create()).thenReturn(imageClient);
+    clients = new ReceiptAnalysisClients(imageClientFactory, () -> languageClient);
+
+    ReceiptAnalysis.analyzeImageAsync(IMAGE_BYTES, clients).get();
+    ReceiptAnalysis.analyzeImageAsync(IMAGE_BYTES, clients).get();
+
+    verify(imageClientFactory, times(1)).create();
+    Assert.assertEquals(2, clients.getImageClientMetrics().getCalls());
+    Assert.assertEquals(2, clients.getLanguageClientMetrics().getCalls());
+    Assert.assertEquals(0, clients.getImageClientMetrics().getInFlight());
+  }
+
+  @Test
+  public void analyzeImageAt_imageRequestFailure_recordsFailedCall()
+      throws IOException, ReceiptAnalysisException {
+    StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.INTERNAL.getCode());
+    ApiException clientException = new ApiException(null, statusCode, false);
+    when(imageClient.batchAnnotateImages(anyList())).thenThrow(clientException);
+
+    ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+
+    Assert.assertEquals(1, clients.getImageClientMetrics().getFailedCalls());
+    Assert.assertEquals(0, clients.getImageClientMetrics().getInFlight());
+  }
+
+  @Test
+  public void analyzeImageAsync_categorizationTimesOut_returnsPartialResults()
+      throws ExecutionException, InterruptedException {
+    String rawTextWithDateAndPrice = "the date is 05-08-2020 and the total is " + PRICE_VALUE;
+    stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateAndPrice);
+    when(languageClient.classifyText(any(ClassifyTextRequest.class))).thenAnswer(invocation -> {
+      Thread.sleep(SLOW_CALL_MILLIS);
+      return ClassifyTextResponse.getDefaultInstance();
+    });
+    StageTimeouts timeouts = new StageTimeouts(/* textDetectionMillis = */ SLOW_CALL_MILLIS,
+        /* categorizationMillis = */ 10);
+
+    AnalysisResults results =
+        ReceiptAnalysis.analyzeImageAsync(IMAGE_BYTES, clients, timeouts).get();
+
+    Assert.assertEquals(Optional.of(rawTextWithDateAndPrice), results.getRawText());
+    Assert.assertEquals(ImmutableSet.of(), results.getCategories());
+    Assert.assertEquals(STORE, results.getStore());
+    Assert.assertEquals(TIMESTAMP, results.getTransactionTimestamp());
+    Assert.assertEquals(PRICE, results.getPrice());
+  }
+
+  @Test
+  public void analyzeImageAsync_textDetectionTimesOut_returnsEmptyAnalysisResults()
+      throws ExecutionException, InterruptedException {
+    when(imageClient.batchAnnotateImages(anyList())).thenAnswer(invocation -> {
+      Thread.sleep(SLOW_CALL_MILLIS);
+      return BatchAnnotateImagesResponse.getDefaultInstance();
+    });
+    StageTimeouts timeouts = new StageTimeouts(/* textDetectionMillis = */ 10,
+        /* categorizationMillis = */ SLOW_CALL_MILLIS);
+
+    AnalysisResults results =
+        ReceiptAnalysis.analyzeImageAsync(IMAGE_BYTES, clients, timeouts).get();
+
+    Assert.assertEquals(Optional.empty(), results.getRawText());
+    Assert.assertEquals(ImmutableSet.of(), results.getCategories());
+    Assert.assertEquals(Optional.empty(), results.getStore());
+  }
+
+  @Test
+  public void analyzeImageAsync_textDetectionTimesOut_interruptsCall()
+      throws ExecutionException, InterruptedException {
+    CountDownLatch interrupted = new CountDownLatch(1);
+    when(imageClient.batchAnnotateImages(anyList())).thenAnswer(invocation -> {
+      try {
+        Thread.sleep(SLOW_CALL_MILLIS);
+      } catch (InterruptedException e) {
+        interrupted.countDown();
+      }
+      return BatchAnnotateImagesResponse.getDefaultInstance();
+    });
+    StageTimeouts timeouts = new StageTimeouts(/* textDetectionMillis = */ 10,
+        /* categorizationMillis = */ SLOW_CALL_MILLIS);
+
+    ReceiptAnalysis.analyzeImageAsync(IMAGE_BYTES, clients, timeouts).get();
+
+    // The timed out call doesn't keep its analysis thread busy.
+    Assert.assertTrue(interrupted.await(SLOW_CALL_MILLIS, TimeUnit.MILLISECONDS));
+  }
+
+  @Test
+  public void analyzeImageAsync_categorizationFailure_returnsPartialResults()
+      throws ExecutionException, InterruptedException {
+    String rawTextWithPrice = "the price is $" + PRICE_VALUE + " in total";
+    stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithPrice);
+    when(languageClient.classifyText(any(ClassifyTextRequest.class)))
+        .thenThrow(new IllegalStateException());
+
+    AnalysisResults results = ReceiptAnalysis.analyzeImageAsync(IMAGE_BYTES, clients).get();
 
     Assert.assertEquals(ImmutableSet.of(), results.getCategories());
+    Assert.assertEquals(PRICE, results.getPrice());
+  }
+
+  @Test
+  public void analyzeImageAt_sameImageTwice_usesCachedResults()
+      throws IOException, ReceiptAnalysisException {
+    String rawTextWithDateAndPrice = "the date is 05-08-2020 and the total is " + PRICE_VALUE;
+    stubAnnotationResponse(LOGO_CONFIDENCE, rawTextWithDateAndPrice);
+    stubTextClassification();
+
+    AnalysisResults firstResults = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+    AnalysisResults secondResults = ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+
+    verify(imageClient, times(1)).batchAnnotateImages(anyList());
+    verify(languageClient, times(1)).classifyText(any(ClassifyTextRequest.class));
+    Assert.assertEquals(firstResults.getRawText(), secondResults.getRawText());
+    Assert.assertEquals(CATEGORIES, secondResults.getCategories());
+    Assert.assertEquals(TIMESTAMP, secondResults.getTransactionTimestamp());
+    Assert.assertEquals(PRICE, secondResults.getPrice());
+    Assert.assertEquals(1, cache.getMemoryHits());
+  }
+
+  @Test
+  public void analyzeImageAt_failedRequest_doesNotCacheResults()
+      throws IOException, ReceiptAnalysisException {
+    StatusCode statusCode = GrpcStatusCode.of(io.grpc.Status.INTERNAL.getCode());
+    ApiException clientException = new ApiException(null, statusCode, false);
+    when(imageClient.batchAnnotateImages(anyList())).thenThrow(clientException);
+
+    ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+    ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+
+    verify(imageClient, times(2)).batchAnnotateImages(anyList());
+    Assert.assertEquals(2, cache.getMisses());
+  }
+
+  @Test
+  public void analyzeImageAsync_similarReceiptFromSameStore_reusesCategories()
+      throws IOException, ExecutionException, InterruptedException {
+    CategorizationCache categorizationCache = new CategorizationCache();
+    stubTextClassification();
+
+    stubAnnotationResponse(LOGO_CONFIDENCE, "the total is 12.77 thank you for shopping");
+    AnalysisResults firstResults = ReceiptAnalysis
+                                       .analyzeImageAsync(IMAGE_BYTES, clients,
+                                           categorizationCache, StageTimeouts.DEFAULT)
+                                       .get();
+    stubAnnotationResponse(LOGO_CONFIDENCE, "the total is 3.50 thank you for shopping");
+    AnalysisResults secondResults = ReceiptAnalysis
+                                        .analyzeImageAsync(IMAGE_BYTES, clients,
+                                            categorizationCache, StageTimeouts.DEFAULT)
+                                        .get();
+
+    verify(languageClient, times(1)).classifyText(any(ClassifyTextRequest.class));
+    Assert.assertEquals(CATEGORIES, firstResults.getCategories());
+    Assert.assertEquals(CATEGORIES, secondResults.getCategories());
+    Assert.assertEquals(1, categorizationCache.getHits());
+    Assert.assertFalse(secondResults.isPartial());
+  }
+
+  @Test
+  public void analyzeImageAsync_similarReceiptWithoutStore_categorizesText()
+      throws IOException, ExecutionException, InterruptedException {
+    CategorizationCache categorizationCache = new CategorizationCache();
+    stubTextClassification();
+    stubAnnotationResponse(LOGO_CONFIDENCE_BELOW_THRESHOLD, RAW_TEXT.get());
+
+    ReceiptAnalysis
+        .analyzeImageAsync(IMAGE_BYTES, clients, categorizationCache, StageTimeouts.DEFAULT)
+        .get();
+    ReceiptAnalysis
+        .analyzeImageAsync(IMAGE_BYTES, clients, categorizationCache, StageTimeouts.DEFAULT)
+        .get();
+
+    verify(languageClient, times(2)).classifyText(any(ClassifyTextRequest.class));
+  }
+
+  @Test
+  public void warmUp_createsHealthyClients() throws IOException {
+    Assert.assertFalse(clients.isHealthy());
+
+    clients.warmUp();
+
+    Assert.assertTrue(clients.isHealthy());
+  }
+
+  @Test
+  public void analyzeImagesAsync_multipleImages_sendsOneRequest()
+      throws ExecutionException, InterruptedException {
+    stubBatchAnnotationResponses();
+    stubTextClassification();
+    List<ByteString> images = createImages(3);
+
+    List<CompletableFuture<AnalysisResults>> analyses =
+        ReceiptAnalysis.analyzeImagesAsync(images, clients, StageTimeouts.DEFAULT);
+
+    Assert.assertEquals(images.size(), analyses.size());
+    for (int i = 0; i < images.size(); i++) {
+      AnalysisResults results = analyses.get(i).get();
+      Assert.assertEquals(Optional.of(images.get(i).toStringUtf8()), results.getRawText());
+      Assert.assertEquals(CATEGORIES, results.getCategories());
+    }
+    verify(imageClient, times(1)).batchAnnotateImages(anyList());
+  }
+
+  @Test
+  public void analyzeImagesAsync_moreImagesThanBatchLimit_splitsRequests()
+      throws ExecutionException, InterruptedException {
+    stubBatchAnnotationResponses();
+    stubTextClassification();
+    List<ByteString> images = createImages(ReceiptAnalysis.MAX_IMAGES_PER_BATCH + 1);
+
+    List<CompletableFuture<AnalysisResults>> analyses =
+        ReceiptAnalysis.analyzeImagesAsync(images, clients, StageTimeouts.DEFAULT);
+
+    for (int i = 0; i < images.size(); i++) {
+      Assert.assertEquals(
+          Optional.of(images.get(i).toStringUtf8()), analyses.get(i).get().getRawText());
+    }
+    verify(imageClient, times(2)).batchAnnotateImages(anyList());
+  }
+
+  @Test
+  public void analyzeImagesAsync_missingResponses_returnsEmptyAnalysisResults()
+      throws ExecutionException, InterruptedException {
+    stubAnnotationResponse(LOGO_CONFIDENCE, RAW_TEXT.get());
+    List<ByteString> images = createImages(2);
+
+    List<CompletableFuture<AnalysisResults>> analyses =
+        ReceiptAnalysis.analyzeImagesAsync(images, clients, StageTimeouts.DEFAULT);
+
+    for (CompletableFuture<AnalysisResults> analysis : analyses) {
+      Assert.assertEquals(Optional.empty(), analysis.get().getRawText());
+      Assert.assertTrue(analysis.get().isPartial());
+    }
+  }
+
+  @Test
+  public void analyzeImagesAtUrls_cachedImage_onlyAnnotatesNewImages() throws IOException {
+    stubBatchAnnotationResponses();
+    stubTextClassification();
+    ReceiptAnalysis.analyzeImageAt(url, clients, cache);
+
+    URL cachedUrl = mockUrl(IMAGE_BYTES);
+    ByteString newImage = ByteString.copyFromUtf8("new receipt");
+    URL newUrl = mockUrl(newImage);
+
+    List<AnalysisResults> results = ReceiptAnalysis.analyzeImagesAtUrls(
+        ImmutableList.of(cachedUrl, newUrl), clients, cache);
+
+    Assert.assertEquals(Optional.of(IMAGE_BYTES.toStringUtf8()), results.get(0).getRawText());
+    Assert.assertEquals(Optional.of(newImage.toStringUtf8()), results.get(1).getRawText());
+    verify(imageClient, times(1)).batchAnnotateImages(createImageRequest());
+    verify(imageClient, times(1))
+        .batchAnnotateImages(ImmutableList.of(createImageRequest(newImage)));
+  }
+
+  /** Returns a URL whose connection serves the image bytes with their content length. */
+  private static URL mockUrl(ByteString imageBytes) throws IOException {
+    URLConnection connection = mock(URLConnection.class);
+    when(connection.getContentLengthLong()).thenReturn((long) imageBytes.size());
+    when(connection.getInputStream())
+        .thenAnswer(invocation -> new ByteArrayInputStream(imageBytes.toByteArray()));
+
+    URL url = mock(URL.class);
+    when(url.openConnection()).thenReturn(connection);
+    return url;
   }
 
   private void stubAnnotationResponse(float confidenceScore, String rawText) {
@@ -387,14 +687,40 @@ public final class ReceiptAnalysisTest {
     when(languageClient.classifyText(any(ClassifyTextRequest.class))).thenReturn(classifyResponse);
   }
 
+  /** Answers each batch annotation request with the text of each image set to its content. */
+  private void stubBatchAnnotationResponses() {
+    when(imageClient.batchAnnotateImages(anyList())).thenAnswer(invocation -> {
+      List<AnnotateImageRequest> requests = invocation.getArgumentAt(0, List.class);
+      BatchAnnotateImagesResponse.Builder batchResponse = BatchAnnotateImagesResponse.newBuilder();
+
+      for (AnnotateImageRequest request : requests) {
+        String rawText = request.getImage().getContent().toStringUtf8();
+        batchResponse.addResponses(createImageResponseWithText(rawText));
+      }
+
+      return batchResponse.build();
+    });
+  }
+
+  private List<ByteString> createImages(int count) {
+    List<ByteString> images = new ArrayList<>();
+    for (int i = 0; i < count; i++) {
+      images.add(ByteString.copyFromUtf8("receipt " + i));
+    }
+
+    return images;
+  }
+
   private ImmutableList<AnnotateImageRequest> createImageRequest() {
-    Image image = Image.newBuilder().setContent(IMAGE_BYTES).build();
+    return ImmutableList.of(createImageRequest(IMAGE_BYTES));
+  }
+
+  private AnnotateImageRequest createImageRequest(ByteString imageBytes) {
+    Image image = Image.newBuilder().setContent(imageBytes).build();
     ImmutableList<Feature> features =
         ImmutableList.of(Feature.newBuilder().setType(Feature.Type.TEXT_DETECTION).build(),
             Feature.newBuilder().setType(Feature.Type.LOGO_DETECTION).build());
-    AnnotateImageRequest imageRequest =
-        AnnotateImageRequest.newBuilder().addAllFeatures(features).setImage(image).build();
-    return ImmutableList.of(imageRequest);
+    return AnnotateImageRequest.newBuilder().addAllFeatures(features).setImage(image).build();
   }
 
   private ClassifyTextRequest createClassifyRequest() {
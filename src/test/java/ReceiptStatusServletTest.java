@@ -0,0 +1,193 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import com.google.sps.data.ReceiptStatus;
+import com.google.sps.servlets.ReceiptStatusServlet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.time.Clock;
+import java.time.Instant;
+import java.time.ZoneId;
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public final class ReceiptStatusServletTest {
+  private static final String USER_ID = "testID";
+  private static final String OTHER_USER_ID = "otherID";
+  private static final String IMAGE_URL = "/serve-image?blob-key=blobKey";
+  private static final long TIMESTAMP = 6292020;
+  private static final double PRICE = 26.12;
+  private static final String STORE = "walmart";
+  private static final ImmutableSet<String> CATEGORIES = ImmutableSet.of("lunch");
+  private static final String RAW_TEXT = "Walmart\nAlways Low Prices At Walmart\n";
+  private static final String INSTANT = "2020-06-22T10:15:30Z";
+  private static final long UPLOAD_TIMESTAMP = Instant.parse(INSTANT).toEpochMilli();
+
+  // Uses local Datastore and a logged in user.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail("test@gmail.com")
+          .setEnvAuthDomain("gmail.com")
+          .setEnvAttributes(new HashMap(
+              ImmutableMap.of("com.google.appengine.api.users.UserService.user_id_key", USER_ID)));
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private ReceiptStatusServlet servlet;
+  private DatastoreService datastore;
+  private Clock clock;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    when(response.getWriter()).thenReturn(writer);
+
+    // Create a fixed time clock that always returns the same instant.
+    clock = Clock.fixed(Instant.parse(INSTANT), ZoneId.systemDefault());
+
+    servlet = new ReceiptStatusServlet(datastore, clock);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGetReturnsPendingReceipt() throws IOException {
+    Entity receipt = addPendingReceipt(USER_ID);
+    when(request.getParameter("id")).thenReturn(String.valueOf(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+
+    Assert.assertEquals("PENDING", getResponseStatus());
+  }
+
+  @Test
+  public void doGetStalePendingReceiptMarksItFailed() throws IOException, EntityNotFoundException {
+    Entity receipt = addPendingReceipt(USER_ID, UPLOAD_TIMESTAMP - TimeUnit.MINUTES.toMillis(10));
+    when(request.getParameter("id")).thenReturn(String.valueOf(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+
+    Assert.assertEquals("FAILED", getResponseStatus());
+    Assert.assertEquals(
+        ReceiptStatus.FAILED, ReceiptStatus.of(datastore.get(receipt.getKey())));
+  }
+
+  @Test
+  public void doGetReceiptWithoutStatusReturnsAnalyzed() throws IOException {
+    Entity receipt = TestUtils.addTestReceipt(
+        datastore, USER_ID, TIMESTAMP, IMAGE_URL, PRICE, STORE, CATEGORIES, RAW_TEXT);
+    when(request.getParameter("id")).thenReturn(String.valueOf(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+
+    Assert.assertEquals("ANALYZED", getResponseStatus());
+  }
+
+  @Test
+  public void doGetOtherUsersReceiptReturnsNotFound() throws IOException {
+    Entity receipt = addPendingReceipt(OTHER_USER_ID);
+    when(request.getParameter("id")).thenReturn(String.valueOf(receipt.getKey().getId()));
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test
+  public void doGetMissingReceiptReturnsNotFound() throws IOException {
+    when(request.getParameter("id")).thenReturn("12345");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+  }
+
+  @Test
+  public void doGetInvalidIdReturnsBadRequest() throws IOException {
+    when(request.getParameter("id")).thenReturn("invalid");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void doGetUserLoggedOutReturnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    when(request.getParameter("id")).thenReturn("12345");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+
+  private Entity addPendingReceipt(String userId) {
+    return addPendingReceipt(userId, UPLOAD_TIMESTAMP);
+  }
+
+  private Entity addPendingReceipt(String userId, long uploadTimestamp) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setUnindexedProperty("imageUrl", IMAGE_URL);
+    receipt.setProperty("userId", userId);
+    receipt.setProperty("status", ReceiptStatus.PENDING.name());
+    receipt.setUnindexedProperty("uploadTimestamp", uploadTimestamp);
+    datastore.put(receipt);
+
+    return receipt;
+  }
+
+  private String getResponseStatus() {
+    writer.flush();
+    JsonObject json = JsonParser.parseString(stringWriter.toString()).getAsJsonObject();
+    return json.getAsJsonObject("propertyMap").get("status").getAsString();
+  }
+}
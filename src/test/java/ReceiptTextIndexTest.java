@@ -0,0 +1,173 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static java.util.stream.Collectors.joining;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Text;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.ReceiptTextIndex;
+import com.google.sps.servlets.SpendingSummaries;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.IntStream;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ReceiptTextIndexTest {
+  private static final String USER_ID = "testID";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private ReceiptTextIndex textIndex;
+  private SpendingSummaries spendingSummaries;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    textIndex = new ReceiptTextIndex(datastore);
+    spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void tokenize_normalizesWords() {
+    Assert.assertEquals(ImmutableSet.of("whole", "milk", "gal", "3x", "99"),
+        ReceiptTextIndex.tokenize("WHOLE Milk, 1 gal.\n3x $2.99 milk"));
+  }
+
+  @Test
+  public void search_receiptsWithEveryToken_returnsTheirIds() {
+    Entity milk = putReceipt(USER_ID, "Whole milk 3.49");
+    Entity bread = putReceipt(USER_ID, "Whole wheat bread 2.99");
+    Entity skimMilk = putReceipt(USER_ID, "Skim milk 3.29");
+    putReceipt("otherID", "Whole milk 3.49");
+
+    Assert.assertArrayEquals(sortedIds(milk, skimMilk), search("milk"));
+    Assert.assertArrayEquals(sortedIds(milk), search("whole", "milk"));
+    Assert.assertArrayEquals(sortedIds(milk, bread), search("whole"));
+    Assert.assertArrayEquals(new long[0], search("whole", "eggs"));
+    Assert.assertArrayEquals(new long[0], search());
+  }
+
+  @Test
+  public void put_editedText_replacesTokens() {
+    Entity receipt = putReceipt(USER_ID, "Whole milk");
+
+    receipt.setUnindexedProperty("rawText", new Text("Whole wheat bread"));
+    spendingSummaries.put(receipt);
+
+    Assert.assertArrayEquals(new long[0], search("milk"));
+    Assert.assertArrayEquals(sortedIds(receipt), search("whole", "bread"));
+  }
+
+  @Test
+  public void delete_removesReceiptAndEmptyPostings() {
+    Entity milk = putReceipt(USER_ID, "Whole milk");
+    Entity bread = putReceipt(USER_ID, "Whole wheat bread");
+
+    spendingSummaries.delete(milk.getKey());
+
+    Assert.assertArrayEquals(sortedIds(bread), search("whole"));
+    Assert.assertArrayEquals(new long[0], search("milk"));
+    Query postings = new Query(ReceiptTextIndex.POSTING_KIND).setKeysOnly();
+    Assert.assertEquals(3, datastore.prepare(postings).countEntities());
+  }
+
+  @Test
+  public void getTokens_longText_keepsFirstWords() {
+    String rawText = IntStream.range(0, 300).mapToObj(i -> "word" + i).collect(joining(" "));
+
+    ImmutableSet<String> tokens = ReceiptTextIndex.getTokens(createReceipt(USER_ID, rawText));
+
+    Assert.assertEquals(ReceiptTextIndex.MAX_TOKENS_PER_RECEIPT, tokens.size());
+    Assert.assertTrue(tokens.contains("word0"));
+    Assert.assertFalse(tokens.contains("word299"));
+  }
+
+  @Test
+  public void put_batchWithManyWords_indexesEveryReceipt() {
+    // Each receipt has its own words, so the batch needs more postings than one transaction allows.
+    List<Entity> receipts = new ArrayList<>();
+    for (int i = 0; i < 23; i++) {
+      int receiptNumber = i;
+      receipts.add(createReceipt(USER_ID, IntStream.range(0, 100)
+          .mapToObj(j -> "receipt" + receiptNumber + "word" + j)
+          .collect(joining(" "))));
+    }
+
+    spendingSummaries.put(receipts);
+
+    for (int i = 0; i < receipts.size(); i++) {
+      Assert.assertArrayEquals(
+          sortedIds(receipts.get(i)), search("receipt" + i + "word0", "receipt" + i + "word99"));
+    }
+  }
+
+  @Test
+  public void needsIndexing_onlyUnindexedReceiptsWithText() {
+    Entity receipt = createReceipt(USER_ID, "Whole milk");
+    Entity receiptWithoutText = createReceipt(USER_ID, " - ");
+
+    Assert.assertTrue(ReceiptTextIndex.needsIndexing(receipt));
+    Assert.assertFalse(ReceiptTextIndex.needsIndexing(receiptWithoutText));
+
+    spendingSummaries.put(receipt);
+
+    Assert.assertFalse(ReceiptTextIndex.needsIndexing(receipt));
+  }
+
+  private Entity putReceipt(String userId, String rawText) {
+    Entity receipt = createReceipt(userId, rawText);
+    spendingSummaries.put(receipt);
+    return receipt;
+  }
+
+  private long[] search(String... tokens) {
+    return textIndex.search(USER_ID, ImmutableSet.copyOf(tokens));
+  }
+
+  private static Entity createReceipt(String userId, String rawText) {
+    Entity receipt = TestUtils.createEntity(userId, /* timestamp = */ 1045237591000L,
+        "img/walmart-receipt.jpg", 5.00, "walmart", ImmutableSet.of("groceries"), "");
+    receipt.setUnindexedProperty("rawText", new Text(rawText));
+    return receipt;
+  }
+
+  private static long[] sortedIds(Entity... receipts) {
+    return ImmutableList.copyOf(receipts)
+        .stream()
+        .mapToLong(receipt -> receipt.getKey().getId())
+        .sorted()
+        .toArray();
+  }
+}
@@ -0,0 +1,99 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableList;
+import com.google.sps.servlets.ReceiptTextScanner;
+import java.util.Optional;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.JUnit4;
+
+@RunWith(JUnit4.class)
+public final class ReceiptTextScannerTest {
+  // The regular expressions that the scanner replaces, used as a reference.
+  private static final Pattern dateRegex =
+      Pattern.compile("\\d?\\d([/-])\\d?\\d\\1\\d{2}(\\d{2})?");
+  private static final Pattern priceRegex = Pattern.compile("\\$?\\d+\\.\\d\\d");
+
+  private static final ImmutableList<String> TOKENS = ImmutableList.of("", "$", ".", "1", "12",
+      "5/8/20", "05/08/2020", "5-8-20", "05-08-2020", "5/8-20", "5-8/20", "123/8/20", "5/123/20",
+      "5/8/2", "5/8/202", "5/8/20201", "5//20", "/8/20", "5/8/", "a5/8/20", "5/8/20a", "$12.77",
+      "12.77", "$$12.77", "12.7", "12.777", ".77", "$.77", "1.2.77", "0.00", "$000012.50",
+      "12,77", "12.77$", "99999999999999999999.99", "12.7a", "١٢.٧٧");
+
+  @Test
+  public void scanMatchesRegexesForEachToken() {
+    for (String token : TOKENS) {
+      ReceiptTextScanner scanner = ReceiptTextScanner.scan(token);
+
+      Assert.assertEquals(token, dateRegex.matcher(token).matches(), scanner.hasDate());
+      Assert.assertEquals(token, priceRegex.matcher(token).matches(), scanner.hasPrice());
+    }
+  }
+
+  @Test
+  public void scanMatchesSplitAndRegexesForCombinedText() {
+    String[] separators = {" ", "\t", "\n", "\r\n", "  ", "\u000B", "\f", " "};
+
+    for (int i = 0; i < separators.length; i++) {
+      StringBuilder text = new StringBuilder();
+      for (int j = 0; j < TOKENS.size(); j++) {
+        text.append(TOKENS.get(j)).append(separators[(i + j) % separators.length]);
+      }
+
+      assertScanMatchesReference(text.toString());
+    }
+  }
+
+  @Test
+  public void scanFindsFirstDateAndLargestPrice() {
+    String text = "Store 05/08/2020 06/09/2021\nItem $3.50\nTotal 12.77\nCash 20.00 12:31";
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan(text);
+
+    Assert.assertEquals("05/08/2020", scanner.getDate());
+    Assert.assertEquals(6, scanner.getDateStart());
+    Assert.assertEquals(16, scanner.getDateEnd());
+    Assert.assertEquals(20.00, scanner.getLargestPrice(), 0);
+  }
+
+  @Test
+  public void scanWithoutCandidatesFindsNothing() {
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan("no dates or prices here");
+
+    Assert.assertFalse(scanner.hasDate());
+    Assert.assertNull(scanner.getDate());
+    Assert.assertFalse(scanner.hasPrice());
+    Assert.assertEquals(Double.NEGATIVE_INFINITY, scanner.getLargestPrice(), 0);
+  }
+
+  private static void assertScanMatchesReference(String text) {
+    ReceiptTextScanner scanner = ReceiptTextScanner.scan(text);
+
+    Optional<String> expectedDate = Stream.of(text.split("\\s"))
+                                        .filter(token -> dateRegex.matcher(token).matches())
+                                        .findFirst();
+    double expectedPrice = Stream.of(text.split("\\s"))
+                               .filter(token -> priceRegex.matcher(token).matches())
+                               .mapToDouble(token -> Double.parseDouble(token.replace("$", "")))
+                               .reduce(Double.NEGATIVE_INFINITY, Double::max);
+
+    Assert.assertEquals(expectedDate.orElse(null), scanner.getDate());
+    Assert.assertEquals(expectedPrice, scanner.getLargestPrice(), 0);
+  }
+}
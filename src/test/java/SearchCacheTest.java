@@ -0,0 +1,137 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.QueryInformation;
+import com.google.sps.servlets.SearchCache;
+import java.text.ParseException;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SearchCacheTest {
+  private static final String USER_ID = "testID";
+  private static final String JSON = "{\"matchingReceipts\":[]}";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalMemcacheServiceTestConfig());
+
+  private SearchCache cache;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    cache = new SearchCache(/* maxMemoryBytes = */ 1024 * 1024, 5, TimeUnit.MINUTES);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void getKey_sameSearch_returnsSameKey() throws ParseException {
+    Assert.assertEquals(getKey(createQueryInformation("  Candy ", "WALMART")),
+        getKey(createQueryInformation("candy", "walmart")));
+    Assert.assertNotEquals(getKey(createQueryInformation("candy", "walmart")),
+        getKey(createQueryInformation("candy", "target")));
+    Assert.assertNotEquals(
+        getKey(null), cache.getKey(USER_ID, null, ImmutableSet.of(), "next", "cursor").get());
+    Assert.assertNotEquals(getKey(null),
+        cache.getKey(USER_ID, null, ImmutableSet.of("milk"), "first", null).get());
+  }
+
+  @Test
+  public void invalidate_changesKeysOfUserOnly() {
+    cache = new SearchCache(
+        /* maxMemoryBytes = */ 1024 * 1024, 5, TimeUnit.MINUTES, /* writeSettleMillis = */ 0);
+    String key = getKey(null);
+    String otherUserKey = cache.getKey("otherID", null, ImmutableSet.of(), "first", null).get();
+    cache.put(key, JSON);
+
+    SearchCache.invalidate(USER_ID);
+
+    Assert.assertNotEquals(key, getKey(null));
+    Assert.assertFalse(cache.get(getKey(null)).isPresent());
+    Assert.assertEquals(
+        otherUserKey, cache.getKey("otherID", null, ImmutableSet.of(), "first", null).get());
+  }
+
+  @Test
+  public void getKey_shortlyAfterWrite_skipsCachingForUserOnly() {
+    SearchCache.invalidate(USER_ID);
+
+    Assert.assertFalse(
+        cache.getKey(USER_ID, null, ImmutableSet.of(), "first", null).isPresent());
+    Assert.assertTrue(
+        cache.getKey("otherID", null, ImmutableSet.of(), "first", null).isPresent());
+  }
+
+  @Test
+  public void get_tracksHitRatio() {
+    String key = getKey(null);
+    cache.put(key, JSON);
+
+    Assert.assertEquals(Optional.of(JSON), cache.get(key));
+    Assert.assertEquals(Optional.of(JSON), cache.get(key));
+    Assert.assertFalse(cache.get("missing").isPresent());
+
+    Assert.assertEquals(2, cache.getStats().hitCount());
+    Assert.assertEquals(2.0 / 3, cache.getHitRatio(), /* delta = */ 0.001);
+  }
+
+  @Test
+  public void put_largeResponses_evictsToStayWithinSize() {
+    SearchCache smallCache =
+        new SearchCache(/* maxMemoryBytes = */ 400 * 1024, 5, TimeUnit.MINUTES);
+    // Each response takes up about 20 KB as UTF-16 characters.
+    String largeJson = Strings.repeat("x", 10 * 1024);
+
+    for (int i = 0; i < 40; i++) {
+      smallCache.put("key" + i, largeJson);
+    }
+
+    Assert.assertTrue(smallCache.getStats().evictionCount() > 0);
+    Assert.assertTrue(smallCache.get("key39").isPresent());
+  }
+
+  @Test
+  public void get_expiredResponse_returnsEmpty() throws InterruptedException {
+    SearchCache shortCache =
+        new SearchCache(/* maxMemoryBytes = */ 1024 * 1024, 1, TimeUnit.MILLISECONDS);
+    shortCache.put("key", JSON);
+
+    Thread.sleep(10);
+
+    Assert.assertFalse(shortCache.get("key").isPresent());
+  }
+
+  private String getKey(QueryInformation queryInformation) {
+    return cache.getKey(USER_ID, queryInformation, ImmutableSet.of(), "first", null).get();
+  }
+
+  private static QueryInformation createQueryInformation(String category, String store)
+      throws ParseException {
+    return new QueryInformation("America/Chicago", category,
+        "February 1, 2003 - February 28, 2003", store, "5.00", "30.00");
+  }
+}
@@ -0,0 +1,262 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.PreparedQuery;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.api.datastore.Query.SortDirection;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableSet;
+import com.google.common.collect.Iterators;
+import com.google.sps.servlets.SearchPageFetcher;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SearchPageFetcherTest {
+  private static final int PAGE_SIZE = 3;
+  private static final int SCAN_BUDGET = 50;
+  private static final int BATCH_SIZE = 4;
+  private static final String USER_ID = "testID";
+
+  // Matches one in every five receipts.
+  private static final Predicate<Entity> EXPENSIVE = entity -> getPrice(entity) >= 100;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private PreparedQuery query;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    query = datastore.prepare(new Query("Receipt")
+                                  .addSort("timestamp", SortDirection.DESCENDING)
+                                  .addSort("__key__", SortDirection.DESCENDING));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void fetch_selectiveFilter_fillsPageAcrossBatches() {
+    List<Entity> receipts = addReceipts(40);
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, SCAN_BUDGET, BATCH_SIZE);
+
+    SearchPageFetcher.Page page = fetcher.fetch(query, Optional.empty(), EXPENSIVE);
+
+    Assert.assertEquals(expensiveReceipts(receipts).subList(0, PAGE_SIZE), page.getEntities());
+    // The third expensive receipt is the fifteenth receipt, and nothing past it is scanned.
+    Assert.assertEquals(15, page.getScannedEntities());
+  }
+
+  @Test
+  public void fetch_withCursor_resumesAfterLastScannedReceipt() {
+    List<Entity> receipts = addReceipts(40);
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, SCAN_BUDGET, BATCH_SIZE);
+
+    SearchPageFetcher.Page firstPage = fetcher.fetch(query, Optional.empty(), EXPENSIVE);
+    SearchPageFetcher.Page secondPage =
+        fetcher.fetch(query, Optional.of(firstPage.getEncodedCursor()), EXPENSIVE);
+
+    Assert.assertEquals(
+        expensiveReceipts(receipts).subList(PAGE_SIZE, 2 * PAGE_SIZE), secondPage.getEntities());
+    Assert.assertEquals(15, secondPage.getScannedEntities());
+  }
+
+  @Test
+  public void fetch_scanBudgetReached_returnsPartialPage() {
+    List<Entity> receipts = addReceipts(40);
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, /* scanBudget = */ 12, BATCH_SIZE);
+
+    SearchPageFetcher.Page page = fetcher.fetch(query, Optional.empty(), EXPENSIVE);
+
+    Assert.assertEquals(expensiveReceipts(receipts).subList(0, 2), page.getEntities());
+    Assert.assertEquals(12, page.getScannedEntities());
+
+    // The next page continues from the budget limit rather than skipping unscanned receipts.
+    SearchPageFetcher.Page nextPage =
+        fetcher.fetch(query, Optional.of(page.getEncodedCursor()), EXPENSIVE);
+    Assert.assertEquals(expensiveReceipts(receipts).get(2), nextPage.getEntities().get(0));
+  }
+
+  @Test
+  public void fetch_fewerMatchesThanPage_scansAllReceipts() {
+    List<Entity> receipts = addReceipts(8);
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, SCAN_BUDGET, BATCH_SIZE);
+
+    SearchPageFetcher.Page page = fetcher.fetch(query, Optional.empty(), EXPENSIVE);
+
+    Assert.assertEquals(expensiveReceipts(receipts), page.getEntities());
+    Assert.assertEquals(8, page.getScannedEntities());
+  }
+
+  @Test
+  public void fetch_everyReceiptMatches_scansOnlyOnePage() {
+    List<Entity> receipts = addReceipts(10);
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, SCAN_BUDGET, BATCH_SIZE);
+
+    SearchPageFetcher.Page page = fetcher.fetch(query, Optional.empty(), entity -> true);
+
+    Assert.assertEquals(receipts.subList(0, PAGE_SIZE), page.getEntities());
+    Assert.assertEquals(PAGE_SIZE, page.getScannedEntities());
+  }
+
+  @Test
+  public void fetchAfterPosition_inFilter_pagesThroughAllMatches() {
+    List<Entity> receipts = addReceipts(40);
+    // Receipts with the same timestamp are ordered by key, which pages have to resume in between.
+    for (Entity receipt : receipts.subList(0, 20)) {
+      receipt.setProperty("timestamp", 2000000L);
+    }
+    datastore.put(receipts);
+    List<Entity> expensiveReceipts = expensiveReceipts(receipts).stream()
+        .sorted((a, b) -> compareBySearchOrder(a, b))
+        .collect(Collectors.toList());
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, SCAN_BUDGET, BATCH_SIZE);
+
+    List<Entity> fetchedReceipts = new ArrayList<>();
+    Optional<String> encodedPosition = Optional.empty();
+    for (int i = 0; i < 3; i++) {
+      SearchPageFetcher.Page page =
+          fetcher.fetchAfterPosition(datastore, createInQuery(), encodedPosition, EXPENSIVE);
+      fetchedReceipts.addAll(page.getEntities());
+      encodedPosition = Optional.of(page.getEncodedCursor());
+    }
+
+    Assert.assertEquals(expensiveReceipts, fetchedReceipts);
+  }
+
+  @Test
+  public void fetchAfterPosition_moreTiesThanScanBudget_neverRescansEarlierPages() {
+    List<Entity> receipts = addReceipts(40);
+    // Every receipt has the same timestamp, so before resuming by key, each page scanned the ties
+    // of the earlier pages again and stopped making progress once they filled the budget.
+    for (Entity receipt : receipts) {
+      receipt.setProperty("timestamp", 2000000L);
+    }
+    datastore.put(receipts);
+    List<Entity> expensiveReceipts = expensiveReceipts(receipts).stream()
+        .sorted((a, b) -> compareBySearchOrder(a, b))
+        .collect(Collectors.toList());
+    SearchPageFetcher fetcher = new SearchPageFetcher(PAGE_SIZE, /* scanBudget = */ 6, BATCH_SIZE);
+
+    AtomicInteger readReceipts = new AtomicInteger();
+    DatastoreService countingDatastore = countReads(datastore, readReceipts);
+
+    List<Entity> fetchedReceipts = new ArrayList<>();
+    int scannedReceipts = 0;
+    Optional<String> encodedPosition = Optional.empty();
+    for (int i = 0; i < 7; i++) {
+      SearchPageFetcher.Page page = fetcher.fetchAfterPosition(
+          countingDatastore, createInQuery(), encodedPosition, EXPENSIVE);
+      fetchedReceipts.addAll(page.getEntities());
+      scannedReceipts += page.getScannedEntities();
+      encodedPosition = Optional.of(page.getEncodedCursor());
+    }
+
+    Assert.assertEquals(expensiveReceipts, fetchedReceipts);
+    Assert.assertEquals(40, scannedReceipts);
+    Assert.assertEquals(40, readReceipts.get());
+  }
+
+  /** Wraps the datastore so that every entity read from its query iterators is counted. */
+  private static DatastoreService countReads(DatastoreService datastore, AtomicInteger reads) {
+    return proxy(DatastoreService.class, (proxy, method, args) -> {
+      Object result = method.invoke(datastore, args);
+      if (!(result instanceof PreparedQuery)) {
+        return result;
+      }
+
+      return proxy(PreparedQuery.class, (queryProxy, queryMethod, queryArgs) -> {
+        Object results = queryMethod.invoke(result, queryArgs);
+        if (!queryMethod.getName().equals("asIterator")) {
+          return results;
+        }
+
+        return Iterators.transform((Iterator<Entity>) results, entity -> {
+          reads.incrementAndGet();
+          return entity;
+        });
+      });
+    });
+  }
+
+  private static <T> T proxy(Class<T> type, InvocationHandler handler) {
+    return type.cast(
+        Proxy.newProxyInstance(type.getClassLoader(), new Class<?>[] {type}, handler));
+  }
+
+  /** Returns a search query with an IN filter over several values, which can't return cursors. */
+  private static Query createInQuery() {
+    return new Query("Receipt")
+        .setFilter(new Query.FilterPredicate(
+            "store", Query.FilterOperator.IN, ImmutableList.of("walmart", "target")))
+        .addSort("timestamp", SortDirection.DESCENDING)
+        .addSort("__key__", SortDirection.DESCENDING);
+  }
+
+  /** Compares receipts by descending timestamp and then key, like search queries sort them. */
+  private static int compareBySearchOrder(Entity a, Entity b) {
+    int timestampComparison =
+        Long.compare((long) b.getProperty("timestamp"), (long) a.getProperty("timestamp"));
+    return timestampComparison != 0 ? timestampComparison : b.getKey().compareTo(a.getKey());
+  }
+
+  /**
+   * Adds receipts with decreasing timestamps, so they're returned by the query in the order of the
+   * returned list. Every fifth receipt, starting with the fifth, costs at least $100.
+   */
+  private List<Entity> addReceipts(int numReceipts) {
+    List<Entity> receipts = new ArrayList<>();
+
+    for (int i = 1; i <= numReceipts; i++) {
+      double price = i % 5 == 0 ? 100 + i : i;
+      Entity receipt = TestUtils.createEntity(USER_ID, /* timestamp = */ 1000000L - i,
+          "img/receipt.jpg", price, "walmart", ImmutableSet.of("candy"), "");
+      datastore.put(receipt);
+      receipts.add(receipt);
+    }
+
+    return receipts;
+  }
+
+  private static List<Entity> expensiveReceipts(List<Entity> receipts) {
+    return receipts.stream().filter(EXPENSIVE).collect(Collectors.toList());
+  }
+
+  private static double getPrice(Entity entity) {
+    return (double) entity.getProperty("price");
+  }
+}
@@ -21,6 +21,7 @@ import com.dampcake.gson.immutable.ImmutableAdapterFactory;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.Text;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
@@ -30,18 +31,25 @@ import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
 import com.google.gson.GsonBuilder;
 import com.google.sps.data.Receipt;
+import com.google.sps.servlets.LocalReceiptRepository;
+import com.google.sps.servlets.SearchCache;
 import com.google.sps.servlets.SearchServlet;
+import com.google.sps.servlets.SpendingSummaries;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.util.Arrays;
 import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
+import org.junit.Rule;
 import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
 import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
@@ -83,6 +91,8 @@ public final class SearchServletTest {
   private final Gson gson =
       new GsonBuilder().registerTypeAdapterFactory(ImmutableAdapterFactory.forGuava()).create();
 
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
   @Mock private SearchServlet servlet;
   @Mock private HttpServletRequest request;
   @Mock private HttpServletResponse response;
@@ -237,6 +247,44 @@ public final class SearchServletTest {
     Assert.assertTrue(TestUtils.checkIdsMatch(expectedReceipts.asList(), returnedReceipts));
   }
 
+  @Test
+  public void repeatedSearchIsServedFromCache() throws IOException {
+    TestUtils.addTestReceipts(datastore);
+    when(request.getParameter("isPageLoad")).thenReturn("true");
+    servlet.doGet(request, response);
+    writer.flush();
+    String firstResponse = stringWriter.toString();
+
+    // A receipt written without invalidating the cache isn't returned by the cached search.
+    TestUtils.addTestReceipt(datastore, USER_ID, /* timestamp = */ 1600000000000L,
+        "img/walmart-receipt.jpg", 5.00, "walmart", ImmutableSet.of("candy"), "");
+    stringWriter.getBuffer().setLength(0);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertEquals(firstResponse, stringWriter.toString());
+  }
+
+  @Test
+  public void receiptWriteInvalidatesCachedSearch() throws IOException {
+    TestUtils.addTestReceipts(datastore);
+    when(request.getParameter("isPageLoad")).thenReturn("true");
+    servlet.doGet(request, response);
+
+    Entity receipt = TestUtils.createEntity(USER_ID, /* timestamp = */ 1600000000000L,
+        "img/walmart-receipt.jpg", 5.00, "walmart", ImmutableSet.of("candy"), "");
+    new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService())
+        .put(receipt);
+    stringWriter.getBuffer().setLength(0);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject searchResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(4, searchResponse.getInt("returnedReceipts"));
+    Assert.assertEquals(receipt.getKey().getId(),
+        searchResponse.getJSONArray("matchingReceipts").getJSONObject(0).getLong("id"));
+  }
+
   @Test
   public void checkNullPointerExceptionIsThrown() throws IOException {
     // Query: drink, 2/1/03-2/28/03, walmart, $5.00-null.
@@ -391,9 +439,10 @@ public final class SearchServletTest {
     servlet.doGet(request, response);
     writer.flush();
 
-    // Perform doGet - this should retrieve first page again with 10 receipts.
+    // Perform doGet - the client goes back by requesting the first page again, whose cursor it
+    // kept, so this should retrieve the first 10 receipts.
     when(request.getParameter("getNextPage")).thenReturn("false");
-    when(request.getParameter("getPreviousPage")).thenReturn("true");
+    when(request.getParameter("encodedCursor")).thenReturn(null);
 
     stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
     servlet.doGet(request, response);
@@ -406,4 +455,217 @@ public final class SearchServletTest {
 
     Assert.assertTrue(TestUtils.checkIdsMatch(expectedFirstPage, returnedFirstPage));
   }
+
+  @Test
+  public void priceFilterFillsPageAndReportsScannedReceipts() throws IOException {
+    // 30 receipts, of which only every third costs between $5.00 and $30.00. The others are in the
+    // same price bucket as $30.00, so a full page is returned by scanning past them.
+    addReceiptsWithPrices(30, 10.00, 31.00);
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject servletResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(10, servletResponse.getJSONArray("matchingReceipts").length());
+    Assert.assertEquals(10, servletResponse.getInt("returnedReceipts"));
+    Assert.assertEquals(28, servletResponse.getInt("scannedReceipts"));
+  }
+
+  @Test
+  public void priceFilterSkipsReceiptsOutsidePriceBuckets() throws IOException {
+    // 30 receipts, of which only every third costs between $5.00 and $30.00. The others cost
+    // $100.00, which is in a price bucket outside of the range, so they aren't read at all.
+    addReceiptsWithPrices(30, 10.00, 100.00);
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject servletResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(10, servletResponse.getInt("returnedReceipts"));
+    Assert.assertEquals(10, servletResponse.getInt("scannedReceipts"));
+  }
+
+  @Test
+  public void priceBucketPaginationNextPage() throws IOException {
+    // 36 receipts, of which 12 cost between $5.00 and $30.00, so the second page has 2 receipts.
+    ImmutableList<Entity> receipts = addReceiptsWithPrices(36, 10.00, 100.00);
+    ImmutableList<Entity> matchingReceipts =
+        receipts.stream()
+            .filter(receipt -> (double) receipt.getProperty("price") == 10.00)
+            .collect(ImmutableList.toImmutableList());
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject firstPage = new JSONObject(stringWriter.toString());
+    Receipt[] returnedFirstPage =
+        gson.fromJson(firstPage.getJSONArray("matchingReceipts").toString(), Receipt[].class);
+    Assert.assertTrue(TestUtils.checkIdsMatch(matchingReceipts.subList(0, 10), returnedFirstPage));
+
+    when(request.getParameter("getNextPage")).thenReturn("true");
+    when(request.getParameter("encodedCursor")).thenReturn(firstPage.getString("encodedCursor"));
+
+    stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
+    servlet.doGet(request, response);
+    writer.flush();
+
+    String receiptsString = TestUtils.getReceiptsString(stringWriter.toString());
+    Receipt[] returnedSecondPage = gson.fromJson(receiptsString, Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(matchingReceipts.subList(10, 12), returnedSecondPage));
+  }
+
+  @Test
+  public void widePriceRangeFiltersInMemory() throws IOException {
+    // The price range spans too many buckets to filter by them in Datastore, so every receipt in
+    // the date range is read.
+    addReceiptsWithPrices(15, 10.00, 0.50);
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, "1.00", "1000000000.00");
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject servletResponse = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(5, servletResponse.getInt("returnedReceipts"));
+    Assert.assertEquals(15, servletResponse.getInt("scannedReceipts"));
+  }
+
+  @Test
+  public void keywordSearchReturnsReceiptsWithEveryKeyword() throws IOException {
+    SpendingSummaries spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+    Entity wholeMilk = addReceiptWithText(spendingSummaries, 1045237591000L, "Whole MILK 3.49");
+    addReceiptWithText(spendingSummaries, 1045237592000L, "Whole wheat bread");
+    Entity skimMilk = addReceiptWithText(spendingSummaries, 1045237593000L, "skim milk, 1 gal");
+    addReceiptWithText(spendingSummaries, 946713600000L, "Whole milk from 2000");
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+    when(request.getParameter("keywords")).thenReturn("milk");
+    servlet.doGet(request, response);
+    writer.flush();
+
+    // Receipts outside of the date range are filtered out, and the rest are newest first.
+    Receipt[] returnedReceipts = gson.fromJson(
+        TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(ImmutableList.of(skimMilk, wholeMilk), returnedReceipts));
+    Assert.assertTrue(stringWriter.toString().contains("\"rawText\":\"skim milk, 1 gal\""));
+
+    when(request.getParameter("keywords")).thenReturn("milk  WHOLE");
+    stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
+    servlet.doGet(request, response);
+    writer.flush();
+
+    returnedReceipts = gson.fromJson(
+        TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(TestUtils.checkIdsMatch(ImmutableList.of(wholeMilk), returnedReceipts));
+  }
+
+  @Test
+  public void keywordSearchPaginationNextPage() throws IOException {
+    SpendingSummaries spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+    ImmutableList.Builder<Entity> receipts = ImmutableList.builder();
+    for (int i = 0; i < 12; i++) {
+      receipts.add(addReceiptWithText(spendingSummaries, 1045237591000L - i, "Whole milk"));
+    }
+    ImmutableList<Entity> expectedReceipts = receipts.build();
+
+    TestUtils.setSearchServletRequestParameters(
+        request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+    when(request.getParameter("keywords")).thenReturn("milk");
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject firstPage = new JSONObject(stringWriter.toString());
+    Receipt[] returnedFirstPage =
+        gson.fromJson(firstPage.getJSONArray("matchingReceipts").toString(), Receipt[].class);
+    Assert.assertTrue(TestUtils.checkIdsMatch(expectedReceipts.subList(0, 10), returnedFirstPage));
+
+    when(request.getParameter("getNextPage")).thenReturn("true");
+    when(request.getParameter("encodedCursor")).thenReturn(firstPage.getString("encodedCursor"));
+    stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Receipt[] returnedSecondPage = gson.fromJson(
+        TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+    Assert.assertTrue(
+        TestUtils.checkIdsMatch(expectedReceipts.subList(10, 12), returnedSecondPage));
+  }
+
+  @Test
+  public void localStoreAnswersFilteredAndKeywordSearches() throws IOException {
+    try (LocalReceiptRepository receipts = new LocalReceiptRepository(
+             temporaryFolder.getRoot().toPath().resolve("receipts.log"))) {
+      Entity wholeMilk = receipts.put(createReceiptWithText(1045237591000L, "Whole milk"));
+      Entity bread = receipts.put(createReceiptWithText(1045237592000L, "Whole wheat bread"));
+      receipts.put(createReceiptWithText(946713600000L, "Whole milk from 2000"));
+      servlet = new SearchServlet(receipts,
+          new SearchCache(/* maxMemoryBytes = */ 1024 * 1024, 5, TimeUnit.MINUTES));
+
+      TestUtils.setSearchServletRequestParameters(
+          request, CST_TIMEZONE_ID, CATEGORY, SHORT_DATE_RANGE, STORE, MIN_PRICE, MAX_PRICE);
+      servlet.doGet(request, response);
+      writer.flush();
+
+      Receipt[] returnedReceipts = gson.fromJson(
+          TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+      Assert.assertTrue(
+          TestUtils.checkIdsMatch(ImmutableList.of(bread, wholeMilk), returnedReceipts));
+
+      when(request.getParameter("keywords")).thenReturn("milk");
+      stringWriter.getBuffer().setLength(0); // Clear stringwriter of last receipts.
+      servlet.doGet(request, response);
+      writer.flush();
+
+      returnedReceipts = gson.fromJson(
+          TestUtils.getReceiptsString(stringWriter.toString()), Receipt[].class);
+      Assert.assertTrue(TestUtils.checkIdsMatch(ImmutableList.of(wholeMilk), returnedReceipts));
+    }
+  }
+
+  /** Adds a walmart receipt with the raw text through the spending summaries. */
+  private Entity addReceiptWithText(
+      SpendingSummaries spendingSummaries, long timestamp, String rawText) {
+    Entity receipt = createReceiptWithText(timestamp, rawText);
+    spendingSummaries.put(receipt);
+    return receipt;
+  }
+
+  /** Creates a walmart receipt with the raw text. */
+  private static Entity createReceiptWithText(long timestamp, String rawText) {
+    Entity receipt = TestUtils.createEntity(USER_ID, timestamp, "img/walmart-receipt.jpg", 10.00,
+        STORE, ImmutableSet.of(CATEGORY), "");
+    receipt.setUnindexedProperty("rawText", new Text(rawText));
+    return receipt;
+  }
+
+  /**
+   * Adds walmart receipts from February 2003 with decreasing timestamps, where every third
+   * receipt, starting with the first, has the matching price and the others have the other price.
+   * @return the receipts in the order they're sorted by search queries.
+   */
+  private ImmutableList<Entity> addReceiptsWithPrices(
+      int numReceipts, double matchingPrice, double otherPrice) {
+    ImmutableList.Builder<Entity> receipts = ImmutableList.builder();
+
+    for (int i = 0; i < numReceipts; i++) {
+      double price = i % 3 == 0 ? matchingPrice : otherPrice;
+      Entity receipt = TestUtils.createEntity(USER_ID, /* timestamp = */ 1045237591000L - i,
+          "img/walmart-receipt.jpg", price, STORE, ImmutableSet.of(CATEGORY), "");
+      datastore.put(receipt);
+      receipts.add(receipt);
+    }
+
+    return receipts.build();
+  }
 }
@@ -0,0 +1,434 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.atLeastOnce;
+import static org.mockito.Mockito.doAnswer;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.blobstore.BlobInfo;
+import com.google.appengine.api.blobstore.BlobInfoFactory;
+import com.google.appengine.api.blobstore.BlobKey;
+import com.google.appengine.api.blobstore.BlobstoreService;
+import com.google.appengine.api.blobstore.ByteRange;
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.util.concurrent.MoreExecutors;
+import com.google.sps.servlets.DatastoreReceiptRepository;
+import com.google.sps.servlets.ImageBytesReader;
+import com.google.sps.servlets.ImageDiskCache;
+import com.google.sps.servlets.ImageOwnershipCache;
+import com.google.sps.servlets.ImageVariants;
+import com.google.sps.servlets.ServeImageServlet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import javax.servlet.ServletOutputStream;
+import javax.servlet.WriteListener;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.ArgumentCaptor;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+/**
+ * Tests the image servlet's cache headers, and measures the bytes it serves for a page of receipt
+ * images with a stand-in for Blobstore that writes each blob's bytes to the response.
+ */
+public final class ServeImageServletTest {
+  private static final int IMAGE_SIZE_BYTES = 200 * 1024;
+  private static final int IMAGES_PER_PAGE = 10;
+  private static final long CACHE_SIZE_BYTES = 8 * 1024 * 1024;
+
+  private static final String DOMAIN_NAME = "gmail.com";
+  private static final String USER_EMAIL = "test@gmail.com";
+  private static final String USER_ID = "testID";
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail(USER_EMAIL)
+          .setEnvAuthDomain(DOMAIN_NAME)
+          .setEnvAttributes(new HashMap(
+              ImmutableMap.of("com.google.appengine.api.users.UserService.user_id_key", USER_ID)));
+
+  @Mock private BlobstoreService blobstoreService;
+  @Mock private BlobInfoFactory blobInfoFactory;
+
+  private DatastoreService datastore;
+  private ImageDiskCache imageDiskCache;
+  private ServeImageServlet servlet;
+  // Bytes written to every response so far.
+  private long servedBytes;
+
+  @Before
+  public void setUp() throws IOException {
+    helper.setUp();
+    MockitoAnnotations.initMocks(this);
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    // Blobs without a stubbed BlobInfo can't be cached, so they're served by Blobstore.
+    imageDiskCache = new ImageDiskCache(
+        blobstoreService, blobInfoFactory, temporaryFolder.getRoot().toPath(), CACHE_SIZE_BYTES);
+    servlet = new ServeImageServlet(blobstoreService,
+        new ImageVariants(new DatastoreReceiptRepository(datastore),
+            new ImageBytesReader(blobstoreService, blobInfoFactory,
+                MoreExecutors.directExecutor(), /* maxConcurrentFetches = */ 1)),
+        imageDiskCache, new ImageOwnershipCache(datastore));
+
+    addReceipt(USER_ID, "blobKey");
+    for (int i = 0; i < IMAGES_PER_PAGE; i++) {
+      addReceipt(USER_ID, "blobKey" + i);
+    }
+
+    doAnswer(invocation -> {
+      write((HttpServletResponse) invocation.getArguments()[1], IMAGE_SIZE_BYTES);
+      return null;
+    })
+        .when(blobstoreService)
+        .serve(any(BlobKey.class), any(HttpServletResponse.class));
+    doAnswer(invocation -> {
+      ByteRange range = (ByteRange) invocation.getArguments()[1];
+      long end = range.hasEnd() ? Math.min(range.getEnd(), IMAGE_SIZE_BYTES - 1)
+                                : IMAGE_SIZE_BYTES - 1;
+      long start = range.getStart() < 0 ? IMAGE_SIZE_BYTES + range.getStart() : range.getStart();
+      write((HttpServletResponse) invocation.getArguments()[2], end - start + 1);
+      return null;
+    })
+        .when(blobstoreService)
+        .serve(any(BlobKey.class), any(ByteRange.class), any(HttpServletResponse.class));
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGet_setsImmutableCacheHeaders() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(request, response);
+
+    verify(response).setHeader("ETag", "\"blobKey\"");
+    verify(response).setHeader("Cache-Control", "private, max-age=31536000, immutable");
+    verify(response).setHeader("Accept-Ranges", "bytes");
+    Assert.assertEquals(IMAGE_SIZE_BYTES, servedBytes);
+  }
+
+  @Test
+  public void doGet_matchingIfNoneMatch_returnsNotModified() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getHeader("If-None-Match")).thenReturn("\"otherKey\", W/\"blobKey\"");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    verify(blobstoreService, never()).serve(any(BlobKey.class), any(HttpServletResponse.class));
+    Assert.assertEquals(0, servedBytes);
+  }
+
+  @Test
+  public void doGet_otherIfNoneMatch_servesImage() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getHeader("If-None-Match")).thenReturn("\"otherKey\"");
+
+    servlet.doGet(request, createResponse());
+
+    Assert.assertEquals(IMAGE_SIZE_BYTES, servedBytes);
+  }
+
+  @Test
+  public void doGet_range_servesOnlyRange() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getHeader("Range")).thenReturn("bytes=0-1023");
+
+    servlet.doGet(request, createResponse());
+
+    Assert.assertEquals(1024, servedBytes);
+  }
+
+  @Test
+  public void doGet_rangeWithOtherIfRange_servesWholeImage() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getHeader("Range")).thenReturn("bytes=0-1023");
+    when(request.getHeader("If-Range")).thenReturn("\"otherKey\"");
+
+    servlet.doGet(request, createResponse());
+
+    Assert.assertEquals(IMAGE_SIZE_BYTES, servedBytes);
+  }
+
+  @Test
+  public void doGet_multipleRanges_servesWholeImage() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getHeader("Range")).thenReturn("bytes=0-9,20-29");
+
+    servlet.doGet(request, createResponse());
+
+    Assert.assertEquals(IMAGE_SIZE_BYTES, servedBytes);
+  }
+
+  @Test
+  public void doGet_missingBlobKey_returnsBadRequest() throws IOException {
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(createRequest(null), response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    Assert.assertEquals(0, servedBytes);
+  }
+
+  @Test
+  public void doGet_userLoggedOut_returnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(createRequest("blobKey"), response);
+
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    Assert.assertEquals(0, servedBytes);
+  }
+
+  @Test
+  public void doGet_otherUsersImage_returnsNotFound() throws IOException {
+    addReceipt("otherUserID", "otherKey");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(createRequest("otherKey"), response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_FOUND);
+    verify(response, never()).setHeader("ETag", "\"otherKey\"");
+    Assert.assertEquals(0, servedBytes);
+  }
+
+  @Test
+  public void revisitingPage_revalidatesWithoutServingImages() throws IOException {
+    // The first visit has nothing cached, so every image is served. Before ETags, the second visit
+    // served every image again, and now each one is revalidated with the ETag of the first visit.
+    String[] etags = new String[IMAGES_PER_PAGE];
+    for (int i = 0; i < IMAGES_PER_PAGE; i++) {
+      HttpServletResponse response = createResponse();
+      servlet.doGet(createRequest("blobKey" + i), response);
+      etags[i] = "\"blobKey" + i + "\"";
+      verify(response).setHeader("ETag", etags[i]);
+    }
+    long firstVisitBytes = servedBytes;
+
+    servedBytes = 0;
+    for (int i = 0; i < IMAGES_PER_PAGE; i++) {
+      HttpServletRequest request = createRequest("blobKey" + i);
+      when(request.getHeader("If-None-Match")).thenReturn(etags[i]);
+      servlet.doGet(request, createResponse());
+    }
+    long secondVisitBytes = servedBytes;
+
+    Assert.assertEquals((long) IMAGE_SIZE_BYTES * IMAGES_PER_PAGE, firstVisitBytes);
+    Assert.assertEquals(0, secondVisitBytes);
+  }
+
+  @Test
+  public void doGet_smallSize_servesVariant() throws IOException {
+    stubPhotos(ImageVariantsTest.createReceiptPhoto(1500, 2000));
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getParameter("size")).thenReturn("small");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(request, response);
+
+    verify(response).setHeader("ETag", "\"blobKey-small\"");
+    verify(response).setContentType("image/jpeg");
+    verify(response, never()).setHeader("Accept-Ranges", "bytes");
+    verify(blobstoreService, never()).serve(any(BlobKey.class), any(HttpServletResponse.class));
+    Assert.assertTrue(servedBytes > 0);
+  }
+
+  @Test
+  public void doGet_smallSizeOfSmallImage_servesOriginal() throws IOException {
+    byte[] photo = ImageVariantsTest.createReceiptPhoto(200, 300);
+    stubPhotos(photo);
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getParameter("size")).thenReturn("small");
+
+    servlet.doGet(request, createResponse());
+
+    Assert.assertEquals(photo.length, servedBytes);
+  }
+
+  @Test
+  public void doGet_undecodableImageAtSmallSize_servesOriginalWithoutImmutable()
+      throws IOException {
+    byte[] photo = "not an image".getBytes();
+    stubPhotos(photo);
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getParameter("size")).thenReturn("small");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(request, response);
+
+    Assert.assertEquals(photo.length, servedBytes);
+    Assert.assertEquals("\"blobKey\"", getLastHeader(response, "ETag"));
+    Assert.assertEquals("private, max-age=86400", getLastHeader(response, "Cache-Control"));
+  }
+
+  @Test
+  public void doGet_smallSizeServedAsOriginal_revalidatesWithOriginalETag() throws IOException {
+    stubPhotos("not an image".getBytes());
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getParameter("size")).thenReturn("small");
+    when(request.getHeader("If-None-Match")).thenReturn("\"blobKey\"");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+    Assert.assertEquals(0, servedBytes);
+  }
+
+  @Test
+  public void doGet_cachedImage_servesFromDiskWithoutFetching() throws IOException {
+    byte[] photo = ImageVariantsTest.createReceiptPhoto(1500, 2000);
+    stubPhotos(photo);
+
+    // Without an If-None-Match header, such as from another device, the image is served again.
+    servlet.doGet(createRequest("blobKey"), createResponse());
+    servlet.doGet(createRequest("blobKey"), createResponse());
+
+    Assert.assertEquals(2L * photo.length, servedBytes);
+    verify(blobInfoFactory, times(1)).loadBlobInfo(new BlobKey("blobKey"));
+    verify(blobstoreService, never()).serve(any(BlobKey.class), any(HttpServletResponse.class));
+    Assert.assertEquals(1, imageDiskCache.getMetrics().getHits());
+    Assert.assertEquals(2L * photo.length, imageDiskCache.getMetrics().getBytesServed());
+  }
+
+  @Test
+  public void doGet_invalidSize_returnsBadRequest() throws IOException {
+    HttpServletRequest request = createRequest("blobKey");
+    when(request.getParameter("size")).thenReturn("huge");
+    HttpServletResponse response = createResponse();
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    Assert.assertEquals(0, servedBytes);
+  }
+
+  @Test
+  public void pageOfSmallImages_servesTensOfKilobytes() throws IOException {
+    // Each photo is served whole from Blobstore at its original size, like before variants.
+    byte[] photo = ImageVariantsTest.createReceiptPhoto(1500, 2000);
+    stubPhotos(photo);
+    long originalPageBytes = (long) photo.length * IMAGES_PER_PAGE;
+
+    for (int i = 0; i < IMAGES_PER_PAGE; i++) {
+      HttpServletRequest request = createRequest("blobKey" + i);
+      when(request.getParameter("size")).thenReturn("small");
+      servlet.doGet(request, createResponse());
+    }
+
+    Assert.assertTrue("Served " + servedBytes + " bytes", servedBytes < 100 * 1024);
+    Assert.assertTrue("Served " + servedBytes + " of " + originalPageBytes + " bytes",
+        servedBytes * 10 < originalPageBytes);
+  }
+
+  /** Makes every blob's contents the photo when its bytes are read to create a variant. */
+  private void stubPhotos(byte[] photo) {
+    when(blobInfoFactory.loadBlobInfo(any(BlobKey.class)))
+        .thenAnswer(invocation
+            -> new BlobInfo(invocation.getArgumentAt(0, BlobKey.class), "image/jpeg", new Date(),
+                "image.jpg", photo.length, "hash", null));
+    when(blobstoreService.fetchData(any(BlobKey.class), anyLong(), anyLong()))
+        .thenAnswer(invocation
+            -> Arrays.copyOfRange(photo, invocation.getArgumentAt(1, Long.class).intValue(),
+                (int) Math.min(invocation.getArgumentAt(2, Long.class) + 1, photo.length)));
+  }
+
+  /** Returns the value the header was last set to on the response. */
+  private static String getLastHeader(HttpServletResponse response, String name) {
+    ArgumentCaptor<String> value = ArgumentCaptor.forClass(String.class);
+    verify(response, atLeastOnce()).setHeader(eq(name), value.capture());
+    return value.getValue();
+  }
+
+  /** Stores a receipt of the user with the image, like an upload does. */
+  private void addReceipt(String userId, String blobKey) {
+    Entity receipt = new Entity("Receipt");
+    receipt.setProperty("userId", userId);
+    receipt.setProperty("imageUrl", "/serve-image?blob-key=" + blobKey);
+    datastore.put(receipt);
+  }
+
+  private static HttpServletRequest createRequest(String blobKey) {
+    HttpServletRequest request = mock(HttpServletRequest.class);
+    when(request.getParameter("blob-key")).thenReturn(blobKey);
+    return request;
+  }
+
+  private HttpServletResponse createResponse() throws IOException {
+    HttpServletResponse response = mock(HttpServletResponse.class);
+    when(response.getOutputStream()).thenReturn(new CountingOutputStream());
+    when(response.getWriter()).thenReturn(new PrintWriter(new StringWriter()));
+    return response;
+  }
+
+  private void write(HttpServletResponse response, long bytes) throws IOException {
+    ServletOutputStream outputStream = response.getOutputStream();
+    for (long i = 0; i < bytes; i++) {
+      outputStream.write(0);
+    }
+  }
+
+  /** Output stream that counts the bytes written to it instead of keeping them. */
+  private final class CountingOutputStream extends ServletOutputStream {
+    @Override
+    public void write(int b) {
+      servedBytes++;
+    }
+
+    @Override
+    public boolean isReady() {
+      return true;
+    }
+
+    @Override
+    public void setWriteListener(WriteListener writeListener) {}
+  }
+}
@@ -0,0 +1,143 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.UserSpendingSummary;
+import com.google.sps.servlets.ShardedReceiptScan;
+import com.google.sps.servlets.TimeBuckets;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class ShardedReceiptScanTest {
+  private static final String USER_ID = "testID";
+  // Wednesday, July 1, 2020.
+  private static final long TIMESTAMP = 1593561600000L;
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private ShardedReceiptScan scan;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    scan = new ShardedReceiptScan(DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void getShardCount_growsWithReceiptsUpToMax() {
+    Assert.assertEquals(1, ShardedReceiptScan.getShardCount(0));
+    Assert.assertEquals(1, ShardedReceiptScan.getShardCount(500));
+    Assert.assertEquals(2, ShardedReceiptScan.getShardCount(501));
+    Assert.assertEquals(16, ShardedReceiptScan.getShardCount(1000000));
+  }
+
+  @Test
+  public void scan_noReceipts_returnsEmptyTotals() {
+    ShardedReceiptScan.Totals totals = scan.scan(USER_ID);
+
+    Assert.assertTrue(totals.getSummary().isEmpty());
+    Assert.assertTrue(totals.getBuckets().isEmpty());
+  }
+
+  @Test
+  public void scan_manyShards_totalsEveryReceiptOnce() {
+    List<Entity> receipts = new ArrayList<>();
+    for (int i = 0; i < 1234; i++) {
+      receipts.add(createReceipt(USER_ID, "store" + i % 3, 1.00));
+    }
+    datastore.put(receipts);
+    // Another user's receipt.
+    datastore.put(createReceipt("otherID", "store0", 100.00));
+
+    ShardedReceiptScan.Totals totals = scan.scan(USER_ID);
+
+    HashMap<String, Double> expectedStoreTotals =
+        new HashMap<>(ImmutableMap.of("store0", 412.00, "store1", 411.00, "store2", 411.00));
+    Assert.assertEquals(expectedStoreTotals, totals.getSummary().toAnalytics().getStoreAnalytics());
+    Assert.assertEquals(
+        1234.00, totals.getSummary().toAnalytics().getCategoryAnalytics().get("food"), 0);
+    for (String name : TimeBuckets.getBucketNames(TIMESTAMP)) {
+      Assert.assertEquals(expectedStoreTotals,
+          totals.getBuckets().get(name).toAnalytics().getStoreAnalytics());
+    }
+  }
+
+  @Test
+  public void scan_receiptWithoutTimestamp_isOnlyInSummary() {
+    Entity receipt = createReceipt(USER_ID, "walmart", 2.50);
+    receipt.removeProperty("timestamp");
+    datastore.put(receipt);
+
+    ShardedReceiptScan.Totals totals = scan.scan(USER_ID);
+
+    Assert.assertEquals(new HashMap<>(ImmutableMap.of("walmart", 2.50)),
+        totals.getSummary().toAnalytics().getStoreAnalytics());
+    Assert.assertTrue(totals.getBuckets().isEmpty());
+  }
+
+  @Test
+  public void scan_receiptsMissingProperties_totalsProjectedProperties() {
+    datastore.put(TestUtils.createEntity(USER_ID, TIMESTAMP, "img/walmart-receipt.jpg", 3.00,
+        "walmart", ImmutableSet.of("food", "drink"), "long raw text"));
+    Entity receiptWithoutStore = createReceipt(USER_ID, "contoso", 1.50);
+    receiptWithoutStore.removeProperty("store");
+    datastore.put(receiptWithoutStore);
+
+    ShardedReceiptScan.Totals totals = scan.scan(USER_ID);
+
+    Assert.assertEquals(new HashMap<>(ImmutableMap.of("walmart", 3.00)),
+        totals.getSummary().toAnalytics().getStoreAnalytics());
+    Assert.assertEquals(new HashMap<>(ImmutableMap.of("food", 4.50, "drink", 3.00)),
+        totals.getSummary().toAnalytics().getCategoryAnalytics());
+  }
+
+  @Test
+  public void merge_addsTotalsOfOtherShard() {
+    datastore.put(createReceipt(USER_ID, "walmart", 2.50));
+    ShardedReceiptScan.Totals totals = scan.scan(USER_ID);
+
+    totals.merge(scan.scan(USER_ID));
+
+    UserSpendingSummary expectedSummary = new UserSpendingSummary();
+    expectedSummary.addReceipt(createReceipt(USER_ID, "walmart", 2.50));
+    expectedSummary.addReceipt(createReceipt(USER_ID, "walmart", 2.50));
+    Assert.assertTrue(totals.getSummary().diffStoreTotals(expectedSummary).areEqual());
+  }
+
+  private static Entity createReceipt(String userId, String store, double price) {
+    return TestUtils.createEntity(userId, TIMESTAMP, "img/walmart-receipt.jpg", price, store,
+        ImmutableSet.of("food"), "");
+  }
+}
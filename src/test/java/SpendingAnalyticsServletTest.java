@@ -31,6 +31,7 @@ import java.io.StringWriter;
 import java.util.HashMap;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
 import org.junit.After;
 import org.junit.Assert;
 import org.junit.Before;
@@ -119,6 +120,30 @@ public final class SpendingAnalyticsServletTest {
     Assert.assertEquals(EXPECTED_CATEGORY_ANALYTICS, categoryAnalytics);
   }
 
+  @Test
+  public void doGetWithReceiptMissingStoreOrCategories() throws IOException {
+    // Receipts in datastore:
+    // No store: $26.12 [candy], Contoso: $14.51 with no categories
+
+    TestUtils.addTestReceipt(datastore, USER_ID, TIMESTAMP, IMAGE_URL,
+        /* price = */ 26.12, /* store = */ null,
+        /* categories = */ ImmutableSet.of("candy"), RAW_TEXT);
+    TestUtils.addTestReceipt(datastore, USER_ID, TIMESTAMP, IMAGE_URL,
+        /* price = */ 14.51, /* store = */ "contoso", /* categories = */ ImmutableSet.of(),
+        RAW_TEXT);
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    HashMap<String, Double> storeAnalytics =
+        TestUtils.parseAnalytics(stringWriter.toString(), "storeAnalytics");
+    HashMap<String, Double> categoryAnalytics =
+        TestUtils.parseAnalytics(stringWriter.toString(), "categoryAnalytics");
+
+    Assert.assertEquals(ImmutableMap.of("contoso", 14.51), storeAnalytics);
+    Assert.assertEquals(ImmutableMap.of("candy", 26.12), categoryAnalytics);
+  }
+
   @Test
   public void doGetWithNoReceiptsInDatastore() throws IOException {
     servlet.doGet(request, response);
@@ -162,6 +187,77 @@ public final class SpendingAnalyticsServletTest {
     Assert.assertTrue(categoryAnalytics.isEmpty());
   }
 
+  @Test
+  public void doGetWithDateRange() throws IOException {
+    // Walmart: $26.12 on June 29, 2020, Contoso: $14.51 on July 1, 2020 in Central Time.
+    TestUtils.addTestReceipt(datastore, USER_ID, /* timestamp = */ 1593410400000L, IMAGE_URL,
+        /* price = */ 26.12, /* store = */ "walmart",
+        /* categories = */ ImmutableSet.of("candy", "drink"), RAW_TEXT);
+    TestUtils.addTestReceipt(datastore, USER_ID, /* timestamp = */ 1593583200000L, IMAGE_URL,
+        /* price = */ 14.51, /* store = */ "contoso",
+        /* categories = */ ImmutableSet.of("cappuccino", "food"), RAW_TEXT);
+
+    when(request.getParameter("dateRange")).thenReturn("June 1, 2020 - June 30, 2020");
+    when(request.getParameter("timeZoneId")).thenReturn("America/Chicago");
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    HashMap<String, Double> storeAnalytics =
+        TestUtils.parseAnalytics(stringWriter.toString(), "storeAnalytics");
+    HashMap<String, Double> categoryAnalytics =
+        TestUtils.parseAnalytics(stringWriter.toString(), "categoryAnalytics");
+
+    Assert.assertEquals(ImmutableMap.of("walmart", 26.12), storeAnalytics);
+    Assert.assertEquals(ImmutableMap.of("candy", 26.12, "drink", 26.12), categoryAnalytics);
+  }
+
+  @Test
+  public void doGetWithMonthInterval() throws IOException {
+    // Walmart: $26.12 on June 29, 2020, Contoso: $14.51 on July 1, 2020 in UTC.
+    TestUtils.addTestReceipt(datastore, USER_ID, /* timestamp = */ 1593410400000L, IMAGE_URL,
+        /* price = */ 26.12, /* store = */ "walmart",
+        /* categories = */ ImmutableSet.of("candy", "drink"), RAW_TEXT);
+    TestUtils.addTestReceipt(datastore, USER_ID, /* timestamp = */ 1593583200000L, IMAGE_URL,
+        /* price = */ 14.51, /* store = */ "contoso",
+        /* categories = */ ImmutableSet.of("cappuccino", "food"), RAW_TEXT);
+
+    when(request.getParameter("interval")).thenReturn("month");
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject series = new JSONObject(stringWriter.toString());
+    Assert.assertEquals(ImmutableSet.of("2020-06", "2020-07"), series.keySet());
+    String june = series.getJSONObject("2020-06").toString();
+    Assert.assertEquals(
+        ImmutableMap.of("walmart", 26.12), TestUtils.parseAnalytics(june, "storeAnalytics"));
+    Assert.assertEquals(ImmutableMap.of("candy", 26.12, "drink", 26.12),
+        TestUtils.parseAnalytics(june, "categoryAnalytics"));
+    Assert.assertEquals(ImmutableMap.of("contoso", 14.51),
+        TestUtils.parseAnalytics(
+            series.getJSONObject("2020-07").toString(), "storeAnalytics"));
+  }
+
+  @Test
+  public void doGetWithInvalidInterval() throws IOException {
+    when(request.getParameter("interval")).thenReturn("year");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void doGetWithInvalidDateRange() throws IOException {
+    when(request.getParameter("dateRange")).thenReturn("Not a date - June 30, 2020");
+    when(request.getParameter("timeZoneId")).thenReturn("America/Chicago");
+
+    servlet.doGet(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
   @Test
   public void checkAuthenticationErrorIsReturned() throws IOException {
     // Will respond with status code 403 since the user is not logged in.
@@ -14,11 +14,16 @@
 
 package com.google.sps;
 
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.common.collect.ImmutableSet;
 import com.google.sps.data.SpendingAnalytics;
+import com.google.sps.data.UserSpendingSummary;
 import java.lang.Character;
 import java.util.HashMap;
 import org.junit.After;
@@ -72,7 +77,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ TARGET_PRICE, /* store = */ "target", CATEGORIES, RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> storeAnalytics = analytics.getStoreAnalytics();
 
     Assert.assertEquals(WALMART_PRICE, storeAnalytics.get("walmart"), ERROR_THRESHOLD);
@@ -95,7 +100,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ WALMART_PRICE, /* store = */ "walmart", CATEGORIES, RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> storeAnalytics = analytics.getStoreAnalytics();
 
     // Check for no duplicates (2 stores rather than 3).
@@ -119,7 +124,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ 5.13, /* store = */ null, CATEGORIES, RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> storeAnalytics = analytics.getStoreAnalytics();
 
     // Check that only one store is returned and it's the expected one.
@@ -140,7 +145,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ 5.13, /* store = */ "", CATEGORIES, RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> storeAnalytics = analytics.getStoreAnalytics();
 
     // Check that only one store is returned and it's the expected one.
@@ -161,7 +166,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ WALMART_PRICE, /* store = */ "walmart", CATEGORIES, RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
 
     // Check that only one store is returned and it's the expected one.
     Assert.assertEquals(1, analytics.getStoreAnalytics().size());
@@ -184,7 +189,7 @@ public final class SpendingAnalyticsTest {
                 RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> categoryAnalytics = analytics.getCategoryAnalytics();
 
     Assert.assertEquals(storeOneTotal, categoryAnalytics.get("candy"), ERROR_THRESHOLD);
@@ -208,7 +213,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ storeTwoTotal, STORE, ImmutableSet.of("candy", "food"), RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> categoryAnalytics = analytics.getCategoryAnalytics();
 
     // Check for no duplicates (3 categories rather than 4).
@@ -234,7 +239,7 @@ public final class SpendingAnalyticsTest {
                 /* price = */ 26.12, STORE, /* categories = */ null, RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> categoryAnalytics = analytics.getCategoryAnalytics();
 
     // Check that only one category is returned and it's the expected one.
@@ -255,11 +260,37 @@ public final class SpendingAnalyticsTest {
                 /* price = */ 26.12, STORE, ImmutableSet.of("candy"), RAW_TEXT))
             .build();
 
-    SpendingAnalytics analytics = new SpendingAnalytics(receipts);
+    SpendingAnalytics analytics = summarize(receipts);
     HashMap<String, Double> categoryAnalytics = analytics.getCategoryAnalytics();
 
     // Check that only one category is returned and it's the expected one.
     Assert.assertEquals(1, categoryAnalytics.size());
     Assert.assertTrue(categoryAnalytics.containsKey("candy"));
   }
+
+  @Test
+  public void manyStoresStreamedFromQuery() {
+    // Receipts read from datastore in small chunks.
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    for (int i = 0; i < 40; i++) {
+      TestUtils.addTestReceipt(datastore, USER_ID, TIMESTAMP, IMAGE_URL, /* price = */ i,
+          /* store = */ "store" + i % 20, CATEGORIES, RAW_TEXT);
+    }
+
+    SpendingAnalytics analytics = summarize(
+        datastore.prepare(new Query("Receipt")).asIterable(FetchOptions.Builder.withChunkSize(7)));
+    HashMap<String, Double> storeAnalytics = analytics.getStoreAnalytics();
+
+    Assert.assertEquals(20, storeAnalytics.size());
+    for (int i = 0; i < 20; i++) {
+      Assert.assertEquals(2 * i + 20, storeAnalytics.get("store" + i), ERROR_THRESHOLD);
+    }
+    Assert.assertEquals(780, analytics.getCategoryAnalytics().get("Lunch"), ERROR_THRESHOLD);
+  }
+
+  private static SpendingAnalytics summarize(Iterable<Entity> receipts) {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    receipts.forEach(summary::addReceipt);
+    return summary.toAnalytics();
+  }
 }
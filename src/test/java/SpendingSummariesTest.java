@@ -0,0 +1,287 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.SpendingAnalytics;
+import com.google.sps.data.UserSpendingSummary;
+import com.google.sps.servlets.SpendingSummaries;
+import java.time.Instant;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class SpendingSummariesTest {
+  private static final String USER_ID = "testID";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  private DatastoreService datastore;
+  private SpendingSummaries spendingSummaries;
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void get_noSummary_computesFromReceipts() throws EntityNotFoundException {
+    TestUtils.addTestReceipts(datastore);
+
+    SpendingAnalytics analytics = spendingSummaries.get(USER_ID).toAnalytics();
+
+    assertAnalytics(ImmutableMap.of(
+        "walmart", 26.12, "contoso", 14.51, "main street restaurant", 29.01),
+        ImmutableMap.of("candy", 26.12, "drink", 26.12, "cappuccino", 14.51, "food", 43.52),
+        analytics);
+    // The computed summary is stored for the next read.
+    datastore.get(KeyFactory.createKey(UserSpendingSummary.KIND, USER_ID));
+  }
+
+  @Test
+  public void put_newReceipt_addsToSummary() {
+    spendingSummaries.get(USER_ID);
+
+    spendingSummaries.put(createReceipt(10.50, "walmart", ImmutableSet.of("food")));
+
+    assertAnalytics(ImmutableMap.of("walmart", 10.50), ImmutableMap.of("food", 10.50),
+        spendingSummaries.get(USER_ID).toAnalytics());
+    Assert.assertTrue(spendingSummaries.check(USER_ID).isConsistent());
+  }
+
+  @Test
+  public void put_editedReceipt_replacesOldValues() {
+    spendingSummaries.get(USER_ID);
+    Entity receipt = createReceipt(10.50, "walmart", ImmutableSet.of("food"));
+    spendingSummaries.put(receipt);
+
+    receipt.setProperty("price", 3.25);
+    receipt.setProperty("store", "target");
+    receipt.setProperty("categories", ImmutableSet.of("drink"));
+    spendingSummaries.put(receipt);
+
+    assertAnalytics(ImmutableMap.of("target", 3.25), ImmutableMap.of("drink", 3.25),
+        spendingSummaries.get(USER_ID).toAnalytics());
+    Assert.assertTrue(spendingSummaries.check(USER_ID).isConsistent());
+  }
+
+  @Test
+  public void put_moreReceiptsThanTransactionLimit_addsAllToSummary() {
+    spendingSummaries.get(USER_ID);
+    List<Entity> receipts = new ArrayList<>();
+    for (int i = 0; i < 30; i++) {
+      receipts.add(createReceipt(1.10, "walmart", ImmutableSet.of("food")));
+    }
+
+    spendingSummaries.put(receipts);
+
+    assertAnalytics(ImmutableMap.of("walmart", 33.0), ImmutableMap.of("food", 33.0),
+        spendingSummaries.get(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void delete_removesFromSummary() {
+    spendingSummaries.get(USER_ID);
+    Entity walmartReceipt = createReceipt(10.50, "walmart", ImmutableSet.of("food"));
+    Entity targetReceipt = createReceipt(2.00, "target", ImmutableSet.of("food"));
+    spendingSummaries.put(walmartReceipt);
+    spendingSummaries.put(targetReceipt);
+
+    spendingSummaries.delete(walmartReceipt.getKey());
+
+    assertAnalytics(ImmutableMap.of("target", 2.00), ImmutableMap.of("food", 2.00),
+        spendingSummaries.get(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void check_receiptWrittenOutsideSummaries_reportsDifference() {
+    spendingSummaries.get(USER_ID);
+    datastore.put(createReceipt(10.50, "walmart", ImmutableSet.of("food")));
+
+    SpendingSummaries.ConsistencyReport report = spendingSummaries.check(USER_ID);
+
+    Assert.assertFalse(report.isConsistent());
+    List<UserSpendingSummary.Total> walmartTotals = report.getStoreDifferences().get("walmart");
+    Assert.assertNull(walmartTotals.get(0));
+    Assert.assertEquals(new UserSpendingSummary.Total(1050, 1), walmartTotals.get(1));
+    Assert.assertTrue(report.getCategoryDifferences().containsKey("food"));
+  }
+
+  @Test
+  public void recompute_repairsInconsistentSummary() {
+    spendingSummaries.get(USER_ID);
+    datastore.put(createReceipt(10.50, "walmart", ImmutableSet.of("food")));
+
+    spendingSummaries.recompute(USER_ID);
+
+    Assert.assertTrue(spendingSummaries.check(USER_ID).isConsistent());
+    assertAnalytics(ImmutableMap.of("walmart", 10.50), ImmutableMap.of("food", 10.50),
+        spendingSummaries.get(USER_ID).toAnalytics());
+  }
+
+  @Test
+  public void put_userWithoutSummary_onlyStoresReceipt() throws EntityNotFoundException {
+    Entity receipt = createReceipt(10.50, "walmart", ImmutableSet.of("food"));
+
+    spendingSummaries.put(receipt);
+
+    datastore.get(receipt.getKey());
+    Assert.assertTrue(spendingSummaries.check(USER_ID).isConsistent());
+  }
+
+  @Test
+  public void getRange_sumsBucketsAndReceiptsAtEdges() {
+    spendingSummaries.get(USER_ID);
+    // Before, at the start of, in the middle of, at the end of, and after the range.
+    spendingSummaries.put(createReceipt("2019-12-31T23:59:59Z", 1.00, "walmart"));
+    spendingSummaries.put(createReceipt("2020-01-15T00:00:00Z", 2.00, "walmart"));
+    spendingSummaries.put(createReceipt("2020-02-10T12:00:00Z", 4.00, "target"));
+    spendingSummaries.put(createReceipt("2020-03-10T23:59:59.999Z", 8.00, "walmart"));
+    spendingSummaries.put(createReceipt("2020-03-11T00:00:00Z", 16.00, "walmart"));
+
+    SpendingAnalytics analytics = spendingSummaries.get(USER_ID,
+        toTimestamp("2020-01-15T00:00:00Z"), toTimestamp("2020-03-10T23:59:59.999Z"))
+        .toAnalytics();
+
+    assertAnalytics(ImmutableMap.of("walmart", 10.00, "target", 4.00),
+        ImmutableMap.of("food", 14.00), analytics);
+  }
+
+  @Test
+  public void getRange_receiptMovedToOtherMonth_updatesBuckets() {
+    spendingSummaries.get(USER_ID);
+    Entity receipt = createReceipt("2020-01-10T00:00:00Z", 2.00, "walmart");
+    spendingSummaries.put(receipt);
+
+    receipt.setProperty("timestamp", toTimestamp("2020-05-10T00:00:00Z"));
+    spendingSummaries.put(receipt);
+
+    Assert.assertTrue(spendingSummaries.get(USER_ID, toTimestamp("2020-01-01T00:00:00Z"),
+        toTimestamp("2020-02-01T00:00:00Z") - 1).isEmpty());
+    assertAnalytics(ImmutableMap.of("walmart", 2.00), ImmutableMap.of("food", 2.00),
+        spendingSummaries.get(USER_ID, toTimestamp("2020-05-01T00:00:00Z"),
+            toTimestamp("2020-06-01T00:00:00Z") - 1).toAnalytics());
+    // The emptied buckets are deleted.
+    Assert.assertEquals(2, countBuckets());
+  }
+
+  @Test
+  public void getRange_noSummary_computesBucketsFromReceipts() {
+    datastore.put(createReceipt("2020-02-10T12:00:00Z", 4.00, "target"));
+    datastore.put(createReceipt("2020-04-10T12:00:00Z", 8.00, "target"));
+
+    SpendingAnalytics analytics = spendingSummaries.get(USER_ID,
+        toTimestamp("2020-02-01T00:00:00Z"), toTimestamp("2020-03-01T00:00:00Z") - 1)
+        .toAnalytics();
+
+    assertAnalytics(ImmutableMap.of("target", 4.00), ImmutableMap.of("food", 4.00), analytics);
+    Assert.assertEquals(4, countBuckets());
+  }
+
+  @Test
+  public void recompute_deletesStaleBuckets() {
+    spendingSummaries.get(USER_ID);
+    Entity receipt = createReceipt("2020-02-10T12:00:00Z", 4.00, "target");
+    spendingSummaries.put(receipt);
+    datastore.delete(receipt.getKey());
+
+    spendingSummaries.recompute(USER_ID);
+
+    Assert.assertEquals(0, countBuckets());
+  }
+
+  @Test
+  public void put_summaryBeingBuilt_incrementsVersion() throws EntityNotFoundException {
+    datastore.put(createPendingSummary(System.currentTimeMillis()));
+
+    spendingSummaries.put(createReceipt(10.50, "walmart", ImmutableSet.of("food")));
+
+    // The build sees that a receipt was written during its scan, and the totals stay pending.
+    Entity summaryEntity =
+        datastore.get(KeyFactory.createKey(UserSpendingSummary.KIND, USER_ID));
+    Assert.assertEquals(1L, summaryEntity.getProperty(SpendingSummaries.VERSION_PROPERTY));
+    Assert.assertTrue(summaryEntity.hasProperty(SpendingSummaries.PENDING_SINCE_PROPERTY));
+    Assert.assertEquals(0, countBuckets());
+  }
+
+  @Test
+  public void get_abandonedBuild_computesSummary() throws EntityNotFoundException {
+    datastore.put(createPendingSummary(/* pendingSince = */ 0));
+    spendingSummaries.put(createReceipt(10.50, "walmart", ImmutableSet.of("food")));
+
+    assertAnalytics(ImmutableMap.of("walmart", 10.50), ImmutableMap.of("food", 10.50),
+        spendingSummaries.get(USER_ID).toAnalytics());
+    Entity summaryEntity =
+        datastore.get(KeyFactory.createKey(UserSpendingSummary.KIND, USER_ID));
+    Assert.assertFalse(summaryEntity.hasProperty(SpendingSummaries.PENDING_SINCE_PROPERTY));
+    Assert.assertTrue(spendingSummaries.check(USER_ID).isConsistent());
+  }
+
+  private int countBuckets() {
+    return datastore.prepare(new Query(SpendingSummaries.BUCKET_KIND))
+        .countEntities(FetchOptions.Builder.withDefaults());
+  }
+
+  private static Entity createPendingSummary(long pendingSince) {
+    Entity summaryEntity = new Entity(UserSpendingSummary.KIND, USER_ID);
+    summaryEntity.setProperty(SpendingSummaries.PENDING_SINCE_PROPERTY, pendingSince);
+    summaryEntity.setProperty(SpendingSummaries.BUILD_ID_PROPERTY, 1L);
+    summaryEntity.setProperty(SpendingSummaries.VERSION_PROPERTY, 0L);
+    return summaryEntity;
+  }
+
+  private static Entity createReceipt(double price, String store, ImmutableSet<String> categories) {
+    return TestUtils.createEntity(USER_ID, /* timestamp = */ 6292020, "img/walmart-receipt.jpg",
+        price, store, categories, "");
+  }
+
+  private static Entity createReceipt(String instant, double price, String store) {
+    return TestUtils.createEntity(USER_ID, toTimestamp(instant), "img/walmart-receipt.jpg", price,
+        store, ImmutableSet.of("food"), "");
+  }
+
+  private static long toTimestamp(String instant) {
+    return Instant.parse(instant).toEpochMilli();
+  }
+
+  private static void assertAnalytics(ImmutableMap<String, Double> expectedStoreAnalytics,
+      ImmutableMap<String, Double> expectedCategoryAnalytics, SpendingAnalytics analytics) {
+    Assert.assertEquals(new HashMap<>(expectedStoreAnalytics), analytics.getStoreAnalytics());
+    Assert.assertEquals(new HashMap<>(expectedCategoryAnalytics), analytics.getCategoryAnalytics());
+  }
+}
@@ -0,0 +1,151 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.servlets.LocalReceiptRepository;
+import com.google.sps.servlets.SpendingSummaries;
+import com.google.sps.servlets.SpendingSummaryServlet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONObject;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public final class SpendingSummaryServletTest {
+  private static final String USER_NOT_ADMIN_WARNING =
+      "User must be an admin to check spending summaries.";
+  private static final String USER_ID = "testID";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(
+          new LocalDatastoreServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvIsAdmin(true)
+          .setEnvEmail("admin@gmail.com")
+          .setEnvAuthDomain("gmail.com");
+
+  @Rule public final TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private SpendingSummaryServlet servlet;
+  private DatastoreService datastore;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    servlet = new SpendingSummaryServlet(datastore);
+
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    when(response.getWriter()).thenReturn(writer);
+    when(request.getParameter("userId")).thenReturn(USER_ID);
+
+    // Stores a summary, then adds a receipt without updating it.
+    new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService())
+        .get(USER_ID);
+    TestUtils.addTestReceipt(datastore, USER_ID, /* timestamp = */ 6292020,
+        "img/walmart-receipt.jpg", 26.12, "walmart", ImmutableSet.of("candy"), "");
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGet_inconsistentSummary_reportsDifferences() throws IOException {
+    servlet.doGet(request, response);
+    writer.flush();
+
+    JSONObject report = new JSONObject(stringWriter.toString());
+    Assert.assertTrue(report.getJSONObject("storeDifferences").has("walmart"));
+    Assert.assertTrue(report.getJSONObject("categoryDifferences").has("candy"));
+  }
+
+  @Test
+  public void doPost_recomputesSummary() throws IOException {
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertEquals(
+        26.12, TestUtils.parseAnalytics(stringWriter.toString(), "storeAnalytics").get("walmart"),
+        /* delta = */ 0);
+    SpendingSummaries spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+    Assert.assertTrue(spendingSummaries.check(USER_ID).isConsistent());
+  }
+
+  @Test
+  public void doGet_localStore_reportsConsistentSummary() throws IOException {
+    try (LocalReceiptRepository receipts = new LocalReceiptRepository(
+             temporaryFolder.getRoot().toPath().resolve("receipts.log"))) {
+      receipts.put(TestUtils.createEntity(USER_ID, /* timestamp = */ 6292020,
+          "img/walmart-receipt.jpg", 26.12, "walmart", ImmutableSet.of("candy"), ""));
+      servlet = new SpendingSummaryServlet(receipts);
+
+      servlet.doGet(request, response);
+      writer.flush();
+
+      JSONObject report = new JSONObject(stringWriter.toString());
+      Assert.assertEquals(0, report.getJSONObject("storeDifferences").length());
+      Assert.assertEquals(0, report.getJSONObject("categoryDifferences").length());
+    }
+  }
+
+  @Test
+  public void doGet_userNotAdmin_returnsForbidden() throws IOException {
+    helper.setEnvIsAdmin(false);
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertTrue(stringWriter.toString().contains(USER_NOT_ADMIN_WARNING));
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+
+  @Test
+  public void doPost_missingUserId_returnsBadRequest() throws IOException {
+    when(request.getParameter("userId")).thenReturn(null);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+}
@@ -0,0 +1,64 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
+import com.google.sps.servlets.StoreNameIndex;
+import com.google.sps.servlets.StoreNameIndex.Suggestion;
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class StoreNameIndexTest {
+  private final StoreNameIndex index = new StoreNameIndex(ImmutableMap.<String, Long>builder()
+                                                              .put("target", 4L)
+                                                              .put("trader joe's", 9L)
+                                                              .put("taco bell", 4L)
+                                                              .put("tacos el rey", 1L)
+                                                              .put("walmart", 12L)
+                                                              .put("t", 2L)
+                                                              .build());
+
+  @Test
+  public void getSuggestions_rankedByReceiptsThenName() {
+    Assert.assertEquals(ImmutableList.of(new Suggestion("trader joe's", 9),
+                            new Suggestion("taco bell", 4), new Suggestion("target", 4)),
+        index.getSuggestions("t", 3));
+  }
+
+  @Test
+  public void getSuggestions_onlyNamesWithPrefix() {
+    Assert.assertEquals(
+        ImmutableList.of(new Suggestion("taco bell", 4), new Suggestion("tacos el rey", 1)),
+        index.getSuggestions("taco", 5));
+    Assert.assertEquals(
+        ImmutableList.of(new Suggestion("taco bell", 4)), index.getSuggestions("taco ", 5));
+    Assert.assertEquals(ImmutableList.of(), index.getSuggestions("u", 5));
+    Assert.assertEquals(ImmutableList.of(), index.getSuggestions("walmarts", 5));
+  }
+
+  @Test
+  public void getSuggestions_emptyPrefix_returnsMostFrequentStores() {
+    Assert.assertEquals(
+        ImmutableList.of(new Suggestion("walmart", 12), new Suggestion("trader joe's", 9)),
+        index.getSuggestions("", 2));
+  }
+
+  @Test
+  public void getSuggestions_noStores_returnsNothing() {
+    Assert.assertEquals(
+        ImmutableList.of(), new StoreNameIndex(ImmutableMap.of()).getSuggestions("", 5));
+  }
+}
@@ -0,0 +1,211 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
+import com.google.appengine.api.datastore.Query;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalMemcacheServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.UserSpendingSummary;
+import com.google.sps.servlets.SpendingSummaries;
+import com.google.sps.servlets.StoreSuggestionsServlet;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.Arrays;
+import java.util.HashMap;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import org.json.JSONArray;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+public final class StoreSuggestionsServletTest {
+  private static final String AUTHENTICATION_ERROR_MESSAGE =
+      "No Authentication: User must be logged in to get store suggestions.";
+  private static final String LIMIT_EXCEPTION_MESSAGE =
+      "Invalid Limit: The limit must be a number from 1 to 20.";
+
+  private static final String DOMAIN_NAME = "gmail.com";
+  private static final String USER_EMAIL = "test@gmail.com";
+  private static final String USER_ID = "testID";
+
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig(),
+          new LocalMemcacheServiceTestConfig(), new LocalUserServiceTestConfig())
+          .setEnvIsLoggedIn(true)
+          .setEnvEmail(USER_EMAIL)
+          .setEnvAuthDomain(DOMAIN_NAME)
+          .setEnvAttributes(new HashMap(
+              ImmutableMap.of("com.google.appengine.api.users.UserService.user_id_key", USER_ID)));
+
+  @Mock private HttpServletRequest request;
+  @Mock private HttpServletResponse response;
+
+  private StoreSuggestionsServlet servlet;
+  private DatastoreService datastore;
+  private SpendingSummaries spendingSummaries;
+  private StringWriter stringWriter;
+  private PrintWriter writer;
+
+  @Before
+  public void setUp() throws IOException {
+    MockitoAnnotations.initMocks(this);
+    helper.setUp();
+    datastore = DatastoreServiceFactory.getDatastoreService();
+    servlet = new StoreSuggestionsServlet(datastore);
+    spendingSummaries =
+        new SpendingSummaries(datastore, DatastoreServiceFactory.getAsyncDatastoreService());
+
+    stringWriter = new StringWriter();
+    writer = new PrintWriter(stringWriter);
+    when(response.getWriter()).thenReturn(writer);
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void doGet_returnsStoresWithPrefixByReceiptCount() throws IOException {
+    addReceipts("target", 2);
+    addReceipts("trader joe's", 3);
+    addReceipts("walmart", 5);
+    when(request.getParameter("prefix")).thenReturn("  T");
+
+    JSONArray suggestions = getSuggestions();
+
+    Assert.assertEquals(2, suggestions.length());
+    Assert.assertEquals("trader joe's", suggestions.getJSONObject(0).getString("store"));
+    Assert.assertEquals(3, suggestions.getJSONObject(0).getLong("receipts"));
+    Assert.assertEquals("target", suggestions.getJSONObject(1).getString("store"));
+  }
+
+  @Test
+  public void doGet_afterReceiptWrites_returnsUpdatedCounts() throws IOException {
+    addReceipts("target", 2);
+    Entity walmartReceipt = addReceipts("walmart", 1);
+    when(request.getParameter("limit")).thenReturn("1");
+    Assert.assertEquals("target", getSuggestions().getJSONObject(0).getString("store"));
+
+    addReceipts("walmart", 2);
+
+    Assert.assertEquals("walmart", getSuggestions().getJSONObject(0).getString("store"));
+
+    spendingSummaries.delete(walmartReceipt.getKey());
+    walmartReceipt.setProperty("store", "costco");
+    spendingSummaries.put(walmartReceipt);
+    when(request.getParameter("limit")).thenReturn("5");
+
+    JSONArray suggestions = getSuggestions();
+    Assert.assertEquals(3, suggestions.length());
+    Assert.assertEquals("target", suggestions.getJSONObject(0).getString("store"));
+    Assert.assertEquals(2, suggestions.getJSONObject(1).getLong("receipts"));
+  }
+
+  @Test
+  public void doGet_storeWithoutPrices_isSuggested() throws IOException {
+    // Builds the summary, so the suggestions are read from it rather than counted.
+    spendingSummaries.get(USER_ID);
+    addReceipts("target", 1);
+    Entity receipt = TestUtils.createEntity(USER_ID, /* timestamp = */ 1045237591000L,
+        "img/walmart-receipt.jpg", /* price = */ null, "trader joe's", ImmutableSet.of("food"), "");
+    spendingSummaries.put(receipt);
+    when(request.getParameter("prefix")).thenReturn("t");
+
+    JSONArray suggestions = getSuggestions();
+
+    Assert.assertEquals(2, suggestions.length());
+    Assert.assertEquals(
+        ImmutableSet.of("target", "trader joe's"),
+        ImmutableSet.of(suggestions.getJSONObject(0).getString("store"),
+            suggestions.getJSONObject(1).getString("store")));
+  }
+
+  @Test
+  public void doGet_userWithoutSummary_countsStoresWithoutStoringSummary() throws IOException {
+    for (String store : Arrays.asList("walmart", "walmart", "target")) {
+      datastore.put(TestUtils.createEntity(USER_ID, /* timestamp = */ 1045237591000L,
+          "img/walmart-receipt.jpg", 10.00, store, ImmutableSet.of("food"), ""));
+    }
+
+    JSONArray suggestions = getSuggestions();
+
+    Assert.assertEquals("walmart", suggestions.getJSONObject(0).getString("store"));
+    Assert.assertEquals(2, suggestions.getJSONObject(0).getLong("receipts"));
+    Assert.assertEquals("target", suggestions.getJSONObject(1).getString("store"));
+    Assert.assertEquals(0,
+        datastore.prepare(new Query(UserSpendingSummary.KIND))
+            .countEntities(FetchOptions.Builder.withDefaults()));
+  }
+
+  @Test
+  public void doGet_invalidLimit_returnsBadRequest() throws IOException {
+    when(request.getParameter("limit")).thenReturn("100");
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertTrue(stringWriter.toString().contains(LIMIT_EXCEPTION_MESSAGE));
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+  }
+
+  @Test
+  public void doGet_userNotLoggedIn_returnsForbidden() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+
+    servlet.doGet(request, response);
+    writer.flush();
+
+    Assert.assertTrue(stringWriter.toString().contains(AUTHENTICATION_ERROR_MESSAGE));
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+  }
+
+  private JSONArray getSuggestions() throws IOException {
+    stringWriter.getBuffer().setLength(0);
+    servlet.doGet(request, response);
+    writer.flush();
+    return new JSONArray(stringWriter.toString());
+  }
+
+  /**
+   * Adds receipts from the store through the spending summaries.
+   * @return the last receipt added.
+   */
+  private Entity addReceipts(String store, int numReceipts) {
+    Entity receipt = null;
+    for (int i = 0; i < numReceipts; i++) {
+      receipt = TestUtils.createEntity(USER_ID, /* timestamp = */ 1045237591000L,
+          "img/walmart-receipt.jpg", 10.00, store, ImmutableSet.of("food"), "");
+      spendingSummaries.put(receipt);
+    }
+    return receipt;
+  }
+}
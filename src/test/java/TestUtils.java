@@ -21,6 +21,7 @@ import com.google.appengine.api.datastore.Entity;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableSet;
 import com.google.sps.data.Receipt;
+import com.google.sps.servlets.PriceBuckets;
 import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -95,6 +96,7 @@ public final class TestUtils {
     receiptEntity.setProperty("timestamp", timestamp);
     receiptEntity.setProperty("imageUrl", imageUrl);
     receiptEntity.setProperty("price", price);
+    PriceBuckets.setBucket(receiptEntity);
     receiptEntity.setProperty("store", store);
     if (categories == null) {
       receiptEntity.setProperty("categories", null);
@@ -0,0 +1,103 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Range;
+import com.google.sps.servlets.TimeBuckets;
+import java.time.Instant;
+import java.util.Random;
+import org.junit.Assert;
+import org.junit.Test;
+
+public final class TimeBucketsTest {
+  private static final long DAY = 24L * 60L * 60L * 1000L;
+
+  @Test
+  public void getBucketNames_returnsWeekStartingMondayAndMonth() {
+    // Sunday, March 1, 2020.
+    long timestamp = toTimestamp("2020-03-01T15:30:00Z");
+
+    Assert.assertEquals(ImmutableList.of("week-2020-02-24", "month-2020-03"),
+        TimeBuckets.getBucketNames(timestamp));
+  }
+
+  @Test
+  public void split_rangeWithinWeek_onlyHasResidualRange() {
+    long start = toTimestamp("2020-03-03T00:00:00Z");
+    long end = toTimestamp("2020-03-06T00:00:00Z");
+
+    TimeBuckets.Split split = TimeBuckets.split(start, end);
+
+    Assert.assertTrue(split.getBucketNames().isEmpty());
+    Assert.assertEquals(ImmutableList.of(Range.closedOpen(start, end)), split.getResidualRanges());
+  }
+
+  @Test
+  public void split_wholeMonths_onlyHasMonths() {
+    TimeBuckets.Split split = TimeBuckets.split(
+        toTimestamp("2020-01-01T00:00:00Z"), toTimestamp("2020-04-01T00:00:00Z"));
+
+    Assert.assertEquals(ImmutableList.of("month-2020-01", "month-2020-02", "month-2020-03"),
+        split.getBucketNames());
+    Assert.assertTrue(split.getResidualRanges().isEmpty());
+  }
+
+  @Test
+  public void split_partialMonths_usesWeeksAndResidualRangesAtEdges() {
+    TimeBuckets.Split split = TimeBuckets.split(
+        toTimestamp("2020-01-15T00:00:00Z"), toTimestamp("2020-03-10T00:00:00Z"));
+
+    Assert.assertEquals(ImmutableList.of("week-2020-01-20", "month-2020-02", "week-2020-03-02"),
+        split.getBucketNames());
+    Assert.assertEquals(
+        ImmutableList.of(
+            Range.closedOpen(
+                toTimestamp("2020-01-15T00:00:00Z"), toTimestamp("2020-01-20T00:00:00Z")),
+            Range.closedOpen(
+                toTimestamp("2020-01-27T00:00:00Z"), toTimestamp("2020-02-01T00:00:00Z")),
+            Range.closedOpen(
+                toTimestamp("2020-03-01T00:00:00Z"), toTimestamp("2020-03-02T00:00:00Z")),
+            Range.closedOpen(
+                toTimestamp("2020-03-09T00:00:00Z"), toTimestamp("2020-03-10T00:00:00Z"))),
+        split.getResidualRanges());
+  }
+
+  @Test
+  public void split_randomRanges_coverEachTimestampExactlyOnce() {
+    Random random = new Random(/* seed = */ 6292020);
+    long minTimestamp = toTimestamp("2015-01-01T00:00:00Z");
+
+    for (int i = 0; i < 200; i++) {
+      long start = minTimestamp + (long) (random.nextDouble() * 2000 * DAY);
+      long end = start + (long) (random.nextDouble() * 400 * DAY);
+      TimeBuckets.Split split = TimeBuckets.split(start, end);
+
+      for (int j = 0; j < 50; j++) {
+        long timestamp = start - DAY + (long) (random.nextDouble() * (end - start + 2 * DAY));
+        long coverCount = TimeBuckets.getBucketNames(timestamp).stream()
+                              .filter(split.getBucketNames()::contains)
+                              .count()
+            + split.getResidualRanges().stream().filter(range -> range.contains(timestamp)).count();
+
+        Assert.assertEquals(timestamp >= start && timestamp < end ? 1 : 0, coverCount);
+      }
+    }
+  }
+
+  private static long toTimestamp(String instant) {
+    return Instant.parse(instant).toEpochMilli();
+  }
+}
@@ -14,6 +14,9 @@
 
 package com.google.sps;
 
+import static org.mockito.Matchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 import static org.powermock.api.mockito.PowerMockito.mockStatic;
@@ -27,27 +30,40 @@ import com.google.appengine.api.blobstore.UploadOptions.Builder;
 import com.google.appengine.api.datastore.DatastoreService;
 import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.FetchOptions;
 import com.google.appengine.api.datastore.PreparedQuery;
 import com.google.appengine.api.datastore.Query;
 import com.google.appengine.api.datastore.Text;
+import com.google.appengine.api.taskqueue.Queue;
+import com.google.appengine.api.taskqueue.TaskOptions;
+import com.google.appengine.api.taskqueue.TransientFailureException;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
 import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
 import com.google.appengine.tools.development.testing.LocalUserServiceTestConfig;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.ImmutableMap;
 import com.google.common.collect.ImmutableSet;
 import com.google.gson.Gson;
+import com.google.gson.JsonParser;
 import com.google.sps.data.AnalysisResults;
+import com.google.sps.data.ReceiptStatus;
+import com.google.sps.servlets.AnalysisCache;
+import com.google.sps.servlets.AnalyzeReceiptServlet;
+import com.google.sps.servlets.DatastoreReceiptRepository;
+import com.google.sps.servlets.PriceBuckets;
 import com.google.sps.servlets.ReceiptAnalysis;
 import com.google.sps.servlets.ReceiptAnalysis.ReceiptAnalysisException;
+import com.google.sps.servlets.ReceiptAnalysisClients;
+import com.google.sps.servlets.ReceiptTextIndex;
 import com.google.sps.servlets.UploadReceiptServlet;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.net.URL;
 import java.time.Clock;
 import java.time.Instant;
 import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Date;
@@ -121,17 +137,10 @@ public final class UploadReceiptServletTest {
           .build();
 
   private static final String IMAGE_URL = "/serve-image?blob-key=" + BLOB_KEY.getKeyString();
-  private static final String LIVE_SERVER_BASE_URL =
-      "https://capstone-receipt-step-2020.uc.r.appspot.com:80";
-  private static final String LIVE_SERVER_ABSOLUTE_URL = LIVE_SERVER_BASE_URL + IMAGE_URL;
-  private static final String LIVE_SERVER_SCHEME = "https";
-  private static final String LIVE_SERVER_NAME = "capstone-receipt-step-2020.uc.r.appspot.com";
-  private static final int LIVE_SERVER_PORT = 80;
-  private static final String LIVE_SERVER_CONTEXT_PATH = "";
-  private static final String DEV_SERVER_SCHEME = "http";
-  private static final String DEV_SERVER_NAME = "0.0.0.0";
-  private static final int DEV_SERVER_PORT = 80;
-  private static final String DEV_SERVER_CONTEXT_PATH = "";
+  private static final BlobKey OTHER_BLOB_KEY = new BlobKey("otherBlobKey");
+  private static final String OTHER_IMAGE_URL =
+      "/serve-image?blob-key=" + OTHER_BLOB_KEY.getKeyString();
+  private static final double OTHER_PRICE = 12.5;
 
   private static final String DOMAIN_NAME = "gmail.com";
   private static final String USER_EMAIL = "test@gmail.com";
@@ -148,6 +157,9 @@ public final class UploadReceiptServletTest {
 
   @Mock private BlobstoreService blobstoreService;
   @Mock private BlobInfoFactory blobInfoFactory;
+  @Mock private ReceiptAnalysisClients analysisClients;
+  @Mock private AnalysisCache analysisCache;
+  @Mock private Queue analysisQueue;
   @Mock private HttpServletRequest request;
   @Mock private HttpServletResponse response;
 
@@ -156,6 +168,7 @@ public final class UploadReceiptServletTest {
   private Clock clock;
   private StringWriter stringWriter;
   private PrintWriter writer;
+  private List<TaskOptions> queuedAnalyses;
 
   @Before
   public void setUp() throws IOException {
@@ -171,7 +184,14 @@ public final class UploadReceiptServletTest {
     writer = new PrintWriter(stringWriter);
     when(response.getWriter()).thenReturn(writer);
 
-    servlet = new UploadReceiptServlet(blobstoreService, blobInfoFactory, datastore, clock);
+    // Keep the analysis tasks so that tests can run them explicitly.
+    queuedAnalyses = new ArrayList<>();
+    when(analysisQueue.add(any(TaskOptions.class))).thenAnswer(invocation -> {
+      queuedAnalyses.add(invocation.getArgumentAt(0, TaskOptions.class));
+      return null;
+    });
+    servlet = new UploadReceiptServlet(blobstoreService, blobInfoFactory, datastore, clock,
+        analysisClients, analysisCache, analysisQueue);
   }
 
   @After
@@ -192,15 +212,13 @@ public final class UploadReceiptServletTest {
   }
 
   @Test
-  public void doPost_liveServer_uploadsReceiptToDatastore()
+  public void doPost_uploadsReceiptToDatastore()
       throws IOException, ReceiptAnalysisException {
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis.
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenReturn(ANALYSIS_RESULTS);
 
     servlet.doPost(request, response);
@@ -223,42 +241,9 @@ public final class UploadReceiptServletTest {
     Assert.assertEquals(expectedResponse, response);
   }
 
-  @Test
-  public void doPost_devServer_uploadsReceiptToDatastore()
-      throws IOException, ReceiptAnalysisException {
-    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, DEV_SERVER_SCHEME, DEV_SERVER_NAME, DEV_SERVER_PORT, DEV_SERVER_CONTEXT_PATH);
-
-    // Mock receipt analysis.
-    mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY)).thenReturn(ANALYSIS_RESULTS);
-
-    servlet.doPost(request, response);
-
-    Query query = new Query("Receipt");
-    PreparedQuery results = datastore.prepare(query);
-    Entity receipt = results.asSingleEntity();
-
-    Assert.assertEquals(IMAGE_URL, receipt.getProperty("imageUrl"));
-    Assert.assertEquals(PRICE, receipt.getProperty("price"));
-    Assert.assertEquals(STORE, receipt.getProperty("store"));
-    Assert.assertEquals(RAW_TEXT, receipt.getProperty("rawText"));
-    Assert.assertEquals(CATEGORIES_COLLECTION, receipt.getProperty("categories"));
-    Assert.assertEquals(PAST_TIMESTAMP, receipt.getProperty("timestamp"));
-    Assert.assertEquals(USER_ID, receipt.getProperty("userId"));
-
-    String response = TestUtils.extractProperties(stringWriter.toString());
-    String expectedResponse = createReceiptEntity(
-        IMAGE_URL, PRICE, STORE, RAW_TEXT, PAST_TIMESTAMP, CATEGORIES_COLLECTION, USER_ID);
-    Assert.assertEquals(expectedResponse, response);
-  }
-
   @Test
   public void doPost_sanitizesStore() throws IOException, ReceiptAnalysisException {
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis.
     String store = "    TraDeR   JOE's  ";
@@ -270,7 +255,7 @@ public final class UploadReceiptServletTest {
                                           .setStore(store)
                                           .build();
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenReturn(analysisResults);
 
     servlet.doPost(request, response);
@@ -289,8 +274,6 @@ public final class UploadReceiptServletTest {
     helper.setEnvIsLoggedIn(true);
 
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis.
     AnalysisResults analysisResults = new AnalysisResults.Builder()
@@ -300,7 +283,7 @@ public final class UploadReceiptServletTest {
                                           .setPrice(PRICE)
                                           .build();
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenReturn(analysisResults);
 
     servlet.doPost(request, response);
@@ -315,8 +298,6 @@ public final class UploadReceiptServletTest {
   @Test
   public void doPost_sanitizesCategories() throws IOException, ReceiptAnalysisException {
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis.
     Set<String> generatedCategories =
@@ -329,7 +310,7 @@ public final class UploadReceiptServletTest {
                                           .setStore(STORE)
                                           .build();
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenReturn(analysisResults);
 
     servlet.doPost(request, response);
@@ -398,8 +379,6 @@ public final class UploadReceiptServletTest {
   public void doPost_futureParsedDate_uploadsReceiptWithoutTimestamp()
       throws IOException, ReceiptAnalysisException {
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis.
     long futureTimestamp = Instant.parse(INSTANT).plusMillis(1234).toEpochMilli();
@@ -411,7 +390,7 @@ public final class UploadReceiptServletTest {
                                           .setStore(STORE)
                                           .build();
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenReturn(analysisResults);
 
     servlet.doPost(request, response);
@@ -427,12 +406,10 @@ public final class UploadReceiptServletTest {
   public void doPost_receiptAnalysisFailure_throwsException()
       throws IOException, ReceiptAnalysisException {
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis exception.
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenThrow(IOException.class);
 
     servlet.doPost(request, response);
@@ -444,11 +421,242 @@ public final class UploadReceiptServletTest {
     verify(blobstoreService).delete(BLOB_KEY);
   }
 
+  @Test
+  public void doPostAsync_storesPendingReceipt() throws IOException {
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Entity receipt = datastore.prepare(new Query("Receipt")).asSingleEntity();
+    Assert.assertEquals(IMAGE_URL, receipt.getProperty("imageUrl"));
+    Assert.assertEquals(USER_ID, receipt.getProperty("userId"));
+    Assert.assertEquals(ReceiptStatus.PENDING, ReceiptStatus.of(receipt));
+    Assert.assertFalse(receipt.hasProperty("price"));
+
+    verify(response).setStatus(HttpServletResponse.SC_ACCEPTED);
+    Assert.assertTrue(stringWriter.toString().contains("\"id\":" + receipt.getKey().getId()));
+    Assert.assertEquals(1, queuedAnalyses.size());
+  }
+
+  @Test
+  public void doPostAsync_analysisFinishes_updatesReceipt() throws IOException {
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    // Mock receipt analysis.
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
+        .thenReturn(ANALYSIS_RESULTS);
+
+    servlet.doPost(request, response);
+    runQueuedAnalyses();
+
+    Entity receipt = datastore.prepare(new Query("Receipt")).asSingleEntity();
+    Assert.assertEquals(ReceiptStatus.ANALYZED, ReceiptStatus.of(receipt));
+    Assert.assertEquals(IMAGE_URL, receipt.getProperty("imageUrl"));
+    Assert.assertEquals(PRICE, receipt.getProperty("price"));
+    Assert.assertEquals(STORE, receipt.getProperty("store"));
+    Assert.assertEquals(RAW_TEXT, receipt.getProperty("rawText"));
+    Assert.assertEquals(PAST_TIMESTAMP, receipt.getProperty("timestamp"));
+    Assert.assertEquals(CATEGORIES_COLLECTION, receipt.getProperty("categories"));
+    Assert.assertEquals(USER_ID, receipt.getProperty("userId"));
+  }
+
+  @Test
+  public void doPostAsync_analysisFailure_marksReceiptFailed() throws IOException {
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    // Mock a receipt analysis failure.
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
+        .thenThrow(IOException.class);
+
+    servlet.doPost(request, response);
+    runQueuedAnalyses();
+
+    // The receipt and its image are kept so the user can enter the fields manually.
+    Entity receipt = datastore.prepare(new Query("Receipt")).asSingleEntity();
+    Assert.assertEquals(ReceiptStatus.FAILED, ReceiptStatus.of(receipt));
+    Assert.assertEquals(IMAGE_URL, receipt.getProperty("imageUrl"));
+    verify(blobstoreService, never()).delete(BLOB_KEY);
+  }
+
+  @Test
+  public void doPostAsync_receiptDeletedDuringAnalysis_staysDeleted() throws IOException {
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    // Delete the receipt while its image is being analyzed.
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
+        .thenAnswer(invocation -> {
+          Entity receipt = datastore.prepare(new Query("Receipt")).asSingleEntity();
+          new DatastoreReceiptRepository(datastore).delete(receipt.getKey().getId());
+          return ANALYSIS_RESULTS;
+        });
+
+    servlet.doPost(request, response);
+    runQueuedAnalyses();
+
+    Assert.assertEquals(0,
+        datastore.prepare(new Query("Receipt")).countEntities(FetchOptions.Builder.withDefaults()));
+  }
+
+  @Test
+  public void doPostAsync_receiptEditedDuringAnalysis_keepsEdit() throws IOException {
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    // Edit the receipt while its image is being analyzed.
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
+        .thenAnswer(invocation -> {
+          Entity receipt = datastore.prepare(new Query("Receipt")).asSingleEntity();
+          receipt.setProperty("price", OTHER_PRICE);
+          receipt.setProperty("status", ReceiptStatus.ANALYZED.name());
+          new DatastoreReceiptRepository(datastore).put(receipt);
+          return ANALYSIS_RESULTS;
+        });
+
+    servlet.doPost(request, response);
+    runQueuedAnalyses();
+
+    Entity receipt = datastore.prepare(new Query("Receipt")).asSingleEntity();
+    Assert.assertEquals(OTHER_PRICE, receipt.getProperty("price"));
+    Assert.assertFalse(receipt.hasProperty("store"));
+  }
+
+  @Test
+  public void doPostAsync_taskNotAdded_returnsServiceUnavailable() throws IOException {
+    when(analysisQueue.add(any(TaskOptions.class)))
+        .thenThrow(new TransientFailureException("Queue unavailable."));
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+    verify(blobstoreService).delete(BLOB_KEY);
+    Assert.assertEquals(0,
+        datastore.prepare(new Query("Receipt")).countEntities(FetchOptions.Builder.withDefaults()));
+  }
+
+  @Test
+  public void doPostAsync_userLoggedOut_throwsException() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    when(request.getParameter("async")).thenReturn("true");
+    createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertEquals(USER_NOT_LOGGED_IN_WARNING, stringWriter.toString());
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(blobstoreService).delete(BLOB_KEY);
+    Assert.assertTrue(queuedAnalyses.isEmpty());
+  }
+
+  @Test
+  public void doPostBatch_storesReceiptPerImage() throws IOException {
+    when(request.getParameter("batch")).thenReturn("true");
+    createMockBlobs(request, BLOB_KEY, OTHER_BLOB_KEY);
+
+    // Mock receipt analysis.
+    AnalysisResults otherResults = new AnalysisResults.Builder().setPrice(OTHER_PRICE).build();
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImagesAtBlobKeys(
+             Arrays.asList(BLOB_KEY, OTHER_BLOB_KEY), analysisClients, analysisCache))
+        .thenReturn(ImmutableList.of(ANALYSIS_RESULTS, otherResults));
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Entity receipt = getReceiptWithImageUrl(IMAGE_URL);
+    Assert.assertEquals(PRICE, receipt.getProperty("price"));
+    Assert.assertEquals(STORE, receipt.getProperty("store"));
+    Assert.assertEquals(USER_ID, receipt.getProperty("userId"));
+    Entity otherReceipt = getReceiptWithImageUrl(OTHER_IMAGE_URL);
+    Assert.assertEquals(OTHER_PRICE, otherReceipt.getProperty("price"));
+    Assert.assertFalse(otherReceipt.hasProperty("store"));
+    Assert.assertEquals(USER_ID, otherReceipt.getProperty("userId"));
+
+    Assert.assertEquals(2, JsonParser.parseString(stringWriter.toString()).getAsJsonArray().size());
+  }
+
+  @Test
+  public void doPostBatch_invalidFile_deletesAllImages() throws IOException {
+    when(request.getParameter("batch")).thenReturn("true");
+    createMockBlobs(request, BLOB_KEY, OTHER_BLOB_KEY);
+    BlobInfo invalidBlobInfo = new BlobInfo(OTHER_BLOB_KEY, INVALID_CONTENT_TYPE, new Date(),
+        INVALID_FILENAME, IMAGE_SIZE_1MB, HASH, null);
+    when(blobInfoFactory.loadBlobInfo(OTHER_BLOB_KEY)).thenReturn(invalidBlobInfo);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertEquals(INVALID_FILE_WARNING, stringWriter.toString());
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    verify(blobstoreService).delete(BLOB_KEY, OTHER_BLOB_KEY);
+    Assert.assertEquals(0,
+        datastore.prepare(new Query("Receipt")).countEntities(FetchOptions.Builder.withDefaults()));
+  }
+
+  @Test
+  public void doPostBatch_tooManyImages_deletesAllImages() throws IOException {
+    when(request.getParameter("batch")).thenReturn("true");
+    BlobKey[] blobKeys = new BlobKey[UploadReceiptServlet.MAX_IMAGES_PER_UPLOAD + 1];
+    for (int i = 0; i < blobKeys.length; i++) {
+      blobKeys[i] = new BlobKey("blobKey" + i);
+    }
+    createMockBlobs(request, blobKeys);
+
+    servlet.doPost(request, response);
+
+    verify(response).setStatus(HttpServletResponse.SC_BAD_REQUEST);
+    verify(blobstoreService).delete(blobKeys);
+    Assert.assertEquals(0,
+        datastore.prepare(new Query("Receipt")).countEntities(FetchOptions.Builder.withDefaults()));
+  }
+
+  @Test
+  public void doPostBatch_receiptAnalysisFailure_deletesAllImages() throws IOException {
+    when(request.getParameter("batch")).thenReturn("true");
+    createMockBlobs(request, BLOB_KEY, OTHER_BLOB_KEY);
+
+    // Mock receipt analysis exception.
+    mockStatic(ReceiptAnalysis.class);
+    when(ReceiptAnalysis.analyzeImagesAtBlobKeys(
+             Arrays.asList(BLOB_KEY, OTHER_BLOB_KEY), analysisClients, analysisCache))
+        .thenThrow(IOException.class);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertEquals(RECEIPT_ANALYSIS_FAILED_WARNING, stringWriter.toString());
+    verify(response).setStatus(HttpServletResponse.SC_INTERNAL_SERVER_ERROR);
+    verify(blobstoreService).delete(BLOB_KEY, OTHER_BLOB_KEY);
+  }
+
+  @Test
+  public void doPostBatch_userLoggedOut_deletesAllImages() throws IOException {
+    helper.setEnvIsLoggedIn(false);
+    when(request.getParameter("batch")).thenReturn("true");
+    createMockBlobs(request, BLOB_KEY, OTHER_BLOB_KEY);
+
+    servlet.doPost(request, response);
+    writer.flush();
+
+    Assert.assertEquals(USER_NOT_LOGGED_IN_WARNING, stringWriter.toString());
+    verify(response).setStatus(HttpServletResponse.SC_FORBIDDEN);
+    verify(blobstoreService).delete(BLOB_KEY, OTHER_BLOB_KEY);
+  }
+
   @Test
   public void doPost_roundsPrice() throws IOException, ReceiptAnalysisException {
     createMockBlob(request, VALID_CONTENT_TYPE, VALID_FILENAME, IMAGE_SIZE_1MB);
-    stubUrlComponents(
-        request, LIVE_SERVER_SCHEME, LIVE_SERVER_NAME, LIVE_SERVER_PORT, LIVE_SERVER_CONTEXT_PATH);
 
     // Mock receipt analysis.
     double price = 17.236;
@@ -460,7 +668,7 @@ public final class UploadReceiptServletTest {
                                           .setStore(STORE)
                                           .build();
     mockStatic(ReceiptAnalysis.class);
-    when(ReceiptAnalysis.analyzeImageAt(new URL(LIVE_SERVER_ABSOLUTE_URL)))
+    when(ReceiptAnalysis.analyzeImageAt(BLOB_KEY, analysisClients, analysisCache))
         .thenReturn(analysisResults);
 
     servlet.doPost(request, response);
@@ -472,6 +680,19 @@ public final class UploadReceiptServletTest {
     Assert.assertEquals(roundedPrice, receipt.getProperty("price"));
   }
 
+  /** Runs the analysis tasks that were enqueued, as the task queue would. */
+  private void runQueuedAnalyses() throws IOException {
+    AnalyzeReceiptServlet analyzeServlet =
+        new AnalyzeReceiptServlet(datastore, clock, analysisClients, analysisCache);
+    for (TaskOptions task : queuedAnalyses) {
+      HttpServletRequest taskRequest = mock(HttpServletRequest.class);
+      when(taskRequest.getHeader("X-AppEngine-QueueName")).thenReturn("default");
+      task.getStringParams().forEach(
+          (name, values) -> when(taskRequest.getParameter(name)).thenReturn(values.get(0)));
+      analyzeServlet.doPost(taskRequest, mock(HttpServletResponse.class));
+    }
+  }
+
   /**
    * Adds a mock blob with the given content type, filename, and size to the mocked Blobstore.
    */
@@ -484,33 +705,49 @@ public final class UploadReceiptServletTest {
     when(blobInfoFactory.loadBlobInfo(BLOB_KEY)).thenReturn(blobInfo);
   }
 
+  /**
+   * Adds valid JPEG blobs with the given keys, uploaded with the same form input, to the mocked
+   * Blobstore.
+   */
+  private void createMockBlobs(HttpServletRequest request, BlobKey... blobKeys) {
+    Map<String, List<BlobKey>> blobs = new HashMap<>();
+    blobs.put("receipt-image", Arrays.asList(blobKeys));
+    when(blobstoreService.getUploads(request)).thenReturn(blobs);
+
+    for (BlobKey blobKey : blobKeys) {
+      BlobInfo blobInfo = new BlobInfo(
+          blobKey, VALID_CONTENT_TYPE, new Date(), VALID_FILENAME, IMAGE_SIZE_1MB, HASH, null);
+      when(blobInfoFactory.loadBlobInfo(blobKey)).thenReturn(blobInfo);
+    }
+  }
+
+  private Entity getReceiptWithImageUrl(String imageUrl) {
+    return datastore.prepare(new Query("Receipt"))
+        .asList(FetchOptions.Builder.withDefaults())
+        .stream()
+        .filter(receipt -> imageUrl.equals(receipt.getProperty("imageUrl")))
+        .findFirst()
+        .get();
+  }
+
   /**
    * Creates an entity with the given properties and converts it to JSON format.
    */
   private String createReceiptEntity(String imageUrl, double price, String store, Text rawText,
       long timestamp, Collection<String> categories, String userId) {
     Entity receipt = new Entity("Receipt");
-    receipt.setUnindexedProperty("imageUrl", imageUrl);
+    receipt.setProperty("imageUrl", imageUrl);
     receipt.setUnindexedProperty("rawText", rawText);
     receipt.setProperty("categories", categories);
     receipt.setProperty("timestamp", timestamp);
     receipt.setProperty("store", store);
     receipt.setProperty("price", price);
+    receipt.setProperty("priceBucket", PriceBuckets.getBucket(price));
     receipt.setProperty("userId", userId);
+    receipt.setUnindexedProperty(ReceiptTextIndex.INDEXED_PROPERTY, true);
 
     String json = new Gson().toJson(receipt);
 
     return TestUtils.extractProperties(json) + "\n";
   }
-
-  /**
-   * Stubs the request with the given scheme, server name, port, and context path URL components.
-   */
-  private void stubUrlComponents(
-      HttpServletRequest request, String scheme, String serverName, int port, String contextPath) {
-    when(request.getScheme()).thenReturn(scheme);
-    when(request.getServerName()).thenReturn(serverName);
-    when(request.getServerPort()).thenReturn(port);
-    when(request.getContextPath()).thenReturn(contextPath);
-  }
 }
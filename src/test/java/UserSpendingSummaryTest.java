@@ -0,0 +1,132 @@
+// Copyright 2019 Google LLC
+//
+// Licensed under the Apache License, Version 2.0 (the "License");
+// you may not use this file except in compliance with the License.
+// You may obtain a copy of the License at
+//
+//     https://www.apache.org/licenses/LICENSE-2.0
+//
+// Unless required by applicable law or agreed to in writing, software
+// distributed under the License is distributed on an "AS IS" BASIS,
+// WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+// See the License for the specific language governing permissions and
+// limitations under the License.
+
+package com.google.sps;
+
+import com.google.appengine.api.datastore.DatastoreService;
+import com.google.appengine.api.datastore.DatastoreServiceFactory;
+import com.google.appengine.api.datastore.Entity;
+import com.google.appengine.api.datastore.EntityNotFoundException;
+import com.google.appengine.api.datastore.Key;
+import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.tools.development.testing.LocalDatastoreServiceTestConfig;
+import com.google.appengine.tools.development.testing.LocalServiceTestHelper;
+import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.ImmutableSet;
+import com.google.sps.data.UserSpendingSummary;
+import java.util.HashMap;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+public final class UserSpendingSummaryTest {
+  // Entities need an App Engine environment to create their keys.
+  private final LocalServiceTestHelper helper =
+      new LocalServiceTestHelper(new LocalDatastoreServiceTestConfig());
+
+  @Before
+  public void setUp() {
+    helper.setUp();
+  }
+
+  @After
+  public void tearDown() {
+    helper.tearDown();
+  }
+
+  @Test
+  public void addReceipt_addsPriceToStoreAndEachCategory() {
+    UserSpendingSummary summary = new UserSpendingSummary();
+
+    summary.addReceipt(createReceipt(26.12, "walmart", ImmutableSet.of("candy", "drink")));
+    summary.addReceipt(createReceipt(0.10, "walmart", ImmutableSet.of("candy")));
+
+    Assert.assertEquals(new HashMap<>(ImmutableMap.of("walmart", 26.22)),
+        summary.toAnalytics().getStoreAnalytics());
+    Assert.assertEquals(new HashMap<>(ImmutableMap.of("candy", 26.22, "drink", 26.12)),
+        summary.toAnalytics().getCategoryAnalytics());
+  }
+
+  @Test
+  public void removeReceipt_lastReceipt_removesTotals() {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    Entity receipt = createReceipt(26.12, "walmart", ImmutableSet.of("candy"));
+    summary.addReceipt(receipt);
+
+    summary.removeReceipt(receipt);
+
+    Assert.assertTrue(summary.toAnalytics().getStoreAnalytics().isEmpty());
+    Assert.assertTrue(summary.toAnalytics().getCategoryAnalytics().isEmpty());
+  }
+
+  @Test
+  public void addReceipt_manyReceipts_doesNotAccumulateRoundingErrors() {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    Entity receipt = createReceipt(0.10, "walmart", ImmutableSet.of("candy"));
+
+    for (int i = 0; i < 1000; i++) {
+      summary.addReceipt(receipt);
+    }
+    for (int i = 0; i < 999; i++) {
+      summary.removeReceipt(receipt);
+    }
+
+    Assert.assertEquals(
+        0.10, (double) summary.toAnalytics().getStoreAnalytics().get("walmart"), /* delta = */ 0);
+  }
+
+  @Test
+  public void addReceipt_receiptWithoutPrice_isIgnored() {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    Entity receipt = createReceipt(26.12, "walmart", ImmutableSet.of("candy"));
+    receipt.removeProperty("price");
+
+    summary.addReceipt(receipt);
+
+    Assert.assertTrue(summary.toAnalytics().getStoreAnalytics().isEmpty());
+  }
+
+  @Test
+  public void toEntity_fromEntity_keepsTotals() {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    summary.addReceipt(createReceipt(26.12, "walmart", ImmutableSet.of("candy", "drink")));
+    summary.addReceipt(createReceipt(14.51, "contoso", ImmutableSet.of("cappuccino")));
+
+    UserSpendingSummary storedSummary = UserSpendingSummary.fromEntity(
+        summary.toEntity(KeyFactory.createKey(UserSpendingSummary.KIND, "testID")));
+
+    Assert.assertTrue(summary.diffStoreTotals(storedSummary).areEqual());
+    Assert.assertTrue(summary.diffCategoryTotals(storedSummary).areEqual());
+  }
+
+  @Test
+  public void toEntity_reservedNames_storedInDatastore() throws EntityNotFoundException {
+    UserSpendingSummary summary = new UserSpendingSummary();
+    summary.addReceipt(createReceipt(26.12, "__walmart__", ImmutableSet.of("__key__", "")));
+    DatastoreService datastore = DatastoreServiceFactory.getDatastoreService();
+    Key key =
+        datastore.put(summary.toEntity(KeyFactory.createKey(UserSpendingSummary.KIND, "testID")));
+
+    UserSpendingSummary storedSummary = UserSpendingSummary.fromEntity(datastore.get(key));
+
+    Assert.assertTrue(summary.diffStoreTotals(storedSummary).areEqual());
+    Assert.assertTrue(summary.diffCategoryTotals(storedSummary).areEqual());
+  }
+
+  private static Entity createReceipt(double price, String store, ImmutableSet<String> categories) {
+    return TestUtils.createEntity(/* userId = */ "testID", /* timestamp = */ 6292020,
+        "img/walmart-receipt.jpg", price, store, categories, "");
+  }
+}